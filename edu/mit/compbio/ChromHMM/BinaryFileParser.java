@@ -0,0 +1,350 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+
+/**
+ * Reads a _binary file of calls, optionally gzipped, directly from its bytes. The two header lines are read as strings and
+ * each row after them is checked to have a call of 0, 1 or 2 for each mark and packed into a signature key, which is
+ * interned into a SignatureTable so that only the index of the signature of each row is kept. Lines end as they do for
+ * BufferedReader.readLine and the calls are separated by tabs or spaces as for a StringTokenizer, with any values after
+ * those of the marks ignored. A file in the packed format of PackedBinaryFile is mapped instead and read as if it were
+ * the text it was packed from.
+ */
+class BinaryFileParser
+{
+    /**
+     * The size of the buffer the bytes of the file are read into
+     */
+    static int BUFFERSIZE = 65536;
+
+    String szinputdir;
+    String szfile;
+
+    private InputStream in;
+    private byte[] buffer = new byte[BUFFERSIZE];
+    private int nbufferpos = 0;
+    private int nbufferend = 0;
+
+    /**
+     * Holds the bytes of the current token for the message if it is not a call
+     */
+    private byte[] tokenbytes = new byte[16];
+
+    /**
+     * The mapped file if it is packed, and the line of its text format read next
+     */
+    private PackedBinaryFile thePacked;
+    private int nnextpackedline = 0;
+
+    /**
+     * Opens the file szfile in szinputdir, which is read through gunzip if its name ends in .gz
+     */
+    BinaryFileParser(String szinputdir, String szfile) throws IOException
+    {
+	this.szinputdir = szinputdir;
+	this.szfile = szfile;
+
+	String szpath = szinputdir+"/"+szfile;
+	if (szpath.endsWith(PackedBinaryFile.EXTENSION))
+	{
+	    thePacked = new PackedBinaryFile(szpath);
+	}
+	else if (szpath.endsWith(".gz"))
+	{
+	    try
+	    {
+		in = new GZIPInputStream(new FileInputStream(szpath), BUFFERSIZE);
+	    }
+	    catch (IOException ioex)
+	    {
+		System.out.println("IOException thrown for file "+szpath);
+		throw ioex;
+	    }
+	}
+	else
+	{
+	    in = new FileInputStream(szpath);
+	}
+    }
+
+    /**
+     * Reads the sequence in szfile of szinputdir, skipping its two header lines, and stores the index in theSignatures of the
+     * signature of each row in indices. Returns the number of rows.
+     */
+    static int readSequence(String szinputdir, String szfile, SignatureTable theSignatures, int[] indices) throws IOException
+    {
+	if (ChromHMM.BVERBOSE)
+	{
+	    System.out.println("reading\t"+szinputdir+" "+szfile);
+	}
+
+	BinaryFileParser theParser = new BinaryFileParser(szinputdir, szfile);
+	try
+	{
+	    theParser.readLine(); //first line tells cell type and chromosome
+	    theParser.readLine(); //flush mark header
+	    return theParser.readIndices(theSignatures, indices);
+	}
+	finally
+	{
+	    theParser.close();
+	}
+    }
+
+    /**
+     * Returns the next byte of the file or -1 at its end
+     */
+    private int read() throws IOException
+    {
+	if (nbufferpos == nbufferend)
+	{
+	    nbufferend = in.read(buffer, 0, buffer.length);
+	    nbufferpos = 0;
+	    if (nbufferend <= 0)
+	    {
+		nbufferend = 0;
+		return -1;
+	    }
+	}
+	return buffer[nbufferpos++] & 0xff;
+    }
+
+    /**
+     * Skips a '\n' following a '\r' that ended a line
+     */
+    private void skipLineFeed() throws IOException
+    {
+	int nbyte = read();
+	if ((nbyte != '\n')&&(nbyte != -1))
+	{
+	    nbufferpos--;
+	}
+    }
+
+    /**
+     * Returns the next line or null at the end of the file
+     */
+    String readLine() throws IOException
+    {
+	if (thePacked != null)
+	{
+	    if (nnextpackedline == thePacked.numrows+2)
+	    {
+		return null;
+	    }
+	    return thePacked.getLine(nnextpackedline++);
+	}
+
+	ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	int nbyte = read();
+	if (nbyte == -1)
+	{
+	    return null;
+	}
+
+	while ((nbyte != -1)&&(nbyte != '\n')&&(nbyte != '\r'))
+	{
+	    baos.write(nbyte);
+	    nbyte = read();
+	}
+
+	if (nbyte == '\r')
+	{
+	    skipLineFeed();
+	}
+	return baos.toString();
+    }
+
+    /**
+     * Packs the calls of the next row into key. Returns false at the end of the file.
+     */
+    boolean readRow(long[] key, int numdatasets) throws IOException
+    {
+	if (thePacked != null)
+	{
+	    if (nnextpackedline == thePacked.numrows+2)
+	    {
+		return false;
+	    }
+
+	    if (thePacked.numdatasets < numdatasets)
+	    {
+		throw new IllegalArgumentException("Found line without "+numdatasets+" values in file "+szfile);
+	    }
+	    //the header lines come before the rows
+	    thePacked.getRow(nnextpackedline-2, key, numdatasets);
+	    nnextpackedline++;
+	    return true;
+	}
+
+	int nbyte = read();
+	if (nbyte == -1)
+	{
+	    return false;
+	}
+
+	Arrays.fill(key, 0);
+	int ncol = 0;
+	while (true)
+	{
+	    //skips the separators before the next value
+	    while ((nbyte == '\t')||(nbyte == ' '))
+	    {
+		nbyte = read();
+	    }
+
+	    if ((nbyte == -1)||(nbyte == '\n')||(nbyte == '\r'))
+	    {
+		if (ncol < numdatasets)
+		{
+		    throw new IllegalArgumentException("Found line without "+numdatasets+" values in file "+szfile);
+		}
+
+		if (nbyte == '\r')
+		{
+		    skipLineFeed();
+		}
+		return true;
+	    }
+
+	    int ntokenlength = 0;
+	    while ((nbyte != -1)&&(nbyte != '\n')&&(nbyte != '\r')&&(nbyte != '\t')&&(nbyte != ' '))
+	    {
+		if (ncol < numdatasets)
+		{
+		    if (ntokenlength == tokenbytes.length)
+		    {
+			tokenbytes = Arrays.copyOf(tokenbytes, 2*ntokenlength);
+		    }
+		    tokenbytes[ntokenlength] = (byte) nbyte;
+		}
+		ntokenlength++;
+		nbyte = read();
+	    }
+
+	    if (ncol < numdatasets)
+	    {
+		int ncall = tokenbytes[0]-'0';
+		if ((ntokenlength != 1)||(ncall < 0)||(ncall > 2))
+		{
+		    throw new IllegalArgumentException("Unrecognized value "+new String(tokenbytes, 0, ntokenlength)+" found in "+szinputdir+"/"+szfile);
+		}
+
+		if (ncall != 0)
+		{
+		    SignatureTable.setCall(key, ncol, ncall);
+		}
+	    }
+	    ncol++;
+	}
+    }
+
+    /**
+     * Reads the remaining rows and returns the index in theSignatures of the signature of each
+     */
+    int[] readIndices(SignatureTable theSignatures) throws IOException
+    {
+	long[] key = theSignatures.newKey();
+	int[] indices;
+	if (thePacked != null)
+	{
+	    indices = new int[Math.max(1, thePacked.numrows)];
+	}
+	else
+	{
+	    indices = new int[1024];
+	}
+	int nrow = 0;
+	while (readRow(key, theSignatures.numdatasets))
+	{
+	    if (nrow == indices.length)
+	    {
+		indices = Arrays.copyOf(indices, 2*nrow);
+	    }
+	    indices[nrow] = theSignatures.intern(key);
+	    nrow++;
+	}
+	return Arrays.copyOf(indices, nrow);
+    }
+
+    /**
+     * Reads the remaining rows, stores the index in theSignatures of the signature of each in indices and returns the number of rows
+     */
+    int readIndices(SignatureTable theSignatures, int[] indices) throws IOException
+    {
+	long[] key = theSignatures.newKey();
+	int nrow = 0;
+	while (readRow(key, theSignatures.numdatasets))
+	{
+	    if (nrow == indices.length)
+	    {
+		throw new IllegalArgumentException("Found more than the expected "+indices.length+" lines in "+szinputdir+"/"+szfile);
+	    }
+	    indices[nrow] = theSignatures.intern(key);
+	    nrow++;
+	}
+	return nrow;
+    }
+
+    /**
+     * Returns the number of remaining lines
+     */
+    int countLines() throws IOException
+    {
+	if (thePacked != null)
+	{
+	    int nremaining = thePacked.numrows+2-nnextpackedline;
+	    nnextpackedline = thePacked.numrows+2;
+	    return nremaining;
+	}
+
+	int nlinecount = 0;
+	int nbyte = read();
+	while (nbyte != -1)
+	{
+	    //at the start of a line
+	    while ((nbyte != -1)&&(nbyte != '\n')&&(nbyte != '\r'))
+	    {
+		nbyte = read();
+	    }
+	    nlinecount++;
+
+	    if (nbyte == '\r')
+	    {
+		skipLineFeed();
+	    }
+	    nbyte = read();
+	}
+	return nlinecount;
+    }
+
+    void close() throws IOException
+    {
+	if (in != null)
+	{
+	    in.close();
+	}
+	thePacked = null;
+    }
+}
@@ -25,7 +25,9 @@ import java.awt.*;
 import java.awt.geom.*;
 import java.awt.image.*;
 import java.net.*;
+import java.nio.*;
 import java.util.zip.*;
+import java.util.concurrent.*;
 import org.tc33.jheatchart.HeatChart;
 
  
@@ -33,7 +35,7 @@ import org.tc33.jheatchart.HeatChart;
  * The main class of ChromHMM implements command line parsing and core algorithms
  * The ChromHMM code was written by Jason Ernst 
  */
-public class ChromHMM
+public class ChromHMM implements Cloneable
 {
   
     /**
@@ -93,6 +95,44 @@ public class ChromHMM
      */
     private static double SPARSECUTOFFLOOSERRATIO = 0.8;
 
+    /**
+     * The number of times each loop is timed when measuring the sparse transition cutoff, keeping the fastest time
+     */
+    private static int CALIBRATIONTRIALS = 3;
+
+    /**
+     * The largest number of values stored in a single array by FlatRows before moving them into direct buffers,
+     * a little under Integer.MAX_VALUE since some virtual machines cannot allocate arrays that large
+     */
+    static int MAXFLATARRAYLENGTH = Integer.MAX_VALUE - 8;
+
+    /**
+     * The default number of locations in a block of stochastic training
+     */
+    static int DEFAULT_STOCHASTICBLOCKSIZE = 10000;
+
+    /**
+     * The default number of mini-batch updates in an iteration of stochastic training
+     */
+    static int DEFAULT_STOCHASTICUPDATES = 10;
+
+    /**
+     * The default exponent of the step size schedule of stochastic training, which needs to be in (0.5,1]
+     * for the running statistics to converge
+     */
+    static double DEFAULT_STOCHASTICSTEP = 0.7;
+
+    /**
+     * The number of consecutive iterations of stochastic training whose held out log-likelihood must fail to improve on the best
+     * one so far by more than the convergence delta before training is converged, since the held out log-likelihood is noisy
+     */
+    static int STOCHASTICPATIENCE = 3;
+
+    /**
+     * The default number of I/O threads reading sequences ahead with -prefetch
+     */
+    static int DEFAULT_PREFETCHTHREADS = 1;
+
     /**
      * Default Red value for heatmaps on 0 to 255 scale
      */
@@ -226,6 +266,51 @@ public class ChromHMM
      */
     int[][] transitionprobsindexCol;
 
+    /**
+     * The non-eliminated transitions in compressed sparse row form. The transitions out of state i are at positions
+     * transitionprobsrowstart[i] to transitionprobsrowstart[i+1]-1 of transitionprobsrowindex, which has the state
+     * transitioned to, and of transitionprobsrowvalues, which has the probability, in the order of transitionprobsindex.
+     */
+    int[] transitionprobsrowstart;
+    int[] transitionprobsrowindex;
+    double[] transitionprobsrowvalues;
+
+    /**
+     * The non-eliminated transitions in compressed sparse column form. The transitions into state j are at positions
+     * transitionprobscolstart[j] to transitionprobscolstart[j+1]-1 of transitionprobscolindex, which has the state
+     * transitioned from, and of transitionprobscolvalues, in the order of transitionprobsindexCol.
+     */
+    int[] transitionprobscolstart;
+    int[] transitionprobscolindex;
+    double[] transitionprobscolvalues;
+
+    /**
+     * Incremented each time transitions are eliminated during training
+     */
+    int ntransitionstructureversion = 0;
+
+    /**
+     * The value of ntransitionstructureversion when the compressed sparse transitions were last built, -1 if never
+     */
+    int ncompressedtransitionversion = -1;
+
+    /**
+     * The number of non-eliminated transitions into or out of a state below which the compressed sparse transitions
+     * are used instead of the dense loop, or -1 if not yet determined
+     */
+    int ncalibratedsparsecutoff = -1;
+
+    /**
+     * If true the sparse transition cutoff is measured by timing the loops on this machine instead of taking the fixed
+     * ratio of the number of states, which can change the results between runs since the timings vary
+     */
+    boolean bcalibratesparse = false;
+
+    /**
+     * Accumulates the results of the calibration loops so they are not optimized away
+     */
+    double dcalibrationsink;
+
 
     /**
      * For each state, each feature we have an emission probability for each bucket
@@ -557,6 +642,16 @@ public class ChromHMM
      */
     boolean bscalebeta;
 
+    /**
+     * True if the forward values and posteriors of each position should be stored in single precision
+     */
+    boolean bfloat;
+
+    /**
+     * Computes the dot products in the dense transition loops of the forward and backward passes
+     */
+    DotKernel theDotKernel = DotKernel.SCALARKERNEL;
+
     /**
      * True if should also reorder the columns of the model file
      */
@@ -727,7 +822,7 @@ public class ChromHMM
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     /**
-     * Constructor initializes the variable and loads the data used for learning the model
+     * Constructor initializes the variable and loads the data used for learning the model, unless szinputdir is null
      */
      public ChromHMM(String szinputdir, String szoutputdir, String szinputfilelist,String szchromlengthfile, int numstates,int nseed, int ninitmethod,
                     String szInitFile, double dloadsmoothemission,double dloadsmoothtransition,double dinformationsmooth,
@@ -735,7 +830,9 @@ public class ChromHMM
 		    boolean bprintsegment,boolean bprintstatebyline, int nbinsize,String szoutfileID,int nstateorder,boolean bordercols,int nzerotransitionpower,
 		     Color theColor, boolean bnormalEM, int nmaxprocessors, boolean blowmem, 
                      int numincludeseq, boolean bprintimage, boolean bscaleemissions, 
-                     boolean bpseudo, boolean bnopseudolast, boolean bgzip,boolean bsplit, boolean borderrows, boolean bscalebeta) throws IOException
+                     boolean bpseudo, boolean bnopseudolast, boolean bgzip,boolean bsplit, boolean borderrows, boolean bscalebeta,
+		     boolean bprinttiming, int nblockfbsize, boolean brecomputealpha, boolean bfloat, boolean bcompressruns,
+		     boolean bemissiontables, int nemissioncachesize, DotKernel theDotKernel) throws IOException
     {
 	this.szinputdir = szinputdir;
         this.szoutputdir = szoutputdir;
@@ -772,13 +869,25 @@ public class ChromHMM
 	this.bnopseudolast = bnopseudolast;
 	this.bgzip = bgzip;
 	this.bscalebeta = bscalebeta;
+	this.bprinttiming = bprinttiming;
+	this.nblockfbsize = nblockfbsize;
+	this.brecomputealpha = brecomputealpha;
+	this.bfloat = bfloat;
+	this.theDotKernel = theDotKernel;
+	this.bcompressruns = bcompressruns;
+	this.bemissiontables = bemissiontables;
+	this.nemissioncachesize = nemissioncachesize;
 	//this.numsplitbins = numsplitbins;
 	this.bsplit = bsplit;
 
         hmlabelExtend = new HashMap();
         theRandom = new Random(nseed);
 
-	if (blowmem)
+	if (szinputdir == null)
+	{
+	    //the coordinator of distributed training gets the marks from its workers, which load the data
+	}
+	else if (blowmem)
 	{
 	    loadDataFileStubs();
 	}
@@ -894,7 +1003,8 @@ public class ChromHMM
      */
     public ChromHMM(String szinputdir, String szinputfilelist, String szchromlengthfile, String szoutputdir, String szInitFile, String szoutfileID,
                     int nbinsize, boolean bprintposterior, boolean bprintsegment,boolean bprintstatebyline, 
-                    boolean blowmem, boolean bscaleemissions, boolean bgzip, boolean bsplit, boolean bscalebeta) throws IOException
+                    boolean blowmem, boolean bscaleemissions, boolean bgzip, boolean bsplit, boolean bscalebeta, boolean bfloat,
+		    DotKernel theDotKernel) throws IOException
     {
 	this.szinputdir = szinputdir;
 	this.szinputfilelist = szinputfilelist;
@@ -911,6 +1021,8 @@ public class ChromHMM
 	this.bgzip = bgzip;
 	this.bsplit = bsplit;
 	this.bscalebeta = bscalebeta;
+	this.bfloat = bfloat;
+	this.theDotKernel = theDotKernel;
 
         hmlabelExtend = new HashMap();
 
@@ -946,7 +1058,8 @@ public class ChromHMM
                     String szInitFile, String szoutfileID,
                     int nbinsize, boolean breadposterior, boolean breadsegment,boolean breadstatebyline,
                     String szincludemarks, boolean bappend, Color theColor, boolean bprintimage, 
-                    boolean blowmem, boolean bscaleemissions, boolean bscalebeta) throws IOException
+                    boolean blowmem, boolean bscaleemissions, boolean bscalebeta, boolean bfloat,
+		    DotKernel theDotKernel) throws IOException
     {
 	this.bappend = bappend;
 	this.szinputdir = szinputdir;
@@ -966,6 +1079,8 @@ public class ChromHMM
 	this.blowmem = blowmem;
 	this.bscaleemissions = bscaleemissions;
 	this.bscalebeta = bscalebeta;
+	this.bfloat = bfloat;
+	this.theDotKernel = theDotKernel;
         hmlabelExtend = new HashMap();
 
 	if (blowmem)
@@ -1020,7 +1135,89 @@ public class ChromHMM
      */
     public void buildModel() throws IOException
     {
-       if (ninitmethod ==ChromHMM.INITMETHOD_LOAD) 
+       if (!resumeFromCheckpoint())
+       {
+          initializeParameters();
+       }
+       checkTrainingOptions();
+       trainModel();
+    }
+
+    /**
+     * Returns the file to which checkpoints of training are written, szoutputdir+"/checkpoint_"+numstates+"_"+szoutfileID+".bin"
+     */
+    String getCheckpointFile()
+    {
+       if (szoutfileID.equals(""))
+       {
+	   return szoutputdir+"/checkpoint_"+numstates+".bin";
+       }
+       else
+       {
+	   return szoutputdir+"/checkpoint_"+numstates+"_"+szoutfileID+".bin";
+       }
+    }
+
+    /**
+     * If bresume is true and there is a checkpoint in the output directory, sets the parameters to those of the checkpoint
+     * and stores it in theResumeCheckpoint so training continues after its last iteration.
+     * Returns true if the parameters were set from a checkpoint.
+     */
+    boolean resumeFromCheckpoint() throws IOException
+    {
+       if (!bresume)
+       {
+	   return false;
+       }
+
+       String szfile = getCheckpointFile();
+       if (!(new File(szfile)).exists())
+       {
+	   System.out.println("No checkpoint "+szfile+" found, training from the first iteration");
+	   return false;
+       }
+
+       theResumeCheckpoint = TrainingCheckpoint.read(szfile, this);
+       if (ndeadstatepower > 0)
+       {
+	   findDeadStates();
+       }
+       System.out.println("Resuming training after iteration "+theResumeCheckpoint.niteration+" from "+szfile);
+       //the header is otherwise printed with the first iteration
+       System.out.format("%10s %25s %10s %20s%n","Iteration","Estimated Log Likelihood", "Change","Total Time (secs)");
+       return true;
+    }
+
+    /**
+     * Returns true if a checkpoint should be written after iteration niteration, which is the last one if bconverged is true,
+     * given that the last checkpoint was written at llastcheckpoint milliseconds
+     */
+    boolean isCheckpointDue(int niteration, long llastcheckpoint, boolean bconverged)
+    {
+       boolean bdue = false;
+       if (ncheckpointiterations > 0)
+       {
+	   bdue = ((bconverged)||(niteration % ncheckpointiterations == 0));
+       }
+
+       if (ncheckpointminutes > 0)
+       {
+	   bdue = ((bdue)||(bconverged)||(System.currentTimeMillis()-llastcheckpoint >= ncheckpointminutes*60000L));
+       }
+       return bdue;
+    }
+
+    /**
+     * Initializes the parameters based on the method determined by ninitmethod
+     */
+    void initializeParameters() throws IOException
+    {
+       if (theDistributedWorker != null)
+       {
+	   //the parameters are initialized by the coordinator of distributed training
+	   theDistributedWorker.receiveInitialParameters(this);
+       }
+       else if (ninitmethod ==ChromHMM.INITMETHOD_LOAD) 
        {
 	   //loads parameters of the initial model
 	   loadModelSmooth(dloadsmoothemission,dloadsmoothtransition);
@@ -1040,7 +1237,13 @@ public class ChromHMM
        {
 	   randomlyInitializeParams();
        }
+    }
 
+    /**
+     * Trains the initialized parameters with the procedure selected by bnormalEM and blowmem
+     */
+    void trainModel() throws IOException
+    {
        //trains the model
        //trainParameters();
        //trainParametersNormalEM();
@@ -1050,6 +1253,14 @@ public class ChromHMM
 	  {
              trainParametersParallelWithLoad();
 	  }
+	  else if (bincremental)
+	  {
+	     trainParametersIncremental();
+	  }
+	  else if (nstochasticblocks > 0)
+	  {
+	     trainParametersStochastic();
+	  }
 	  else
 	  {
 	     trainParametersParallel();
@@ -1068,100 +1279,578 @@ public class ChromHMM
        }
     }
 
-    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-    private void reorderModel() throws IOException
-    {	
-       if (szstateorderingfile !=null)
+    /**
+     * Initializes the parameters as the coordinator of distributed training, from the sequences of the workers connected to theCoordinator
+     * for the information based initialization, and then learns them with trainParametersCoordinated
+     */
+    public void buildModelCoordinated(DistributedTraining.Coordinator theCoordinator) throws IOException
+    {
+       //skips the values drawn to order the chromosome files when loading so the initialization is that of a single process with all the sequences
+       for (int nseq = 0; nseq < theCoordinator.numsequences; nseq++)
        {
-	   int[] stateorderingOLDtoNEW = new int[stateordering.length];
-	   BufferedReader brstate =  Util.getBufferedReader(szstateorderingfile);
-	   String szLine;
-	   while ((szLine = brstate.readLine())!=null)
+	   theRandom.nextDouble();
+       }
+
+       //the checkpoints record the files of all the workers in the order their statistics are added
+       chromfiles = theCoordinator.getChromFiles();
+
+       if (resumeFromCheckpoint())
+       {
+	   //the workers get the parameters of the checkpoint
+       }
+       else if (ninitmethod == ChromHMM.INITMETHOD_INFORMATION)
+       {
+	   theCoordinator.informationInitialize(this);
+       }
+       else
+       {
+	   initializeParameters();
+       }
+       trainParametersCoordinated(theCoordinator);
+    }
+
+    /**
+     * Prints a note for each training option that does not apply to the selected training procedure
+     * and turns off those that cannot be combined
+     */
+    void checkTrainingOptions()
+    {
+       if ((theTelemetry != null)&&(!bnormalEM))
+       {
+	   System.out.println("Note: -telemetry is only used for parallel training with -p, ignoring it");
+       }
+
+       if ((nprefetchsequences > 0)&&(!blowmem))
+       {
+	   System.out.println("Note: -prefetch is only used with -lowmem, ignoring it");
+       }
+
+       if ((ndeadstatepower > 0)&&((!bnormalEM)||(blowmem)))
+       {
+	   System.out.println("Note: -deadstates is only used for parallel training with -p without -lowmem, ignoring it");
+       }
+
+       if ((bincremental)&&((!bnormalEM)||(blowmem)))
+       {
+	   System.out.println("Note: -incremental is only used for parallel training with -p without -lowmem, ignoring it");
+	   bincremental = false;
+       }
+       else if (bincremental)
+       {
+	   if (nstochasticblocks > 0)
 	   {
-	       StringTokenizer st = new StringTokenizer(szLine,"\t ");
-	       int nold = Integer.parseInt(st.nextToken())-1;
-	       int nnew = Integer.parseInt(st.nextToken())-1;
-	       stateordering[nnew] = nold;
-	       stateorderingOLDtoNEW[nold] = nnew;
+	       System.out.println("Note: -stochastic cannot be combined with -incremental, ignoring it");
+	       nstochasticblocks = 0;
 	   }
-	   brstate.close();
 
-	   if (szreorderinbedfile != null)
+	   if ((nblockfbsize > 0)||(bcompressruns)||(numincludeseq >= 1)||(bemissiontables)||(nemissioncachesize > 0))
 	   {
-	       reorderBEDfile(stateorderingOLDtoNEW);
+	       //each sequence is run whole against its own snapshot of the parameters
+	       System.out.println("Note: -blockfb, -compressruns, -emissioncache, -emissiontables and -n are not used with -incremental, ignoring them");
+	       nblockfbsize = 0;
+	       bcompressruns = false;
+	       bemissiontables = false;
+	       nemissioncachesize = 0;
 	   }
        }
-       else
+
+       if ((nstochasticblocks > 0)&&((!bnormalEM)||(blowmem)))
        {
-          makeStateOrdering();
+	   System.out.println("Note: -stochastic is only used for parallel training with -p without -lowmem, ignoring it");
+	   nstochasticblocks = 0;
+       }
+       else if ((nstochasticblocks > 0)&&((nblockfbsize > 0)||(bcompressruns)||(numincludeseq >= 1)))
+       {
+	   //the mini-batches are already made of short blocks of the sequences
+	   System.out.println("Note: -blockfb, -compressruns and -n are not used with -stochastic, ignoring them");
+	   nblockfbsize = 0;
+	   bcompressruns = false;
        }
 
+       if ((nstochasticblocks > 0)&&(nheldoutblocks < 1))
+       {
+	   //the log-likelihood of the mini-batches is of different blocks each time so cannot show convergence
+	   throw new IllegalArgumentException("-heldout must be at least 1 with -stochastic since the log-likelihood of the held out blocks is reported and used for convergence");
+       }
 
-       if (szcolumnorderingfile !=null)
+       if ((nblockfbsize > 0)&&((!bnormalEM)||(blowmem)))
        {
-	   int ncol = 0;
-	   BufferedReader brcol =  Util.getBufferedReader(szcolumnorderingfile);
-	   String szLine;
-	   HashMap hm = new HashMap();
-	   while ((szLine = brcol.readLine())!=null)
+	   System.out.println("Note: -blockfb is only used for parallel training with -p without -lowmem, ignoring it");
+       }
+
+       if ((brecomputealpha)&&(!bnormalEM))
+       {
+	   System.out.println("Note: -recomputealpha is only used for parallel training with -p, ignoring it");
+       }
+
+       if ((bcompressruns)&&((!bnormalEM)||(blowmem)||(bscalebeta)))
+       {
+	   System.out.println("Note: -compressruns is only used for parallel training with -p without -lowmem or -scalebeta, ignoring it");
+       }
+
+       if ((bemissiontables)&&((!bnormalEM)||(blowmem)))
+       {
+	   System.out.println("Note: -emissiontables is only used for parallel training with -p without -lowmem, ignoring it");
+       }
+
+       if ((nemissioncachesize > 0)&&((!bnormalEM)||(blowmem)))
+       {
+	   System.out.println("Note: -emissioncache is only used for parallel training with -p without -lowmem, ignoring it");
+       }
+       else if ((nemissioncachesize > 0)&&((nblockfbsize > 0)||(brecomputealpha)||((bcompressruns)&&(!bscalebeta))))
+       {
+	   //these go back to the emission products of any position of a sequence so need them for all combinations
+	   System.out.println("Note: -emissioncache cannot be combined with -blockfb, -compressruns, or -recomputealpha, ignoring it");
+	   this.nemissioncachesize = 0;
+       }
+    }
+
+    /**
+     * Trains numrestarts models from random initializations with the seeds nseed, nseed+1, ... on the data loaded by this object.
+     * The restarts are trained concurrently on one pool of workers of in-memory parallel training, each from its own thread
+     * that runs its M-steps. Prints the parameters of the restart with the greatest final log-likelihood and a summary table of all
+     * restarts, and returns that restart. If no outfile ID was given each restart is identified by its seed.
+     */
+    public ChromHMM buildModelRestarts(int numrestarts, int nseed) throws IOException
+    {
+       checkTrainingOptions();
+
+       TrainingPool theTrainingPool = createTrainingPool();
+
+       //determined once so with -calibratesparse the restarts do not time the loops while the others are computing
+       getSparseCutoff();
+
+       final ChromHMM[] restarts = new ChromHMM[numrestarts];
+       final int[] nseeds = new int[numrestarts];
+       final double[] dseconds = new double[numrestarts];
+       for (int nrestart = 0; nrestart < numrestarts; nrestart++)
+       {
+	   nseeds[nrestart] = nseed + nrestart;
+	   String szrestartID;
+	   if (szoutfileID.equals(""))
 	   {
-	       hm.put(szLine,Integer.valueOf(ncol));
-	       ncol++;
+	       szrestartID = ""+nseeds[nrestart];
 	   }
-	   brcol.close();
-
-	   for (int ni = 0;  ni < datasets.length; ni++)
+	   else
 	   {
-	       Integer obj = ((Integer) hm.get(datasets[ni]));
-	       if (obj == null)
-	       {
-		   throw new IllegalArgumentException(datasets[ni]+" not found!");
-	       }
-	       else
+	       szrestartID = szoutfileID;
+	   }
+	   restarts[nrestart] = newModel(numstates, nseeds[nrestart], szrestartID, ""+(nrestart+1));
+	   restarts[nrestart].bdeferoutput = true;
+	   restarts[nrestart].randomlyInitializeParams();
+       }
+
+       System.out.println("Training "+numrestarts+" restarts with seeds "+nseeds[0]+" to "+nseeds[numrestarts-1]);
+       printProgressHeader("Restart");
+
+       //each restart coordinates its iterations from its own thread and submits its work to the shared workers
+       ExecutorService restartexecutor = Executors.newFixedThreadPool(numrestarts);
+       ArrayList alfutures = new ArrayList();
+       for (int nrestart = 0; nrestart < numrestarts; nrestart++)
+       {
+	   final int fnrestart = nrestart;
+	   final TrainingPool theRestartPool = new TrainingPool(theTrainingPool);
+	   alfutures.add(restartexecutor.submit(new Callable()
 	       {
-	          colordering[obj.intValue()] = ni;
-	       }
+		   public Object call() throws IOException
+		   {
+		       long lstart = System.currentTimeMillis();
+		       restarts[fnrestart].trainParametersParallel(theRestartPool);
+		       dseconds[fnrestart] = (System.currentTimeMillis()-lstart)/1000.0;
+		       return null;
+		   }
+	       }));
+       }
+
+       try
+       {
+	   TrainingPool.waitFor(alfutures);
+       }
+       finally
+       {
+	   restartexecutor.shutdownNow();
+	   theTrainingPool.shutdown();
+       }
+
+       int nbest = 0;
+       for (int nrestart = 1; nrestart < numrestarts; nrestart++)
+       {
+	   if (restarts[nrestart].dloglike > restarts[nbest].dloglike)
+	   {
+	       nbest = nrestart;
 	   }
        }
-       else if (bordercols)
+
+       String szfile;
+       if (szoutfileID.equals(""))
        {
-          makeColOrdering();
+	   szfile = szoutputdir+"/restarts_"+numstates+".txt";
        }
-       //updates after each iteration the current status of the search
-       printTransitionTable(-1);
-       printEmissionTable(-1);
+       else
+       {
+	   szfile = szoutputdir+"/restarts_"+numstates+"_"+szoutfileID+".txt";
+       }
+       System.out.println("Writing to file "+szfile);
+       PrintWriter pw = new PrintWriter(szfile);
+       pw.println("Restart\tSeed\tIterations\tLog Likelihood\tTime (secs)\tBest");
+       for (int nrestart = 0; nrestart < numrestarts; nrestart++)
+       {
+	   pw.println((nrestart+1)+"\t"+nseeds[nrestart]+"\t"+restarts[nrestart].numiterations+"\t"+restarts[nrestart].dloglike+"\t"
+		      +dseconds[nrestart]+"\t"+(nrestart == nbest));
+       }
+       pw.close();
+
+       System.out.println("Restart "+(nbest+1)+" with seed "+nseeds[nbest]+" has the greatest log likelihood "+restarts[nbest].dloglike);
 
+       //only the best restart writes its parameters
+       ChromHMM theBest = restarts[nbest];
+       theBest.szprogresslabel = null;
+       theBest.bdeferoutput = false;
+       theBest.printTransitionTable(1);
+       theBest.printEmissionTable(1);
        if (bprintimage)
        {
-          printEmissionImage(-1);
-          printTransitionImage(-1);
+	   theBest.printEmissionImage(1);
+	   theBest.printTransitionImage(1);
        }
-       printParametersToFile(-1);
-    }
+       theBest.printParametersToFile(theBest.numiterations);
 
+       return theBest;
+    }
 
-    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-    private void reorderBEDfile(int[] stateorderingOLDtoNEW) throws IOException
+    /**
+     * Trains a model for each number of states in numstatesA on the data loaded by this object, each initialized as a single run
+     * with that number of states and the seed nseed would be. The models are trained concurrently, the ones with the most
+     * states first, with the processors split evenly among the models being trained at a time. Each model writes its own
+     * parameter files, and a summary table gives the final log-likelihood, iterations and time of each.
+     */
+    public void buildModelSweep(int[] numstatesA, int nseed) throws IOException
     {
-	BufferedReader brin = Util.getBufferedReader(szreorderinbedfile);
-	System.out.println("Writing to file "+szreorderoutbedfile);
-	if (szreorderoutbedfile.toLowerCase(Locale.ENGLISH).endsWith(".gz"))
-	{
-	    GZIPOutputStream pwzip = new GZIPOutputStream(new FileOutputStream(szreorderoutbedfile));
-	    //output zipfile
-	    String szLine;
-	    while ((szLine = brin.readLine())!=null)
-	    {
-		StringTokenizer st = new StringTokenizer(szLine, "\t");
-		if (st.countTokens() < 4)
-		{
-		    //not full line just directly outputting except updating header info 
-		    szLine = szLine.replaceAll("Emission ordered","User ordered");
-		    szLine = szLine.replaceAll("Transition ordered","User ordered");
-		    byte[] btformat = szLine.getBytes();
-		    pwzip.write(btformat,0,btformat.length);
-		    continue;
-		}
+       checkTrainingOptions();
+
+       //the signatures of consecutive positions do not depend on the number of states so are found once for all the models
+       if ((ninitmethod == ChromHMM.INITMETHOD_INFORMATION)&&(!blowmem))
+       {
+	   theInformationPairs = computeInformationPairs();
+       }
+
+       int numprocessors = Runtime.getRuntime().availableProcessors();
+       if (nmaxprocessors > 0)
+       {
+	   numprocessors = Math.min(nmaxprocessors, numprocessors);
+       }
+       int numconcurrent = Math.min(numstatesA.length, numprocessors);
+       int nmodelprocessors = Math.max(1, numprocessors/numconcurrent);
+
+       final ChromHMM[] models = new ChromHMM[numstatesA.length];
+       final double[] dseconds = new double[numstatesA.length];
+       for (int nmodel = 0; nmodel < models.length; nmodel++)
+       {
+	   models[nmodel] = newModel(numstatesA[nmodel], nseed, szoutfileID, ""+numstatesA[nmodel]);
+	   models[nmodel].nmaxprocessors = nmodelprocessors;
+
+	   //determined before the models start so with -calibratesparse the timing is not disturbed by the others
+	   models[nmodel].getSparseCutoff();
+       }
+       theInformationPairs = null;
+
+       System.out.println("Training models with "+numstatesA[0]+" to "+numstatesA[numstatesA.length-1]+" states, "
+			  +numconcurrent+" at a time with up to "+nmodelprocessors+" threads each");
+       printProgressHeader("States");
+
+       ExecutorService sweepexecutor = Executors.newFixedThreadPool(numconcurrent);
+       ArrayList alfutures = new ArrayList();
+       for (int nmodel = models.length-1; nmodel >= 0; nmodel--)
+       {
+	   final int fnmodel = nmodel;
+	   alfutures.add(sweepexecutor.submit(new Callable()
+	       {
+		   public Object call() throws IOException
+		   {
+		       long lstart = System.currentTimeMillis();
+		       models[fnmodel].initializeParameters();
+		       models[fnmodel].trainModel();
+		       dseconds[fnmodel] = (System.currentTimeMillis()-lstart)/1000.0;
+		       return null;
+		   }
+	       }));
+       }
+
+       try
+       {
+	   TrainingPool.waitFor(alfutures);
+       }
+       finally
+       {
+	   sweepexecutor.shutdownNow();
+       }
+
+       String szfile;
+       if (szoutfileID.equals(""))
+       {
+	   szfile = szoutputdir+"/statesweep.txt";
+       }
+       else
+       {
+	   szfile = szoutputdir+"/statesweep_"+szoutfileID+".txt";
+       }
+       System.out.println("Writing to file "+szfile);
+       PrintWriter pw = new PrintWriter(szfile);
+       pw.println("States\tIterations\tLog Likelihood\tTime (secs)");
+       System.out.format("%10s %10s %25s %20s%n","States","Iterations","Log Likelihood","Time (secs)");
+       for (int nmodel = 0; nmodel < models.length; nmodel++)
+       {
+	   pw.println(numstatesA[nmodel]+"\t"+models[nmodel].numiterations+"\t"+models[nmodel].dloglike+"\t"+dseconds[nmodel]);
+	   System.out.format("%10s %10s %25s %20s%n",""+numstatesA[nmodel],""+models[nmodel].numiterations,
+			     String.format(Locale.ENGLISH, "%.3f", models[nmodel].dloglike),String.format(Locale.ENGLISH, "%.1f", dseconds[nmodel]));
+       }
+       pw.close();
+    }
+
+    /**
+     * Returns a copy of this object that shares the loaded data but will be trained with numstates states from its own parameters.
+     * Its random number generator is in the state it would be in after loading the data with seed nseed, its output files are
+     * identified by szoutfileID, and its progress is labelled by szprogresslabel.
+     */
+    ChromHMM newModel(int numstates, int nseed, String szoutfileID, String szprogresslabel)
+    {
+       ChromHMM theModel;
+       try
+       {
+	   theModel = (ChromHMM) clone();
+       }
+       catch (CloneNotSupportedException ex)
+       {
+	   throw new IllegalStateException(ex);
+       }
+
+       //skips the values drawn to order the chromosome files when loading so the initialization is that of a run with this seed
+       theModel.theRandom = new Random(nseed);
+       for (int nfile = 0; nfile < chromfiles.length; nfile++)
+       {
+	   theModel.theRandom.nextDouble();
+       }
+
+       if ((theInformationPairs != null)&&(numincludeseq >= 1))
+       {
+	   //skips the values drawn to sample the sequences of the shared signatures
+	   theModel.sampleIncludedSequences();
+       }
+
+       theModel.numstates = numstates;
+       theModel.szoutfileID = szoutfileID;
+       theModel.szprogresslabel = szprogresslabel;
+       theModel.stateordering = new int[numstates];
+       for (int ni = 0; ni < numstates; ni++)
+       {
+	   theModel.stateordering[ni] = ni;
+       }
+       theModel.colordering = (int[]) colordering.clone();
+       theModel.hmlabelExtend = new HashMap(hmlabelExtend);
+
+       //the parameters, the compressed transitions and the buffers of the workers are allocated by the model itself
+       theModel.probinit = null;
+       theModel.transitionprobs = null;
+       theModel.emissionprobs = null;
+       theModel.elim = null;
+       theModel.transitionprobsrowstart = null;
+       theModel.transitionprobscolstart = null;
+       theModel.ntransitionstructureversion = 0;
+       theModel.ncompressedtransitionversion = -1;
+       if (numstates != this.numstates)
+       {
+	   theModel.ncalibratedsparsecutoff = -1;
+       }
+       theModel.nemissionepoch = 0;
+       theModel.ntotalforward = 0;
+       theModel.ntotalrecomputed = 0;
+       theModel.ltotalrecomputenanos = 0;
+       theModel.workercheckpointstores = null;
+       theModel.workerrunlengthfbs = null;
+       theModel.workeremissioncaches = null;
+       theModel.workerobservedsums = null;
+       theModel.deadstates = null;
+       return theModel;
+    }
+
+    /**
+     * Returns a copy of this object that shares the loaded data and the buffers of the workers but has its own parameters,
+     * which copyParametersTo sets from those of this model. Tasks of the copy run the E-step with its parameters while
+     * this model goes on updating its own.
+     */
+    ChromHMM newParameterSnapshot()
+    {
+       ChromHMM theSnapshot;
+       try
+       {
+	   theSnapshot = (ChromHMM) clone();
+       }
+       catch (CloneNotSupportedException ex)
+       {
+	   throw new IllegalStateException(ex);
+       }
+
+       theSnapshot.allocateParameters();
+       theSnapshot.transitionprobsrowstart = null;
+       theSnapshot.transitionprobscolstart = null;
+       theSnapshot.ncompressedtransitionversion = -1;
+       theSnapshot.workeremissioncaches = null;
+       theSnapshot.workerobservedsums = null;
+       return theSnapshot;
+    }
+
+    /**
+     * Copies the parameters of this model and its eliminated transitions into theSnapshot, which was made by newParameterSnapshot,
+     * and updates its compressed transitions
+     */
+    void copyParametersTo(ChromHMM theSnapshot)
+    {
+       System.arraycopy(probinit, 0, theSnapshot.probinit, 0, numstates);
+       for (int ni = 0; ni < numstates; ni++)
+       {
+	   System.arraycopy(transitionprobs[ni], 0, theSnapshot.transitionprobs[ni], 0, numstates);
+	   System.arraycopy(elim[ni], 0, theSnapshot.elim[ni], 0, numstates);
+	   System.arraycopy(transitionprobsindex[ni], 0, theSnapshot.transitionprobsindex[ni], 0, numstates);
+	   System.arraycopy(transitionprobsindexCol[ni], 0, theSnapshot.transitionprobsindexCol[ni], 0, numstates);
+	   for (int nmark = 0; nmark < numdatasets; nmark++)
+	   {
+	       System.arraycopy(emissionprobs[ni][nmark], 0, theSnapshot.emissionprobs[ni][nmark], 0, numbuckets);
+	   }
+       }
+       System.arraycopy(transitionprobsnum, 0, theSnapshot.transitionprobsnum, 0, numstates);
+       System.arraycopy(transitionprobsnumCol, 0, theSnapshot.transitionprobsnumCol, 0, numstates);
+       theSnapshot.ntransitionstructureversion = ntransitionstructureversion;
+       theSnapshot.updateCompressedTransitions();
+    }
+
+    /**
+     * Prints the header of the progress lines of models trained at the same time, whose labels are in a first column titled szlabel
+     */
+    static void printProgressHeader(String szlabel)
+    {
+       System.out.format("%10s %10s %25s %10s %20s%n",szlabel,"Iteration","Estimated Log Likelihood", "Change","Total Time (secs)");
+    }
+
+    /**
+     * Prints the log likelihood, its change and the total time after an iteration of training, preceded by a header after the
+     * first iteration unless the line is labelled by szprogresslabel, in which case printProgressHeader gives the header
+     */
+    void printIterationProgress(int niteration, double ddiff, double dtimechange, NumberFormat nf3, NumberFormat nf1)
+    {
+       String szchange = "-";
+       if (niteration > 1)
+       {
+	   szchange = nf3.format(ddiff);
+       }
+
+       if (szprogresslabel != null)
+       {
+	   System.out.format("%10s %10s %25s %10s %20s%n",szprogresslabel,""+niteration,""+nf3.format(dloglike),szchange,""+nf1.format(dtimechange));
+       }
+       else
+       {
+	   if (niteration == 1)
+	   {
+	       System.out.format("%10s %25s %10s %20s%n","Iteration","Estimated Log Likelihood", "Change","Total Time (secs)");
+	   }
+	   System.out.format("%10s %25s %10s %20s%n",""+niteration,""+nf3.format(dloglike),szchange,""+nf1.format(dtimechange));
+       }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    private void reorderModel() throws IOException
+    {	
+       if (szstateorderingfile !=null)
+       {
+	   int[] stateorderingOLDtoNEW = new int[stateordering.length];
+	   BufferedReader brstate =  Util.getBufferedReader(szstateorderingfile);
+	   String szLine;
+	   while ((szLine = brstate.readLine())!=null)
+	   {
+	       StringTokenizer st = new StringTokenizer(szLine,"\t ");
+	       int nold = Integer.parseInt(st.nextToken())-1;
+	       int nnew = Integer.parseInt(st.nextToken())-1;
+	       stateordering[nnew] = nold;
+	       stateorderingOLDtoNEW[nold] = nnew;
+	   }
+	   brstate.close();
+
+	   if (szreorderinbedfile != null)
+	   {
+	       reorderBEDfile(stateorderingOLDtoNEW);
+	   }
+       }
+       else
+       {
+          makeStateOrdering();
+       }
+
+
+       if (szcolumnorderingfile !=null)
+       {
+	   int ncol = 0;
+	   BufferedReader brcol =  Util.getBufferedReader(szcolumnorderingfile);
+	   String szLine;
+	   HashMap hm = new HashMap();
+	   while ((szLine = brcol.readLine())!=null)
+	   {
+	       hm.put(szLine,Integer.valueOf(ncol));
+	       ncol++;
+	   }
+	   brcol.close();
+
+	   for (int ni = 0;  ni < datasets.length; ni++)
+	   {
+	       Integer obj = ((Integer) hm.get(datasets[ni]));
+	       if (obj == null)
+	       {
+		   throw new IllegalArgumentException(datasets[ni]+" not found!");
+	       }
+	       else
+	       {
+	          colordering[obj.intValue()] = ni;
+	       }
+	   }
+       }
+       else if (bordercols)
+       {
+          makeColOrdering();
+       }
+       //updates after each iteration the current status of the search
+       printTransitionTable(-1);
+       printEmissionTable(-1);
+
+       if (bprintimage)
+       {
+          printEmissionImage(-1);
+          printTransitionImage(-1);
+       }
+       printParametersToFile(-1);
+    }
+
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    private void reorderBEDfile(int[] stateorderingOLDtoNEW) throws IOException
+    {
+	BufferedReader brin = Util.getBufferedReader(szreorderinbedfile);
+	System.out.println("Writing to file "+szreorderoutbedfile);
+	if (szreorderoutbedfile.toLowerCase(Locale.ENGLISH).endsWith(".gz"))
+	{
+	    GZIPOutputStream pwzip = new GZIPOutputStream(new FileOutputStream(szreorderoutbedfile));
+	    //output zipfile
+	    String szLine;
+	    while ((szLine = brin.readLine())!=null)
+	    {
+		StringTokenizer st = new StringTokenizer(szLine, "\t");
+		if (st.countTokens() < 4)
+		{
+		    //not full line just directly outputting except updating header info 
+		    szLine = szLine.replaceAll("Emission ordered","User ordered");
+		    szLine = szLine.replaceAll("Transition ordered","User ordered");
+		    byte[] btformat = szLine.getBytes();
+		    pwzip.write(btformat,0,btformat.length);
+		    continue;
+		}
 		StringBuffer sb = new StringBuffer(st.nextToken().trim()+"\t"+st.nextToken().trim()+"\t"+st.nextToken().trim());
 		String szinstate = st.nextToken().trim();
 		String szoutstate;
@@ -1882,6 +2571,27 @@ public class ChromHMM
            }
 	}
 
+	//with -prefetch the included sequences are read ahead in order while the previous ones are processed
+	SequencePrefetcher thePrefetcher = null;
+	if (nprefetchsequences > 0)
+	{
+	   String[] includefiles = new String[ncurrnumincludeseq];
+	   int nincludeindex = 0;
+	   for (int nseq = 0; nseq < chromfiles.length; nseq++)
+	   {
+	      if (bincludeseq[nseq])
+	      {
+		 includefiles[nincludeindex] = chromfiles[nseq];
+		 nincludeindex++;
+	      }
+	   }
+	   thePrefetcher = new SequencePrefetcher(szinputdir, numdatasets, nmaxtime, nprefetchthreads, nprefetchsequences);
+	   thePrefetcher.setQueues(new String[][] {includefiles});
+	}
+
+	//the signatures of the sequence being processed when it is not prefetched
+	SignatureTable theLoadSignatures = new SignatureTable(numdatasets);
+
 	//generates all vectors of combinations of consecutive of '1' calls
 	for (int nseq = 0; nseq < chromfiles.length; nseq++)
 	{
@@ -1893,132 +2603,28 @@ public class ChromHMM
 	       //int traindataObservedIndex_nseq_m1 = traindataObservedIndex_nseq.length -1;
 	       int numtime_nseq_m1 = numtime[nseq] - 1;
 
-	       HashMap hmObservedLoad = new HashMap(); //maps an observation string to an index and set of flags
- 
-    	       int nobservedload = 0;
-
-	       if (ChromHMM.BVERBOSE)
+	       SequencePrefetcher.Sequence theSequence = null;
+	       SignatureTable theSignatures;
+	       if (thePrefetcher != null)
 	       {
-                  System.out.println("reading\t"+szinputdir+" "+chromfiles[nseq]);
+		  theSequence = thePrefetcher.take(0);
+		  System.arraycopy(theSequence.indices, 0, traindataObservedIndex, 0, theSequence.numrows);
+		  theSignatures = theSequence.theSignatures;
 	       }
-	      
-               BufferedReader br = Util.getBufferedReader(szinputdir+"/"+chromfiles[nseq]);
-               String szLine = br.readLine(); //first line tells cell type and chromosome
-	       br.readLine();//flush mark header
-	       ArrayList aldata = new ArrayList();
-	       while ((szLine = br.readLine())!=null)
+	       else
 	       {
-	          StringTokenizer st = new StringTokenizer(szLine,"\t ");
-      	          StringBuffer sb = new StringBuffer();
-		
-	          for (int ncol = 0; ncol < numdatasets; ncol++)
-      	          {
-	             if (!st.hasMoreTokens())
-	             {
-	                throw new IllegalArgumentException("Found line without "+numdatasets+" values in file "+chromfiles[nseq]);
-		     }
-
-		     String sztoken = st.nextToken();//.trim();
-		    
-		     if (sztoken.equals("0"))
-	             {
-	                sb.append("0");
-		     }
-	             else if (sztoken.equals("1"))
-	             {
-	                sb.append("1");
-		     }
-	             else if (sztoken.equals("2"))
-		     {
-	                //this means missing
-	                sb.append("2");
-		     }
-	             else
-	             {
-                        throw new IllegalArgumentException("Unrecognized value "+sztoken+" found in "+szinputdir+"/"+chromfiles[nseq]);
-		     }
-		  }
-	          aldata.add(sb.toString());
+		  theSignatures = theLoadSignatures;
+		  theSignatures.clear();
+		  BinaryFileParser.readSequence(szinputdir, chromfiles[nseq], theSignatures, traindataObservedIndex);
 	       }
-	       br.close();
-	 
-	       int nsize = aldata.size();
-
-	      //traindataObservedIndex[nfile] = new int[nsize];
-	      //int[] traindataObservedIndex_nfile = traindataObservedIndex[nfile];
 
-	       for (int nrow = 0; nrow < nsize; nrow++)
-	       {
-	          BigInteger theBigInteger = new BigInteger((String) aldata.get(nrow),3);
-		  Integer theObservedInt  = (Integer) hmObservedLoad.get(theBigInteger);
-	          //boolean[] flagA;
-
-	          if (theObservedInt == null)
-       	          {
-		    //System.out.println(szmappingbyte.length());
-		    //storing a mapping from observed byte string to an integer index in alFlags and alObserved
-		      hmObservedLoad.put(theBigInteger, Integer.valueOf(nobservedload));
+	       //stores the calls of each combination of marks found on the sequence
+	       theSignatures.storeCalls(traindataObservedValues, traindataNotMissing);
 
-		     //saving this observed index
-		     traindataObservedIndex[nrow] = nobservedload;
-
-		     //increments the number of observed combinations of marks
-		     nobservedload++;
-		  }
-		  else
-		  {
-		     //storing the index of the flags associated with this row 
-		     traindataObservedIndex[nrow] = ((Integer) theObservedInt).intValue();
-		  }
-	       }	 
-	    
-	       Iterator hmObservedIterator = hmObservedLoad.entrySet().iterator();
-	       while (hmObservedIterator.hasNext())
+	       if (theSequence != null)
 	       {
-	          Map.Entry pairs = (Map.Entry) hmObservedIterator.next();
-	          BigInteger theBigInteger = (BigInteger) pairs.getKey();
-	          String szmapping = theBigInteger.toString(3);  //getting back the mapping string
-
-	          //ObservedRec theObservedRec = (ObservedRec) pairs.getValue();
-	          int ncurrindex = ((Integer) pairs.getValue()).intValue();// theObservedRec.nobserved;//this is an index on which obervation combination it is
-
-	          boolean[] traindataObservedValues_ncurrindex = traindataObservedValues[ncurrindex];
-	          boolean[] traindataNotMissing_ncurrindex = traindataNotMissing[ncurrindex]; 
-	    
-	          //if the mapping string is less than the number of data sets then 
-	          //there are leading 0's will set for leading 0's not missing and absent
-	          int numch = szmapping.length();
-	          int numleading0 = numdatasets - numch;
-	          for (int nj = 0; nj < numleading0; nj++)
-	          {
-		     traindataObservedValues_ncurrindex[nj] = false;
-		     traindataNotMissing_ncurrindex[nj] = true;
-		  }
-
-	          int nmappedindex = numleading0; //starting from the leading 0 position
-	          for (int nj = 0; nj < numch; nj++)
-	          {
-	             char ch = szmapping.charAt(nj);
-
-	             if (ch == '0')
-	             {
-		        traindataObservedValues_ncurrindex[nmappedindex] = false;
-		        traindataNotMissing_ncurrindex[nmappedindex] = true;
-		     }
-	             else if (ch=='1')
-	             {
-		        traindataObservedValues_ncurrindex[nmappedindex] = true;
-		        traindataNotMissing_ncurrindex[nmappedindex] = true;
-		     }
-	             else
-	             {
-		        //missing data
-		        traindataObservedValues_ncurrindex[nmappedindex] = false;
-		        traindataNotMissing_ncurrindex[nmappedindex] = false;
-		     }
-	             nmappedindex++;
-		  }
-	       }      
+		  thePrefetcher.release(theSequence);
+	       }
 
 	       traindataObservedIndexPair[nseq] = new int[numtime_nseq_m1];
 	       int[] traindataObservedIndexPair_nseq = traindataObservedIndexPair[nseq];
@@ -2069,6 +2675,11 @@ public class ChromHMM
 	    }//include
 	}
 
+	if (thePrefetcher != null)
+	{
+	   thePrefetcher.close();
+	}
+
 	int numels = alobservedpairflags.size();
 
 	//computes a tally for each flag combination observed of how frequently observed
@@ -2376,41 +2987,49 @@ public class ChromHMM
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-
-    public void informationInitializeNested() 
+    /**
+     * The combinations of marks present at both of each pair of consecutive positions from which the information
+     * based initialization splits states, so models with different numbers of states can be initialized from one pass
+     */
+    static class InformationPairs
     {
-       //inital probability vector
-       probinit = new double[numstates];
-
-       //creates the emission probability matrix
-       emissionprobs = new double[numstates][numdatasets][numbuckets];
-
-       //set to true if a transition has been eliminated
-       elim = new boolean[numstates][numstates];
-
-       //initalize the transition matrix
-       transitionprobs = new double[numstates][numstates];
-
-       //initialize index of the next non-zero transition
-       transitionprobsindex = new int[numstates][numstates];
-
-       //initalize number of non-zero transitions
-       transitionprobsnum = new int[numstates];
-
-       //initalize column-wise index of non-zero transitions
-       transitionprobsindexCol = new int[numstates][numstates];
- 
-       //number of non-zero column transitions
-       transitionprobsnumCol = new int[numstates];
-
-       int[][] traindataObservedIndexPair = new int[traindataObservedIndex.length][];
-	
-       ArrayList alobservedpairflags = new ArrayList(); //is an index from the element combination to the associated flags
-
-       HashMap hmObserved= new HashMap(); //is an index from the associated flags to the element index
-
-       int nobserved= 0; //index on the unique observation combination we are observing
+	/**
+	 * For each included sequence the index of the combination at each pair of consecutive positions
+	 */
+	int[][] traindataObservedIndexPair;
+
+	/**
+	 * The flags of the marks present in each combination
+	 */
+	ArrayList alobservedpairflags;
+
+	/**
+	 * The number of pairs of consecutive positions with each combination and in total
+	 */
+	long[] tallys;
+	long ntotaltally;
+
+	/**
+	 * Whether each sequence is included
+	 */
+	boolean[] bincludeseq;
+
+	InformationPairs(int[][] traindataObservedIndexPair, ArrayList alobservedpairflags, long[] tallys, long ntotaltally, boolean[] bincludeseq)
+	{
+	    this.traindataObservedIndexPair = traindataObservedIndexPair;
+	    this.alobservedpairflags = alobservedpairflags;
+	    this.tallys = tallys;
+	    this.ntotaltally = ntotaltally;
+	    this.bincludeseq = bincludeseq;
+	}
+    }
 
+    /**
+     * Returns for each sequence whether it is included in the information based initialization, which is a sample
+     * of numincludeseq sequences drawn with theRandom if numincludeseq is at least one and otherwise all sequences
+     */
+    boolean[] sampleIncludedSequences()
+    {
        int[] samples= null;
 
        int ncurrnumincludeseq;
@@ -2459,6 +3078,25 @@ public class ChromHMM
           }
        }
 
+       return bincludeseq;
+    }
+
+    /**
+     * Finds the combinations of marks present at both of each pair of consecutive positions in the included sequences
+     * and how often each combination occurs. These do not depend on the number of states.
+     */
+    InformationPairs computeInformationPairs()
+    {
+       boolean[] bincludeseq = sampleIncludedSequences();
+
+       int[][] traindataObservedIndexPair = new int[traindataObservedIndex.length][];
+	
+       ArrayList alobservedpairflags = new ArrayList(); //is an index from the element combination to the associated flags
+
+       HashMap hmObserved= new HashMap(); //is an index from the associated flags to the element index
+
+       int nobserved= 0; //index on the unique observation combination we are observing
+
        //generates all vectors of combinations of consecutive of '1' calls
        for (int nseq = 0; nseq <traindataObservedIndex.length; nseq++)
        {
@@ -2542,7 +3180,79 @@ public class ChromHMM
 	       ntotaltally += traindataObservedIndexPair_nseq.length;
 	    }
 	}
-       
+
+       return new InformationPairs(traindataObservedIndexPair, alobservedpairflags, tallys, ntotaltally, bincludeseq);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Initializes the parameters by greedily splitting the pairs of consecutive positions into numstates partitions on the
+     * mark that gives the greatest information change
+     */
+    public void informationInitializeNested() 
+    {
+       allocateParameters();
+
+       //the pairs found once for several models are used when present
+       InformationPairs thePairs = theInformationPairs;
+       if (thePairs == null)
+       {
+	   thePairs = computeInformationPairs();
+       }
+       else
+       {
+	   //drops the reference so the pairs are freed once every model sharing them is initialized
+	   theInformationPairs = null;
+       }
+
+       int[] initStateAssign = splitInformationPairs(thePairs.alobservedpairflags, thePairs.tallys, thePairs.ntotaltally);
+
+       long[] numstarts = new long[numstates];
+       long[][] transitiontally = new long[numstates][numstates];
+       long nvalidseq = tallyInformationStates(thePairs, initStateAssign, numstarts, transitiontally);
+       setInformationStartsTransitions(numstarts, nvalidseq, transitiontally);
+    }
+
+    /**
+     * Allocates the parameters of the model and the indices of the non-eliminated transitions
+     */
+    void allocateParameters()
+    {
+       //inital probability vector
+       probinit = new double[numstates];
+
+       //creates the emission probability matrix
+       emissionprobs = new double[numstates][numdatasets][numbuckets];
+
+       //set to true if a transition has been eliminated
+       elim = new boolean[numstates][numstates];
+
+       //initalize the transition matrix
+       transitionprobs = new double[numstates][numstates];
+
+       //initialize index of the next non-zero transition
+       transitionprobsindex = new int[numstates][numstates];
+
+       //initalize number of non-zero transitions
+       transitionprobsnum = new int[numstates];
+
+       //initalize column-wise index of non-zero transitions
+       transitionprobsindexCol = new int[numstates][numstates];
+ 
+       //number of non-zero column transitions
+       transitionprobsnumCol = new int[numstates];
+    }
+
+    /**
+     * Greedily splits the combinations of marks present at pairs of consecutive positions in alobservedpairflags, which occur
+     * as often as in tallys out of ntotaltally, into numstates partitions and sets the emission probabilities from the partitions.
+     * Returns the partition of each combination. The partitions only depend on the tallies, not on the order of the combinations.
+     */
+    int[] splitInformationPairs(ArrayList alobservedpairflags, long[] tallys, long ntotaltally)
+    {
+       int numels = alobservedpairflags.size();
+
 	//first state always smoothed zero
 	for (int nj = 0; nj < numdatasets; nj++)
         {
@@ -2752,10 +3462,21 @@ public class ChromHMM
 	  }
        }
 
+       return initStateAssign;
+    }
+
+    /**
+     * Adds into numstarts the number of included sequences of thePairs starting in each partition of initStateAssign
+     * and into transitiontally the number of consecutive pairs going from each partition to each other partition.
+     * Returns the number of included sequences with at least one pair.
+     */
+    long tallyInformationStates(InformationPairs thePairs, int[] initStateAssign, long[] numstarts, long[][] transitiontally)
+    {
+       int[][] traindataObservedIndexPair = thePairs.traindataObservedIndexPair;
+       boolean[] bincludeseq = thePairs.bincludeseq;
+
        //initialize the inital probability based on the partition of the first vector
 
-       //int[] numstarts = new int[numstates];
-       long[] numstarts = new long[numstates];
        //int nvalidseq = 0;
        long nvalidseq = 0;
        for (int nseq = 0; nseq < traindataObservedIndexPair.length; nseq++)
@@ -2767,17 +3488,8 @@ public class ChromHMM
 	     nvalidseq++; 
 	  }
        }
-       
-       for (int ni = 0; ni < probinit.length; ni++)
-       {
-	   //weighted probability of uniform and the fraction of starts from that partition
-	   probinit[ni] = dinformationsmooth*1.0/numstates+(1-dinformationsmooth)*numstarts[ni]/(double) nvalidseq; //updated in v1.14
-       }
-
 
        //determining initial settings for the transition probability
-       //int[][] transitiontally = new int[numstates][numstates];
-       long[][] transitiontally = new long[numstates][numstates];
        int nnextstate;
        for (int nseq = 0; nseq < traindataObservedIndexPair.length; nseq++)
        {
@@ -2796,6 +3508,21 @@ public class ChromHMM
 	  }
        }
 
+       return nvalidseq;
+    }
+
+    /**
+     * Sets the initial and transition probabilities from the number of sequences starting in each partition in numstarts out of
+     * nvalidseq and the number of consecutive pairs going from each partition to each other partition in transitiontally
+     */
+    void setInformationStartsTransitions(long[] numstarts, long nvalidseq, long[][] transitiontally)
+    {
+       for (int ni = 0; ni < probinit.length; ni++)
+       {
+	   //weighted probability of uniform and the fraction of starts from that partition
+	   probinit[ni] = dinformationsmooth*1.0/numstates+(1-dinformationsmooth)*numstarts[ni]/(double) nvalidseq; //updated in v1.14
+       }
+
        for (int ni = 0; ni < numstates; ni++)
        {
           double[] transitionprobs_ni = transitionprobs[ni];
@@ -3052,6 +3779,7 @@ public class ChromHMM
 	if (btransition0)
         {
 	   //we have a non-zero transition will update the sparse indicies
+	   ntransitionstructureversion++;
 	   for (int ni = 0; ni < transitionprobs.length; ni++)
 	   {
 	       int nindex = 0;		       
@@ -3099,7 +3827,7 @@ public class ChromHMM
 
        //number of non-zero transition required to be less than this at the more stringent cutoff 
        //for trying to exploit sparsity in the transition matrix for efficiency gains
-       int nsparsecutoff = (int) (numstates * ChromHMM.SPARSECUTOFFRATIO);
+       int nsparsecutoff = getSparseCutoff();
 
        int[] numtime = new int[traindataObservedIndex.length];
 
@@ -3144,11 +3872,11 @@ public class ChromHMM
        //stores temporary product terms
        double[] tempproductbetaemiss = new double[numstates];
 
-       //This stores the alpha values at each time point and number of states
-       double[][] alpha = new double[nmaxtime][numstates];
+       //This stores the alpha values and their scaling value at each time point and number of states
+       AlphaStore alphastore = newAlphaStore(nmaxtime);
 
        //Temporary storage of the gamma's for each state
-       double[][] gamma = new double[nmaxtime][numstates];
+       PosteriorStore gammastore = newPosteriorStore(nmaxtime);
 
        //Temporary storage of the beta values for each state
        double[] beta_nt = new double[numstates];
@@ -3156,9 +3884,6 @@ public class ChromHMM
        //Temporary storage of the beta values for each state at the next time point
        double[] beta_ntp1 = new double[numstates];
 
-       //stores the scaling value for each time point
-       double[] scale = new double[nmaxtime];
-
        //stores the transition probabilities for each column
        double[][] coltransitionprobs = new double[numstates][numstates];
 
@@ -3461,7 +4186,8 @@ public class ChromHMM
 	  }
 
 	  //initial probability in state s is initial probability times emission probability at first position
-          double[] alpha_nt = alpha[0];
+          alphastore.begin(traindataObservedIndex_nseq, numtime[nordered_nseq], emissionproducts, coltransitionprobs, nsparsecutoff);
+          double[] alpha_nt = alphastore.forwardRow(0);
 	  double dscale = 0;
 	  double[] emissionproducts_nobserveindex =emissionproducts[traindataObservedIndex_nseq[0]];
  	  for (int ns = 0; ns < numstates; ns++)
@@ -3469,7 +4195,7 @@ public class ChromHMM
 	      alpha_nt[ns] = probinit[ns] * emissionproducts_nobserveindex[ns];
 	      dscale += alpha_nt[ns];
 	  }
-	  scale[0] = dscale;
+	  alphastore.setScale(0, dscale);
 
 	  //alpha_t(s)=P(o_0,...,o_t,x_t=s|lambda)
           //converts the alpha terms to probabilities
@@ -3488,7 +4214,7 @@ public class ChromHMM
 	      	      dscale += EPSILONSTATE;
 		   }
 		}
-	        scale[0] = dscale;
+	        alphastore.setScale(0, dscale);
 	     }
 
 	     for (int ns = 0; ns < numstates; ns++)
@@ -3522,14 +4248,15 @@ public class ChromHMM
 	        coltransitionprobs_ni[nj] = transitionprobs[nj][ni];
 	     }
 	  }
+	  updateCompressedTransitions();
 
           //forward step
           int numtime_nseq = numtime[nordered_nseq];
           for (int nt = 1; nt < numtime_nseq; nt++)
           {
              //the actual observed combination at position t	        
-	     double[] alpha_ntm1 = alpha[nt-1];
-	     alpha_nt = alpha[nt];
+	     double[] alpha_ntm1 = alpha_nt;
+	     alpha_nt = alphastore.forwardRow(nt);
 	      
 	     dscale = 0;
 	     emissionproducts_nobserveindex = emissionproducts[traindataObservedIndex_nseq[nt]];
@@ -3538,29 +4265,25 @@ public class ChromHMM
 	        //going through each state		   
 
 	        int transitionprobsnumCol_ns = transitionprobsnumCol[ns];
-	        int[] transitionprobsindexCol_ns = transitionprobsindexCol[ns];
 	        double[] coltransitionprobs_ns = coltransitionprobs[ns];
 
 	        double dtempsum = 0;
                 if (transitionprobsnumCol_ns < nsparsecutoff)
 	        {
 		    //if it is sparse enough then it is worth the extra array indirection here
-	           for (int nj = 0; nj < transitionprobsnumCol_ns; nj++)
+	           int ncolend_ns = transitionprobscolstart[ns+1];
+	           for (int nk = transitionprobscolstart[ns]; nk < ncolend_ns; nk++)
 	           {
 	               //for each next state computing inner sum of all previous alpha and the transition probability
 	               //for all non-zero transitions into the state
-			int nmappedindex = transitionprobsindexCol_ns[nj];
-			dtempsum += coltransitionprobs_ns[nmappedindex]*alpha_ntm1[nmappedindex];
+			dtempsum += transitionprobscolvalues[nk]*alpha_ntm1[transitionprobscolindex[nk]];
 		   }
 		}
 	        else
 	        {
-                   for (int nj = 0; nj < numstates; nj++)
-	           {
-	              //for each next state computing inner sum of all previous alpha and the transition probability
-	              //for all transitions into the state
-		      dtempsum += coltransitionprobs_ns[nj]*alpha_ntm1[nj];
-		   }
+                   //for each next state computing inner sum of all previous alpha and the transition probability
+                   //for all transitions into the state
+                   dtempsum = theDotKernel.dot(coltransitionprobs_ns, alpha_ntm1, numstates);
 		}
 
                 //multiply the transition sum by the emission probability
@@ -3570,7 +4293,7 @@ public class ChromHMM
 	     }
 
 	      //rescaling alpha
-              scale[nt] = dscale;
+              alphastore.setScale(nt, dscale);
               //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
 
 	      if (bscalebeta)
@@ -3586,7 +4309,7 @@ public class ChromHMM
 			  dscale += EPSILONSTATE;
 		       }
 		    }
-		    scale[nt] = dscale;
+		    alphastore.setScale(nt, dscale);
 		 }
 
 	         for (int ns = 0; ns < numstates; ns++)
@@ -3612,6 +4335,8 @@ public class ChromHMM
 	      //}      	       
 	  }
 	    
+          alphastore.endForward();
+
           //backward step
           //beta_t(s)=P(o_t+1,...,o_T|x_t=s,lambda)
           int nlastindex = numtime_nseq-1;
@@ -3622,7 +4347,7 @@ public class ChromHMM
 	  }
 	  else
 	  {
-             dinitval = 1.0/scale[nlastindex];
+             dinitval = 1.0/alphastore.getScale(nlastindex);
 	  }
 
           for (int ns = 0; ns < numstates; ns++)
@@ -3635,16 +4360,16 @@ public class ChromHMM
           //    beta_ntp1[ns] = dinitval;
 	  //}
 	
-	  int nmappedindexouter;
  
 	  double ddenom = 0;	      
 
           //gamma_nt - P(x=S| o_0,...,o_t)
           //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,x_t=s|lambda)
-	  double[] gamma_nt = gamma[nlastindex]; 
+	  double[] gamma_nt = gammastore.row(nlastindex);
+	  double[] alpha_nlastindex = alphastore.backwardRow(nlastindex);
           for (int ns = 0; ns < gamma_nt.length; ns++)
           {
-	      double dval = alpha[nlastindex][ns]*beta_ntp1[ns];
+	      double dval = alpha_nlastindex[ns]*beta_ntp1[ns];
 	      ddenom += dval;
 	      gamma_nt[ns] = dval;
 	  }
@@ -3660,13 +4385,13 @@ public class ChromHMM
 
           for (int nt = nlastindex - 1; nt >= 0; nt--)
           {
-	     gamma_nt = gamma[nt];
+	     gamma_nt = gammastore.row(nt);
 	     int ntp1 = (nt+1);
 		   
 	     double[] emissionproducts_ncombo_ntp1 = emissionproducts[traindataObservedIndex_nseq[ntp1]];		
 
 	     double dsumbeta = 0;
-	     double dscale_nt = scale[nt];
+	     double dscale_nt = alphastore.getScale(nt);
 
 	     for (int ns = 0; ns < numstates; ns++)
              {
@@ -3695,29 +4420,25 @@ public class ChromHMM
 	     for (int ni = 0; ni < numstates; ni++)
 	     {
 	        double dtempsum = 0;
-	        int[] transitionprobsindex_ni =  transitionprobsindex[ni];
        	        double[] transitionprobs_ni = transitionprobs[ni];
 		int transitionprobsnum_ni = transitionprobsnum[ni];
 
                 if (transitionprobsnum_ni < nsparsecutoff)
 	        {
 	           //if it is sparse enough then it is worth the extra array indirection here
-	           for (int nj = 0; nj < transitionprobsnum_ni; nj++)
+	           int nrowend_ni = transitionprobsrowstart[ni+1];
+	           for (int nk = transitionprobsrowstart[ni]; nk < nrowend_ni; nk++)
 	           {
 	              //for each state summing over transition probability to state j, emission probablity in j at next step
 	              //and probability of observing the remaining sequence
-		      nmappedindexouter = transitionprobsindex_ni[nj];
-		      dtempsum += transitionprobs_ni[nmappedindexouter]*tempproductbetaemiss[nmappedindexouter];			
+		      dtempsum += transitionprobsrowvalues[nk]*tempproductbetaemiss[transitionprobsrowindex[nk]];
 		   }
 		}
 	        else
 	        {
-                   for (int nj = 0; nj < numstates; nj++)
-	           {
-	              //for each state summing over transition probability to state j, emission probablity in j at next step
-	              //and probability of observing the remaining sequence
-		      dtempsum += transitionprobs_ni[nj]*tempproductbetaemiss[nj];
-		   }
+                   //for each state summing over transition probability to state j, emission probablity in j at next step
+                   //and probability of observing the remaining sequence
+                   dtempsum = theDotKernel.dot(transitionprobs_ni, tempproductbetaemiss, numstates);
 		}
 
 	        if (bscalebeta)
@@ -3763,7 +4484,7 @@ public class ChromHMM
 	      }		
 
 	      ddenom = 0;		
-	      alpha_nt = alpha[nt];
+	      alpha_nt = alphastore.backwardRow(nt);
 
 	      //gamma_nt - P(x=S| o_0,...,o_t)
               //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
@@ -3790,7 +4511,7 @@ public class ChromHMM
           for (int nt = 0; nt < numtime_nseq; nt++)
 	  {
 
-             gamma_nt = gamma[nt];
+             gamma_nt = gammastore.row(nt);
 
 	     //handling the first line
 	     if ((breadsegment)||(breadstatebyline))
@@ -3920,7 +4641,7 @@ public class ChromHMM
 
        //number of non-zero transition required to be less than this at the more stringent cutoff 
        //for trying to exploit sparsity in the transition matrix for efficiency gains
-       int nsparsecutoff = (int) (numstates * ChromHMM.SPARSECUTOFFRATIO);
+       int nsparsecutoff = getSparseCutoff();
 
        //int[] numtime = new int[traindataObservedIndex.length];
 
@@ -3965,11 +4686,11 @@ public class ChromHMM
        //stores temporary product terms
        double[] tempproductbetaemiss = new double[numstates];
 
-       //This stores the alpha values at each time point and number of states
-       double[][] alpha = new double[nmaxtime][numstates];
+       //This stores the alpha values and their scaling value at each time point and number of states
+       AlphaStore alphastore = newAlphaStore(nmaxtime);
 
        //Temporary storage of the gamma's for each state
-       double[][] gamma = new double[nmaxtime][numstates];
+       PosteriorStore gammastore = newPosteriorStore(nmaxtime);
 
        //Temporary storage of the beta values for each state
        double[] beta_nt = new double[numstates];
@@ -3977,9 +4698,6 @@ public class ChromHMM
        //Temporary storage of the beta values for each state at the next time point
        double[] beta_ntp1 = new double[numstates];
 
-       //stores the scaling value for each time point
-       double[] scale = new double[nmaxtime];
-
        //stores the transition probabilities for each column
        double[][] coltransitionprobs = new double[numstates][numstates];
 
@@ -3994,6 +4712,9 @@ public class ChromHMM
        //stores whether the mark is not considered missing
        boolean[][] traindataNotMissing = new boolean[nmaxtime][numdatasets]; //usually nobserved
 
+       //the signatures of the sequence being processed
+       SignatureTable theLoadSignatures = new SignatureTable(numdatasets);
+
        boolean[] includemarks = new boolean[numdatasets];
 
        double[] surplus = new double[numstates];
@@ -4062,130 +4783,12 @@ public class ChromHMM
 	  ///////////////////////////////////////////////////////////////////////////////
 	  //load data here
 
-	  HashMap hmObserved = new HashMap(); //maps an observation string to an index and set of flags
-
-	  int nobserved = 0;
-
-	  if (ChromHMM.BVERBOSE)
-	  {
-	     System.out.println("reading\t"+szinputdir+" "+chromfiles[nordered_nseq]);
-          }
-	  BufferedReader br = Util.getBufferedReader(szinputdir+"/"+chromfiles[nordered_nseq]); //fixed bug was chromfiles[nseq]
-	  String szLine;
-	  br.readLine(); //first line tells cell type and chromosome
-	  br.readLine();//flush mark header
-
-	  ArrayList aldata = new ArrayList();
-	  while ((szLine = br.readLine())!=null)
-	  {
-	      StringTokenizer st = new StringTokenizer(szLine,"\t ");
-	      StringBuffer sb = new StringBuffer();
-
-	      for (int ncol = 0; ncol < numdatasets; ncol++)
-	      {
-	         if (!st.hasMoreTokens())
-		 {
-		    throw new IllegalArgumentException("Found line without "+numdatasets+" values in file "+chromfiles[nordered_nseq]);
-		 }
-
-		 String sztoken = st.nextToken();//.trim();
-
-		 if (sztoken.equals("0"))
-		 {
-		    sb.append("0");
-	         }
-		 else if (sztoken.equals("1"))
-	         {
-		     sb.append("1");
-		 }
-		 else if (sztoken.equals("2"))
-	         {
-		    //this means missing
-		     sb.append("2");
-		 }
-		 else
-		 {
-		    throw new IllegalArgumentException("Unrecognized value "+sztoken+" found in "+szinputdir+"/"+chromfiles[nordered_nseq]);
-		 }
-	      }
-	      aldata.add(sb.toString());
-	  }
-	  br.close();
-
-	  int nsize = aldata.size();
-
-	  for (int nrow = 0; nrow < nsize; nrow++)
-	  {
-	     BigInteger theBigInteger = new BigInteger((String) aldata.get(nrow),3);
-	     Integer theObservedInt  = (Integer) hmObserved.get(theBigInteger);
-		  //boolean[] flagA;
-
-	     if (theObservedInt == null)
-	     {
-	        //System.out.println(szmappingbyte.length());
-		//storing a mapping from observed byte string to an integer index in alFlags and alObserved
-		hmObserved.put(theBigInteger, Integer.valueOf(nobserved));
-
-		//saving this observed index
-		traindataObservedIndex[nrow] = nobserved;
-
-		//increments the number of observed combinations of marks
-	        nobserved++;
-	     }
-	     else
-	     {
-	        //storing the index of the flags associated with this row
-		traindataObservedIndex[nrow] = ((Integer) theObservedInt).intValue();
-	     }
-	  }
-
-	  Iterator hmObservedIterator = hmObserved.entrySet().iterator();
-	  while (hmObservedIterator.hasNext())
-	  {
-	     Map.Entry pairs = (Map.Entry) hmObservedIterator.next();
-	     BigInteger theBigInteger = (BigInteger) pairs.getKey();
-	     String szmapping = theBigInteger.toString(3);  //getting back the mapping string
-
-	     //ObservedRec theObservedRec = (ObservedRec) pairs.getValue();
-	     int ncurrindex = ((Integer) pairs.getValue()).intValue();// theObservedRec.nobserved;//this is an index on which obervation combination it is
-
-	     boolean[] traindataObservedValues_ncurrindex = traindataObservedValues[ncurrindex];
-	     boolean[] traindataNotMissing_ncurrindex = traindataNotMissing[ncurrindex];
-
-	     //if the mapping string is less than the number of data sets then
-	     //there are leading 0's will set for leading 0's not missing and absent
-	     int numch = szmapping.length();
-	     int numleading0 = numdatasets - numch;
-	     for (int nj = 0; nj < numleading0; nj++)
-	     {
-	        traindataObservedValues_ncurrindex[nj] = false;
-	        traindataNotMissing_ncurrindex[nj] = true;
-	     }
-
-	     int nmappedindex = numleading0; //starting from the leading 0 position
-	     for (int nj = 0; nj < numch; nj++)
-	     {
-		 char ch = szmapping.charAt(nj);
+	  theLoadSignatures.clear();
+	  BinaryFileParser.readSequence(szinputdir, chromfiles[nordered_nseq], theLoadSignatures, traindataObservedIndex);
 
-		 if (ch == '0')
-		 {
-		     traindataObservedValues_ncurrindex[nmappedindex] = false;
-		     traindataNotMissing_ncurrindex[nmappedindex] = true;
-		 }
-		 else if (ch=='1')
-		 {
-		     traindataObservedValues_ncurrindex[nmappedindex] = true;
-		     traindataNotMissing_ncurrindex[nmappedindex] = true;
-		 }
-		 else
-		 {
-		     //missing data
-		     traindataObservedValues_ncurrindex[nmappedindex] = false;
-		     traindataNotMissing_ncurrindex[nmappedindex] = false;
-		 }
-		 nmappedindex++;
-	     }
-	  }
+	  //stores the calls of each combination of marks found on the sequence
+	  int nobserved = theLoadSignatures.size();
+	  theLoadSignatures.storeCalls(traindataObservedValues, traindataNotMissing);
 
 
           //int[] traindataObservedIndex_nseq = traindataObservedIndex[nordered_nseq];
@@ -4421,7 +5024,8 @@ public class ChromHMM
 	  }
 
 	  //initial probability in state s is initial probability times emission probability at first position
-          double[] alpha_nt = alpha[0];
+          alphastore.begin(traindataObservedIndex, numtime[nordered_nseq], emissionproducts, coltransitionprobs, nsparsecutoff);
+          double[] alpha_nt = alphastore.forwardRow(0);
 	  double dscale = 0;
 	  double[] emissionproducts_nobserveindex =emissionproducts[traindataObservedIndex[0]];
  	  for (int ns = 0; ns < numstates; ns++)
@@ -4429,7 +5033,7 @@ public class ChromHMM
 	      alpha_nt[ns] = probinit[ns] * emissionproducts_nobserveindex[ns];
 	      dscale += alpha_nt[ns];
 	  }
-	  scale[0] = dscale;
+	  alphastore.setScale(0, dscale);
 
 	  //alpha_t(s)=P(o_0,...,o_t,x_t=s|lambda)
           //converts the alpha terms to probabilities
@@ -4446,7 +5050,7 @@ public class ChromHMM
 		      dscale += EPSILONSTATE;
 		   }
 		}
-	        scale[0] = dscale;
+	        alphastore.setScale(0, dscale);
 	     }
 
              for (int ns = 0; ns < numstates; ns++)
@@ -4480,14 +5084,15 @@ public class ChromHMM
 	        coltransitionprobs_ni[nj] = transitionprobs[nj][ni];
 	     }
 	  }
+	  updateCompressedTransitions();
 
           //forward step
           int numtime_nseq = numtime[nordered_nseq];
           for (int nt = 1; nt < numtime_nseq; nt++)
           {
              //the actual observed combination at position t	        
-	     double[] alpha_ntm1 = alpha[nt-1];
-	     alpha_nt = alpha[nt];
+	     double[] alpha_ntm1 = alpha_nt;
+	     alpha_nt = alphastore.forwardRow(nt);
 	      
 	     dscale = 0;
 	     emissionproducts_nobserveindex = emissionproducts[traindataObservedIndex[nt]];
@@ -4496,29 +5101,25 @@ public class ChromHMM
 	        //going through each state		   
 
 	        int transitionprobsnumCol_ns = transitionprobsnumCol[ns];
-	        int[] transitionprobsindexCol_ns = transitionprobsindexCol[ns];
 	        double[] coltransitionprobs_ns = coltransitionprobs[ns];
 
 	        double dtempsum = 0;
                 if (transitionprobsnumCol_ns < nsparsecutoff)
 	        {
 		    //if it is sparse enough then it is worth the extra array indirection here
-	           for (int nj = 0; nj < transitionprobsnumCol_ns; nj++)
+	           int ncolend_ns = transitionprobscolstart[ns+1];
+	           for (int nk = transitionprobscolstart[ns]; nk < ncolend_ns; nk++)
 	           {
 	               //for each next state computing inner sum of all previous alpha and the transition probability
 	               //for all non-zero transitions into the state
-			int nmappedindex = transitionprobsindexCol_ns[nj];
-			dtempsum += coltransitionprobs_ns[nmappedindex]*alpha_ntm1[nmappedindex];
+			dtempsum += transitionprobscolvalues[nk]*alpha_ntm1[transitionprobscolindex[nk]];
 		   }
 		}
 	        else
 	        {
-                   for (int nj = 0; nj < numstates; nj++)
-	           {
-	              //for each next state computing inner sum of all previous alpha and the transition probability
-	              //for all transitions into the state
-		      dtempsum += coltransitionprobs_ns[nj]*alpha_ntm1[nj];
-		   }
+                   //for each next state computing inner sum of all previous alpha and the transition probability
+                   //for all transitions into the state
+                   dtempsum = theDotKernel.dot(coltransitionprobs_ns, alpha_ntm1, numstates);
 		}
 
                 //multiply the transition sum by the emission probability
@@ -4528,7 +5129,7 @@ public class ChromHMM
 	     }
 
 	      //rescaling alpha
-              scale[nt] = dscale;
+              alphastore.setScale(nt, dscale);
               //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
 
 	      if (bscalebeta)
@@ -4544,7 +5145,7 @@ public class ChromHMM
 			  dscale += EPSILONSTATE;
 		       }
 		    }
-		    scale[nt] = dscale;
+		    alphastore.setScale(nt, dscale);
 		 }
 
 	         for (int ns = 0; ns < numstates; ns++)
@@ -4570,6 +5171,8 @@ public class ChromHMM
 	      //}      	       
 	  }
 	    
+          alphastore.endForward();
+
           //backward step
           //beta_t(s)=P(o_t+1,...,o_T|x_t=s,lambda)
           int nlastindex = numtime_nseq-1;
@@ -4580,7 +5183,7 @@ public class ChromHMM
 	  }
 	  else
 	  {
-             dinitval = 1.0/scale[nlastindex];
+             dinitval = 1.0/alphastore.getScale(nlastindex);
 	  }
 
           for (int ns = 0; ns < numstates; ns++)
@@ -4593,16 +5196,16 @@ public class ChromHMM
           //    beta_ntp1[ns] = dinitval;
 	  //}
 	
-	  int nmappedindexouter;
  
 	  double ddenom = 0;	      
 
           //gamma_nt - P(x=S| o_0,...,o_t)
           //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,x_t=s|lambda)
-	  double[] gamma_nt = gamma[nlastindex]; 
+	  double[] gamma_nt = gammastore.row(nlastindex);
+	  double[] alpha_nlastindex = alphastore.backwardRow(nlastindex);
           for (int ns = 0; ns < gamma_nt.length; ns++)
           {
-	      double dval = alpha[nlastindex][ns]*beta_ntp1[ns];
+	      double dval = alpha_nlastindex[ns]*beta_ntp1[ns];
 	      ddenom += dval;
 	      gamma_nt[ns] = dval;
 	  }
@@ -4618,12 +5221,12 @@ public class ChromHMM
 
           for (int nt = nlastindex - 1; nt >= 0; nt--)
           {
-	      gamma_nt = gamma[nt];
+	      gamma_nt = gammastore.row(nt);
 	      int ntp1 = (nt+1);
 		   
 	      double[] emissionproducts_ncombo_ntp1 = emissionproducts[traindataObservedIndex[ntp1]];		
 	      double dsumbeta = 0;
-	      double dscale_nt = scale[nt];
+	      double dscale_nt = alphastore.getScale(nt);
 
 	      for (int ns = 0; ns < numstates; ns++)
               {
@@ -4652,29 +5255,25 @@ public class ChromHMM
 	      for (int ni = 0; ni < numstates; ni++)
 	      {
 		  double dtempsum = 0;
-		  int[] transitionprobsindex_ni =  transitionprobsindex[ni];
 		  double[] transitionprobs_ni = transitionprobs[ni];
 		  int transitionprobsnum_ni = transitionprobsnum[ni];
 
                   if (transitionprobsnum_ni < nsparsecutoff)
 	          {
 		    //if it is sparse enough then it is worth the extra array indirection here
-	             for (int nj = 0; nj < transitionprobsnum_ni; nj++)
+	             int nrowend_ni = transitionprobsrowstart[ni+1];
+	             for (int nk = transitionprobsrowstart[ni]; nk < nrowend_ni; nk++)
 	             {
 	                //for each state summing over transition probability to state j, emission probablity in j at next step
 	                //and probability of observing the remaining sequence
-		        nmappedindexouter = transitionprobsindex_ni[nj];
-		        dtempsum += transitionprobs_ni[nmappedindexouter]*tempproductbetaemiss[nmappedindexouter];			
+		        dtempsum += transitionprobsrowvalues[nk]*tempproductbetaemiss[transitionprobsrowindex[nk]];
 		     }
 		  }
 	          else
 	          {
-                     for (int nj = 0; nj < numstates; nj++)
-	             {
-	                //for each state summing over transition probability to state j, emission probablity in j at next step
-	                //and probability of observing the remaining sequence
-		        dtempsum += transitionprobs_ni[nj]*tempproductbetaemiss[nj];
-		     }
+                     //for each state summing over transition probability to state j, emission probablity in j at next step
+                     //and probability of observing the remaining sequence
+                     dtempsum = theDotKernel.dot(transitionprobs_ni, tempproductbetaemiss, numstates);
 		  }
 
 		  if (bscalebeta)
@@ -4719,7 +5318,7 @@ public class ChromHMM
 	      }		
 
 	      ddenom = 0;		
-	      alpha_nt = alpha[nt];
+	      alpha_nt = alphastore.backwardRow(nt);
 
 	       //gamma_nt - P(x=S| o_0,...,o_t)
                //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
@@ -4746,7 +5345,7 @@ public class ChromHMM
           for (int nt = 0; nt < numtime_nseq; nt++)
 	  {
 
-             gamma_nt = gamma[nt];
+             gamma_nt = gammastore.row(nt);
 
 	     //handling the first line
 	     if ((breadsegment)||(breadstatebyline))
@@ -4929,7 +5528,7 @@ public class ChromHMM
 
        //number of non-zero transition required to be less than this at the more stringent cutoff 
        //for trying to exploit sparsity in the transition matrix for efficiency gains
-       int nsparsecutoff = (int) (numstates * ChromHMM.SPARSECUTOFFRATIO);
+       int nsparsecutoff = getSparseCutoff();
 
        //int[] numtime = new int[traindataObservedIndex.length];
 
@@ -4970,11 +5569,11 @@ public class ChromHMM
        //stores temporary product terms
        double[] tempproductbetaemiss = new double[numstates];
 
-       //This stores the alpha values at each time point and number of states
-       double[][] alpha = new double[nmaxtime][numstates];
+       //This stores the alpha values and their scaling value at each time point and number of states
+       AlphaStore alphastore = newAlphaStore(nmaxtime);
 
        //Temporary storage of the gamma's for each state
-       double[][] gamma = new double[nmaxtime][numstates];
+       PosteriorStore gammastore = newPosteriorStore(nmaxtime);
 
        //Temporary storage of the beta values for each state
        double[] beta_nt = new double[numstates];
@@ -4982,9 +5581,6 @@ public class ChromHMM
        //Temporary storage of the beta values for each state at the next time point
        double[] beta_ntp1 = new double[numstates];
 
-       //stores the scaling value for each time point
-       double[] scale = new double[nmaxtime];
-
        //stores the transition probabilities for each column
        double[][] coltransitionprobs = new double[numstates][numstates];
        
@@ -4998,6 +5594,9 @@ public class ChromHMM
        //stores whether the mark is not considered missing
        boolean[][] traindataNotMissing = new boolean[nmaxtime][numdatasets]; //usually nobserved
 
+       //the signatures of the sequence being processed
+       SignatureTable theLoadSignatures = new SignatureTable(numdatasets);
+
 
        //maps cell ID to printwriter objects
        HashMap hmcellToFourColPW = null;
@@ -5107,149 +5706,30 @@ public class ChromHMM
 	   ///////////////////////////////////////////////////////////////////////////////
 	   //load data here
 
-	   HashMap hmObserved = new HashMap(); //maps an observation string to an index and set of flags
- 
-    	   int nobserved = 0;
-
-	   if (ChromHMM.BVERBOSE)
-	   {
-              System.out.println("reading\t"+szinputdir+" "+chromfiles[nordered_nseq]);
-	   }
-	   BufferedReader br = Util.getBufferedReader(szinputdir+"/"+chromfiles[nordered_nseq]); //fixed bug was chromfiles[nseq]
-           String szLine; 
-           br.readLine(); //first line tells cell type and chromosome
-	   br.readLine();//flush mark header
-	   ArrayList aldata = new ArrayList();
-	   while ((szLine = br.readLine())!=null)
-	   {
-	      StringTokenizer st = new StringTokenizer(szLine,"\t ");
-      	      StringBuffer sb = new StringBuffer();
-		
-	      for (int ncol = 0; ncol < numdatasets; ncol++)
-	      {
-	         if (!st.hasMoreTokens())
-		 {
-	            throw new IllegalArgumentException("Found line without "+numdatasets+" values in file "+chromfiles[nordered_nseq]);
-		 }
-
-		 String sztoken = st.nextToken();
-		    
-		 if (sztoken.equals("0"))
-	         {
-	            sb.append("0");
-	         }
-		 else if (sztoken.equals("1"))
-	         {
-	            sb.append("1");
-		 }
-	         else if (sztoken.equals("2"))
-		 {
-	            //this means missing
-	            sb.append("2");
-		 }
-		 else
-	         {
-	            throw new IllegalArgumentException("Unrecognized value "+sztoken+" found in "+szinputdir+"/"+chromfiles[nordered_nseq]);
-	         }
-	      }
-	      aldata.add(sb.toString());
-	   }
-	   br.close();
-	      
-	   int nsize = aldata.size();
+	   theLoadSignatures.clear();
+	   int nsize = BinaryFileParser.readSequence(szinputdir, chromfiles[nordered_nseq], theLoadSignatures, traindataObservedIndex);
 	   nprevlinecount = nsize;
-	   //traindataObservedIndex[nfile] = new int[nsize];
-	   //int[] traindataObservedIndex_nfile = traindataObservedIndex[nfile];
-
-	   for (int nrow = 0; nrow < nsize; nrow++)
-	   {
-	      BigInteger theBigInteger = new BigInteger((String) aldata.get(nrow),3);
-	      Integer theObservedInt  = (Integer) hmObserved.get(theBigInteger);
-	       //boolean[] flagA;
 
-	      if (theObservedInt == null)
-       	      {
-	         //System.out.println(szmappingbyte.length());
-	         //storing a mapping from observed byte string to an integer index in alFlags and alObserved
-	         hmObserved.put(theBigInteger, Integer.valueOf(nobserved));
+	   //stores the calls of each combination of marks found on the sequence
+	   int nobserved = theLoadSignatures.size();
+	   theLoadSignatures.storeCalls(traindataObservedValues, traindataNotMissing);
+       
+	   //////////////////////////////////////////////////////////////////////////////
 
-		 //saving this observed index
-		 traindataObservedIndex[nrow] = nobserved;
+	   //int[] traindataObservedIndex_nseq = traindataObservedIndex[nordered_nseq];
+           //boolean[] traindataObservedSeqFlags_nseq = traindataObservedSeqFlags[nordered_nseq];
 
-		 //increments the number of observed combinations of marks
-		 nobserved++;
+	   if (bnewfile)
+	   {
+	      String szprefix = "";
+	      if (!cellSeq[nordered_nseq].equals(""))
+	      {
+	         szprefix += cellSeq[nordered_nseq]+"_";
 	      }
-	      else
+	      szprefix += numstates;
+	      if (!szoutfileID.equals(""))
 	      {
-	         //storing the index of the flags associated with this row 
-      	         traindataObservedIndex[nrow] = ((Integer) theObservedInt).intValue();
-	      }
-	   }  	 
-	   
-	   Iterator hmObservedIterator = hmObserved.entrySet().iterator();
-	   while (hmObservedIterator.hasNext())
-	   {
-	      Map.Entry pairs = (Map.Entry) hmObservedIterator.next();
-	      BigInteger theBigInteger = (BigInteger) pairs.getKey();
-	      String szmapping = theBigInteger.toString(3);  //getting back the mapping string
-
-	      //ObservedRec theObservedRec = (ObservedRec) pairs.getValue();
-	      int ncurrindex = ((Integer) pairs.getValue()).intValue();// theObservedRec.nobserved;//this is an index on which obervation combination it is
-
-	      boolean[] traindataObservedValues_ncurrindex = traindataObservedValues[ncurrindex];
-	      boolean[] traindataNotMissing_ncurrindex = traindataNotMissing[ncurrindex]; 
-	   
-	      //if the mapping string is less than the number of data sets then 
-	      //there are leading 0's will set for leading 0's not missing and absent
-	      int numch = szmapping.length();
-	      int numleading0 = numdatasets - numch;
-	      for (int nj = 0; nj < numleading0; nj++)
-	      {
-	         traindataObservedValues_ncurrindex[nj] = false;
-	         traindataNotMissing_ncurrindex[nj] = true;
-	      }
-
-	      int nmappedindex = numleading0; //starting from the leading 0 position
-	      for (int nj = 0; nj < numch; nj++)
-	      {
-	         char ch = szmapping.charAt(nj);
-
-	         if (ch == '0')
-	         {
-		    traindataObservedValues_ncurrindex[nmappedindex] = false;
-		    traindataNotMissing_ncurrindex[nmappedindex] = true;
-		 }
-	         else if (ch=='1')
-	         {
-		    traindataObservedValues_ncurrindex[nmappedindex] = true;
-		    traindataNotMissing_ncurrindex[nmappedindex] = true;
-		 }
-	         else
-	         {
-		      //missing data
-		    traindataObservedValues_ncurrindex[nmappedindex] = false;
-		    traindataNotMissing_ncurrindex[nmappedindex] = false;
-		 }
-	         nmappedindex++;
-	      }
-	   }
-       
-	   //////////////////////////////////////////////////////////////////////////////
-
-	   //int[] traindataObservedIndex_nseq = traindataObservedIndex[nordered_nseq];
-           //boolean[] traindataObservedSeqFlags_nseq = traindataObservedSeqFlags[nordered_nseq];
-
-	   if (bnewfile)
-	   {
-	      String szprefix = "";
-	      if (!cellSeq[nordered_nseq].equals(""))
-	      {
-	         szprefix += cellSeq[nordered_nseq]+"_";
-	      }
-	      szprefix += numstates;
-	      if (!szoutfileID.equals(""))
-	      {
-	         szprefix += "_"+szoutfileID;
+	         szprefix += "_"+szoutfileID;
 	      }
 	      hsprefix.add(szprefix);
 
@@ -5511,7 +5991,8 @@ public class ChromHMM
 	   }
 	  
 	   //initial probability in state s is initial probability times emission probability at first position
-           double[] alpha_nt = alpha[0];
+           alphastore.begin(traindataObservedIndex, numtime[nordered_nseq], emissionproducts, coltransitionprobs, nsparsecutoff);
+           double[] alpha_nt = alphastore.forwardRow(0);
 	   double dscale = 0;
 	   double[] emissionproducts_nobserveindex =emissionproducts[traindataObservedIndex[0]];
  	   for (int ns = 0; ns < numstates; ns++)
@@ -5519,7 +6000,7 @@ public class ChromHMM
 	      alpha_nt[ns] = probinit[ns] * emissionproducts_nobserveindex[ns];
 	      dscale += alpha_nt[ns];
 	   }
-	   scale[0] = dscale;
+	   alphastore.setScale(0, dscale);
 
 	   //alpha_t(s)=P(o_0,...,o_t,x_t=s|lambda)
            //converts the alpha terms to probabilities
@@ -5536,7 +6017,7 @@ public class ChromHMM
 		        dscale += EPSILONSTATE;
 		     }
 		 }
-	         scale[0] = dscale;
+	         alphastore.setScale(0, dscale);
 	      }
 
 	      for (int ns = 0; ns < numstates; ns++)
@@ -5570,14 +6051,15 @@ public class ChromHMM
 	         coltransitionprobs_ni[nj] = transitionprobs[nj][ni];
 	      }
 	   }
+	   updateCompressedTransitions();
 
            //forward step
            int numtime_nseq = numtime[nordered_nseq];
            for (int nt = 1; nt < numtime_nseq; nt++)
            {
               //the actual observed combination at position t	        
-	      double[] alpha_ntm1 = alpha[nt-1];
-	      alpha_nt = alpha[nt];
+	      double[] alpha_ntm1 = alpha_nt;
+	      alpha_nt = alphastore.forwardRow(nt);
 	      
 	      dscale = 0;
 	      emissionproducts_nobserveindex = emissionproducts[traindataObservedIndex[nt]];
@@ -5585,29 +6067,25 @@ public class ChromHMM
 	      {
 	         //going through each state		   
 	         int transitionprobsnumCol_ns = transitionprobsnumCol[ns];
-	         int[] transitionprobsindexCol_ns = transitionprobsindexCol[ns];
 	         double[] coltransitionprobs_ns = coltransitionprobs[ns];
 
 	         double dtempsum = 0;
                  if (transitionprobsnumCol_ns < nsparsecutoff)
 	         {
 		    //if it is sparse enough then it is worth the extra array indirection here
-	            for (int nj = 0; nj < transitionprobsnumCol_ns; nj++)
+	            int ncolend_ns = transitionprobscolstart[ns+1];
+	            for (int nk = transitionprobscolstart[ns]; nk < ncolend_ns; nk++)
 	            {
 	               //for each next state computing inner sum of all previous alpha and the transition probability
 	               //for all non-zero transitions into the state
-	               int nmappedindex = transitionprobsindexCol_ns[nj];
-	       	       dtempsum += coltransitionprobs_ns[nmappedindex]*alpha_ntm1[nmappedindex];
+	       	       dtempsum += transitionprobscolvalues[nk]*alpha_ntm1[transitionprobscolindex[nk]];
 		    }
 		 }
 	         else
 	         {
-                    for (int nj = 0; nj < numstates; nj++)
-	            {
-	               //for each next state computing inner sum of all previous alpha and the transition probability
-	               //for all transitions into the state
-		       dtempsum += coltransitionprobs_ns[nj]*alpha_ntm1[nj];
-		    }
+                    //for each next state computing inner sum of all previous alpha and the transition probability
+                    //for all transitions into the state
+                    dtempsum = theDotKernel.dot(coltransitionprobs_ns, alpha_ntm1, numstates);
 		 }
 
                  //multiply the transition sum by the emission probability
@@ -5617,7 +6095,7 @@ public class ChromHMM
 	      }
 
 	      //rescaling alpha
-              scale[nt] = dscale;
+              alphastore.setScale(nt, dscale);
               //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
 
 	      if (bscalebeta)
@@ -5633,7 +6111,7 @@ public class ChromHMM
 			  dscale += EPSILONSTATE;
 		       }
 		    }
-		    scale[nt] = dscale;
+		    alphastore.setScale(nt, dscale);
 		 }
 
 	         for (int ns = 0; ns < numstates; ns++)
@@ -5659,6 +6137,8 @@ public class ChromHMM
 	     //}      	       
 	  }
 	    
+          alphastore.endForward();
+
           //backward step
           //beta_t(s)=P(o_t+1,...,o_T|x_t=s,lambda)
           int nlastindex = numtime_nseq-1;
@@ -5669,7 +6149,7 @@ public class ChromHMM
 	  }
 	  else
 	  {
-             dinitval = 1.0/scale[nlastindex];
+             dinitval = 1.0/alphastore.getScale(nlastindex);
 	  }
 
           for (int ns = 0; ns < numstates; ns++)
@@ -5682,16 +6162,16 @@ public class ChromHMM
           //    beta_ntp1[ns] = dinitval;
 	  //}
 	
-	  int nmappedindexouter;
  
 	  double ddenom = 0;	      
 
           //gamma_nt - P(x=S| o_0,...,o_t)
           //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,x_t=s|lambda)
-	  double[] gamma_nt = gamma[nlastindex]; 
+	  double[] gamma_nt = gammastore.row(nlastindex);
+	  double[] alpha_nlastindex = alphastore.backwardRow(nlastindex);
           for (int ns = 0; ns < gamma_nt.length; ns++)
           {
-	      double dval = alpha[nlastindex][ns]*beta_ntp1[ns];
+	      double dval = alpha_nlastindex[ns]*beta_ntp1[ns];
 	      ddenom += dval;
 	      gamma_nt[ns] = dval;
 	  }
@@ -5707,12 +6187,12 @@ public class ChromHMM
 
           for (int nt = nlastindex - 1; nt >= 0; nt--)
           {
-	      gamma_nt = gamma[nt];
+	      gamma_nt = gammastore.row(nt);
 	      int ntp1 = (nt+1);
 		   
 	      double[] emissionproducts_ncombo_ntp1 = emissionproducts[traindataObservedIndex[ntp1]];		
 	      double dsumbeta = 0;
-	      double dscale_nt = scale[nt];
+	      double dscale_nt = alphastore.getScale(nt);
 
 	      for (int ns = 0; ns < numstates; ns++)
               {
@@ -5741,29 +6221,25 @@ public class ChromHMM
 	      for (int ni = 0; ni < numstates; ni++)
 	      {
 		  double dtempsum = 0;
-		  int[] transitionprobsindex_ni =  transitionprobsindex[ni];
 		  double[] transitionprobs_ni = transitionprobs[ni];
 		  int transitionprobsnum_ni = transitionprobsnum[ni];
 
                   if (transitionprobsnum_ni < nsparsecutoff)
 	          {
 		    //if it is sparse enough then it is worth the extra array indirection here
-	             for (int nj = 0; nj < transitionprobsnum_ni; nj++)
+	             int nrowend_ni = transitionprobsrowstart[ni+1];
+	             for (int nk = transitionprobsrowstart[ni]; nk < nrowend_ni; nk++)
 	             {
 	                //for each state summing over transition probability to state j, emission probablity in j at next step
 	                //and probability of observing the remaining sequence
-		        nmappedindexouter = transitionprobsindex_ni[nj];
-		        dtempsum += transitionprobs_ni[nmappedindexouter]*tempproductbetaemiss[nmappedindexouter];			
+		        dtempsum += transitionprobsrowvalues[nk]*tempproductbetaemiss[transitionprobsrowindex[nk]];
 		     }
 		  }
 	          else
 	          {
-                     for (int nj = 0; nj < numstates; nj++)
-	             {
-	                //for each state summing over transition probability to state j, emission probablity in j at next step
-	                //and probability of observing the remaining sequence
-		        dtempsum += transitionprobs_ni[nj]*tempproductbetaemiss[nj];
-		     }
+                     //for each state summing over transition probability to state j, emission probablity in j at next step
+                     //and probability of observing the remaining sequence
+                     dtempsum = theDotKernel.dot(transitionprobs_ni, tempproductbetaemiss, numstates);
 		  }
 
 		  if (bscalebeta)
@@ -5808,7 +6284,7 @@ public class ChromHMM
 	      }		
 
 	      ddenom = 0;		
-	      alpha_nt = alpha[nt];
+	      alpha_nt = alphastore.backwardRow(nt);
 
 	       //gamma_nt - P(x=S| o_0,...,o_t)
                //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
@@ -5832,7 +6308,7 @@ public class ChromHMM
 	  }
 
 	  //int nstart = 0; //the start index of the current active interval
-          gamma_nt = gamma[0];
+          gamma_nt = gammastore.row(0);
 
 	  double dmaxval = 0;
           int nmaxstate = 0;
@@ -5901,7 +6377,7 @@ public class ChromHMM
 
              for (; nt < numtime_nseq; nt++)
              {
-                gamma_nt = gamma[nt];
+                gamma_nt = gammastore.row(nt);
 
 	        dmaxval = 0;
 	        nmaxstate = 0;
@@ -6059,7 +6535,7 @@ public class ChromHMM
 
              for ( ; nt < numtime_nseq; nt++)
              {
-                gamma_nt = gamma[nt];
+                gamma_nt = gammastore.row(nt);
 
 	        dmaxval = 0;
 	        nmaxstate = 0;
@@ -6191,7 +6667,7 @@ public class ChromHMM
 
        //number of non-zero transition required to be less than this at the more stringent cutoff 
        //for trying to exploit sparsity in the transition matrix for efficiency gains
-       int nsparsecutoff = (int) (numstates * ChromHMM.SPARSECUTOFFRATIO);
+       int nsparsecutoff = getSparseCutoff();
 
        int[] numtime = new int[traindataObservedIndex.length];
 
@@ -6232,11 +6708,11 @@ public class ChromHMM
        //stores temporary product terms
        double[] tempproductbetaemiss = new double[numstates];
 
-       //This stores the alpha values at each time point and number of states
-       double[][] alpha = new double[nmaxtime][numstates];
+       //This stores the alpha values and their scaling value at each time point and number of states
+       AlphaStore alphastore = newAlphaStore(nmaxtime);
 
        //Temporary storage of the gamma's for each state
-       double[][] gamma = new double[nmaxtime][numstates];
+       PosteriorStore gammastore = newPosteriorStore(nmaxtime);
 
        //Temporary storage of the beta values for each state
        double[] beta_nt = new double[numstates];
@@ -6244,9 +6720,6 @@ public class ChromHMM
        //Temporary storage of the beta values for each state at the next time point
        double[] beta_ntp1 = new double[numstates];
 
-       //stores the scaling value for each time point
-       double[] scale = new double[nmaxtime];
-
        //stores the transition probabilities for each column
        double[][] coltransitionprobs = new double[numstates][numstates];
        
@@ -6603,7 +7076,8 @@ public class ChromHMM
 	  }
 
 	  //initial probability in state s is initial probability times emission probability at first position
-          double[] alpha_nt = alpha[0];
+          alphastore.begin(traindataObservedIndex_nseq, numtime[nordered_nseq], emissionproducts, coltransitionprobs, nsparsecutoff);
+          double[] alpha_nt = alphastore.forwardRow(0);
 	  double dscale = 0;
 	  double[] emissionproducts_nobserveindex =emissionproducts[traindataObservedIndex_nseq[0]];
  	  for (int ns = 0; ns < numstates; ns++)
@@ -6611,7 +7085,7 @@ public class ChromHMM
 	      alpha_nt[ns] = probinit[ns] * emissionproducts_nobserveindex[ns];
 	      dscale += alpha_nt[ns];
 	  }
-	  scale[0] = dscale;
+	  alphastore.setScale(0, dscale);
 
 	  //alpha_t(s)=P(o_0,...,o_t,x_t=s|lambda)
           //converts the alpha terms to probabilities
@@ -6628,7 +7102,7 @@ public class ChromHMM
 		      dscale += EPSILONSTATE;
 		   }
 		}
-	        scale[0] = dscale;
+	        alphastore.setScale(0, dscale);
 	     }
 
              for (int ns = 0; ns < numstates; ns++)
@@ -6662,6 +7136,7 @@ public class ChromHMM
 	        coltransitionprobs_ni[nj] = transitionprobs[nj][ni];
 	     }
 	  }
+	  updateCompressedTransitions();
 
           //forward step
           int numtime_nseq = numtime[nordered_nseq];
@@ -6671,8 +7146,8 @@ public class ChromHMM
           for (int nt = 1; nt < numtime_nseq; nt++)
           {
              //the actual observed combination at position t	        
-	     double[] alpha_ntm1 = alpha[nt-1];
-	     alpha_nt = alpha[nt];
+	     double[] alpha_ntm1 = alpha_nt;
+	     alpha_nt = alphastore.forwardRow(nt);
 	      
 	     dscale = 0;
 	     emissionproducts_nobserveindex = emissionproducts[traindataObservedIndex_nseq[nt]];
@@ -6681,29 +7156,25 @@ public class ChromHMM
 	        //going through each state		   
 
 	        int transitionprobsnumCol_ns = transitionprobsnumCol[ns];
-	        int[] transitionprobsindexCol_ns = transitionprobsindexCol[ns];
 	        double[] coltransitionprobs_ns = coltransitionprobs[ns];
 
 	        double dtempsum = 0;
                 if (transitionprobsnumCol_ns < nsparsecutoff)
 	        {
 		    //if it is sparse enough then it is worth the extra array indirection here
-	           for (int nj = 0; nj < transitionprobsnumCol_ns; nj++)
+	           int ncolend_ns = transitionprobscolstart[ns+1];
+	           for (int nk = transitionprobscolstart[ns]; nk < ncolend_ns; nk++)
 	           {
 	               //for each next state computing inner sum of all previous alpha and the transition probability
 	               //for all non-zero transitions into the state
-			int nmappedindex = transitionprobsindexCol_ns[nj];
-			dtempsum += coltransitionprobs_ns[nmappedindex]*alpha_ntm1[nmappedindex];
+			dtempsum += transitionprobscolvalues[nk]*alpha_ntm1[transitionprobscolindex[nk]];
 		   }
 		}
 	        else
 	        {
-                   for (int nj = 0; nj < numstates; nj++)
-	           {
-	              //for each next state computing inner sum of all previous alpha and the transition probability
-	              //for all transitions into the state
-		      dtempsum += coltransitionprobs_ns[nj]*alpha_ntm1[nj];
-		   }
+                   //for each next state computing inner sum of all previous alpha and the transition probability
+                   //for all transitions into the state
+                   dtempsum = theDotKernel.dot(coltransitionprobs_ns, alpha_ntm1, numstates);
 		}
 
                 //multiply the transition sum by the emission probability
@@ -6713,7 +7184,7 @@ public class ChromHMM
 	     }
 
 	      //rescaling alpha
-              scale[nt] = dscale;
+              alphastore.setScale(nt, dscale);
               //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
 
 	      if (bscalebeta)
@@ -6729,7 +7200,7 @@ public class ChromHMM
 			  dscale += EPSILONSTATE;
 		       }
 		    }
-		    scale[nt] = dscale;
+		    alphastore.setScale(nt, dscale);
 		 }
 
 	         for (int ns = 0; ns < numstates; ns++)
@@ -6755,6 +7226,8 @@ public class ChromHMM
 	     //}      	       
 	  }
 	    
+          alphastore.endForward();
+
           //backward step
           //beta_t(s)=P(o_t+1,...,o_T|x_t=s,lambda)
           int nlastindex = numtime_nseq-1;
@@ -6765,7 +7238,7 @@ public class ChromHMM
 	  }
 	  else
 	  {
-             dinitval = 1.0/scale[nlastindex];
+             dinitval = 1.0/alphastore.getScale(nlastindex);
 	  }
 
           for (int ns = 0; ns < numstates; ns++)
@@ -6778,16 +7251,16 @@ public class ChromHMM
           //    beta_ntp1[ns] = dinitval;
 	  //}
 	
-	  int nmappedindexouter;
  
 	  double ddenom = 0;	      
 
           //gamma_nt - P(x=S| o_0,...,o_t)
           //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,x_t=s|lambda)
-	  double[] gamma_nt = gamma[nlastindex]; 
+	  double[] gamma_nt = gammastore.row(nlastindex);
+	  double[] alpha_nlastindex = alphastore.backwardRow(nlastindex);
           for (int ns = 0; ns < gamma_nt.length; ns++)
           {
-	      double dval = alpha[nlastindex][ns]*beta_ntp1[ns];
+	      double dval = alpha_nlastindex[ns]*beta_ntp1[ns];
 	      ddenom += dval;
 	      gamma_nt[ns] = dval;
 	  }
@@ -6803,12 +7276,12 @@ public class ChromHMM
 
           for (int nt = nlastindex - 1; nt >= 0; nt--)
           {
-	      gamma_nt = gamma[nt];
+	      gamma_nt = gammastore.row(nt);
 	      int ntp1 = (nt+1);
 		   
 	      double[] emissionproducts_ncombo_ntp1 = emissionproducts[traindataObservedIndex_nseq[ntp1]];		
 	      double dsumbeta = 0;
-	      double dscale_nt = scale[nt];
+	      double dscale_nt = alphastore.getScale(nt);
 
 	      for (int ns = 0; ns < numstates; ns++)
               {
@@ -6837,29 +7310,25 @@ public class ChromHMM
 	      for (int ni = 0; ni < numstates; ni++)
 	      {
 		  double dtempsum = 0;
-		  int[] transitionprobsindex_ni =  transitionprobsindex[ni];
 		  double[] transitionprobs_ni = transitionprobs[ni];
 		  int transitionprobsnum_ni = transitionprobsnum[ni];
 
                   if (transitionprobsnum_ni < nsparsecutoff)
 	          {
 		    //if it is sparse enough then it is worth the extra array indirection here
-	             for (int nj = 0; nj < transitionprobsnum_ni; nj++)
+	             int nrowend_ni = transitionprobsrowstart[ni+1];
+	             for (int nk = transitionprobsrowstart[ni]; nk < nrowend_ni; nk++)
 	             {
 	                //for each state summing over transition probability to state j, emission probablity in j at next step
 	                //and probability of observing the remaining sequence
-		        nmappedindexouter = transitionprobsindex_ni[nj];
-		        dtempsum += transitionprobs_ni[nmappedindexouter]*tempproductbetaemiss[nmappedindexouter];			
+		        dtempsum += transitionprobsrowvalues[nk]*tempproductbetaemiss[transitionprobsrowindex[nk]];
 		     }
 		  }
 	          else
 	          {
-                     for (int nj = 0; nj < numstates; nj++)
-	             {
-	                //for each state summing over transition probability to state j, emission probablity in j at next step
-	                //and probability of observing the remaining sequence
-		        dtempsum += transitionprobs_ni[nj]*tempproductbetaemiss[nj];
-		     }
+                     //for each state summing over transition probability to state j, emission probablity in j at next step
+                     //and probability of observing the remaining sequence
+                     dtempsum = theDotKernel.dot(transitionprobs_ni, tempproductbetaemiss, numstates);
 		  }
 
 		  if (bscalebeta)
@@ -6904,7 +7373,7 @@ public class ChromHMM
 	      }		
 
 	      ddenom = 0;		
-	      alpha_nt = alpha[nt];
+	      alpha_nt = alphastore.backwardRow(nt);
 
 	      //gamma_nt - P(x=S| o_0,...,o_t)
               //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
@@ -6928,7 +7397,7 @@ public class ChromHMM
 	  }
 
 
-          gamma_nt = gamma[0];
+          gamma_nt = gammastore.row(0);
 
 	  double dmaxval = 0;
           int nmaxstate = 0;
@@ -6996,7 +7465,7 @@ public class ChromHMM
 
              for ( ; nt < numtime_nseq; nt++)
              { 
-                gamma_nt = gamma[nt];
+                gamma_nt = gammastore.row(nt);
 
 	        dmaxval = 0;
 	        nmaxstate = 0;
@@ -7156,7 +7625,7 @@ public class ChromHMM
 
              for ( ; nt < numtime_nseq; nt++)
              { 
-                gamma_nt = gamma[nt];
+                gamma_nt = gammastore.row(nt);
 
 	        dmaxval = 0;
 	        nmaxstate = 0;
@@ -7640,12 +8109,9 @@ public class ChromHMM
 	     }
 	     else
 	     {
-                for (int nj = 0; nj < numstates; nj++)
-	        {
-	           //for each next state computing inner sum of all previous alpha and the transition probability
-	           //for all transitions into the state
-	           dtempsum += coltransitionprobs_ns[nj]*alpha_ntm1[nj];
-		}
+                //for each next state computing inner sum of all previous alpha and the transition probability
+                //for all transitions into the state
+                dtempsum = theDotKernel.dot(coltransitionprobs_ns, alpha_ntm1, numstates);
 	     }
 
              //multiply the transition sum by the emission probability
@@ -7788,12 +8254,9 @@ public class ChromHMM
 	     }
 	     else
 	     {
-                for (int nj = 0; nj < numstates; nj++)
-	        {
-	           //for each state summing over transition probability to state j, emission probablity in j at next step
-	           //and probability of observing the remaining sequence
-		   dtempsum += transitionprobs_ni[nj]*tempproductbetaemiss[nj];
-		}
+                //for each state summing over transition probability to state j, emission probablity in j at next step
+                //and probability of observing the remaining sequence
+                dtempsum = theDotKernel.dot(transitionprobs_ni, tempproductbetaemiss, numstates);
 	     }
 
 	     if (bscalebeta)
@@ -7985,6 +8448,9 @@ public class ChromHMM
       //stores whether the mark is not considered missing
       boolean[][] traindataNotMissing = new boolean[nmaxtime][numdatasets]; //usually nobserved
 
+      //the signatures of the sequence being processed
+      SignatureTable theLoadSignatures = new SignatureTable(numdatasets);
+
        int nelim = 0;
        long ltimeitr= System.currentTimeMillis();
        dprevloglike = Double.NEGATIVE_INFINITY;
@@ -8002,135 +8468,12 @@ public class ChromHMM
 	      ///////////////////////////////////////////////////////////
 	      //loading the data just for the current chromosome 
 
-	      HashMap hmObserved = new HashMap(); //maps an observation string to an index and set of flags
- 
-    	      int nobserved = 0;
-
-	      if (ChromHMM.BVERBOSE)
-	      {
-                 System.out.println("reading\t"+szinputdir+" "+chromfiles[nseq]);
-	      }
-	      BufferedReader br = Util.getBufferedReader(szinputdir+"/"+chromfiles[nseq]);
-              String szLine; 
-              br.readLine(); //first line tells cell type and chromosome
-	      br.readLine();//flush mark header
-	      ArrayList aldata = new ArrayList();
-	      while ((szLine = br.readLine())!=null)
-	      {
-	         StringTokenizer st = new StringTokenizer(szLine,"\t ");
-		 StringBuffer sb = new StringBuffer();
-		
-		 for (int ncol = 0; ncol < numdatasets; ncol++)
-		 {
-		    if (!st.hasMoreTokens())
-		    {
-	      	       throw new IllegalArgumentException("Found line without "+numdatasets+" values in file "+chromfiles[nseq]);
-		    }
-
-		    String sztoken = st.nextToken();//.trim();
-		    
-		    if (sztoken.equals("0"))
-		    {
-		       sb.append("0");
-		    }
-		    else if (sztoken.equals("1"))
-		    {
-		       sb.append("1");
-		    }
-		    else if (sztoken.equals("2"))
-		    {
-		       //this means missing
-	               sb.append("2");
-		    }
-		    else
-	            {
-	               throw new IllegalArgumentException("Unrecognized value "+sztoken+" found in "+szinputdir+"/"+chromfiles[nseq]);
-	            }
-		 }
-		 aldata.add(sb.toString());
-	      }
-	      br.close();
-	      
-	      int nsize = aldata.size();
-	      //traindataObservedIndex[nfile] = new int[nsize];
-	      //int[] traindataObservedIndex_nfile = traindataObservedIndex[nfile];
-
-	      for (int nrow = 0; nrow < nsize; nrow++)
-	      {
-	         BigInteger theBigInteger = new BigInteger((String) aldata.get(nrow),3);
-		 Integer theObservedInt  = (Integer) hmObserved.get(theBigInteger);
-	         //boolean[] flagA;
-
-	         if (theObservedInt == null)
-       	         {
-		    //System.out.println(szmappingbyte.length());
-		    //storing a mapping from observed byte string to an integer index in alFlags and alObserved
-		     hmObserved.put(theBigInteger, Integer.valueOf(nobserved));
-
-		    //saving this observed index
-		    traindataObservedIndex[nrow] = nobserved;
-
-		    //increments the number of observed combinations of marks
-		    nobserved++;
-		 }
-		 else
-		 {
-		    //storing the index of the flags associated with this row 
-		     traindataObservedIndex[nrow] = ((Integer) theObservedInt).intValue();
-		 }
-	      }	  	 
-	    
-
-
+	      theLoadSignatures.clear();
+	      BinaryFileParser.readSequence(szinputdir, chromfiles[nseq], theLoadSignatures, traindataObservedIndex);
 
-
-	     Iterator hmObservedIterator = hmObserved.entrySet().iterator();
-	     while (hmObservedIterator.hasNext())
-	     {
-	        Map.Entry pairs = (Map.Entry) hmObservedIterator.next();
-	        BigInteger theBigInteger = (BigInteger) pairs.getKey();
-	        String szmapping = theBigInteger.toString(3);  //getting back the mapping string
-
-	        //ObservedRec theObservedRec = (ObservedRec) pairs.getValue();
-	        int ncurrindex = ((Integer) pairs.getValue()).intValue();// theObservedRec.nobserved;//this is an index on which obervation combination it is
-
-	        boolean[] traindataObservedValues_ncurrindex = traindataObservedValues[ncurrindex];
-	        boolean[] traindataNotMissing_ncurrindex = traindataNotMissing[ncurrindex]; 
-	    
-	        //if the mapping string is less than the number of data sets then 
-	        //there are leading 0's will set for leading 0's not missing and absent
-	        int numch = szmapping.length();
-	        int numleading0 = numdatasets - numch;
-	        for (int nj = 0; nj < numleading0; nj++)
-	        {
-		   traindataObservedValues_ncurrindex[nj] = false;
-		   traindataNotMissing_ncurrindex[nj] = true;
-		}
-
-	        int nmappedindex = numleading0; //starting from the leading 0 position
-	        for (int nj = 0; nj < numch; nj++)
-	        {
-	           char ch = szmapping.charAt(nj);
-
-	           if (ch == '0')
-	           {
-		      traindataObservedValues_ncurrindex[nmappedindex] = false;
-		      traindataNotMissing_ncurrindex[nmappedindex] = true;
-		   }
-	           else if (ch=='1')
-	           {
-		      traindataObservedValues_ncurrindex[nmappedindex] = true;
-		      traindataNotMissing_ncurrindex[nmappedindex] = true;
-		   }
-	           else
-	           {
-		      //missing data
-		      traindataObservedValues_ncurrindex[nmappedindex] = false;
-		      traindataNotMissing_ncurrindex[nmappedindex] = false;
-		   }
-	           nmappedindex++;
-		}
-	     }      
+	      //stores the calls of each combination of marks found on the sequence
+	      int nobserved = theLoadSignatures.size();
+	      theLoadSignatures.storeCalls(traindataObservedValues, traindataNotMissing);
 
 
 
@@ -8400,10 +8743,7 @@ public class ChromHMM
 		   else
 	           {
 		       //avoid the redirect and multiply by 0
-                      for (int nj = 0; nj < numstates; nj++)
-		      {
-		         dtempsum += coltransitionprobs_ns[nj]*alpha_ntm1[nj];
-		      }
+                      dtempsum = theDotKernel.dot(coltransitionprobs_ns, alpha_ntm1, numstates);
 		   }
 	           //multiply the transition sum by the emission probability
 		   double dalphaval = dtempsum*emissionproducts_nobserveindex[ns];
@@ -8569,12 +8909,9 @@ public class ChromHMM
 		   else
 		   {
 		       //not trying to exploit sparsity here
-                      for (int nj = 0; nj < numstates; nj++)
-		      {
-		         //for each state summing over transition probability to state j, emission probablity in j at next step
-		         //and probability of observing the remaining sequence
-			 dtempsum += transitionprobs_ni[nj]*tempproductbetaemiss[nj];
-		      }
+                      //for each state summing over transition probability to state j, emission probablity in j at next step
+                      //and probability of observing the remaining sequence
+                      dtempsum = theDotKernel.dot(transitionprobs_ni, tempproductbetaemiss, numstates);
 		   }
 
 		   if (bscalebeta)
@@ -8844,6 +9181,7 @@ public class ChromHMM
 	        if (bchange)
 	        {
 	           //a transition was eliminated we need to update the probabilities
+	           ntransitionstructureversion++;
 	           for (int ni = 0; ni < transitionprobs.length; ni++)
 	           {
 		      int nindex = 0;		        
@@ -8973,16 +9311,8 @@ public class ChromHMM
 	  }
 
 
-	  if (niteration == 1)
-	  {
-	      System.out.format("%10s %25s %10s %20s%n","Iteration","Estimated Log Likelihood", "Change","Total Time (secs)");
-	      System.out.format("%10s %25s %10s %20s%n",""+niteration,""+nf3.format(dloglike),"-",""+nf1.format(dtimechange));
-	  }
-	  else
-	  {
-	      //System.out.format(niteration+"            "+nf3.format(dloglike)+"           "+nf3.format(ddiff)+"       "+nf1.format(dtimechange));
-	      System.out.format("%10s %25s %10s %20s%n",""+niteration,""+nf3.format(dloglike),""+nf3.format(ddiff),""+nf1.format(dtimechange));
-	  }
+	  printIterationProgress(niteration, ddiff, dtimechange, nf3, nf1);
+	  numiterations = niteration;
 	  niteration++;
        }
        while (!bconverged);
@@ -9361,10 +9691,7 @@ public class ChromHMM
 		   else
 	           {
 		       //avoid the redirect and multiply by 0
-                      for (int nj = 0; nj < numstates; nj++)
-		      {
-		         dtempsum += coltransitionprobs_ns[nj]*alpha_ntm1[nj];
-		      }
+                      dtempsum = theDotKernel.dot(coltransitionprobs_ns, alpha_ntm1, numstates);
 		   }
 	           //multiply the transition sum by the emission probability
 		   double dalphaval = dtempsum*emissionproducts_nobserveindex[ns];
@@ -9524,12 +9851,9 @@ public class ChromHMM
 		   else
 		   {
 		       //not trying to exploit sparsity here
-                      for (int nj = 0; nj < numstates; nj++)
-		      {
-		         //for each state summing over transition probability to state j, emission probablity in j at next step
-		         //and probability of observing the remaining sequence
-			 dtempsum += transitionprobs_ni[nj]*tempproductbetaemiss[nj];
-		      }
+                      //for each state summing over transition probability to state j, emission probablity in j at next step
+                      //and probability of observing the remaining sequence
+                      dtempsum = theDotKernel.dot(transitionprobs_ni, tempproductbetaemiss, numstates);
 		   }
 
 
@@ -9794,6 +10118,7 @@ public class ChromHMM
 	        if (bchange)
 	        {
 	           //a transition was eliminated we need to update the probabilities
+	           ntransitionstructureversion++;
 	           for (int ni = 0; ni < transitionprobs.length; ni++)
 	           {
 		      int nindex = 0;		        
@@ -9922,16 +10247,8 @@ public class ChromHMM
 	  }
 
 
-	  if (niteration == 1)
-	  {
-	      System.out.format("%10s %25s %10s %20s%n","Iteration","Estimated Log Likelihood", "Change","Total Time (secs)");
-	      System.out.format("%10s %25s %10s %20s%n",""+niteration,""+nf3.format(dloglike),"-",""+nf1.format(dtimechange));
-	  }
-	  else
-	  {
-	      //System.out.format(niteration+"            "+nf3.format(dloglike)+"           "+nf3.format(ddiff)+"       "+nf1.format(dtimechange));
-	      System.out.format("%10s %25s %10s %20s%n",""+niteration,""+nf3.format(dloglike),""+nf3.format(ddiff),""+nf1.format(dtimechange));
-	  }
+	  printIterationProgress(niteration, ddiff, dtimechange, nf3, nf1);
+	  numiterations = niteration;
 	  niteration++;
        }
        while (!bconverged);
@@ -9940,1584 +10257,5695 @@ public class ChromHMM
 
     /////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    // Create a new thread.
-    class NewThread implements Runnable 
+    /**
+     * Stores the rescaled forward values and their scaling factors for the sequence being processed by a worker.
+     * During the forward pass the rows are requested in increasing order of position and during the backward pass
+     * in decreasing order of position.
+     */
+    abstract class AlphaStore
     {
-       
+	//the sequence currently stored, whose position nt has its combination of marks at nindexoffset+nt in traindataObservedIndex_nseq
 	int[] traindataObservedIndex_nseq;
-	boolean[] traindataObservedSeqFlags_nseq;
-	double[][][] gammaksum_nseq;
-	double[][] sxi_nseq;
+	int nindexoffset;
 	int numtime_nseq;
-	double[] gammainitstore_nseq;
-	double[][][] gammaObservedSum_Pool;
-	double[][][] alpha_Pool;
 	double[][] emissionproducts;
-	double[][] gamma_nt_Pool;
 	double[][] coltransitionprobs;
-	double[][] scale_Pool;
-	double[][] beta_nt_Pool;
-	double[][] beta_ntp1_Pool;
-	double[][] tempproductbetaemiss_Pool;
 	int nsparsecutoff;
-	int nsparsecutofflooser;
-	double[][][] sumforsxi_Pool;
-	double[] dloglikeA;
-	int nseq;
-        double[] emissionproducts_scale;
 
-	NewThread(int[] traindataObservedIndex_nseq,
-		  boolean[] traindataObservedSeqFlags_nseq,
-		  double[][][] gammaksum_nseq,
-		  double[][] sxi_nseq,
-		  int numtime_nseq,
-		  double[] gammainitstore_nseq,
-		  double[][][] gammaObservedSum_Pool,
-		  double[][][] alpha_Pool,
-		  double[][] emissionproducts,
-		  double[][] gamma_nt_Pool,
-		  double[][] coltransitionprobs,
-		  double[][] scale_Pool,
-		  double[][] beta_nt_Pool,
-		  double[][] beta_ntp1_Pool,
-		  double[][] tempproductbetaemiss_Pool,
-		  double[][][] sumforsxi_Pool,
-		  int nsparsecutoff,
-		  int nsparsecutofflooser,
-		  double[] dloglikeA,
-		  int nseq,
-		  double[] emissionproducts_scale)
-        {
+	/**
+	 * Prepares the store for the forward values of a sequence with numtime_nseq positions whose combination of marks
+	 * at each position indexes into emissionproducts
+	 */
+	void begin(int[] traindataObservedIndex_nseq, int numtime_nseq, double[][] emissionproducts, 
+		   double[][] coltransitionprobs, int nsparsecutoff)
+	{
+	    begin(traindataObservedIndex_nseq, 0, numtime_nseq, emissionproducts, coltransitionprobs, nsparsecutoff);
+	}
+
+	/**
+	 * Prepares the store for the forward values of the numtime_nseq positions of a sequence starting at nindexoffset in
+	 * traindataObservedIndex_nseq
+	 */
+	void begin(int[] traindataObservedIndex_nseq, int nindexoffset, int numtime_nseq, double[][] emissionproducts, 
+		   double[][] coltransitionprobs, int nsparsecutoff)
+	{
 	    this.traindataObservedIndex_nseq = traindataObservedIndex_nseq;
-	    this.traindataObservedSeqFlags_nseq = traindataObservedSeqFlags_nseq;
-	    this.gammaksum_nseq = gammaksum_nseq;
-	    this.sxi_nseq = sxi_nseq;
+	    this.nindexoffset = nindexoffset;
 	    this.numtime_nseq = numtime_nseq;
-	    this.gammainitstore_nseq = gammainitstore_nseq;
-	    this.gammaObservedSum_Pool = gammaObservedSum_Pool;
-	    this.alpha_Pool = alpha_Pool;
 	    this.emissionproducts = emissionproducts;
-	    this.gamma_nt_Pool = gamma_nt_Pool;
 	    this.coltransitionprobs = coltransitionprobs;
-	    this.scale_Pool = scale_Pool;
-	    this.beta_nt_Pool = beta_nt_Pool;
-	    this.beta_ntp1_Pool = beta_ntp1_Pool;
-	    this.tempproductbetaemiss_Pool = tempproductbetaemiss_Pool;
 	    this.nsparsecutoff = nsparsecutoff;
-	    this.nsparsecutofflooser = nsparsecutofflooser;
-	    this.sumforsxi_Pool = sumforsxi_Pool;
-	    this.dloglikeA = dloglikeA;
-	    this.nseq = nseq;
-	    this.emissionproducts_scale = emissionproducts_scale;
 	}
 
-	private int slotavailable()
+	/**
+	 * Returns the row in which the forward values at position nt are computed during the forward pass.
+	 * The row of the previous position remains valid until the next call.
+	 */
+	abstract double[] forwardRow(int nt);
+
+	/**
+	 * Records the scaling factor of the forward values at position nt during the forward pass
+	 */
+	abstract void setScale(int nt, double dscale);
+
+	/**
+	 * Called once the forward values at all positions have been computed
+	 */
+	void endForward()
 	{
-	   for (int ni = 0; ni < threadslots.length; ni++)
-	   {
-	      if (!threadslots[ni])
-	      {
-	         threadslots[ni] = true;
-	         return ni;
-	      }
-	   }
-	   return -1;	    
 	}
 
-	// This is the entry point for the second thread.
-	public void run() 
-        {
-	    int nprocess;
+	/**
+	 * Returns the scaling factor of the forward values at position nt during the backward pass
+	 */
+	abstract double getScale(int nt);
 
-	    synchronized (objlock)
-	    {
-	       while ((nprocess=slotavailable())==-1)
-	       {
-                  try
-                  {
-	             objlock.wait();
-	          }
-	          catch (InterruptedException ex) {}
-	       }
-	    }
+	/**
+	 * Returns the forward values at position nt during the backward pass
+	 */
+	abstract double[] backwardRow(int nt);
+    }
 
-	    estep(gammaObservedSum_Pool[nprocess],
-		  alpha_Pool[nprocess],
-		  gamma_nt_Pool[nprocess],
-		  scale_Pool[nprocess],
-		  beta_nt_Pool[nprocess],
-		  beta_ntp1_Pool[nprocess],
-		  tempproductbetaemiss_Pool[nprocess],
-		  sumforsxi_Pool[nprocess]);
-	    
-	    synchronized(objlock)
+
+    /**
+     * The values of the numstates states at each of up to nmaxtime positions stored one row after another with stride numstates
+     * in a single primitive array, in single precision if bsingle is set. Sequences too long for one Java array are stored
+     * in direct buffers outside the heap, each holding a power of two number of rows. Compared to an array per position
+     * this keeps consecutive positions next to each other in memory and leaves the garbage collector one object to scan
+     * instead of millions. Rows are copied in and out of double arrays owned by the caller.
+     */
+    class FlatRows
+    {
+	boolean bsingle;
+
+	/**
+	 * The values when they fit in one array, only one of which is used depending on the precision
+	 */
+	double[] ddata;
+	float[] fdata;
+
+	/**
+	 * The values outside the heap when they do not fit in one array, only one of which is used depending on the precision
+	 */
+	DoubleBuffer[] dbuffers;
+	FloatBuffer[] fbuffers;
+
+	/**
+	 * Each buffer holds 2^nbuffershift rows
+	 */
+	int nbuffershift;
+	int nbuffermask;
+
+	FlatRows(int nmaxtime, boolean bsingle)
+	{
+	    this.bsingle = bsingle;
+	    long lnumvalues = (long) nmaxtime*numstates;
+	    if (lnumvalues <= MAXFLATARRAYLENGTH)
 	    {
-		nlaunched--;
-		threadslots[nprocess] = false;
-		objlock.notifyAll();
+		if (bsingle)
+		{
+		    fdata = new float[(int) lnumvalues];
+		}
+		else
+		{
+		    ddata = new double[(int) lnumvalues];
+		}
 	    }
+	    else
+	    {
+		int nbytes = bsingle ? 4 : 8;
+		//a direct buffer holds at most Integer.MAX_VALUE bytes
+		nbuffershift = 31 - Integer.numberOfLeadingZeros(Integer.MAX_VALUE/(nbytes*numstates));
+		int nbufferrows = 1 << nbuffershift;
+		nbuffermask = nbufferrows - 1;
+		int numbuffers = (int) (((long) nmaxtime + nbufferrows - 1) >> nbuffershift);
+		if (bsingle)
+		{
+		    fbuffers = new FloatBuffer[numbuffers];
+		}
+		else
+		{
+		    dbuffers = new DoubleBuffer[numbuffers];
+		}
 
+		for (int nbuffer = 0; nbuffer < numbuffers; nbuffer++)
+		{
+		    int numrows = Math.min(nbufferrows, nmaxtime - nbuffer*nbufferrows);
+		    ByteBuffer theByteBuffer = ByteBuffer.allocateDirect(numrows*numstates*nbytes).order(ByteOrder.nativeOrder());
+		    if (bsingle)
+		    {
+			fbuffers[nbuffer] = theByteBuffer.asFloatBuffer();
+		    }
+		    else
+		    {
+			dbuffers[nbuffer] = theByteBuffer.asDoubleBuffer();
+		    }
+		}
+	    }
 	}
 
-        public void estep(
-		  double[][] gammaObservedSum,
-		  double[][] alpha,
-		  double[] gamma_nt,
-		  double[] scale,
-		  double[] beta_nt,
-		  double[] beta_ntp1,
-		  double[] tempproductbetaemiss,
-		  double[][] sumforsxi)
-	{ 
-	      //going through each sequence
-
-	   double dloglikeseq = 0;
+	/**
+	 * Copies the values in drow into row nt, rounding them to single precision if bsingle is set
+	 */
+	void store(int nt, double[] drow)
+	{
+	    if (ddata != null)
+	    {
+		System.arraycopy(drow, 0, ddata, nt*numstates, numstates);
+	    }
+	    else if (fdata != null)
+	    {
+		int noffset = nt*numstates;
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    fdata[noffset+ns] = (float) drow[ns];
+		}
+	    }
+	    else
+	    {
+		int noffset = (nt & nbuffermask)*numstates;
+		if (bsingle)
+		{
+		    FloatBuffer theBuffer = fbuffers[nt >> nbuffershift];
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+			theBuffer.put(noffset+ns, (float) drow[ns]);
+		    }
+		}
+		else
+		{
+		    DoubleBuffer theBuffer = dbuffers[nt >> nbuffershift];
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+			theBuffer.put(noffset+ns, drow[ns]);
+		    }
+		}
+	    }
+	}
 
-	   for (int ns = 0; ns < gammaksum_nseq.length; ns++)
-	   {
-	      //resetting the gamma sufficient statistics in the current sequence
-	      double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
-	      for (int nmark = 0; nmark < gammaksum_nseq_ns.length; nmark++)
-	      {
-	         for (int nbucket = 0; nbucket < numbuckets; nbucket++)
-	         {
-	            gammaksum_nseq_ns[nmark][nbucket] = 0;
-	         }
-	      }
-           }
+	/**
+	 * Copies the values of row nt into drow
+	 */
+	void load(int nt, double[] drow)
+	{
+	    if (ddata != null)
+	    {
+		System.arraycopy(ddata, nt*numstates, drow, 0, numstates);
+	    }
+	    else if (fdata != null)
+	    {
+		int noffset = nt*numstates;
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    drow[ns] = fdata[noffset+ns];
+		}
+	    }
+	    else
+	    {
+		int noffset = (nt & nbuffermask)*numstates;
+		if (bsingle)
+		{
+		    FloatBuffer theBuffer = fbuffers[nt >> nbuffershift];
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+			drow[ns] = theBuffer.get(noffset+ns);
+		    }
+		}
+		else
+		{
+		    DoubleBuffer theBuffer = dbuffers[nt >> nbuffershift];
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+			drow[ns] = theBuffer.get(noffset+ns);
+		    }
+		}
+	    }
+	}
+    }
 
-	   for (int ni = 0; ni < sxi_nseq.length; ni++)
-	   {
-	      //reseeting the sxi sufficient statistics in the current sequence
-	      double[] sxi_nseq_ni = sxi_nseq[ni];
-	      for (int nj = 0; nj < sxi_nseq_ni.length; nj++)
-	      {
-                 sxi_nseq_ni[nj] = 0;
-	      }
-	   }
 
-	   //gammaObservedSum stores the weight for each combination of marks in each state
-	   for (int ncombo = 0; ncombo < gammaObservedSum.length; ncombo++)
-	   {
-	      //resetting that to 0
-	      double[] gammaObservedSum_ncombo = gammaObservedSum[ncombo];
-	      for (int ns = 0; ns < gammaObservedSum_ncombo.length; ns++)
-	      {
-	         gammaObservedSum_ncombo[ns] = 0;
-	      }
-	   }
+    /**
+     * Keeps the forward values at every position of the sequence in a FlatRows allocated once for the longest sequence,
+     * in single precision if bsingle is set. The forward recursion is computed in double precision on two alternating
+     * rows and each row is copied into the store once the next position is started, so in double precision the stored
+     * values are exactly the computed ones. The scaling factors stay in double precision since they can be far
+     * outside the range of a float.
+     */
+    class FlatAlphaStore extends AlphaStore
+    {
+	FlatRows alpha;
+	double[] scale;
 
-	   //initial probability in state s is initial probability times emission probability at first position
-	   double[] alpha_nt = alpha[0];
-           double dscale = 0;
-	   double[] emissionproducts_nobserveindex =emissionproducts[traindataObservedIndex_nseq[0]];
- 	   for (int ns = 0; ns < numstates; ns++)
-           {
-	      alpha_nt[ns] = probinit[ns] * emissionproducts_nobserveindex[ns];
-	      dscale += alpha_nt[ns];
-	      
-	   }
-	   scale[0] = dscale;
+	/**
+	 * The two rows on which the forward recursion is computed
+	 */
+	double[][] forwardrows = new double[2][numstates];
 
-	   //alpha_t(s)=P(o_0,...,o_t,x_t=s|lambda)
-	   //converts the alpha terms to probabilities
+	/**
+	 * The row in which stored values are returned during the backward pass
+	 */
+	double[] backwardrow = new double[numstates];
 
-	   if (bscalebeta)
-	   {
-	      if (dscale == 0)
-	      {
-		 for (int ns = 0; ns < numstates; ns++)
-		 {
-		    //added
-		    if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
-		    {
-		       alpha_nt[ns] = EPSILONSTATE;
-		       dscale += EPSILONSTATE;
-	            }
-       	         }
-	         scale[0] = dscale;
-	      }
+	FlatAlphaStore(int nmaxtime, boolean bsingle)
+	{
+	    alpha = new FlatRows(nmaxtime, bsingle);
+	    scale = new double[nmaxtime];
+	}
 
-	      for (int ns = 0; ns < numstates; ns++)
-	      {
-                 alpha_nt[ns] /= dscale;
+	double[] forwardRow(int nt)
+	{
+	    if (nt > 0)
+	    {
+		alpha.store(nt-1, forwardrows[(nt-1)&1]);
+	    }
+	    return forwardrows[nt&1];
+	}
 
-	         if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
-       	         {
-	            alpha_nt[ns] = EPSILONSTATE;
-	         }
-	      }
-	   }
-      	   else
-	   {
-	      for (int ns = 0; ns < numstates; ns++)
-	      {
-                 alpha_nt[ns] /= dscale;
-	      }
-	   }
-	   //for (int ni = 0; ni < numstates; ni++)
-	   //{
-	   //   alpha_nt[ni] /= dscale;
-	   //}
+	void setScale(int nt, double dscale)
+	{
+	    scale[nt] = dscale;
+	}
 
-	   dloglikeseq += Math.log(dscale); 
+	void endForward()
+	{
+	    alpha.store(numtime_nseq-1, forwardrows[(numtime_nseq-1)&1]);
+	}
 
-           if (bscaleemissions)
-	   {
-	      dloglikeseq += emissionproducts_scale[traindataObservedIndex_nseq[0]];
-	   }
+	double getScale(int nt)
+	{
+	    return scale[nt];
+	}
 
-	   //forward step
-	   //int numtime_nseq = numtime[nseq];
-	   for (int nt = 1; nt < numtime_nseq; nt++)
-	   {
-	      //the actual observed combination at position t	        
-	      double[] alpha_ntm1 = alpha[nt-1];
-	      alpha_nt = alpha[nt];
+	double[] backwardRow(int nt)
+	{
+	    alpha.load(nt, backwardrow);
+	    return backwardrow;
+	}
+    }
 
-	      
-	      dscale = 0;
-	      emissionproducts_nobserveindex = emissionproducts[traindataObservedIndex_nseq[nt]];
-	      for (int ns = 0; ns < numstates; ns++)
-	      {
-	         //stores the emission product for each location on the chromosome		   
 
-		 int transitionprobsnumCol_ns = transitionprobsnumCol[ns];
-	         int[] transitionprobsindexCol_ns = transitionprobsindexCol[ns];
-	         double[] coltransitionprobs_ns = coltransitionprobs[ns];
+    /**
+     * Keeps the forward values only at the last position of each segment of about the square root of the
+     * maximum sequence length, and recomputes the forward values of a segment from the previous one
+     * when the backward pass reaches it. The recomputed values are identical to the ones from the forward pass.
+     * This reduces the memory per worker from O(T*K) to O(sqrt(T)*K) at the cost of about one extra
+     * forward pass.
+     */
+    class CheckpointAlphaStore extends AlphaStore
+    {
+	/**
+	 * The number of positions in each segment
+	 */
+	int nsegmentsize;
+
+	/**
+	 * Row nsegment holds the forward values at the position before segment nsegment starts
+	 */
+	double[][] checkpoints;
+
+	/**
+	 * The forward values and scaling factors of the segment currently held
+	 */
+	double[][] segment;
+	double[] segmentscale;
+
+	/**
+	 * The first position of the segment currently held
+	 */
+	int nsegmentstart;
+
+	/**
+	 * Positions computed in the forward pass, positions recomputed, and nanoseconds spent recomputing
+	 * since the counts were last reset
+	 */
+	long nforward;
+	long nrecomputed;
+	long lrecomputenanos;
+
+	CheckpointAlphaStore(int nmaxtime)
+	{
+	    nsegmentsize = Math.max(1, (int) Math.ceil(Math.sqrt(nmaxtime)));
+	    checkpoints = new double[(nmaxtime + nsegmentsize - 1)/nsegmentsize][numstates];
+	    segment = new double[nsegmentsize][numstates];
+	    segmentscale = new double[nsegmentsize];
+	}
 
-	         double dtempsum = 0;
-                 if (transitionprobsnumCol_ns < nsparsecutoff)
-		 {
-	            //number of transitions is sparse enough worth going through the extra redirection
-	            for (int nj = 0; nj < transitionprobsnumCol_ns; nj++)
-	            {
-	               //for each next state computing inner sum of all previous alpha and the transition probability
-	               //for all non-zero transitions into the state
-	               int nmappedindex = transitionprobsindexCol_ns[nj];
-	               dtempsum += coltransitionprobs_ns[nmappedindex]*alpha_ntm1[nmappedindex];
-	            }
-		 }
-		 else
-	         {
-	            //avoid the redirect and multiply by 0
-                    for (int nj = 0; nj < numstates; nj++)
-	            {
-	               dtempsum += coltransitionprobs_ns[nj]*alpha_ntm1[nj];
-	            }
-		 }
-	         //multiply the transition sum by the emission probability
-	         double dalphaval = dtempsum*emissionproducts_nobserveindex[ns];
-	         alpha_nt[ns] = dalphaval;
-	         //System.out.println(ns+"\t"+alpha_nt[ns]+"\t"+dtempsum+"\t"+emissionproducts_nobserveindex[ns]);
-	         dscale += dalphaval;
-	      }
+	double[] forwardRow(int nt)
+	{
+	    int noffset = nt % nsegmentsize;
+	    if (noffset == 0)
+	    {
+		if (nt > 0)
+		{
+		    //the previous segment is complete so its last row is kept to restart the next one
+		    System.arraycopy(segment[nsegmentsize-1], 0, checkpoints[nt/nsegmentsize], 0, numstates);
+		}
+		nsegmentstart = nt;
+	    }
+	    nforward++;
+	    return segment[noffset];
+	}
 
-	      //rescaling alpha
-	      scale[nt] = dscale;
-              //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
+	void setScale(int nt, double dscale)
+	{
+	    segmentscale[nt-nsegmentstart] = dscale;
+	}
 
-	      if (bscalebeta)
-	      {
-	         if (dscale == 0)
-	         {
-		    for (int ns = 0; ns < numstates; ns++)
-		    {
-		       //added
-		       if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
-		       {
-		          alpha_nt[ns] = EPSILONSTATE;
-			  dscale += EPSILONSTATE;
-		       }
-		    }
-		    scale[nt] = dscale;
-		 }
+	double getScale(int nt)
+	{
+	    loadSegment(nt);
+	    return segmentscale[nt-nsegmentstart];
+	}
 
-	         for (int ns = 0; ns < numstates; ns++)
-	         {
-                    alpha_nt[ns] /= dscale;
+	double[] backwardRow(int nt)
+	{
+	    loadSegment(nt);
+	    return segment[nt-nsegmentstart];
+	}
 
-  		    if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
-		    {
-		       alpha_nt[ns] = EPSILONSTATE;
-		    }
-		 }
-	      }
-	      else
-	      {
-	         for (int ns = 0; ns < numstates; ns++)
-	         {
-                    alpha_nt[ns] /= dscale;
-		 }
-	      }
-      	      dloglikeseq += Math.log(dscale);
+	/**
+	 * Recomputes the segment containing position nt if it is not the one currently held.
+	 * The last segment is still held from the forward pass.
+	 */
+	void loadSegment(int nt)
+	{
+	    if (nt >= nsegmentstart)
+	    {
+		return;
+	    }
 
-              if (bscaleemissions)
-	      {
-	         dloglikeseq += emissionproducts_scale[traindataObservedIndex_nseq[nt]];
-	      }
+	    long lstarttime = System.nanoTime();
+	    int nsegment = nt/nsegmentsize;
+	    nsegmentstart = nsegment*nsegmentsize;
 
-	   }
-	    
-	   //backward step
-	   //beta_t(s)=P(o_t+1,...,o_T|x_t=s,lambda)
-           int nlastindex = numtime_nseq-1;
-           double dinitval;
+	    if (nsegment == 0)
+	    {
+		segmentscale[0] = forwardInit(segment[0], emissionproducts[traindataObservedIndex_nseq[nindexoffset]]);
+	    }
+	    else
+	    {
+		segmentscale[0] = forwardStep(checkpoints[nsegment], segment[0], emissionproducts[traindataObservedIndex_nseq[nindexoffset+nsegmentstart]],
+					      coltransitionprobs, nsparsecutoff);
+	    }
 
-	   if (bscalebeta)
-	   {
-	       dinitval = 1.0/numstates;
-	   }
-	   else
-	   {
-               dinitval = 1.0/scale[nlastindex];
-	   }
+	    //only the last segment can be partial and it is never recomputed
+	    for (int noffset = 1; noffset < nsegmentsize; noffset++)
+	    {
+		segmentscale[noffset] = forwardStep(segment[noffset-1], segment[noffset], 
+						    emissionproducts[traindataObservedIndex_nseq[nindexoffset+nsegmentstart+noffset]],
+						    coltransitionprobs, nsparsecutoff);
+	    }
 
-           for (int ns = 0; ns < numstates; ns++)
-	   {
-	      beta_ntp1[ns] = dinitval;
-	   }
+	    nrecomputed += nsegmentsize;
+	    lrecomputenanos += System.nanoTime()-lstarttime;
+	}
+    }
 
-	   double ddenom = 0;	       
 
-	   //gamma_nt - P(x=S| o_0,...,o_t)
-	   //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
-	   alpha_nt = alpha[nlastindex];
-	   for (int ns = 0; ns < gamma_nt.length; ns++)
-           {
-	       double dval = alpha_nt[ns]*beta_ntp1[ns];
-	       ddenom += dval;
-	       gamma_nt[ns] = dval;
-	   }
+    /**
+     * Returns a store for the forward values of sequences with up to nmaxtime positions in single precision
+     * if bfloat is set and otherwise in double precision
+     */
+    AlphaStore newAlphaStore(int nmaxtime)
+    {
+	return new FlatAlphaStore(nmaxtime, bfloat);
+    }
 
-	   if (ddenom > 0)
-	   {
-              for (int ns = 0; ns < gamma_nt.length; ns++)
-	      {
-	         gamma_nt[ns] /=ddenom;
-	      }
-	   }
 
-	   double[] gammaObservedSum_combo_nt = gammaObservedSum[traindataObservedIndex_nseq[nlastindex]];
+    /**
+     * Stores the posterior probability of each state at every position of a sequence. Rows are accessed one at a time
+     * through row, and the row returned by the previous call may be reused by the next call.
+     */
+    abstract class PosteriorStore
+    {
+	/**
+	 * Returns the row holding the posteriors at position nt, which can be both read and written
+	 * until the next call
+	 */
+	abstract double[] row(int nt);
+    }
+
+    /**
+     * Keeps the posteriors in a FlatRows, in single precision if bsingle is set. The row for a position is copied out
+     * when requested and written back when another row is requested. Since converting a float to a double
+     * and back is exact, rows that were only read are unchanged.
+     */
+    class FlatPosteriorStore extends PosteriorStore
+    {
+	FlatRows gamma;
+	double[] currrow = new double[numstates];
+
+	/**
+	 * The position held in currrow or -1 if none
+	 */
+	int ncurrent = -1;
+
+	FlatPosteriorStore(int nmaxtime, boolean bsingle)
+	{
+	    gamma = new FlatRows(nmaxtime, bsingle);
+	}
+
+	double[] row(int nt)
+	{
+	    if (nt != ncurrent)
+	    {
+		if (ncurrent >= 0)
+		{
+		    gamma.store(ncurrent, currrow);
+		}
+		gamma.load(nt, currrow);
+		ncurrent = nt;
+	    }
+	    return currrow;
+	}
+    }
+
+    /**
+     * Returns a store for the posteriors of sequences with up to nmaxtime positions in single precision
+     * if bfloat is set and otherwise in double precision
+     */
+    PosteriorStore newPosteriorStore(int nmaxtime)
+    {
+	return new FlatPosteriorStore(nmaxtime, bfloat);
+    }
+
+
+    /**
+     * Gives each worker of the pool a store for the forward values of sequences with up to nmaxtime positions
+     * in the precision given by bfloat, unless brecomputealpha is set
+     */
+    void allocateAlphaStores(TrainingPool theTrainingPool, int nmaxtime)
+    {
+	if (!brecomputealpha)
+	{
+	    for (int nworker = 0; nworker < theTrainingPool.numworkers; nworker++)
+	    {
+		theTrainingPool.workers[nworker].alphastore = newAlphaStore(nmaxtime);
+	    }
+	}
+    }
+
+    /**
+     * If brecomputealpha is set gives this model a store for each worker of the pool keeping only checkpoints of the forward values
+     * of sequences with up to nmaxtime positions. The recomputation uses the parameters of the model, so the stores are not shared.
+     */
+    void allocateCheckpointStores(TrainingPool theTrainingPool, int nmaxtime)
+    {
+	if (brecomputealpha)
+	{
+	    workercheckpointstores = new CheckpointAlphaStore[theTrainingPool.numworkers];
+	    for (int nworker = 0; nworker < workercheckpointstores.length; nworker++)
+	    {
+		workercheckpointstores[nworker] = new CheckpointAlphaStore(nmaxtime);
+	    }
+
+	    int nsegmentsize = workercheckpointstores[0].nsegmentsize;
+	    double dfullmb = 8.0*nmaxtime*(numstates+1)/(1024*1024);
+	    double dcheckpointmb = 8.0*((nmaxtime + nsegmentsize - 1)/nsegmentsize+nsegmentsize)*numstates/(1024*1024)+8.0*nsegmentsize/(1024*1024);
+	    System.out.println("Storing forward values every "+nsegmentsize+" positions using "+
+			       String.format(Locale.ENGLISH, "%.1f", dcheckpointmb)+" MB per thread instead of "+String.format(Locale.ENGLISH, "%.1f", dfullmb)+" MB");
+	}
+    }
+
+    /**
+     * Returns the store for the forward values of the sequence a task of this model is processing on theWorker
+     */
+    AlphaStore getAlphaStore(TrainingPool.Worker theWorker)
+    {
+	if (workercheckpointstores != null)
+	{
+	    return workercheckpointstores[theWorker.nworker];
+	}
+	return theWorker.alphastore;
+    }
+
+    /**
+     * Returns a one line summary of the forward positions recomputed by the workers' checkpointed stores since the last call,
+     * adds them to the totals for the run, and resets the counts
+     */
+    String getRecomputeSummary(TrainingPool theTrainingPool)
+    {
+	long nforward = 0;
+	long nrecomputed = 0;
+	long lrecomputenanos = 0;
+	for (int nworker = 0; nworker < workercheckpointstores.length; nworker++)
+	{
+	    CheckpointAlphaStore theStore = workercheckpointstores[nworker];
+	    nforward += theStore.nforward;
+	    nrecomputed += theStore.nrecomputed;
+	    lrecomputenanos += theStore.lrecomputenanos;
+	    theStore.nforward = 0;
+	    theStore.nrecomputed = 0;
+	    theStore.lrecomputenanos = 0;
+	}
+	ntotalforward += nforward;
+	ntotalrecomputed += nrecomputed;
+	ltotalrecomputenanos += lrecomputenanos;
+
+	return formatRecompute(nforward, nrecomputed, lrecomputenanos);
+    }
+
+    /**
+     * Formats counts of forward positions computed and recomputed
+     */
+    String formatRecompute(long nforward, long nrecomputed, long lrecomputenanos)
+    {
+	double dpercent = 0;
+	if (nforward > 0)
+	{
+	    dpercent = 100.0*nrecomputed/nforward;
+	}
+	return String.format(Locale.ENGLISH, "recomputed %d forward positions (%.1f%% of the %d in the forward pass) in %.3f secs of worker time",
+			     nrecomputed, dpercent, nforward, lrecomputenanos/1e9);
+    }
+
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Copies the current transition probabilities into the compressed sparse row and column transitions, first rebuilding
+     * their structure from transitionprobsindex and transitionprobsindexCol if transitions were eliminated since the last call.
+     * Must be called whenever transitionprobs changes before the forward-backward computations use the compressed transitions.
+     */
+    void updateCompressedTransitions()
+    {
+	if (ncompressedtransitionversion != ntransitionstructureversion)
+	{
+	    int nnonzero = 0;
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		nnonzero += transitionprobsnum[ni];
+	    }
+
+	    if ((transitionprobsrowstart == null)||(transitionprobsrowindex.length != nnonzero))
+	    {
+		transitionprobsrowstart = new int[numstates+1];
+		transitionprobsrowindex = new int[nnonzero];
+		transitionprobsrowvalues = new double[nnonzero];
+		transitionprobscolstart = new int[numstates+1];
+		transitionprobscolindex = new int[nnonzero];
+		transitionprobscolvalues = new double[nnonzero];
+	    }
+
+	    int nk = 0;
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		transitionprobsrowstart[ni] = nk;
+		int[] transitionprobsindex_ni = transitionprobsindex[ni];
+		for (int nj = 0; nj < transitionprobsnum[ni]; nj++)
+		{
+		    transitionprobsrowindex[nk] = transitionprobsindex_ni[nj];
+		    nk++;
+		}
+	    }
+	    transitionprobsrowstart[numstates] = nk;
+
+	    nk = 0;
+	    for (int nj = 0; nj < numstates; nj++)
+	    {
+		transitionprobscolstart[nj] = nk;
+		int[] transitionprobsindexCol_nj = transitionprobsindexCol[nj];
+		for (int ni = 0; ni < transitionprobsnumCol[nj]; ni++)
+		{
+		    transitionprobscolindex[nk] = transitionprobsindexCol_nj[ni];
+		    nk++;
+		}
+	    }
+	    transitionprobscolstart[numstates] = nk;
+
+	    ncompressedtransitionversion = ntransitionstructureversion;
+	}
+
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    double[] transitionprobs_ni = transitionprobs[ni];
+	    for (int nk = transitionprobsrowstart[ni]; nk < transitionprobsrowstart[ni+1]; nk++)
+	    {
+		transitionprobsrowvalues[nk] = transitionprobs_ni[transitionprobsrowindex[nk]];
+	    }
+	}
+
+	for (int nj = 0; nj < numstates; nj++)
+	{
+	    for (int nk = transitionprobscolstart[nj]; nk < transitionprobscolstart[nj+1]; nk++)
+	    {
+		transitionprobscolvalues[nk] = transitionprobs[transitionprobscolindex[nk]][nj];
+	    }
+	}
+    }
+
+    /**
+     * Returns the number of non-eliminated transitions into or out of a state below which the compressed sparse
+     * transitions are used instead of the dense loop. This is the fixed ratio SPARSECUTOFFRATIO of the number of states
+     * unless bcalibratesparse is set, in which case it is measured on this machine the first time it is needed.
+     * The choice can change the results in the last bits since the dense loop also adds the zero products and the
+     * dot kernel may add the products in a different order, so a measured cutoff is not reproducible between runs.
+     */
+    int getSparseCutoff()
+    {
+	if ((ncalibratedsparsecutoff < 0)&&(!bcalibratesparse))
+	{
+	    ncalibratedsparsecutoff = (int) (numstates * ChromHMM.SPARSECUTOFFRATIO);
+	}
+	else if (ncalibratedsparsecutoff < 0)
+	{
+	    long lstart = System.nanoTime();
+	    ncalibratedsparsecutoff = calibrateSparseCutoff();
+	    //printed always since the value measured can change the results
+	    System.out.println("Sparse transition cutoff measured as "+ncalibratedsparsecutoff+" of "+numstates+" states (fixed ratio gives "
+			       +((int) (numstates * ChromHMM.SPARSECUTOFFRATIO))+") in "
+			       +String.format(Locale.ENGLISH, "%.3f", (System.nanoTime()-lstart)/1e9)+" secs");
+	}
+	return ncalibratedsparsecutoff;
+    }
+
+    /**
+     * Times the compressed sparse loop over an increasing number of transitions against the dense loop over all states
+     * and returns the smallest number of transitions for which the sparse loop is not faster, or numstates+1 if it always is
+     */
+    int calibrateSparseCutoff()
+    {
+	//fixed seed so the indices visited are the same on every run
+	Random theCalibrationRandom = new Random(numstates);
+	double[] dvalues = new double[numstates];
+	double[] dvector = new double[numstates];
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    dvalues[ni] = theCalibrationRandom.nextDouble();
+	    dvector[ni] = theCalibrationRandom.nextDouble();
+	}
+
+	//the state indices in random order, the first n sorted are the transitions of a row with n transitions
+	int[] npermutation = new int[numstates];
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    npermutation[ni] = ni;
+	}
+	for (int ni = numstates - 1; ni > 0; ni--)
+	{
+	    int nswap = theCalibrationRandom.nextInt(ni+1);
+	    int ntemp = npermutation[ni];
+	    npermutation[ni] = npermutation[nswap];
+	    npermutation[nswap] = ntemp;
+	}
+
+	int nrepeats = Math.max(1000, 200000/numstates);
+	int[] nindex = new int[numstates];
+	System.arraycopy(npermutation, 0, nindex, 0, numstates);
+	Arrays.sort(nindex);
+
+	//warms up both loops so they are compiled before being timed
+	for (int ntrial = 0; ntrial < 20; ntrial++)
+	{
+	    timeDenseLoop(dvalues, dvector, nrepeats);
+	    timeSparseLoop(dvalues, nindex, numstates, dvector, nrepeats);
+	}
+
+	long ldense = Long.MAX_VALUE;
+	for (int ntrial = 0; ntrial < CALIBRATIONTRIALS; ntrial++)
+	{
+	    ldense = Math.min(ldense, timeDenseLoop(dvalues, dvector, nrepeats));
+	}
+
+	for (int nnonzero = 1; nnonzero <= numstates; nnonzero++)
+	{
+	    System.arraycopy(npermutation, 0, nindex, 0, nnonzero);
+	    Arrays.sort(nindex, 0, nnonzero);
+
+	    long lsparse = Long.MAX_VALUE;
+	    for (int ntrial = 0; ntrial < CALIBRATIONTRIALS; ntrial++)
+	    {
+		lsparse = Math.min(lsparse, timeSparseLoop(dvalues, nindex, nnonzero, dvector, nrepeats));
+	    }
+
+	    if (lsparse >= ldense)
+	    {
+		return nnonzero;
+	    }
+	}
+
+	return numstates+1;
+    }
+
+    /**
+     * Returns the nanoseconds taken to compute nrepeats times the dense dot product of dvalues and dvector
+     */
+    private long timeDenseLoop(double[] dvalues, double[] dvector, int nrepeats)
+    {
+	long lstart = System.nanoTime();
+	double dsum = 0;
+	for (int nrepeat = 0; nrepeat < nrepeats; nrepeat++)
+	{
+	    dsum += theDotKernel.dot(dvalues, dvector, numstates);
+	}
+	long lend = System.nanoTime();
+	dcalibrationsink += dsum;
+	return lend - lstart;
+    }
+
+    /**
+     * Returns the nanoseconds taken to compute nrepeats times the sum of dvalues[nk]*dvector[nindex[nk]] over the first nnonzero entries
+     */
+    private long timeSparseLoop(double[] dvalues, int[] nindex, int nnonzero, double[] dvector, int nrepeats)
+    {
+	long lstart = System.nanoTime();
+	double dsum = 0;
+	for (int nrepeat = 0; nrepeat < nrepeats; nrepeat++)
+	{
+	    double dtempsum = 0;
+	    for (int nk = 0; nk < nnonzero; nk++)
+	    {
+		dtempsum += dvalues[nk]*dvector[nindex[nk]];
+	    }
+	    dsum += dtempsum;
+	}
+	long lend = System.nanoTime();
+	dcalibrationsink += dsum;
+	return lend - lstart;
+    }
+
+    /**
+     * Computes in alpha_nt the forward values at the first position of a sequence with emission products
+     * emissionproducts_nobserveindex, rescales them to sum to one, and returns the scaling factor
+     */
+    double forwardInit(double[] alpha_nt, double[] emissionproducts_nobserveindex)
+    {
+	double dscale = 0;
+	for (int ns = 0; ns < numstates; ns++)
+	{
+	    alpha_nt[ns] = probinit[ns] * emissionproducts_nobserveindex[ns];
+	    dscale += alpha_nt[ns];
+	}
+
+	return rescaleAlpha(alpha_nt, emissionproducts_nobserveindex, dscale);
+    }
+
+    /**
+     * Computes in alpha_nt the forward values at a position from the rescaled forward values alpha_ntm1
+     * at the previous position, rescales them to sum to one, and returns the scaling factor.
+     * The arithmetic is the same as the forward step of NewThread.estep.
+     */
+    double forwardStep(double[] alpha_ntm1, double[] alpha_nt, double[] emissionproducts_nobserveindex, 
+                       double[][] coltransitionprobs, int nsparsecutoff)
+    {
+	double dscale = 0;
+	for (int ns = 0; ns < numstates; ns++)
+	{
+	    int transitionprobsnumCol_ns = transitionprobsnumCol[ns];
+	    double[] coltransitionprobs_ns = coltransitionprobs[ns];
+
+	    double dtempsum = 0;
+	    if (transitionprobsnumCol_ns < nsparsecutoff)
+	    {
+		//number of transitions is sparse enough worth going through the extra redirection
+		int ncolend_ns = transitionprobscolstart[ns+1];
+		for (int nk = transitionprobscolstart[ns]; nk < ncolend_ns; nk++)
+		{
+		    dtempsum += transitionprobscolvalues[nk]*alpha_ntm1[transitionprobscolindex[nk]];
+		}
+	    }
+	    else
+	    {
+		dtempsum = theDotKernel.dot(coltransitionprobs_ns, alpha_ntm1, numstates);
+	    }
+	    double dalphaval = dtempsum*emissionproducts_nobserveindex[ns];
+	    alpha_nt[ns] = dalphaval;
+	    dscale += dalphaval;
+	}
+
+	return rescaleAlpha(alpha_nt, emissionproducts_nobserveindex, dscale);
+    }
+
+    /**
+     * Rescales the forward values alpha_nt which sum to dscale so they sum to one and returns the scaling factor used
+     */
+    private double rescaleAlpha(double[] alpha_nt, double[] emissionproducts_nobserveindex, double dscale)
+    {
+	if (bscalebeta)
+	{
+	    if (dscale == 0)
+	    {
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))
+		    {
+			alpha_nt[ns] = EPSILONSTATE;
+			dscale += EPSILONSTATE;
+		    }
+		}
+	    }
+
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		alpha_nt[ns] /= dscale;
+
+		if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))
+		{
+		    alpha_nt[ns] = EPSILONSTATE;
+		}
+	    }
+	}
+	else
+	{
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		alpha_nt[ns] /= dscale;
+	    }
+	}
+
+	return dscale;
+    }
+
+    /**
+     * Stores in tempproductbetaemiss the product of the backward values beta_ntp1 and the emission products
+     * emissionproducts_combo_ntp1 at the next position, rescaled to a maximum of one when emissions are scaled
+     */
+    void productBetaEmission(double[] beta_ntp1, double[] emissionproducts_combo_ntp1, double[] tempproductbetaemiss)
+    {
+	for (int ns = 0; ns < numstates; ns++)
+	{
+	    tempproductbetaemiss[ns] = beta_ntp1[ns]*emissionproducts_combo_ntp1[ns];
+	}
+
+	if (bscaleemissions)
+	{
+	    double dmaxval = 0;
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		if (tempproductbetaemiss[ns] > dmaxval)
+		{
+		    dmaxval = tempproductbetaemiss[ns];
+		}
+	    }
+
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		tempproductbetaemiss[ns] = tempproductbetaemiss[ns]/dmaxval;
+	    }
+	}
+    }
+
+    /**
+     * Computes in beta_nt the backward values at a position from the backward values beta_ntp1 at the next position
+     * and the emission products emissionproducts_combo_ntp1 at the next position. Unlike NewThread.estep the backward
+     * values are rescaled to sum to one at every position instead of by the forward scaling factors, so they do not
+     * depend on the forward pass. The posteriors are unchanged since they are normalized at each position.
+     */
+    void backwardStepNormalized(double[] beta_ntp1, double[] beta_nt, double[] emissionproducts_combo_ntp1,
+				double[] tempproductbetaemiss, int nsparsecutoff)
+    {
+	productBetaEmission(beta_ntp1, emissionproducts_combo_ntp1, tempproductbetaemiss);
+
+	double dsumbeta = 0;
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    double dtempsum = 0;
+	    double[] transitionprobs_ni = transitionprobs[ni];
+	    int transitionprobsnum_ni = transitionprobsnum[ni];
+
+	    if (transitionprobsnum_ni < nsparsecutoff)
+	    {
+		//sparse enought to pay the indirection penalty
+		int nrowend_ni = transitionprobsrowstart[ni+1];
+		for (int nk = transitionprobsrowstart[ni]; nk < nrowend_ni; nk++)
+		{
+		    dtempsum += transitionprobsrowvalues[nk]*tempproductbetaemiss[transitionprobsrowindex[nk]];
+		}
+	    }
+	    else
+	    {
+		dtempsum = theDotKernel.dot(transitionprobs_ni, tempproductbetaemiss, numstates);
+	    }
+	    beta_nt[ni] = dtempsum;
+	    dsumbeta += dtempsum;
+	}
+
+	if (bscalebeta)
+	{
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		beta_nt[ni]/= dsumbeta;
+
+		if (beta_nt[ni] < EPSILONSTATE)
+		{
+		    beta_nt[ni] = EPSILONSTATE;
+		}
+	    }
+	}
+	else if (dsumbeta > 0)
+	{
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		beta_nt[ni]/= dsumbeta;
+	    }
+	}
+    }
+
+    /**
+     * Adds to sxi_block the expected transitions between positions nt and nt+1 given the forward values alpha_nt at nt
+     * and tempproductbetaemiss computed by productBetaEmission for position nt+1. sumforsxi is a buffer.
+     * The arithmetic is the same as in NewThread.estep.
+     */
+    void accumulateTransitions(double[] alpha_nt, double[] tempproductbetaemiss, double[][] sumforsxi, double[][] sxi_block,
+			       int nsparsecutoff, int nsparsecutofflooser)
+    {
+	double dsum = 0;
+
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    double[] sumforsxi_ni = sumforsxi[ni];
+	    int[] transitionprobsindex_ni = transitionprobsindex[ni];
+	    double[] transitionprobs_ni = transitionprobs[ni];
+	    int ntransitionprobsnum_ni = transitionprobsnum[ni];
+	    double dalpha_nt_ni = alpha_nt[ni];
+
+	    if (ntransitionprobsnum_ni < nsparsecutofflooser)
+	    {
+		for (int nj = 0; nj < ntransitionprobsnum_ni; nj++)
+		{
+		    int nmappedindex = transitionprobsindex_ni[nj];
+		    double dtempval = transitionprobs_ni[nmappedindex] *dalpha_nt_ni*tempproductbetaemiss[nmappedindex];
+		    dsum += dtempval;
+		    sumforsxi_ni[nmappedindex] = dtempval;
+		}
+	    }
+	    else
+	    {
+		for (int nj = 0; nj < numstates; nj++)
+		{
+		    double dtempval = transitionprobs_ni[nj]*dalpha_nt_ni*tempproductbetaemiss[nj];
+		    dsum += dtempval;
+		    sumforsxi_ni[nj] = dtempval;
+		}
+	    }
+	}
+
+	if (dsum > 0)
+	{
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		int[] transitionprobsindex_ni = transitionprobsindex[ni];
+		double[] sumforsxi_ni = sumforsxi[ni];
+		double[] sxi_block_ni = sxi_block[ni];
+		int ntransitionprobsnum_ni = transitionprobsnum[ni];
+
+		if (ntransitionprobsnum_ni < nsparsecutoff)
+		{
+		    for (int nj = 0; nj < ntransitionprobsnum_ni; nj++)
+		    {
+			int nmappedindex = transitionprobsindex_ni[nj];
+			sxi_block_ni[nmappedindex] += sumforsxi_ni[nmappedindex]/dsum;
+		    }
+		}
+		else
+		{
+		    for (int nj = 0; nj < numstates; nj++)
+		    {
+			sxi_block_ni[nj] += sumforsxi_ni[nj]/dsum;
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * Resets gammaksum_nseq and adds to it the posteriors in gammaObservedSum of each combination of marks flagged
+     * in traindataObservedSeqFlags_nseq, resetting those entries of gammaObservedSum for the next sequence.
+     * The arithmetic is the same as at the end of NewThread.estep.
+     */
+    void foldObservedSums(double[][] gammaObservedSum, boolean[] traindataObservedSeqFlags_nseq, double[][][] gammaksum_nseq)
+    {
+	for (int ns = 0; ns < gammaksum_nseq.length; ns++)
+	{
+	    double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
+	    for (int nmark = 0; nmark < gammaksum_nseq_ns.length; nmark++)
+	    {
+		for (int nbucket = 0; nbucket < numbuckets; nbucket++)
+		{
+		    gammaksum_nseq_ns[nmark][nbucket] = 0;
+		}
+	    }
+	}
+
+	for (int nindex = 0; nindex < gammaObservedSum.length; nindex++)
+	{
+	    if (traindataObservedSeqFlags_nseq[nindex])
+	    {
+		boolean[] traindataObservedValues_nindex = traindataObservedValues[nindex];
+		boolean[] traindataNotMissing_nindex = traindataNotMissing[nindex];
+		double[] gammaObservedSum_nindex = gammaObservedSum[nindex];
+
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
+		    double gammaObservedSum_nindex_ns = gammaObservedSum_nindex[ns];
+		    for (int nmark = 0; nmark < numdatasets; nmark++)
+		    {
+			if (traindataNotMissing_nindex[nmark])
+			{
+			    if (traindataObservedValues_nindex[nmark])
+			    {
+				gammaksum_nseq_ns[nmark][1] += gammaObservedSum_nindex_ns;
+			    }
+			    else
+			    {
+				gammaksum_nseq_ns[nmark][0] += gammaObservedSum_nindex_ns;
+			    }
+			}
+		    }
+		    //resets for the next sequence
+		    gammaObservedSum_nindex[ns] = 0;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Returns true if the first numstates values of da and db are equal
+     */
+    private boolean sameStateValues(double[] da, double[] db)
+    {
+	for (int ns = 0; ns < numstates; ns++)
+	{
+	    if (da[ns] != db[ns])
+	    {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+
+    /**
+     * Runs the E-step of a single long sequence on all workers of the training pool by splitting the sequence
+     * into blocks of consecutive positions.<br>
+     * The forward and backward passes are first computed on every block in parallel, each block other than the first
+     * (for the forward pass) or the last (for the backward pass) starting from a uniform boundary message instead of the
+     * unknown true one. Each block is then recomputed from the boundary message of its neighbor alongside the values from
+     * the uniform message until the two become equal, after which all remaining values of the block are the ones of the
+     * first pass since they are computed from the same inputs. The recomputation usually stops after a few positions since
+     * the effect of the starting message decays quickly. If the recomputation of a block changes its boundary message, the
+     * neighbor is recomputed again on the coordinating thread. Only the messages at the block boundaries are kept. Once they
+     * are exact each block recomputes its forward and backward values from them into the buffer of one of a few slots,
+     * accumulates its transitions and leaves its posteriors in the slot, and the posteriors are combined in block order
+     * on the coordinating thread as the slots complete so the result does not depend on which worker ran which block.
+     * The memory used is that of a row per block boundary, the slots and a scaling factor per position instead of
+     * the forward and backward values at every position.
+     */
+    class BlockForwardBackward
+    {
+	/**
+	 * The pool whose workers compute the blocks
+	 */
+	TrainingPool theTrainingPool;
+
+	/**
+	 * The number of positions in each block
+	 */
+	int nblocksize;
+
+	/**
+	 * The forward values at the last position of each block after the first pass from the uniform message, after the
+	 * recomputation in parallel from the first pass of the previous block, and once exact
+	 */
+	FlatRows alphafirst;
+	FlatRows alphafixed;
+	FlatRows alphaend;
+
+	/**
+	 * The backward values rescaled to sum to one at the first position of each block after the first pass from the
+	 * uniform message, after the recomputation in parallel from the first pass of the next block, and once exact
+	 */
+	FlatRows betafirst;
+	FlatRows betafixed;
+	FlatRows betastart;
+
+	/**
+	 * The backward values and then the posteriors at each position of the blocks currently held by each slot
+	 */
+	FlatRows[] slotrows;
+
+	/**
+	 * The forward scaling factor at each position
+	 */
+	double[] scale;
+
+	/**
+	 * Stores the sum of the posteriors for each combination of marks
+	 */
+	double[][] gammaObservedSum;
+
+	/**
+	 * The expected transitions accumulated in each block
+	 */
+	double[][][] sxiblock = new double[0][][];
+
+	/**
+	 * The message of 1/numstates for every state that starts the first pass of the blocks
+	 */
+	double[] uniform;
+
+	/**
+	 * The rows on which each worker computes its blocks, and those used by the recomputations done on the coordinating thread,
+	 * the last two of which hold the boundary messages
+	 */
+	double[][][] workerrows;
+	double[][] coordinatorrows;
+	double[] tempproductbetaemiss;
+
+	//the sequence currently being processed
+	int[] traindataObservedIndex_nseq;
+	int numtime_nseq;
+	int numblocks;
+	double[][] emissionproducts;
+	double[][] coltransitionprobs;
+	int nsparsecutoff;
+	int nsparsecutofflooser;
+
+	/**
+	 * The outstanding block tasks
+	 */
+	ArrayList alfutures = new ArrayList();
+
+	BlockForwardBackward(TrainingPool theTrainingPool, int nblocksize, int nmaxtime, int numcombos)
+	{
+	    this.theTrainingPool = theTrainingPool;
+	    this.nblocksize = nblocksize;
+
+	    int nmaxblocks = (nmaxtime + nblocksize - 1)/nblocksize;
+	    alphafirst = new FlatRows(nmaxblocks, false);
+	    alphafixed = new FlatRows(nmaxblocks, false);
+	    alphaend = new FlatRows(nmaxblocks, false);
+	    betafirst = new FlatRows(nmaxblocks, false);
+	    betafixed = new FlatRows(nmaxblocks, false);
+	    betastart = new FlatRows(nmaxblocks, false);
+
+	    //a few more slots than workers so the workers are not kept waiting while the coordinator combines a slot
+	    slotrows = new FlatRows[Math.min(nmaxblocks, 2*theTrainingPool.numworkers)];
+	    for (int nslot = 0; nslot < slotrows.length; nslot++)
+	    {
+		slotrows[nslot] = new FlatRows(nblocksize, false);
+	    }
+
+	    scale = new double[nmaxtime];
+	    gammaObservedSum = new double[numcombos][numstates];
+	    uniform = new double[numstates];
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		uniform[ns] = 1.0/numstates;
+	    }
+	    workerrows = new double[theTrainingPool.numworkers][4][numstates];
+	    coordinatorrows = new double[6][numstates];
+	    tempproductbetaemiss = new double[numstates];
+
+	    double dfullmb = 8.0*nmaxtime*(2*numstates+1)/(1024*1024);
+	    double dblockmb = 8.0*(6*nmaxblocks+slotrows.length*nblocksize)*numstates/(1024*1024)+8.0*nmaxtime/(1024*1024);
+	    System.out.println("Splitting sequences of at least "+(2*nblocksize)+" positions into blocks using "+
+			       String.format(Locale.ENGLISH, "%.1f", dblockmb)+" MB instead of "+String.format(Locale.ENGLISH, "%.1f", dfullmb)+" MB");
+	}
+
+	/**
+	 * Returns true if a sequence with numtime_nseq positions is long enough to be split into blocks
+	 */
+	boolean isLong(int numtime_nseq)
+	{
+	    return numtime_nseq >= 2*nblocksize;
+	}
+
+	/**
+	 * Runs the E-step on a sequence storing the sufficient statistics in the same way as NewThread.estep
+	 * and returns the log-likelihood of the sequence
+	 */
+	double estep(int[] traindataObservedIndex_nseq, boolean[] traindataObservedSeqFlags_nseq, int numtime_nseq,
+		     double[][] emissionproducts, double[] emissionproducts_scale, double[][] coltransitionprobs,
+		     int nsparsecutoff, int nsparsecutofflooser,
+		     double[][][] gammaksum_nseq, double[][] sxi_nseq, double[] gammainitstore_nseq) throws IOException
+	{
+	    this.traindataObservedIndex_nseq = traindataObservedIndex_nseq;
+	    this.numtime_nseq = numtime_nseq;
+	    this.emissionproducts = emissionproducts;
+	    this.coltransitionprobs = coltransitionprobs;
+	    this.nsparsecutoff = nsparsecutoff;
+	    this.nsparsecutofflooser = nsparsecutofflooser;
+
+	    numblocks = (numtime_nseq + nblocksize - 1)/nblocksize;
+	    if (sxiblock.length < numblocks)
+	    {
+		sxiblock = new double[numblocks][numstates][numstates];
+	    }
+
+	    //first pass over all blocks in both directions
+	    for (int nblock = 0; nblock < numblocks; nblock++)
+	    {
+		submitBlock(BlockTask.FIRSTPASS, nblock, -1);
+	    }
+	    waitForBlocks();
+
+	    //recomputes each block from the boundary messages of the first pass
+	    for (int nblock = 0; nblock < numblocks; nblock++)
+	    {
+		submitBlock(BlockTask.FIXUP, nblock, -1);
+	    }
+	    waitForBlocks();
+
+	    //a block whose neighbor's boundary message changed during the recomputation is recomputed again, in order
+	    //since the change can propagate through a block
+	    double[] dnew = coordinatorrows[4];
+	    double[] dold = coordinatorrows[5];
+	    alphafixed.load(0, dnew);
+	    alphaend.store(0, dnew);
+	    for (int nblock = 1; nblock < numblocks; nblock++)
+	    {
+		alphaend.load(nblock-1, dnew);
+		alphafirst.load(nblock-1, dold);
+		if (sameStateValues(dnew, dold))
+		{
+		    alphafixed.load(nblock, dnew);
+		}
+		else
+		{
+		    fixForward(nblock, dnew, dold, alphafixed, coordinatorrows);
+		}
+		alphaend.store(nblock, dnew);
+	    }
+
+	    betafixed.load(numblocks-1, dnew);
+	    betastart.store(numblocks-1, dnew);
+	    for (int nblock = numblocks - 2; nblock >= 0; nblock--)
+	    {
+		betastart.load(nblock+1, dnew);
+		betafirst.load(nblock+1, dold);
+		if (sameStateValues(dnew, dold))
+		{
+		    betafixed.load(nblock, dnew);
+		}
+		else
+		{
+		    fixBackward(nblock, dnew, dold, betafixed, coordinatorrows, tempproductbetaemiss);
+		}
+		betastart.store(nblock, dnew);
+	    }
+
+	    //accumulates the transitions and posteriors of the blocks from the last one, each slot taking the next block once
+	    //its posteriors have been added to the sums in the same order as NewThread.estep
+	    int numslots = Math.min(numblocks, slotrows.length);
+	    Future[] slotfutures = new Future[numslots];
+	    for (int nslot = 0; nslot < numslots; nslot++)
+	    {
+		slotfutures[nslot] = theTrainingPool.submitTask(new BlockTask(BlockTask.POSTERIOR, numblocks-1-nslot, nslot));
+	    }
+
+	    double[] gamma_nt = coordinatorrows[0];
+	    for (int nindex = 0; nindex < numblocks; nindex++)
+	    {
+		int nblock = numblocks-1-nindex;
+		int nslot = nindex % numslots;
+		alfutures.add(slotfutures[nslot]);
+		waitForBlocks();
+
+		int nstart = blockStart(nblock);
+		FlatRows gamma = slotrows[nslot];
+		for (int nt = blockEnd(nblock); nt >= nstart; nt--)
+		{
+		    gamma.load(nt-nstart, gamma_nt);
+		    double[] gammaObservedSum_combo_nt = gammaObservedSum[traindataObservedIndex_nseq[nt]];
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+			gammaObservedSum_combo_nt[ns] += gamma_nt[ns];
+		    }
+		}
+
+		if (nblock == 0)
+		{
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+			gammainitstore_nseq[ns] = gamma_nt[ns];
+		    }
+		}
+
+		if (nindex + numslots < numblocks)
+		{
+		    slotfutures[nslot] = theTrainingPool.submitTask(new BlockTask(BlockTask.POSTERIOR, nblock-numslots, nslot));
+		}
+	    }
+
+	    //combines the blocks in order
+	    double dloglikeseq = 0;
+	    for (int nt = 0; nt < numtime_nseq; nt++)
+	    {
+		dloglikeseq += Math.log(scale[nt]);
+		if (bscaleemissions)
+		{
+		    dloglikeseq += emissionproducts_scale[traindataObservedIndex_nseq[nt]];
+		}
+	    }
+
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		double[] sxi_nseq_ni = sxi_nseq[ni];
+		for (int nj = 0; nj < numstates; nj++)
+		{
+		    sxi_nseq_ni[nj] = 0;
+		}
+	    }
+
+	    for (int nblock = 0; nblock < numblocks; nblock++)
+	    {
+		double[][] sxiblock_nblock = sxiblock[nblock];
+		for (int ni = 0; ni < numstates; ni++)
+		{
+		    double[] sxi_nseq_ni = sxi_nseq[ni];
+		    double[] sxiblock_nblock_ni = sxiblock_nblock[ni];
+		    for (int nj = 0; nj < numstates; nj++)
+		    {
+			sxi_nseq_ni[nj] += sxiblock_nblock_ni[nj];
+		    }
+		}
+	    }
+
+	    foldObservedSums(gammaObservedSum, traindataObservedSeqFlags_nseq, gammaksum_nseq);
+
+	    return dloglikeseq;
+	}
+
+	/**
+	 * Returns the first position of block nblock
+	 */
+	int blockStart(int nblock)
+	{
+	    return nblock*nblocksize;
+	}
+
+	/**
+	 * Returns the last position of block nblock
+	 */
+	int blockEnd(int nblock)
+	{
+	    return Math.min(numtime_nseq, (nblock+1)*nblocksize) - 1;
+	}
+
+	void submitBlock(int nphase, int nblock, int nslot)
+	{
+	    alfutures.add(theTrainingPool.submitTask(new BlockTask(nphase, nblock, nslot)));
+	}
+
+	void waitForBlocks() throws IOException
+	{
+	    TrainingPool.waitFor(alfutures);
+	}
+
+	/**
+	 * Computes the forward values of block nblock starting from the true initial values for the first block
+	 * and from a uniform message otherwise, and stores those at its last position in alphafirst
+	 */
+	void firstPassForward(int nblock, double[][] rows)
+	{
+	    int nstart = blockStart(nblock);
+	    int nend = blockEnd(nblock);
+	    int nt = nstart;
+
+	    if (nblock == 0)
+	    {
+		forwardInit(rows[0], emissionproducts[traindataObservedIndex_nseq[0]]);
+	    }
+	    else
+	    {
+		forwardStep(uniform, rows[0], emissionproducts[traindataObservedIndex_nseq[nt]], coltransitionprobs, nsparsecutoff);
+	    }
+
+	    for (nt++; nt <= nend; nt++)
+	    {
+		forwardStep(rows[(nt-1-nstart)&1], rows[(nt-nstart)&1], emissionproducts[traindataObservedIndex_nseq[nt]], coltransitionprobs, nsparsecutoff);
+	    }
+	    alphafirst.store(nblock, rows[(nend-nstart)&1]);
+	}
+
+	/**
+	 * Computes the backward values of block nblock starting from the true final values for the last block
+	 * and from a uniform message otherwise, and stores those at its first position in betafirst
+	 */
+	void firstPassBackward(int nblock, double[][] rows, double[] tempproductbetaemiss)
+	{
+	    int nstart = blockStart(nblock);
+	    int nend = blockEnd(nblock);
+	    int nt = nend;
+
+	    if (nblock == numblocks - 1)
+	    {
+		System.arraycopy(uniform, 0, rows[0], 0, numstates);
+	    }
+	    else
+	    {
+		backwardStepNormalized(uniform, rows[0], emissionproducts[traindataObservedIndex_nseq[nt+1]], tempproductbetaemiss, nsparsecutoff);
+	    }
+
+	    for (nt--; nt >= nstart; nt--)
+	    {
+		backwardStepNormalized(rows[(nend-nt-1)&1], rows[(nend-nt)&1], emissionproducts[traindataObservedIndex_nseq[nt+1]],
+				       tempproductbetaemiss, nsparsecutoff);
+	    }
+	    betafirst.store(nblock, rows[(nend-nstart)&1]);
+	}
+
+	/**
+	 * Recomputes the forward values of block nblock from the forward values dnew at the last position of the previous
+	 * block alongside those from dold until they agree, and leaves in dnew the forward values at the last position of the
+	 * block, which are those stored in endrows if they agreed. dnew, dold and the four rows are overwritten.
+	 */
+	void fixForward(int nblock, double[] dnew, double[] dold, FlatRows endrows, double[][] rows)
+	{
+	    int nstart = blockStart(nblock);
+	    int nend = blockEnd(nblock);
+	    double[] alpha_ntm1 = dnew;
+	    double[] alphaold_ntm1 = dold;
+
+	    for (int nt = nstart; nt <= nend; nt++)
+	    {
+		double[] alpha_nt = rows[(nt-nstart)&1];
+		double[] alphaold_nt = rows[2+((nt-nstart)&1)];
+		double[] emissionproducts_nt = emissionproducts[traindataObservedIndex_nseq[nt]];
+		forwardStep(alpha_ntm1, alpha_nt, emissionproducts_nt, coltransitionprobs, nsparsecutoff);
+		forwardStep(alphaold_ntm1, alphaold_nt, emissionproducts_nt, coltransitionprobs, nsparsecutoff);
+		if (sameStateValues(alpha_nt, alphaold_nt))
+		{
+		    endrows.load(nblock, dnew);
+		    return;
+		}
+		alpha_ntm1 = alpha_nt;
+		alphaold_ntm1 = alphaold_nt;
+	    }
+	    System.arraycopy(alpha_ntm1, 0, dnew, 0, numstates);
+	}
+
+	/**
+	 * Recomputes the backward values of block nblock from the backward values dnew at the first position of the next
+	 * block alongside those from dold until they agree, and leaves in dnew the backward values at the first position of the
+	 * block, which are those stored in startrows if they agreed. dnew, dold and the four rows are overwritten.
+	 */
+	void fixBackward(int nblock, double[] dnew, double[] dold, FlatRows startrows, double[][] rows, double[] tempproductbetaemiss)
+	{
+	    int nstart = blockStart(nblock);
+	    int nend = blockEnd(nblock);
+	    double[] beta_ntp1 = dnew;
+	    double[] betaold_ntp1 = dold;
+
+	    for (int nt = nend; nt >= nstart; nt--)
+	    {
+		double[] beta_nt = rows[(nend-nt)&1];
+		double[] betaold_nt = rows[2+((nend-nt)&1)];
+		double[] emissionproducts_ntp1 = emissionproducts[traindataObservedIndex_nseq[nt+1]];
+		backwardStepNormalized(beta_ntp1, beta_nt, emissionproducts_ntp1, tempproductbetaemiss, nsparsecutoff);
+		backwardStepNormalized(betaold_ntp1, betaold_nt, emissionproducts_ntp1, tempproductbetaemiss, nsparsecutoff);
+		if (sameStateValues(beta_nt, betaold_nt))
+		{
+		    startrows.load(nblock, dnew);
+		    return;
+		}
+		beta_ntp1 = beta_nt;
+		betaold_ntp1 = betaold_nt;
+	    }
+	    System.arraycopy(beta_ntp1, 0, dnew, 0, numstates);
+	}
+
+	/**
+	 * Recomputes the forward and backward values of block nblock from the exact boundary messages, storing the forward
+	 * scaling factors, accumulates the expected transitions of the block in sxiblock and leaves its posteriors in slot nslot
+	 */
+	void posteriors(int nblock, int nslot, double[][] rows, double[] tempproductbetaemiss, double[][] sumforsxi)
+	{
+	    int nstart = blockStart(nblock);
+	    int nend = blockEnd(nblock);
+	    FlatRows slot = slotrows[nslot];
+
+	    //the backward values of the block are stored in the slot
+	    double[] beta_ntp1 = rows[2];
+	    double[] beta_nt = rows[3];
+	    if (nblock == numblocks - 1)
+	    {
+		System.arraycopy(uniform, 0, beta_nt, 0, numstates);
+	    }
+	    else
+	    {
+		betastart.load(nblock+1, beta_ntp1);
+		backwardStepNormalized(beta_ntp1, beta_nt, emissionproducts[traindataObservedIndex_nseq[nend+1]], tempproductbetaemiss, nsparsecutoff);
+	    }
+	    slot.store(nend-nstart, beta_nt);
+
+	    for (int nt = nend - 1; nt >= nstart; nt--)
+	    {
+		double[] beta_temp = beta_ntp1;
+		beta_ntp1 = beta_nt;
+		beta_nt = beta_temp;
+		backwardStepNormalized(beta_ntp1, beta_nt, emissionproducts[traindataObservedIndex_nseq[nt+1]], tempproductbetaemiss, nsparsecutoff);
+		slot.store(nt-nstart, beta_nt);
+	    }
+
+	    double[][] sxi_block = sxiblock[nblock];
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		double[] sxi_block_ni = sxi_block[ni];
+		for (int nj = 0; nj < numstates; nj++)
+		{
+		    sxi_block_ni[nj] = 0;
+		}
+	    }
+
+	    //the forward values are recomputed on two alternating rows and the posteriors replace the backward values in the slot
+	    beta_ntp1 = rows[2];
+	    beta_nt = rows[3];
+	    for (int nt = nstart; nt <= nend; nt++)
+	    {
+		double[] alpha_nt = rows[(nt-nstart)&1];
+		if (nt == 0)
+		{
+		    scale[nt] = forwardInit(alpha_nt, emissionproducts[traindataObservedIndex_nseq[0]]);
+		}
+		else if (nt == nstart)
+		{
+		    alphaend.load(nblock-1, beta_ntp1);
+		    scale[nt] = forwardStep(beta_ntp1, alpha_nt, emissionproducts[traindataObservedIndex_nseq[nt]], coltransitionprobs, nsparsecutoff);
+		}
+		else
+		{
+		    scale[nt] = forwardStep(rows[(nt-1-nstart)&1], alpha_nt, emissionproducts[traindataObservedIndex_nseq[nt]], coltransitionprobs, nsparsecutoff);
+		}
+
+		if (nt < numtime_nseq - 1)
+		{
+		    if (nt < nend)
+		    {
+			slot.load(nt+1-nstart, beta_ntp1);
+		    }
+		    else
+		    {
+			betastart.load(nblock+1, beta_ntp1);
+		    }
+		    productBetaEmission(beta_ntp1, emissionproducts[traindataObservedIndex_nseq[nt+1]], tempproductbetaemiss);
+		    accumulateTransitions(alpha_nt, tempproductbetaemiss, sumforsxi, sxi_block, nsparsecutoff, nsparsecutofflooser);
+		}
+
+		slot.load(nt-nstart, beta_nt);
+		double ddenom = 0;
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    double dval = alpha_nt[ns]*beta_nt[ns];
+		    ddenom += dval;
+		    beta_nt[ns] = dval;
+		}
+
+		if (ddenom > 0)
+		{
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+			beta_nt[ns] /= ddenom;
+		    }
+		}
+		slot.store(nt-nstart, beta_nt);
+	    }
+	}
+
+	/**
+	 * Task that runs one phase of the computation on one block
+	 */
+	class BlockTask implements Runnable
+	{
+	    static final int FIRSTPASS = 0;
+	    static final int FIXUP = 1;
+	    static final int POSTERIOR = 2;
+
+	    int nphase;
+	    int nblock;
+	    int nslot;
+	    long lsubmittime;
+
+	    BlockTask(int nphase, int nblock, int nslot)
+	    {
+		this.nphase = nphase;
+		this.nblock = nblock;
+		this.nslot = nslot;
+		this.lsubmittime = System.nanoTime();
+	    }
+
+	    public void run()
+	    {
+		TrainingPool.Worker theWorker = TrainingPool.currentWorker();
+		long lstarttime = System.nanoTime();
+		double[][] rows = workerrows[theWorker.nworker];
+
+		if (nphase == FIRSTPASS)
+		{
+		    firstPassForward(nblock, rows);
+		    firstPassBackward(nblock, rows, theWorker.tempproductbetaemiss);
+		}
+		else if (nphase == FIXUP)
+		{
+		    //starts from the boundary messages of the first pass since the neighbors are being recomputed concurrently
+		    if (nblock > 0)
+		    {
+			alphafirst.load(nblock-1, theWorker.gamma_nt);
+			System.arraycopy(uniform, 0, theWorker.beta_nt, 0, numstates);
+			fixForward(nblock, theWorker.gamma_nt, theWorker.beta_nt, alphafirst, rows);
+			alphafixed.store(nblock, theWorker.gamma_nt);
+		    }
+		    else
+		    {
+			alphafirst.load(nblock, theWorker.gamma_nt);
+			alphafixed.store(nblock, theWorker.gamma_nt);
+		    }
+
+		    if (nblock < numblocks - 1)
+		    {
+			betafirst.load(nblock+1, theWorker.gamma_nt);
+			System.arraycopy(uniform, 0, theWorker.beta_nt, 0, numstates);
+			fixBackward(nblock, theWorker.gamma_nt, theWorker.beta_nt, betafirst, rows, theWorker.tempproductbetaemiss);
+			betafixed.store(nblock, theWorker.gamma_nt);
+		    }
+		    else
+		    {
+			betafirst.load(nblock, theWorker.gamma_nt);
+			betafixed.store(nblock, theWorker.gamma_nt);
+		    }
+		}
+		else
+		{
+		    posteriors(nblock, nslot, rows, theWorker.tempproductbetaemiss, theWorker.sumforsxi);
+		}
+
+		theWorker.recordTask(lstarttime-lsubmittime, System.nanoTime()-lstarttime);
+	    }
+	}
+    }
+
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the shortest run of positions with the same combination of marks worth compressing with numstates states.
+     * Going through a run of length r one position at a time takes about 3 r K^2 operations for the forward values, backward
+     * values and expected transitions, while compressing it takes about 5 K^3 log2(r) operations for the matrix products.
+     */
+    static int minCompressedRunLength(int numstates)
+    {
+	int nrunlength = 2;
+	while (3.0*nrunlength <= 5.0*numstates*Math.log(nrunlength)/Math.log(2))
+	{
+	    nrunlength++;
+	}
+	return nrunlength;
+    }
+
+    /**
+     * Returns the number of consecutive positions starting at nt that have the same combination of marks as nt
+     */
+    static int runLength(int[] traindataObservedIndex_nseq, int numtime_nseq, int nt)
+    {
+	int ncombo = traindataObservedIndex_nseq[nt];
+	int nend = nt + 1;
+	while ((nend < numtime_nseq)&&(traindataObservedIndex_nseq[nend] == ncombo))
+	{
+	    nend++;
+	}
+	return nend - nt;
+    }
+
+    /**
+     * Stores in dc the product of the square matrices da and db, which must not be dc
+     */
+    static void multiplyMatrices(double[][] da, double[][] db, double[][] dc)
+    {
+	int numrows = da.length;
+	for (int ni = 0; ni < numrows; ni++)
+	{
+	    double[] da_ni = da[ni];
+	    double[] dc_ni = dc[ni];
+	    for (int nj = 0; nj < numrows; nj++)
+	    {
+		dc_ni[nj] = 0;
+	    }
+
+	    for (int nk = 0; nk < numrows; nk++)
+	    {
+		double dval = da_ni[nk];
+		if (dval != 0)
+		{
+		    double[] db_nk = db[nk];
+		    for (int nj = 0; nj < numrows; nj++)
+		    {
+			dc_ni[nj] += dval*db_nk[nj];
+		    }
+		}
+	    }
+	}
+    }
+
+    /**
+     * Divides the non-negative matrix da by its largest entry and returns the log of that entry
+     */
+    static double rescaleMatrix(double[][] da)
+    {
+	double dmax = 0;
+	for (int ni = 0; ni < da.length; ni++)
+	{
+	    double[] da_ni = da[ni];
+	    for (int nj = 0; nj < da_ni.length; nj++)
+	    {
+		if (da_ni[nj] > dmax)
+		{
+		    dmax = da_ni[nj];
+		}
+	    }
+	}
+
+	if (dmax > 0)
+	{
+	    for (int ni = 0; ni < da.length; ni++)
+	    {
+		double[] da_ni = da[ni];
+		for (int nj = 0; nj < da_ni.length; nj++)
+		{
+		    da_ni[nj] /= dmax;
+		}
+	    }
+	}
+	return Math.log(dmax);
+    }
+
+
+    /**
+     * Powers of the emission scaled transition matrices used to compress runs of positions with the same combination of marks.
+     * For a combination of marks c the matrix M_c has entry M_c[j][i] = A[i][j] e_c[j], where A is the transition matrix
+     * and e_c the emission products of c, so the forward values after a run of r positions with c are M_c^r times
+     * the forward values before the run. For each combination of marks in a run long enough to be compressed the
+     * matrices M_c^(2^k) are stored divided by their largest entry, with the log of the divisor, for every k
+     * up to the log2 of the longest such run. The powers are recomputed from the current parameters before each E-step
+     * and are only read by the workers.
+     */
+    class RunLengthPowers
+    {
+	/**
+	 * The shortest run that is compressed
+	 */
+	int nmincompress;
+
+	/**
+	 * For each combination of marks the highest power of two stored, -1 if it is never in a compressed run
+	 */
+	int[] nmaxlevel;
+
+	/**
+	 * For each combination of marks and k, M_c^(2^k) divided by its largest entry
+	 */
+	double[][][][] powers;
+
+	/**
+	 * For each combination of marks and k, the log of the divisor of powers[c][k]
+	 */
+	double[][] logpowerscale;
+
+	/**
+	 * The largest number of compressed runs and single positions in any sequence
+	 */
+	int nmaxnodes;
+
+	/**
+	 * The number of compressed runs, the positions they cover, and all positions in the training sequences
+	 */
+	long ncompressedruns;
+	long ncompressedpositions;
+	long ntotalpositions;
+
+	/**
+	 * Finds the runs to compress in the sequences of traindataObservedIndex with numcombos combinations of marks
+	 */
+	RunLengthPowers(int[][] traindataObservedIndex, int numcombos)
+	{
+	    nmincompress = minCompressedRunLength(numstates);
+	    nmaxlevel = new int[numcombos];
+	    for (int ncombo = 0; ncombo < numcombos; ncombo++)
+	    {
+		nmaxlevel[ncombo] = -1;
+	    }
+
+	    for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
+	    {
+		int[] traindataObservedIndex_nseq = traindataObservedIndex[nseq];
+		int numtime_nseq = traindataObservedIndex_nseq.length;
+		ntotalpositions += numtime_nseq;
+
+		//the first position is never part of a compressed run since it has the initial probabilities
+		int numnodes = 1;
+		int nt = 1;
+		while (nt < numtime_nseq)
+		{
+		    int nrunlength = runLength(traindataObservedIndex_nseq, numtime_nseq, nt);
+		    if (nrunlength >= nmincompress)
+		    {
+			int ncombo = traindataObservedIndex_nseq[nt];
+			int nlevel = 31 - Integer.numberOfLeadingZeros(nrunlength);
+			if (nlevel > nmaxlevel[ncombo])
+			{
+			    nmaxlevel[ncombo] = nlevel;
+			}
+			ncompressedruns++;
+			ncompressedpositions += nrunlength;
+			numnodes++;
+		    }
+		    else
+		    {
+			numnodes += nrunlength;
+		    }
+		    nt += nrunlength;
+		}
+
+		if (numnodes > nmaxnodes)
+		{
+		    nmaxnodes = numnodes;
+		}
+	    }
+
+	    powers = new double[numcombos][][][];
+	    logpowerscale = new double[numcombos][];
+	    for (int ncombo = 0; ncombo < numcombos; ncombo++)
+	    {
+		if (nmaxlevel[ncombo] >= 0)
+		{
+		    powers[ncombo] = new double[nmaxlevel[ncombo]+1][numstates][numstates];
+		    logpowerscale[ncombo] = new double[nmaxlevel[ncombo]+1];
+		}
+	    }
+	}
+
+	/**
+	 * Recomputes the powers from the emission products and the transposed transition probabilities of the current iteration
+	 */
+	void update(double[][] emissionproducts, double[][] coltransitionprobs)
+	{
+	    for (int ncombo = 0; ncombo < nmaxlevel.length; ncombo++)
+	    {
+		if (nmaxlevel[ncombo] < 0)
+		{
+		    continue;
+		}
+
+		double[][][] powers_ncombo = powers[ncombo];
+		double[] logpowerscale_ncombo = logpowerscale[ncombo];
+		double[] emissionproducts_ncombo = emissionproducts[ncombo];
+		double[][] powers_ncombo_0 = powers_ncombo[0];
+		for (int nj = 0; nj < numstates; nj++)
+		{
+		    double[] coltransitionprobs_nj = coltransitionprobs[nj];
+		    double[] powers_ncombo_0_nj = powers_ncombo_0[nj];
+		    double demission = emissionproducts_ncombo[nj];
+		    for (int ni = 0; ni < numstates; ni++)
+		    {
+			powers_ncombo_0_nj[ni] = coltransitionprobs_nj[ni]*demission;
+		    }
+		}
+		logpowerscale_ncombo[0] = rescaleMatrix(powers_ncombo_0);
+
+		for (int nlevel = 1; nlevel <= nmaxlevel[ncombo]; nlevel++)
+		{
+		    multiplyMatrices(powers_ncombo[nlevel-1], powers_ncombo[nlevel-1], powers_ncombo[nlevel]);
+		    logpowerscale_ncombo[nlevel] = 2*logpowerscale_ncombo[nlevel-1] + rescaleMatrix(powers_ncombo[nlevel]);
+		}
+	    }
+	}
+
+	/**
+	 * Returns a one line summary of the runs that are compressed
+	 */
+	String getSummary()
+	{
+	    double dpercent = 0;
+	    if (ntotalpositions > 0)
+	    {
+		dpercent = 100.0*ncompressedpositions/ntotalpositions;
+	    }
+	    return String.format(Locale.ENGLISH, "Compressing %d runs of at least %d positions with the same combination of marks covering %.1f%% of the %d positions",
+				 ncompressedruns, nmincompress, dpercent, ntotalpositions);
+	}
+    }
+
+
+    /**
+     * Forward-backward computations of a worker for a sequence in which runs of positions with the same combination of marks
+     * are each handled in a single step using the powers in RunLengthPowers.<br>
+     * The forward values after a run of length r are M^r times those before it, computed with one matrix-vector product for each
+     * bit set in r, and the backward values before the run are the transpose of M^r times those after it.
+     * With a the forward values before the run and b the backward values at its last position, the sum over the run of the
+     * expected transitions into position i is proportional to A[i][j] S[i][j] e[j], where S = sum_{n=0}^{r-1} M^n a b^T M^(r-1-n).
+     * The posteriors of the positions in the run sum to the column sums of these expected transitions. S is computed in
+     * about 2 log2(r) matrix products from S_(m+n) = M^m S_n + S_m M^n.
+     * The results are the same as going through the positions one at a time up to rounding.
+     */
+    class RunLengthForwardBackward
+    {
+	/**
+	 * The rescaled forward values at the last position of each single position or compressed run of the sequence
+	 */
+	double[][] nodealpha;
+
+	/**
+	 * The last position of each single position or compressed run
+	 */
+	int[] nodeend;
+
+	/**
+	 * The length of each compressed run, or 0 for a single position
+	 */
+	int[] noderunlength;
+
+	//buffers for the backward values and the products in computeRunSum
+	double[] beta;
+	double[] betanext;
+	double[] tempvector;
+	double[][] runsum;
+	double[][] runsumacc;
+	double[][] poweracc;
+	double[][] tempmatrix1;
+	double[][] tempmatrix2;
+
+	RunLengthForwardBackward(int nmaxnodes)
+	{
+	    nodealpha = new double[nmaxnodes][numstates];
+	    nodeend = new int[nmaxnodes];
+	    noderunlength = new int[nmaxnodes];
+	    beta = new double[numstates];
+	    betanext = new double[numstates];
+	    tempvector = new double[numstates];
+	    runsum = new double[numstates][numstates];
+	    runsumacc = new double[numstates][numstates];
+	    poweracc = new double[numstates][numstates];
+	    tempmatrix1 = new double[numstates][numstates];
+	    tempmatrix2 = new double[numstates][numstates];
+	}
+
+	/**
+	 * Runs the E-step for a sequence storing the same sufficient statistics as NewThread.estep and returns its log-likelihood
+	 */
+	double estep(RunLengthPowers theRunLengthPowers, int[] traindataObservedIndex_nseq, boolean[] traindataObservedSeqFlags_nseq,
+		     int numtime_nseq, double[][] emissionproducts, double[] emissionproducts_scale, double[][] coltransitionprobs,
+		     int nsparsecutoff, int nsparsecutofflooser, double[][] gammaObservedSum, double[] tempproductbetaemiss,
+		     double[][] sumforsxi, double[][][] gammaksum_nseq, double[][] sxi_nseq, double[] gammainitstore_nseq)
+	{
+	    for (int ni = 0; ni < sxi_nseq.length; ni++)
+	    {
+		double[] sxi_nseq_ni = sxi_nseq[ni];
+		for (int nj = 0; nj < sxi_nseq_ni.length; nj++)
+		{
+		    sxi_nseq_ni[nj] = 0;
+		}
+	    }
+
+	    for (int ncombo = 0; ncombo < gammaObservedSum.length; ncombo++)
+	    {
+		double[] gammaObservedSum_ncombo = gammaObservedSum[ncombo];
+		for (int ns = 0; ns < gammaObservedSum_ncombo.length; ns++)
+		{
+		    gammaObservedSum_ncombo[ns] = 0;
+		}
+	    }
+
+	    int nmincompress = theRunLengthPowers.nmincompress;
+
+	    //forward pass storing the forward values only at the end of each single position or compressed run
+	    int ncombo = traindataObservedIndex_nseq[0];
+	    double dloglikeseq = Math.log(forwardInit(nodealpha[0], emissionproducts[ncombo]));
+	    if (bscaleemissions)
+	    {
+		dloglikeseq += emissionproducts_scale[ncombo];
+	    }
+	    nodeend[0] = 0;
+	    noderunlength[0] = 0;
+	    int numnodes = 1;
+
+	    int nt = 1;
+	    while (nt < numtime_nseq)
+	    {
+		int nrunlength = runLength(traindataObservedIndex_nseq, numtime_nseq, nt);
+		ncombo = traindataObservedIndex_nseq[nt];
+
+		if (nrunlength >= nmincompress)
+		{
+		    dloglikeseq += advanceRun(theRunLengthPowers.powers[ncombo], theRunLengthPowers.logpowerscale[ncombo],
+					      nodealpha[numnodes-1], nodealpha[numnodes], nrunlength, false);
+		    if (bscaleemissions)
+		    {
+			dloglikeseq += nrunlength*emissionproducts_scale[ncombo];
+		    }
+		    nodeend[numnodes] = nt + nrunlength - 1;
+		    noderunlength[numnodes] = nrunlength;
+		    numnodes++;
+		}
+		else
+		{
+		    double[] emissionproducts_ncombo = emissionproducts[ncombo];
+		    for (int nrun = 0; nrun < nrunlength; nrun++)
+		    {
+			dloglikeseq += Math.log(forwardStep(nodealpha[numnodes-1], nodealpha[numnodes], emissionproducts_ncombo,
+							    coltransitionprobs, nsparsecutoff));
+			if (bscaleemissions)
+			{
+			    dloglikeseq += emissionproducts_scale[ncombo];
+			}
+			nodeend[numnodes] = nt + nrun;
+			noderunlength[numnodes] = 0;
+			numnodes++;
+		    }
+		}
+		nt += nrunlength;
+	    }
+
+	    //backward pass with the backward values rescaled to sum to one
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		beta[ns] = 1.0/numstates;
+	    }
+
+	    for (int nnode = numnodes - 1; nnode >= 0; nnode--)
+	    {
+		ncombo = traindataObservedIndex_nseq[nodeend[nnode]];
+		double[] gammaObservedSum_ncombo = gammaObservedSum[ncombo];
+
+		if (noderunlength[nnode] == 0)
+		{
+		    double[] alpha_nt = nodealpha[nnode];
+		    double ddenom = 0;
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+			ddenom += alpha_nt[ns]*beta[ns];
+		    }
+
+		    if (ddenom > 0)
+		    {
+			for (int ns = 0; ns < numstates; ns++)
+			{
+			    gammaObservedSum_ncombo[ns] += alpha_nt[ns]*beta[ns]/ddenom;
+			}
+		    }
+
+		    if (nnode == 0)
+		    {
+			for (int ns = 0; ns < numstates; ns++)
+			{
+			    gammainitstore_nseq[ns] = alpha_nt[ns]*beta[ns]/ddenom;
+			}
+		    }
+		    else
+		    {
+			backwardStepNormalized(beta, betanext, emissionproducts[ncombo], tempproductbetaemiss, nsparsecutoff);
+			accumulateTransitions(nodealpha[nnode-1], tempproductbetaemiss, sumforsxi, sxi_nseq, nsparsecutoff, nsparsecutofflooser);
+			double[] dswap = beta;
+			beta = betanext;
+			betanext = dswap;
+		    }
+		}
+		else
+		{
+		    int nrunlength = noderunlength[nnode];
+		    double[][][] powers_ncombo = theRunLengthPowers.powers[ncombo];
+		    double[] emissionproducts_ncombo = emissionproducts[ncombo];
+		    double[][] runsumresult = computeRunSum(powers_ncombo, theRunLengthPowers.logpowerscale[ncombo],
+							      nodealpha[nnode-1], beta, nrunlength);
+
+		    //expected transitions into each position of the run up to a common factor
+		    double dsum = 0;
+		    for (int ni = 0; ni < numstates; ni++)
+		    {
+			double[] transitionprobs_ni = transitionprobs[ni];
+			double[] runsumresult_ni = runsumresult[ni];
+			for (int nj = 0; nj < numstates; nj++)
+			{
+			    double dval = transitionprobs_ni[nj]*runsumresult_ni[nj]*emissionproducts_ncombo[nj];
+			    runsumresult_ni[nj] = dval;
+			    dsum += dval;
+			}
+		    }
+
+		    if (dsum > 0)
+		    {
+			double dfactor = nrunlength/dsum;
+			for (int ni = 0; ni < numstates; ni++)
+			{
+			    double[] sxi_nseq_ni = sxi_nseq[ni];
+			    double[] runsumresult_ni = runsumresult[ni];
+			    for (int nj = 0; nj < numstates; nj++)
+			    {
+				double dval = runsumresult_ni[nj]*dfactor;
+				sxi_nseq_ni[nj] += dval;
+				gammaObservedSum_ncombo[nj] += dval;
+			    }
+			}
+		    }
+
+		    advanceRun(powers_ncombo, theRunLengthPowers.logpowerscale[ncombo], beta, betanext, nrunlength, true);
+		    double[] dswap = beta;
+		    beta = betanext;
+		    betanext = dswap;
+		}
+	    }
+
+	    foldObservedSums(gammaObservedSum, traindataObservedSeqFlags_nseq, gammaksum_nseq);
+
+	    return dloglikeseq;
+	}
+
+	/**
+	 * Stores in dresult M^nrunlength times dvals, or its transpose times dvals if btranspose is true, rescaled to sum to one,
+	 * and returns the log of the sum before rescaling
+	 */
+	double advanceRun(double[][][] powers_ncombo, double[] logpowerscale_ncombo, double[] dvals, double[] dresult,
+			  int nrunlength, boolean btranspose)
+	{
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		dresult[ns] = dvals[ns];
+	    }
+
+	    double dlogsum = 0;
+	    int nlevel = 0;
+	    for (int nremaining = nrunlength; nremaining > 0; nremaining >>= 1)
+	    {
+		if ((nremaining & 1) != 0)
+		{
+		    double[][] power = powers_ncombo[nlevel];
+		    double dsum = 0;
+		    if (btranspose)
+		    {
+			for (int ni = 0; ni < numstates; ni++)
+			{
+			    tempvector[ni] = 0;
+			}
+
+			for (int nj = 0; nj < numstates; nj++)
+			{
+			    double[] power_nj = power[nj];
+			    double dresult_nj = dresult[nj];
+			    for (int ni = 0; ni < numstates; ni++)
+			    {
+				tempvector[ni] += power_nj[ni]*dresult_nj;
+			    }
+			}
+
+			for (int ni = 0; ni < numstates; ni++)
+			{
+			    dsum += tempvector[ni];
+			}
+		    }
+		    else
+		    {
+			for (int nj = 0; nj < numstates; nj++)
+			{
+			    double[] power_nj = power[nj];
+			    double dtempsum = 0;
+			    for (int ni = 0; ni < numstates; ni++)
+			    {
+				dtempsum += power_nj[ni]*dresult[ni];
+			    }
+			    tempvector[nj] = dtempsum;
+			    dsum += dtempsum;
+			}
+		    }
+
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+			dresult[ns] = tempvector[ns]/dsum;
+		    }
+		    dlogsum += logpowerscale_ncombo[nlevel] + Math.log(dsum);
+		}
+		nlevel++;
+	    }
+
+	    return dlogsum;
+	}
+
+	/**
+	 * Returns sum_{n=0}^{nrunlength-1} M^n alpha_prev beta_end^T M^(nrunlength-1-n) up to a positive factor
+	 */
+	double[][] computeRunSum(double[][][] powers_ncombo, double[] logpowerscale_ncombo, double[] alpha_prev, double[] beta_end,
+				 int nrunlength)
+	{
+	    //runsum holds S_(2^nlevel) and runsumacc holds S_n for n the lower bits of nrunlength processed so far,
+	    //each divided by exp of the corresponding log scale, and poweracc holds M^n
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		double[] runsum_ni = runsum[ni];
+		double dalpha = alpha_prev[ni];
+		for (int nj = 0; nj < numstates; nj++)
+		{
+		    runsum_ni[nj] = dalpha*beta_end[nj];
+		}
+	    }
+	    double dlogrunsum = 0;
+	    double dlogrunsumacc = 0;
+	    double dlogpoweracc = 0;
+	    boolean bacc = false;
+
+	    int nlevel = 0;
+	    int nremaining = nrunlength;
+	    while (true)
+	    {
+		double[][] power = powers_ncombo[nlevel];
+		double dlogpower = logpowerscale_ncombo[nlevel];
+
+		if ((nremaining & 1) != 0)
+		{
+		    if (!bacc)
+		    {
+			copyMatrix(runsum, runsumacc);
+			dlogrunsumacc = dlogrunsum;
+			copyMatrix(power, poweracc);
+			dlogpoweracc = dlogpower;
+			bacc = true;
+		    }
+		    else
+		    {
+			//S_(2^nlevel + n) = M^(2^nlevel) S_n + S_(2^nlevel) M^n
+			multiplyMatrices(power, runsumacc, tempmatrix1);
+			multiplyMatrices(runsum, poweracc, tempmatrix2);
+			dlogrunsumacc = addScaledMatrices(tempmatrix1, dlogpower + dlogrunsumacc, tempmatrix2, dlogrunsum + dlogpoweracc, runsumacc);
+
+			multiplyMatrices(poweracc, power, tempmatrix1);
+			dlogpoweracc += dlogpower + rescaleMatrix(tempmatrix1);
+			double[][] dswap = poweracc;
+			poweracc = tempmatrix1;
+			tempmatrix1 = dswap;
+		    }
+		}
+
+		nremaining >>= 1;
+		if (nremaining == 0)
+		{
+		    break;
+		}
+
+		//S_(2^(nlevel+1)) = M^(2^nlevel) S_(2^nlevel) + S_(2^nlevel) M^(2^nlevel)
+		multiplyMatrices(power, runsum, tempmatrix1);
+		multiplyMatrices(runsum, power, tempmatrix2);
+		dlogrunsum = addScaledMatrices(tempmatrix1, dlogpower + dlogrunsum, tempmatrix2, dlogpower + dlogrunsum, runsum);
+		nlevel++;
+	    }
+
+	    return runsumacc;
+	}
+
+	/**
+	 * Stores in dresult exp(dlog1) dm1 + exp(dlog2) dm2 divided by its largest entry and returns the log of the divisor
+	 */
+	double addScaledMatrices(double[][] dm1, double dlog1, double[][] dm2, double dlog2, double[][] dresult)
+	{
+	    double dlogmax = Math.max(dlog1, dlog2);
+	    double dfactor1 = Math.exp(dlog1 - dlogmax);
+	    double dfactor2 = Math.exp(dlog2 - dlogmax);
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		double[] dm1_ni = dm1[ni];
+		double[] dm2_ni = dm2[ni];
+		double[] dresult_ni = dresult[ni];
+		for (int nj = 0; nj < numstates; nj++)
+		{
+		    dresult_ni[nj] = dfactor1*dm1_ni[nj] + dfactor2*dm2_ni[nj];
+		}
+	    }
+	    return dlogmax + rescaleMatrix(dresult);
+	}
+
+	/**
+	 * Copies the square matrix dsource into ddest
+	 */
+	void copyMatrix(double[][] dsource, double[][] ddest)
+	{
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		System.arraycopy(dsource[ni], 0, ddest[ni], 0, numstates);
+	    }
+	}
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Task that runs the E-step for one sequence on a worker of the training pool
+     */
+    class NewThread implements Runnable 
+    {
+       
+	int[] traindataObservedIndex_nseq;
+	int nindexoffset;
+	boolean[] traindataObservedSeqFlags_nseq;
+	double[][][] gammaksum_nseq;
+	double[][] sxi_nseq;
+	int numtime_nseq;
+	double[] gammainitstore_nseq;
+	double[][] emissionproducts;
+	double[][] coltransitionprobs;
+	int nsparsecutoff;
+	int nsparsecutofflooser;
+	double[] dloglikeA;
+	int nseq;
+        double[] emissionproducts_scale;
+	RunLengthPowers theRunLengthPowers;
+
+	/**
+	 * The cache of the worker the emission products come from if they are not all in emissionproducts,
+	 * in which case the posteriors of the combinations are summed in observedsums instead of gammaObservedSum
+	 */
+	EmissionCache emissioncache;
+	ObservedSumCache observedsums;
+
+	NewThread(int[] traindataObservedIndex_nseq,
+		  boolean[] traindataObservedSeqFlags_nseq,
+		  int numtime_nseq,
+		  double[][] emissionproducts,
+		  double[][] coltransitionprobs,
+		  int nsparsecutoff,
+		  int nsparsecutofflooser,
+		  double[] dloglikeA,
+		  int nseq,
+		  double[] emissionproducts_scale,
+		  RunLengthPowers theRunLengthPowers)
+        {
+	    this(traindataObservedIndex_nseq, 0, traindataObservedSeqFlags_nseq, numtime_nseq, emissionproducts, coltransitionprobs,
+		 nsparsecutoff, nsparsecutofflooser, dloglikeA, nseq, emissionproducts_scale, theRunLengthPowers);
+	}
+
+	/**
+	 * Runs the E-step on the numtime_nseq positions of a sequence starting at nindexoffset in traindataObservedIndex_nseq,
+	 * which must be 0 if theRunLengthPowers is given
+	 */
+	NewThread(int[] traindataObservedIndex_nseq,
+		  int nindexoffset,
+		  boolean[] traindataObservedSeqFlags_nseq,
+		  int numtime_nseq,
+		  double[][] emissionproducts,
+		  double[][] coltransitionprobs,
+		  int nsparsecutoff,
+		  int nsparsecutofflooser,
+		  double[] dloglikeA,
+		  int nseq,
+		  double[] emissionproducts_scale,
+		  RunLengthPowers theRunLengthPowers)
+        {
+	    this.traindataObservedIndex_nseq = traindataObservedIndex_nseq;
+	    this.nindexoffset = nindexoffset;
+	    this.traindataObservedSeqFlags_nseq = traindataObservedSeqFlags_nseq;
+	    this.numtime_nseq = numtime_nseq;
+	    this.emissionproducts = emissionproducts;
+	    this.coltransitionprobs = coltransitionprobs;
+	    this.nsparsecutoff = nsparsecutoff;
+	    this.nsparsecutofflooser = nsparsecutofflooser;
+	    this.dloglikeA = dloglikeA;
+	    this.nseq = nseq;
+	    this.emissionproducts_scale = emissionproducts_scale;
+	    this.theRunLengthPowers = theRunLengthPowers;
+	}
+
+	// This is the entry point for the task on the worker thread, which is run as part of a TrainingPool.BinTask
+	public void run() 
+        {
+	    //the buffers are owned by the worker so no other task is using them
+	    TrainingPool.Worker theWorker = TrainingPool.currentWorker();
+
+	    //the statistics of the sequence go into the worker's buffers and are then added to those of the bin
+	    gammaksum_nseq = theWorker.seqstats.gammaksum;
+	    sxi_nseq = theWorker.seqstats.sxi;
+	    gammainitstore_nseq = theWorker.seqstats.gammainit;
+
+	    if (workeremissioncaches != null)
+	    {
+		emissioncache = workeremissioncaches[theWorker.nworker];
+		emissioncache.setEpoch(nemissionepoch);
+		observedsums = workerobservedsums[theWorker.nworker];
+	    }
+
+	    if (theRunLengthPowers != null)
+	    {
+		dloglikeA[nseq] = workerrunlengthfbs[theWorker.nworker].estep(theRunLengthPowers, traindataObservedIndex_nseq, traindataObservedSeqFlags_nseq,
+							     numtime_nseq, emissionproducts, emissionproducts_scale, coltransitionprobs,
+							     nsparsecutoff, nsparsecutofflooser, theWorker.gammaObservedSum,
+							     theWorker.tempproductbetaemiss, theWorker.sumforsxi,
+							     gammaksum_nseq, sxi_nseq, gammainitstore_nseq);
+	    }
+	    else
+	    {
+		estep(theWorker.gammaObservedSum,
+		      getAlphaStore(theWorker),
+		      theWorker.gamma_nt,
+		      theWorker.beta_nt,
+		      theWorker.beta_ntp1,
+		      theWorker.tempproductbetaemiss,
+		      theWorker.sumforsxi);
+	    }
+	}
+
+        public void estep(
+		  double[][] gammaObservedSum,
+		  AlphaStore alphastore,
+		  double[] gamma_nt,
+		  double[] beta_nt,
+		  double[] beta_ntp1,
+		  double[] tempproductbetaemiss,
+		  double[][] sumforsxi)
+	{ 
+	      //going through each sequence
+
+	   double dloglikeseq = 0;
+
+	   for (int ns = 0; ns < gammaksum_nseq.length; ns++)
+	   {
+	      //resetting the gamma sufficient statistics in the current sequence
+	      double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
+	      for (int nmark = 0; nmark < gammaksum_nseq_ns.length; nmark++)
+	      {
+	         for (int nbucket = 0; nbucket < numbuckets; nbucket++)
+	         {
+	            gammaksum_nseq_ns[nmark][nbucket] = 0;
+	         }
+	      }
+           }
+
+	   for (int ni = 0; ni < sxi_nseq.length; ni++)
+	   {
+	      //reseeting the sxi sufficient statistics in the current sequence
+	      double[] sxi_nseq_ni = sxi_nseq[ni];
+	      for (int nj = 0; nj < sxi_nseq_ni.length; nj++)
+	      {
+                 sxi_nseq_ni[nj] = 0;
+	      }
+	   }
+
+	   //gammaObservedSum stores the weight for each combination of marks in each state
+	   for (int ncombo = 0; ncombo < gammaObservedSum.length; ncombo++)
+	   {
+	      //resetting that to 0
+	      double[] gammaObservedSum_ncombo = gammaObservedSum[ncombo];
+	      for (int ns = 0; ns < gammaObservedSum_ncombo.length; ns++)
+	      {
+	         gammaObservedSum_ncombo[ns] = 0;
+	      }
+	   }
+
+	   //initial probability in state s is initial probability times emission probability at first position
+	   alphastore.begin(traindataObservedIndex_nseq, nindexoffset, numtime_nseq, emissionproducts, coltransitionprobs, nsparsecutoff);
+	   double[] alpha_nt = alphastore.forwardRow(0);
+           double dscale = 0;
+	   double[] emissionproducts_nobserveindex;
+	   if (emissioncache == null)
+	   {
+	      emissionproducts_nobserveindex =emissionproducts[traindataObservedIndex_nseq[nindexoffset]];
+	   }
+	   else
+	   {
+	      emissionproducts_nobserveindex = emissioncache.get(traindataObservedIndex_nseq[nindexoffset]);
+	   }
+ 	   for (int ns = 0; ns < numstates; ns++)
+           {
+	      alpha_nt[ns] = probinit[ns] * emissionproducts_nobserveindex[ns];
+	      dscale += alpha_nt[ns];
+	      
+	   }
+	   alphastore.setScale(0, dscale);
+
+	   //alpha_t(s)=P(o_0,...,o_t,x_t=s|lambda)
+	   //converts the alpha terms to probabilities
+
+	   if (bscalebeta)
+	   {
+	      if (dscale == 0)
+	      {
+		 for (int ns = 0; ns < numstates; ns++)
+		 {
+		    //added
+		    if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
+		    {
+		       alpha_nt[ns] = EPSILONSTATE;
+		       dscale += EPSILONSTATE;
+	            }
+       	         }
+	         alphastore.setScale(0, dscale);
+	      }
+
+	      for (int ns = 0; ns < numstates; ns++)
+	      {
+                 alpha_nt[ns] /= dscale;
+
+	         if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
+       	         {
+	            alpha_nt[ns] = EPSILONSTATE;
+	         }
+	      }
+	   }
+      	   else
+	   {
+	      for (int ns = 0; ns < numstates; ns++)
+	      {
+                 alpha_nt[ns] /= dscale;
+	      }
+	   }
+	   //for (int ni = 0; ni < numstates; ni++)
+	   //{
+	   //   alpha_nt[ni] /= dscale;
+	   //}
+
+	   dloglikeseq += Math.log(dscale); 
+
+           if (bscaleemissions)
+	   {
+	      if (emissioncache == null)
+	      {
+	         dloglikeseq += emissionproducts_scale[traindataObservedIndex_nseq[nindexoffset]];
+	      }
+	      else
+	      {
+	         dloglikeseq += emissioncache.dlastscale;
+	      }
+	   }
+
+	   //forward step
+	   //int numtime_nseq = numtime[nseq];
+	   for (int nt = 1; nt < numtime_nseq; nt++)
+	   {
+	      //the actual observed combination at position t	        
+	      double[] alpha_ntm1 = alpha_nt;
+	      alpha_nt = alphastore.forwardRow(nt);
+
+	      
+	      dscale = 0;
+	      if (emissioncache == null)
+	      {
+	         emissionproducts_nobserveindex = emissionproducts[traindataObservedIndex_nseq[nindexoffset+nt]];
+	      }
+	      else
+	      {
+	         emissionproducts_nobserveindex = emissioncache.get(traindataObservedIndex_nseq[nindexoffset+nt]);
+	      }
+	      for (int ns = 0; ns < numstates; ns++)
+	      {
+	         //stores the emission product for each location on the chromosome		   
+
+		 int transitionprobsnumCol_ns = transitionprobsnumCol[ns];
+	         double[] coltransitionprobs_ns = coltransitionprobs[ns];
+
+	         double dtempsum = 0;
+                 if (transitionprobsnumCol_ns < nsparsecutoff)
+		 {
+	            //number of transitions is sparse enough worth going through the extra redirection
+	            int ncolend_ns = transitionprobscolstart[ns+1];
+	            for (int nk = transitionprobscolstart[ns]; nk < ncolend_ns; nk++)
+	            {
+	               //for each next state computing inner sum of all previous alpha and the transition probability
+	               //for all non-zero transitions into the state
+	               dtempsum += transitionprobscolvalues[nk]*alpha_ntm1[transitionprobscolindex[nk]];
+	            }
+		 }
+		 else
+	         {
+	            //avoid the redirect and multiply by 0
+                    dtempsum = theDotKernel.dot(coltransitionprobs_ns, alpha_ntm1, numstates);
+		 }
+	         //multiply the transition sum by the emission probability
+	         double dalphaval = dtempsum*emissionproducts_nobserveindex[ns];
+	         alpha_nt[ns] = dalphaval;
+	         //System.out.println(ns+"\t"+alpha_nt[ns]+"\t"+dtempsum+"\t"+emissionproducts_nobserveindex[ns]);
+	         dscale += dalphaval;
+	      }
+
+	      //rescaling alpha
+	      alphastore.setScale(nt, dscale);
+              //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
+
+	      if (bscalebeta)
+	      {
+	         if (dscale == 0)
+	         {
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+		       //added
+		       if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
+		       {
+		          alpha_nt[ns] = EPSILONSTATE;
+			  dscale += EPSILONSTATE;
+		       }
+		    }
+		    alphastore.setScale(nt, dscale);
+		 }
+
+	         for (int ns = 0; ns < numstates; ns++)
+	         {
+                    alpha_nt[ns] /= dscale;
+
+  		    if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
+		    {
+		       alpha_nt[ns] = EPSILONSTATE;
+		    }
+		 }
+	      }
+	      else
+	      {
+	         for (int ns = 0; ns < numstates; ns++)
+	         {
+                    alpha_nt[ns] /= dscale;
+		 }
+	      }
+      	      dloglikeseq += Math.log(dscale);
+
+              if (bscaleemissions)
+	      {
+		 if (emissioncache == null)
+		 {
+	            dloglikeseq += emissionproducts_scale[traindataObservedIndex_nseq[nindexoffset+nt]];
+		 }
+		 else
+		 {
+		    dloglikeseq += emissioncache.dlastscale;
+		 }
+	      }
+
+	   }
+	    
+	   alphastore.endForward();
+
+	   //backward step
+	   //beta_t(s)=P(o_t+1,...,o_T|x_t=s,lambda)
+           int nlastindex = numtime_nseq-1;
+           double dinitval;
+
+	   if (bscalebeta)
+	   {
+	       dinitval = 1.0/numstates;
+	   }
+	   else
+	   {
+               dinitval = 1.0/alphastore.getScale(nlastindex);
+	   }
+
+           for (int ns = 0; ns < numstates; ns++)
+	   {
+	      beta_ntp1[ns] = dinitval;
+	   }
+
+	   double ddenom = 0;	       
+
+	   //gamma_nt - P(x=S| o_0,...,o_t)
+	   //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
+	   alpha_nt = alphastore.backwardRow(nlastindex);
+	   for (int ns = 0; ns < gamma_nt.length; ns++)
+           {
+	       double dval = alpha_nt[ns]*beta_ntp1[ns];
+	       ddenom += dval;
+	       gamma_nt[ns] = dval;
+	   }
+
+	   if (ddenom > 0)
+	   {
+              for (int ns = 0; ns < gamma_nt.length; ns++)
+	      {
+	         gamma_nt[ns] /=ddenom;
+	      }
+	   }
+
+	   double[] gammaObservedSum_combo_nt;
+	   if (observedsums == null)
+	   {
+	      gammaObservedSum_combo_nt = gammaObservedSum[traindataObservedIndex_nseq[nindexoffset+nlastindex]];
+	   }
+	   else
+	   {
+	      gammaObservedSum_combo_nt = observedsums.get(traindataObservedIndex_nseq[nindexoffset+nlastindex], gammaksum_nseq);
+	   }
+		
+	   for (int ns = 0; ns < numstates; ns++)
+	   { 
+              //first sum gamma over all common signatures		     
+	      //updates probability of observing the signature when in the state
+	      gammaObservedSum_combo_nt[ns] += gamma_nt[ns];
+	   }
+
+	   for (int nt = nlastindex - 1; nt >= 0; nt--)
+	   {
+	      int ntp1 = (nt+1);
+		   
+	      double[] emissionproducts_combo_ntp1;
+	      if (emissioncache == null)
+	      {
+	         emissionproducts_combo_ntp1 = emissionproducts[traindataObservedIndex_nseq[nindexoffset+ntp1]];
+	      }
+	      else
+	      {
+	         emissionproducts_combo_ntp1 = emissioncache.get(traindataObservedIndex_nseq[nindexoffset+ntp1]);
+	      }
+
+	      for (int ns = 0; ns < numstates; ns++)
+	      {
+	         tempproductbetaemiss[ns] = beta_ntp1[ns]*emissionproducts_combo_ntp1[ns];
+	      }
+
+	      if (bscaleemissions)
+	      {
+		  //adding here to help numerical stability
+		  double dmaxval = 0;
+		  for (int ns = 0; ns < numstates; ns++)
+		  {
+		      if (tempproductbetaemiss[ns] > dmaxval)
+		      {
+			  dmaxval = tempproductbetaemiss[ns];
+		      }
+		  }
+                  for (int ns = 0; ns < numstates; ns++)
+		  {
+		      tempproductbetaemiss[ns] = tempproductbetaemiss[ns]/dmaxval;
+		  }
+	      }
+
+	      double dsumbeta = 0;
+	      //double dscaleinv = 1.0/scale[nt];
+	      double dscale_nt = alphastore.getScale(nt);
+              //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
+	      for (int ni = 0; ni < numstates; ni++)
+	      {
+	         double dtempsum = 0;
+	         double[] transitionprobs_ni = transitionprobs[ni];
+	         int transitionprobsnum_ni = transitionprobsnum[ni];
+
+                 if (transitionprobsnum_ni < nsparsecutoff)
+	         {
+		    //sparse enought to pay the indirection penalty
+		    int nrowend_ni = transitionprobsrowstart[ni+1];
+		    for (int nk = transitionprobsrowstart[ni]; nk < nrowend_ni; nk++)
+		    {
+		       //for each state summing over transition probability to state j, emission probablity in j at next step
+		       //and probability of observing the remaining sequence
+		       dtempsum += transitionprobsrowvalues[nk]*tempproductbetaemiss[transitionprobsrowindex[nk]];
+		    }
+		 }
+		 else
+		 {
+		    //not trying to exploit sparsity here
+                    //for each state summing over transition probability to state j, emission probablity in j at next step
+                    //and probability of observing the remaining sequence
+                    dtempsum = theDotKernel.dot(transitionprobs_ni, tempproductbetaemiss, numstates);
+		 }
+
+		 if (bscalebeta)
+		 {
+	            beta_nt[ni] = dtempsum;
+		    dsumbeta += dtempsum;
+		 }
+	         else
+		 {
+		    double dratio = dtempsum/dscale_nt;
+
+		    if (dratio > Double.MAX_VALUE)
+		    {
+		       beta_nt[ni] = Double.MAX_VALUE;// dtempsum/dscale_nt;
+		    }
+		    else
+		    {
+		       beta_nt[ni] = dratio;// dtempsum/dscale_nt;
+		    }
+		 }
+	      }
+
+	      if (bscalebeta)
+	      {
+                 for (int ni = 0; ni < numstates; ni++)
+	         {
+	            beta_nt[ni]/= dsumbeta;
+
+		    if (beta_nt[ni] < EPSILONSTATE)//&&(!bdummy))// || (ni < numstates-1))) 
+		    {
+		       beta_nt[ni] = EPSILONSTATE;
+		    }
+		 }
+	      }		
+		
+	      ddenom = 0;
+		
+	      alpha_nt = alphastore.backwardRow(nt);	    
+
+	      //gamma_nt - P(x=S| o_0,...,o_t)
+	      //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
+
+	      for (int ns = 0; ns < gamma_nt.length; ns++)
+	      {
+	         double dval = alpha_nt[ns]*beta_nt[ns];
+	         ddenom += dval;
+	         gamma_nt[ns] = dval;
+	      }
+
+	      if (ddenom > 0)
+	      {
+	         for (int ns = 0; ns < gamma_nt.length; ns++)
+	         {
+	            gamma_nt[ns] /= ddenom;
+		 }
+	      }
+
+	      if (observedsums == null)
+	      {
+                 gammaObservedSum_combo_nt = gammaObservedSum[traindataObservedIndex_nseq[nindexoffset+nt]];
+	      }
+	      else
+	      {
+		 gammaObservedSum_combo_nt = observedsums.get(traindataObservedIndex_nseq[nindexoffset+nt], gammaksum_nseq);
+	      }
+
+              for (int ns = 0; ns < numstates; ns++)
+	      {
+	         //first sum gamma over all common signatures
+		 //updates probability of observing the signature when in the state
+	         gammaObservedSum_combo_nt[ns] += gamma_nt[ns];
+	      }
+
+	      double dsum = 0;
+		  
+              //this compues the numerator portion
+	      for (int ni = 0; ni < numstates; ni++)
+	      {
+	         double[] sumforsxi_ni = sumforsxi[ni]; //computing expected number of transition from state i
+	         int[] transitionprobsindex_ni = transitionprobsindex[ni]; //indicies of non-zero transitions from state i
+	         double[] transitionprobs_ni = transitionprobs[ni]; //probability of transitions from state i
+	         int ntransitionprobsnum_ni = transitionprobsnum[ni]; //number of non-zero transitions from state i
+	         double dalpha_nt_ni = alpha_nt[ni]; 
+	         //sxi is P(q_t = S_i, q_(t+1) = S_j | O)
+
+                 if (ntransitionprobsnum_ni < nsparsecutofflooser)
+      	         {
+		    //enough 0 transitionto use sparsity here
+		    //looser cut off since the indirection is less of the total time
+	            for (int nj = 0; nj < ntransitionprobsnum_ni; nj++)
+		    {
+		       int nmappedindex = transitionprobsindex_ni[nj];
+		       //computes transition probability from state i to j
+		       double dtempval = transitionprobs_ni[nmappedindex] *dalpha_nt_ni*tempproductbetaemiss[nmappedindex];
+                       dsum += dtempval;
+	      	       sumforsxi_ni[nmappedindex] = dtempval;
+		    }
+		 }
+	         else
+	         {
+		    for (int nj = 0; nj < numstates; nj++)
+		    {
+		       //computes transition probability from state i to j
+		       double dtempval = transitionprobs_ni[nj]*dalpha_nt_ni*tempproductbetaemiss[nj];
+		       dsum += dtempval;
+		       sumforsxi_ni[nj] = dtempval;
+		    }
+		 }
+	      }    	 
+		   
+	      if (dsum > 0)
+	      {
+	         //normalizing the numerator by the sum of the denominator and updating this iterations value for it
+	         for (int ni = 0; ni < numstates; ni++)
+	         {
+		    int[] transitionprobsindex_ni = transitionprobsindex[ni];
+		    double[] sumforsxi_ni = sumforsxi[ni];
+		    double[] sxi_nseq_ni = sxi_nseq[ni];
+		    int ntransitionprobsnum_ni = transitionprobsnum[ni];
+
+                    if (ntransitionprobsnum_ni < nsparsecutoff)
+	            {
+		       //guessing sparse enough to avoid the indirections
+		       for (int nj = 0; nj < ntransitionprobsnum_ni; nj++)
+		       {
+	      	          int nmappedindex = transitionprobsindex_ni[nj];
+		          sxi_nseq_ni[nmappedindex] += sumforsxi_ni[nmappedindex]/dsum;
+		       }
+		    }
+	            else
+	            {
+                       for (int nj = 0; nj < numstates; nj++)
+	      	       {
+		          sxi_nseq_ni[nj] += sumforsxi_ni[nj]/dsum;
+		       }
+		    }
+		 }
+	      }   	 
+	      beta_ntp1 = beta_nt;  //updating beta_ntp1 
+	   }
+
+	   //double[] gammainitstore_nseq = gammainitstore[nseq];
+	   for (int ns = 0; ns < numstates; ns++)
+	   {
+	      //storing the initial gamma from this iteration
+	      gammainitstore_nseq[ns] = gamma_nt[ns];
+	   }
+
+	  if (observedsums != null)
+	  {
+	     //adds the posteriors still held for the combinations of the sequence
+	     observedsums.fold(gammaksum_nseq);
+	  }
+	  else
+	  {
+   	  for (int nindex = 0; nindex < gammaObservedSum.length; nindex++)
+   	  {
+   	     //going through all the gamma sufficient statistic
+   	     if (traindataObservedSeqFlags_nseq[nindex])
+   	     {
+   	        //only update for those combinations that were observed on this sequnce
+   		//gets the observed combination and missing combination signatures
+   	        boolean[] traindataObservedValues_nindex = traindataObservedValues[nindex];
+   	        boolean[] traindataNotMissing_nindex = traindataNotMissing[nindex];
+	           
+   		double[] gammaObservedSum_nindex = gammaObservedSum[nindex];
+
+   		for (int ns = 0; ns < numstates; ns++)
+   	        {
+   	           //going through each state
+   		   double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
+   	           double gammaObservedSum_nindex_ns = gammaObservedSum_nindex[ns];
+   		   for (int nmark = 0; nmark < numdatasets; nmark++)
+   	           {
+   		      //going through each mark
+   		      if (traindataNotMissing_nindex[nmark])
+   		      {
+   		         //only update non-missing
+   		         if (traindataObservedValues_nindex[nmark])
+   		         {
+   		            //updates the gamma sum for each mark when in state and observed 1
+   		            gammaksum_nseq_ns[nmark][1] += gammaObservedSum_nindex_ns;
+   			 }
+   		         else
+   		         {
+   		    	    //updates the gamma sum for each mark when in state and observed 0
+   		            gammaksum_nseq_ns[nmark][0] += gammaObservedSum_nindex_ns;
+   			 }
+   		      }
+   		   }
+   		}
+   	     }
+   	  }
+	  }
+          dloglikeA[nseq] = dloglikeseq;	
+	}
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+
+
+    /////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Task that loads one sequence from disk and runs the E-step for it on a worker of the training pool
+     */
+    class NewThreadWithLoad implements Runnable 
+    {
+       
+	double[][][] gammaksum_nseq;
+	double[][] sxi_nseq;
+	int numtime_nseq;
+	String chromfiles_nseq;
+	double[] gammainitstore_nseq;
+	double[][] coltransitionprobs;
+	int nsparsecutoff;
+	int nsparsecutofflooser;
+	double[] dloglikeA;
+	int nseq;
+
+	//if not null the sequence is the next of queue nqueue of thePrefetcher instead of being read by the task
+	SequencePrefetcher thePrefetcher;
+	int nqueue;
+
+	NewThreadWithLoad(
+                          String chromfiles_nseq,
+		  int numtime_nseq,
+		  double[][] coltransitionprobs,
+		  int nsparsecutoff,
+		  int nsparsecutofflooser,
+		  double[] dloglikeA,
+		  int nseq,
+		  SequencePrefetcher thePrefetcher,
+		  int nqueue)
+        {
+	    this.chromfiles_nseq = chromfiles_nseq;
+	    this.numtime_nseq = numtime_nseq;
+	    this.coltransitionprobs = coltransitionprobs;
+	    this.nsparsecutoff = nsparsecutoff;
+	    this.nsparsecutofflooser = nsparsecutofflooser;
+	    this.dloglikeA = dloglikeA;
+	    this.nseq = nseq;
+	    this.thePrefetcher = thePrefetcher;
+	    this.nqueue = nqueue;
+	}
+
+	// This is the entry point for the task on the worker thread, which is run as part of a TrainingPool.BinTask
+	public void run() 
+        {
+	    //the buffers are owned by the worker so no other task is using them
+	    TrainingPool.Worker theWorker = TrainingPool.currentWorker();
+
+	    //the statistics of the sequence go into the worker's buffers and are then added to those of the bin
+	    gammaksum_nseq = theWorker.seqstats.gammaksum;
+	    sxi_nseq = theWorker.seqstats.sxi;
+	    gammainitstore_nseq = theWorker.seqstats.gammainit;
+
+            try
+            {
+  	       estep(
+		  theWorker.emissionproducts,
+		  theWorker.traindataObservedIndex,
+		  theWorker.traindataObservedValues,
+		  theWorker.traindataNotMissing,
+                  theWorker.gammaObservedSum,
+		  getAlphaStore(theWorker),
+		  theWorker.gamma_nt,
+		  theWorker.beta_nt,
+		  theWorker.beta_ntp1,
+		  theWorker.tempproductbetaemiss,
+		  theWorker.sumforsxi,
+                  theWorker.emissionproducts_scale);
+	    }
+	    catch (IOException ioex)
+	    {
+		ioex.printStackTrace(System.out);
+	    }
+	}
+
+        public void estep(
+		  double[][] emissionproducts,
+		  int[] traindataObservedIndex,
+		  boolean[][] traindataObservedValues,
+		  boolean[][] traindataNotMissing,
+		  double[][] gammaObservedSum,
+		  AlphaStore alphastore,
+		  double[] gamma_nt,
+		  double[] beta_nt,
+		  double[] beta_ntp1,
+		  double[] tempproductbetaemiss,
+		  double[][] sumforsxi,
+                  double[] emissionproducts_scale) throws IOException
+	{ 
+	      //going through each sequence
+
+	      ///////////////////////////////////////////////////////////
+	      //loading the data just for the current chromosome 
+
+	      //the time waiting for a prefetched sequence is counted as reading
+	      long lreadstart = System.nanoTime();
+	      SequencePrefetcher.Sequence theSequence = null;
+	      SignatureTable theSignatures;
+	      if (thePrefetcher != null)
+	      {
+		 theSequence = thePrefetcher.take(nqueue);
+		 System.arraycopy(theSequence.indices, 0, traindataObservedIndex, 0, theSequence.numrows);
+		 theSignatures = theSequence.theSignatures;
+	      }
+	      else
+	      {
+		 theSignatures = TrainingPool.currentWorker().signatures;
+		 theSignatures.clear();
+		 BinaryFileParser.readSequence(szinputdir, chromfiles_nseq, theSignatures, traindataObservedIndex);
+	      }
+	      TrainingPool.currentWorker().recordRead(System.nanoTime()-lreadstart);
+
+	      //stores the calls of each combination of marks found on the sequence
+	      int nobserved = theSignatures.size();
+	      theSignatures.storeCalls(traindataObservedValues, traindataNotMissing);
+
+	      if (theSequence != null)
+	      {
+		 thePrefetcher.release(theSequence);
+	      }
+
+	     if (bscaleemissions)
+	     {
+	        for (int ni = 0; ni < nobserved; ni++)
+		{
+		   //going through each combination of marks
+		   //if (traindataObservedSeqFlags_nseq[ni])
+		   //{
+		   //this signature of marks is observed on the current chromosome so
+		   //updating its emission probabilities
+		   double[] emissionproducts_ni = emissionproducts[ni];
+		   boolean[] traindataObservedValues_ni = traindataObservedValues[ni];
+		   boolean[] traindataNotMissing_ni = traindataNotMissing[ni];
+
+		   for (int ns = 0; ns < numstates; ns++)
+		   {
+		      emissionproducts_ni[ns] = 1;
+		   }
+		   emissionproducts_scale[ni] = 0;
+
+		   for (int nmod = 0; nmod < numdatasets; nmod++)
+		   {
+		      for (int ns = 0; ns < numstates; ns++)
+		      {
+		         if (traindataNotMissing_ni[nmod])
+			 {
+			    //we are include this marks emission probability
+			    if (traindataObservedValues_ni[nmod])
+			    {
+				emissionproducts_ni[ns] *= emissionprobs[ns][nmod][1];
+			    }
+			    else
+			    {
+				emissionproducts_ni[ns] *= emissionprobs[ns][nmod][0];
+			    }
+			 }
+					 // otherwise treated as missing omitting from product
+		      }
+
+		      
+		      double dmaxval = 0;
+		      for (int ns = 0; ns < numstates; ns++)
+		      {
+		         if (emissionproducts_ni[ns] > dmaxval)
+			 {
+			    dmaxval = emissionproducts_ni[ns];
+			 }
+		      }
+
+		      if (dmaxval <=0)///EPSILONEMISSIONS)
+		      {
+		         for (int ns = 0; ns < numstates; ns++)
+		         {
+		            emissionproducts_ni[ns] = 1;
+		         }
+			 //approximating log-likelihood
+	      	         emissionproducts_scale[ni] += Math.log(EPSILONEMISSIONS);
+		      }
+		      else
+		      {
+		         for (int ns = 0; ns < numstates; ns++)
+			 {
+		            emissionproducts_ni[ns]/= dmaxval;
+			 }
+			 emissionproducts_scale[ni] += Math.log(dmaxval);			  
+		      }		      	      
+		   }		
+		}
+	     }
+	     else
+	     {
+	        for (int ni = 0; ni < nobserved; ni++)
+	        {
+	           //going through each combination of marks
+	           //if (traindataObservedSeqFlags_nseq[ni])
+		   //{
+	           //this signature of marks is observed on the current chromosome so
+       	           //updating its emission probabilities
+       	           double[] emissionproducts_ni = emissionproducts[ni];
+      	           boolean[] traindataObservedValues_ni = traindataObservedValues[ni];
+       	           boolean[] traindataNotMissing_ni = traindataNotMissing[ni];		  
+
+	           boolean ballzero = true;
+
+	           for (int ns = 0; ns < numstates; ns++)
+	           {
+	              double dproduct = 1;
+	              double[][] emissionprobs_ns = emissionprobs[ns];
+
+		      for (int nmod = 0; nmod < numdatasets; nmod++)
+	              {
+		         if (traindataNotMissing_ni[nmod])
+	      	         {
+		            //we are include this marks emission probability
+		            if (traindataObservedValues_ni[nmod])
+		            {
+		      	       //System.out.println("positive\t"+ns+"\t"+nmod+"\t1\t"+emissionprobs_ns[nmod][1]);
+		               dproduct *= emissionprobs_ns[nmod][1];
+		            }
+		            else 
+		            {
+		      	       ///System.out.println("negative\t"+ns+"\t"+nmod+"\t0\t"+emissionprobs_ns[nmod][0]);
+		               dproduct *= emissionprobs_ns[nmod][0];
+			    }
+			 }
+			   // otherwise treated as missing omitting from product
+		      }
+		      //System.out.println(ns+"\t"+dproduct);
+		      emissionproducts_ni[ns] = dproduct;
+
+		      if (dproduct >= EPSILONEMISSIONS)
+		      {
+	                 ballzero = false;
+		      }
+		   }
+
+		   if (ballzero)
+	           {
+	              for (int ns = 0; ns < numstates; ns++)
+		      {
+		         emissionproducts_ni[ns] = EPSILONEMISSIONS;
+		      }
+		   }
+		}
+	     }
+
+
+
+	   double dloglikeseq = 0;
+
+	   for (int ns = 0; ns < gammaksum_nseq.length; ns++)
+	   {
+	      //resetting the gamma sufficient statistics in the current sequence
+	      double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
+	      for (int nmark = 0; nmark < gammaksum_nseq_ns.length; nmark++)
+	      {
+	         for (int nbucket = 0; nbucket < numbuckets; nbucket++)
+	         {
+	            gammaksum_nseq_ns[nmark][nbucket] = 0;
+	         }
+	      }
+           }
+
+	   for (int ni = 0; ni < sxi_nseq.length; ni++)
+	   {
+	      //reseeting the sxi sufficient statistics in the current sequence
+	      double[] sxi_nseq_ni = sxi_nseq[ni];
+	      for (int nj = 0; nj < sxi_nseq_ni.length; nj++)
+	      {
+                 sxi_nseq_ni[nj] = 0;
+	      }
+	   }
+
+	   //gammaObservedSum stores the weight for each combination of marks in each stat
+	   //for (int ncombo = 0; ncombo < gammaObservedSum.length; ncombo++)
+	   for (int ncombo = 0; ncombo < nobserved; ncombo++)
+	   {
+	      //resetting that to 0
+	      double[] gammaObservedSum_ncombo = gammaObservedSum[ncombo];
+	      for (int ns = 0; ns < gammaObservedSum_ncombo.length; ns++)
+	      {
+	         gammaObservedSum_ncombo[ns] = 0;
+	      }
+	   }
+
+	   //initial probability in state s is initial probability times emission probability at first position
+	   alphastore.begin(traindataObservedIndex, numtime_nseq, emissionproducts, coltransitionprobs, nsparsecutoff);
+	   double[] alpha_nt = alphastore.forwardRow(0);
+           double dscale = 0;
+	   double[] emissionproducts_nobserveindex =emissionproducts[traindataObservedIndex[0]];
+ 	   for (int ns = 0; ns < numstates; ns++)
+           {
+	      alpha_nt[ns] = probinit[ns] * emissionproducts_nobserveindex[ns];
+	      //System.out.println(ns+"\t"+alpha_nt[ns]);
+	      dscale += alpha_nt[ns];
+	   }
+	   alphastore.setScale(0, dscale);
+
+	   //alpha_t(s)=P(o_0,...,o_t,x_t=s|lambda)
+	   //converts the alpha terms to probabilities
+	   if (bscalebeta)
+           {
+	      if (dscale == 0)
+	      {
+	         for (int ns = 0; ns < numstates; ns++)
+		 {
+		    //added
+		    if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
+		    {
+		       alpha_nt[ns] = EPSILONSTATE;
+	       	       dscale += EPSILONSTATE;
+	            }
+	         }
+	         alphastore.setScale(0, dscale);
+	      }
+
+	      for (int ns = 0; ns < numstates; ns++)
+	      {
+                 alpha_nt[ns] /= dscale;
+
+  		 if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
+	         {
+	            alpha_nt[ns] = EPSILONSTATE;
+		 }
+	      }
+	   }
+	   else
+	   {
+	      for (int ns = 0; ns < numstates; ns++)
+	      {
+                 alpha_nt[ns] /= dscale;
+	      }
+	   }
+	     
+
+
+	   dloglikeseq += Math.log(dscale); 
+
+           if (bscaleemissions)
+	   {
+	      dloglikeseq += emissionproducts_scale[traindataObservedIndex[0]];
+	   }
+
+	   //forward step
+	   //int numtime_nseq = numtime[nseq];
+	   for (int nt = 1; nt < numtime_nseq; nt++)
+	   {
+	      //the actual observed combination at position t	        
+	      double[] alpha_ntm1 = alpha_nt;
+	      alpha_nt = alphastore.forwardRow(nt);
+	      
+	      dscale = 0;
+	      emissionproducts_nobserveindex = emissionproducts[traindataObservedIndex[nt]];
+
+	      for (int ns = 0; ns < numstates; ns++)
+	      {
+	         //stores the emission product for each location on the chromosome		   
+
+		 int transitionprobsnumCol_ns = transitionprobsnumCol[ns];
+	         double[] coltransitionprobs_ns = coltransitionprobs[ns];
+
+	         double dtempsum = 0;
+                 if (transitionprobsnumCol_ns < nsparsecutoff)
+		 {
+	            //number of transitions is sparse enough worth going through the extra redirection
+	            int ncolend_ns = transitionprobscolstart[ns+1];
+	            for (int nk = transitionprobscolstart[ns]; nk < ncolend_ns; nk++)
+	            {
+	               //for each next state computing inner sum of all previous alpha and the transition probability
+	               //for all non-zero transitions into the state
+	               dtempsum += transitionprobscolvalues[nk]*alpha_ntm1[transitionprobscolindex[nk]];
+	            }
+		 }
+		 else
+	         {
+	            //avoid the redirect and multiply by 0
+                    dtempsum = theDotKernel.dot(coltransitionprobs_ns, alpha_ntm1, numstates);
+		 }
+	         //multiply the transition sum by the emission probability
+	         double dalphaval = dtempsum*emissionproducts_nobserveindex[ns];
+	         alpha_nt[ns] = dalphaval;
+	         //System.out.println(ns+"\t"+alpha_nt[ns]+"\t"+dtempsum+"\t"+emissionproducts_nobserveindex[ns]);
+	         dscale += dalphaval;
+	      }
+
+
+	      //rescaling alpha
+	      alphastore.setScale(nt, dscale);
+              //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
+
+	      if (bscalebeta)
+	      {
+	         if (dscale == 0)
+	         {
+		    for (int ns = 0; ns < numstates; ns++)
+		    {
+		       //added
+		       if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
+		       {
+		          alpha_nt[ns] = EPSILONSTATE;
+			  dscale += EPSILONSTATE;
+		       }
+		    }
+		    alphastore.setScale(nt, dscale);
+		 }
+
+		 //		 else
+		 //{
+	         for (int ns = 0; ns < numstates; ns++)
+	         {
+                    alpha_nt[ns] /= dscale;
+
+		    if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
+		    {
+	               alpha_nt[ns] = EPSILONSTATE;
+		    }
+		 }		 
+		 //}
+	      }
+      	      else
+	      {
+	         for (int ns = 0; ns < numstates; ns++)
+	         {
+                    alpha_nt[ns] /= dscale;
+		 }
+	      }
+	      //for (int ns = 0; ns < numstates; ns++)
+	      //{
+              //   alpha_nt[ns] /= dscale;
+              //}
+
+      	      dloglikeseq += Math.log(dscale);
+
+              if (bscaleemissions)
+	      {
+	         dloglikeseq += emissionproducts_scale[traindataObservedIndex[nt]];
+	      }
+	   }
+	    
+	   alphastore.endForward();
+
+	   //backward step
+	   //beta_t(s)=P(o_t+1,...,o_T|x_t=s,lambda)
+           int nlastindex = numtime_nseq-1;
+	   double dinitval;
+	   if (bscalebeta)
+	   {
+	      dinitval = 1.0/numstates;
+	   }
+	   else
+	   {
+              dinitval = 1.0/alphastore.getScale(nlastindex);
+	   }
+
+           for (int ns = 0; ns < numstates; ns++)
+	   {
+	      beta_ntp1[ns] = dinitval;
+	   }
+	   //double dinitval = 1.0/scale[nlastindex];
+	   //for (int ns = 0; ns < numstates; ns++)
+	   //{
+	   // beta_ntp1[ns] = dinitval;
+	   //}
+
+	   double ddenom = 0;	       
+
+	   //gamma_nt - P(x=S| o_0,...,o_t)
+	   //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
+	   alpha_nt = alphastore.backwardRow(nlastindex);
+	   for (int ns = 0; ns < gamma_nt.length; ns++)
+           {
+	       double dval = alpha_nt[ns]*beta_ntp1[ns];
+	       ddenom += dval;
+	       gamma_nt[ns] = dval;
+	   }
+
+	   if (ddenom > 0)
+	   {
+              for (int ns = 0; ns < gamma_nt.length; ns++)
+	      {
+	         gamma_nt[ns] /=ddenom;
+	      }
+	   }
+
+	   double[] gammaObservedSum_combo_nt = gammaObservedSum[traindataObservedIndex[nlastindex]];
+		
+	   for (int ns = 0; ns < numstates; ns++)
+	   { 
+              //first sum gamma over all common signatures		     
+	      //updates probability of observing the signature when in the state
+	      gammaObservedSum_combo_nt[ns] += gamma_nt[ns];
+	   }
+
+	   for (int nt = nlastindex - 1; nt >= 0; nt--)
+	   {
+	      int ntp1 = (nt+1);
+		   
+	      double[] emissionproducts_combo_ntp1 = emissionproducts[traindataObservedIndex[ntp1]];
+
+	      for (int ns = 0; ns < numstates; ns++)
+	      {
+	         tempproductbetaemiss[ns] = beta_ntp1[ns]*emissionproducts_combo_ntp1[ns];
+	      }
+
+	      if (bscaleemissions)
+	      {
+		  //adding here to help numerical stability
+		  double dmaxval = 0;
+		  for (int ns = 0; ns < numstates; ns++)
+		  {
+		      if (tempproductbetaemiss[ns] > dmaxval)
+		      {
+			  dmaxval = tempproductbetaemiss[ns];
+		      }
+		  }
+                  for (int ns = 0; ns < numstates; ns++)
+		  {
+		      tempproductbetaemiss[ns] = tempproductbetaemiss[ns]/dmaxval;
+		  }
+	      }
+
+	      double dsumbeta = 0;
+
+	      //double dscaleinv = 1.0/scale[nt];
+	      double dscale_nt = alphastore.getScale(nt);
+              //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
+	      for (int ni = 0; ni < numstates; ni++)
+	      {
+	         double dtempsum = 0;
+	         double[] transitionprobs_ni = transitionprobs[ni];
+	         int transitionprobsnum_ni = transitionprobsnum[ni];
+
+                 if (transitionprobsnum_ni < nsparsecutoff)
+	         {
+		    //sparse enought to pay the indirection penalty
+		    int nrowend_ni = transitionprobsrowstart[ni+1];
+		    for (int nk = transitionprobsrowstart[ni]; nk < nrowend_ni; nk++)
+		    {
+		       //for each state summing over transition probability to state j, emission probablity in j at next step
+		       //and probability of observing the remaining sequence
+		       dtempsum += transitionprobsrowvalues[nk]*tempproductbetaemiss[transitionprobsrowindex[nk]];
+		    }
+		 }
+		 else
+		 {
+		    //not trying to exploit sparsity here
+                    //for each state summing over transition probability to state j, emission probablity in j at next step
+                    //and probability of observing the remaining sequence
+                    dtempsum = theDotKernel.dot(transitionprobs_ni, tempproductbetaemiss, numstates);
+		 }
+
+		 if (bscalebeta)
+		 {
+		    beta_nt[ni] = dtempsum;
+		    dsumbeta += dtempsum;
+		 }
+	         else
+		 {
+	            double dratio = dtempsum/dscale_nt;
+		    if (dratio > Double.MAX_VALUE)
+		    {
+		       beta_nt[ni] = Double.MAX_VALUE;//dtempsum/dscale_nt;
+		    }
+		    else
+		    {
+		       beta_nt[ni] = dratio;
+		    }
+		 }
+		 //double dratio = dtempsum/dscale_nt;
+
+		 //if (dratio > Double.MAX_VALUE)
+		 //{
+		 //    beta_nt[ni] = Double.MAX_VALUE;// dtempsum/dscale_nt;
+		 //}
+		 //else
+		 //{
+		 //    beta_nt[ni] = dratio;//dtempsum/dscale_nt;
+		 //}
+	      }
+
+	      if (bscalebeta)
+	      {
+                 for (int ni = 0; ni < numstates; ni++)
+	         {
+	            beta_nt[ni]/= dsumbeta;
+
+		    if (beta_nt[ni] < EPSILONSTATE)//&&(!bdummy))// || (ni < numstates-1))) 
+		    {
+		       beta_nt[ni] = EPSILONSTATE;
+		    }
+		 }
+	      }		
+		
+	      ddenom = 0;
 		
+	      alpha_nt = alphastore.backwardRow(nt);	    
+
+	      //gamma_nt - P(x=S| o_0,...,o_t)
+	      //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
+
+	      for (int ns = 0; ns < gamma_nt.length; ns++)
+	      {
+	         double dval = alpha_nt[ns]*beta_nt[ns];
+	         ddenom += dval;
+	         gamma_nt[ns] = dval;
+	      }
+
+	      if (ddenom > 0)
+	      {
+	         for (int ns = 0; ns < gamma_nt.length; ns++)
+	         {
+	            gamma_nt[ns] /= ddenom;
+		 }
+	      }
+
+              gammaObservedSum_combo_nt = gammaObservedSum[traindataObservedIndex[nt]];
+
+              for (int ns = 0; ns < numstates; ns++)
+	      {
+	         //first sum gamma over all common signatures
+		 //updates probability of observing the signature when in the state
+	         gammaObservedSum_combo_nt[ns] += gamma_nt[ns];
+	      }
+
+	      double dsum = 0;
+		  
+              //this compues the numerator portion
+	      for (int ni = 0; ni < numstates; ni++)
+	      {
+	         double[] sumforsxi_ni = sumforsxi[ni]; //computing expected number of transition from state i
+	         int[] transitionprobsindex_ni = transitionprobsindex[ni]; //indicies of non-zero transitions from state i
+	         double[] transitionprobs_ni = transitionprobs[ni]; //probability of transitions from state i
+	         int ntransitionprobsnum_ni = transitionprobsnum[ni]; //number of non-zero transitions from state i
+	         double dalpha_nt_ni = alpha_nt[ni]; 
+	         //sxi is P(q_t = S_i, q_(t+1) = S_j | O)
+
+                 if (ntransitionprobsnum_ni < nsparsecutofflooser)
+      	         {
+		    //enough 0 transitionto use sparsity here
+		    //looser cut off since the indirection is less of the total time
+	            for (int nj = 0; nj < ntransitionprobsnum_ni; nj++)
+		    {
+		       int nmappedindex = transitionprobsindex_ni[nj];
+		       //computes transition probability from state i to j
+		       double dtempval = transitionprobs_ni[nmappedindex] *dalpha_nt_ni*tempproductbetaemiss[nmappedindex];
+                       dsum += dtempval;
+
+	      	       sumforsxi_ni[nmappedindex] = dtempval;
+		    }
+		 }
+	         else
+	         {
+		    for (int nj = 0; nj < numstates; nj++)
+		    {
+		       //computes transition probability from state i to j
+		       double dtempval = transitionprobs_ni[nj]*dalpha_nt_ni*tempproductbetaemiss[nj];
+		       dsum += dtempval;
+		       sumforsxi_ni[nj] = dtempval;
+		    }
+		 }
+	      }
+
+	      
+	      if (dsum > 0)
+	      {
+		 //added to avoid numerical errors
+	         //normalizing the numerator by the sum of the denominator and updating this iterations value for it
+	         for (int ni = 0; ni < numstates; ni++)
+	         {
+		    int[] transitionprobsindex_ni = transitionprobsindex[ni];
+		    double[] sumforsxi_ni = sumforsxi[ni];
+		    double[] sxi_nseq_ni = sxi_nseq[ni];
+		    int ntransitionprobsnum_ni = transitionprobsnum[ni];
+
+                    if (ntransitionprobsnum_ni < nsparsecutoff)
+	            {
+		       //guessing sparse enough to avoid the indirections
+		       for (int nj = 0; nj < ntransitionprobsnum_ni; nj++)
+		       {
+	      	          int nmappedindex = transitionprobsindex_ni[nj];
+		          sxi_nseq_ni[nmappedindex] += sumforsxi_ni[nmappedindex]/dsum;
+		       }
+		    }
+	            else
+	            {
+                       for (int nj = 0; nj < numstates; nj++)
+	      	       {
+		          sxi_nseq_ni[nj] += sumforsxi_ni[nj]/dsum;
+		       }
+		    }
+		 }
+	      }	 
+	      beta_ntp1 = beta_nt;  //updating beta_ntp1 
+	   }
+
+	   //double[] gammainitstore_nseq = gammainitstore[nseq];
 	   for (int ns = 0; ns < numstates; ns++)
-	   { 
-              //first sum gamma over all common signatures		     
-	      //updates probability of observing the signature when in the state
-	      gammaObservedSum_combo_nt[ns] += gamma_nt[ns];
+	   {
+	      //storing the initial gamma from this iteration
+	      gammainitstore_nseq[ns] = gamma_nt[ns];
+	   }
+
+	   //for (int nindex = 0; nindex < gammaObservedSum.length; nindex++)
+	  for (int nindex = 0; nindex < nobserved; nindex++)
+	  {
+	     //going through all the gamma sufficient statistic
+	     //if (traindataObservedSeqFlags_nseq[nindex])
+	     {
+	        //only update for those combinations that were observed on this sequence
+		//gets the observed combination and missing combination signatures
+	        boolean[] traindataObservedValues_nindex = traindataObservedValues[nindex];
+	        boolean[] traindataNotMissing_nindex = traindataNotMissing[nindex];
+	           
+		double[] gammaObservedSum_nindex = gammaObservedSum[nindex];
+
+		for (int ns = 0; ns < numstates; ns++)
+	        {
+	           //going through each state
+		   double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
+	           double gammaObservedSum_nindex_ns = gammaObservedSum_nindex[ns];
+		   for (int nmark = 0; nmark < numdatasets; nmark++)
+	           {
+		      //going through each mark
+		      if (traindataNotMissing_nindex[nmark])
+		      {
+		         //only update non-missing
+		         if (traindataObservedValues_nindex[nmark])
+		         {
+		            //updates the gamma sum for each mark when in state and observed 1
+		            gammaksum_nseq_ns[nmark][1] += gammaObservedSum_nindex_ns;			    
+			 }
+		         else
+		         {
+		    	    //updates the gamma sum for each mark when in state and observed 0
+		            gammaksum_nseq_ns[nmark][0] += gammaObservedSum_nindex_ns;			    
+			 }
+		      }
+		   }
+		}
+	     }
+	  }
+	  //System.out.println("==>"+nseq+"\t"+dloglikeseq);
+          dloglikeA[nseq] = dloglikeseq;	
+	}
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+    /**
+     * True if the time the training workers spend computing and waiting should be reported after each iteration
+     */
+    boolean bprinttiming;
+
+    /**
+     * If positive, sequences with at least twice this many positions have their forward-backward computations
+     * split into blocks of this many positions that are computed in parallel during in-memory parallel training
+     */
+    int nblockfbsize;
+
+    /**
+     * True if parallel training should keep the forward values only at checkpoints and recompute them during the backward pass
+     */
+    boolean brecomputealpha;
+
+    /**
+     * True if in-memory parallel training should handle each long run of positions with the same combination of marks in a single step
+     */
+    boolean bcompressruns;
+
+    /**
+     * True if in-memory parallel training should compute the emission products from per-state lookup tables over bytes of marks
+     */
+    boolean bemissiontables;
+
+    /**
+     * If positive the number of combinations of marks whose emission products each worker keeps during in-memory parallel training,
+     * instead of computing those of all combinations at the start of each iteration
+     */
+    int nemissioncachesize;
+
+    /**
+     * Incremented whenever the emission probabilities change so the emission caches know to drop their entries
+     */
+    int nemissionepoch = 0;
+
+    /**
+     * Forward positions computed and recomputed, and nanoseconds spent recomputing, over the whole training run with brecomputealpha
+     */
+    long ntotalforward;
+    long ntotalrecomputed;
+    long ltotalrecomputenanos;
+
+    /**
+     * The checkpointed forward value stores, run-length buffers and emission caches of the workers of the training pool, indexed
+     * by worker. Unlike the other buffers of the workers these depend on the parameters of the model, so every model trained on
+     * the pool has its own.
+     */
+    CheckpointAlphaStore[] workercheckpointstores;
+    RunLengthForwardBackward[] workerrunlengthfbs;
+    EmissionCache[] workeremissioncaches;
+
+    /**
+     * The bounded sums of the posteriors of the combinations of marks of the workers, indexed by worker,
+     * used instead of the posterior sums of every combination when the emission products are cached
+     */
+    ObservedSumCache[] workerobservedsums;
+
+    /**
+     * If not null the model is one of several trained at the same time and the lines reporting its progress are labelled by this
+     */
+    String szprogresslabel;
+
+    /**
+     * True if in-memory parallel training should not write the parameters after each iteration, since the model is one of several
+     * restarts of which only the best is written
+     */
+    boolean bdeferoutput;
+
+    /**
+     * If not null the pairs from which the information based initialization of this model is computed, found once for several models
+     */
+    InformationPairs theInformationPairs;
+
+    /**
+     * The number of iterations completed by in-memory parallel training
+     */
+    int numiterations;
+
+    /**
+     * If not null this process is a worker of a distributed training run, computing the sufficient statistics of its own sequences
+     * for the coordinator connected through this, which runs the M-step
+     */
+    DistributedTraining.Worker theDistributedWorker;
+
+    /**
+     * If greater than 0 parallel training writes a checkpoint every this many iterations and every this many minutes,
+     * as well as after the last iteration
+     */
+    int ncheckpointiterations;
+    int ncheckpointminutes;
+
+    /**
+     * True if training should continue from the checkpoint in the output directory when there is one
+     */
+    boolean bresume;
+
+    /**
+     * The checkpoint parallel training continues from, null if it starts from the first iteration
+     */
+    TrainingCheckpoint theResumeCheckpoint;
+
+    /**
+     * If greater than 0 parallel training is stochastic EM over mini-batches of this many blocks of nstochasticblocksize
+     * locations, with nstochasticupdates mini-batches per iteration. The step size of the u^th update is (u+1)^-dstochasticstep,
+     * and convergence is judged on the log-likelihood of nheldoutblocks blocks that are never trained on, which is the log-likelihood
+     * printed for each iteration. At least one block must be held out. Training is converged once every training block has been
+     * trained on and the held out log-likelihood has not improved on its best value by more than the convergence delta for
+     * STOCHASTICPATIENCE consecutive iterations.
+     */
+    int nstochasticblocks;
+    int nstochasticblocksize = ChromHMM.DEFAULT_STOCHASTICBLOCKSIZE;
+    int nstochasticupdates = ChromHMM.DEFAULT_STOCHASTICUPDATES;
+    double dstochasticstep = ChromHMM.DEFAULT_STOCHASTICSTEP;
+    int nheldoutblocks;
+
+    /**
+     * If true parallel training is incremental EM, running the M-step as the workers complete sequences
+     */
+    boolean bincremental;
+
+    /**
+     * If greater than 0 parallel training drops the states whose initial probability and shares of the expected transitions
+     * out of and into them fall below 10^-ndeadstatepower, and deadstates records the states that have been dropped.
+     * Only the transitions of a dropped state are removed from the forward-backward, the other per position work still covers all states.
+     */
+    int ndeadstatepower;
+    boolean[] deadstates;
+
+    /**
+     * If not null parallel training writes a record of each iteration to this
+     */
+    TrainingTelemetry theTelemetry;
+
+    /**
+     * If greater than 0 the sequences are read ahead with -lowmem by nprefetchthreads I/O threads,
+     * with at most this many sequences in memory at once
+     */
+    int nprefetchsequences;
+    int nprefetchthreads = ChromHMM.DEFAULT_PREFETCHTHREADS;
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////
+    /**
+     * This is the core procedure for learning the parameters of the model loading from data
+     */
+    public void trainParametersParallelWithLoad() throws IOException
+    {
+        NumberFormat nf3 = NumberFormat.getInstance();
+        nf3.setMaximumFractionDigits(3);
+	nf3.setGroupingUsed(false);
+	nf3.setMinimumFractionDigits(3);
+
+        NumberFormat nf1 = NumberFormat.getInstance();
+	nf1.setMaximumFractionDigits(1);
+	nf1.setMinimumFractionDigits(1);
+	nf1.setGroupingUsed(false);
+
+       int niteration = 1;
+
+       boolean bconverged = false;
+
+       double dzerotransitioncutoff = Math.pow(10,-nzerotransitionpower);
+
+       //number of non-zero transition for the 
+       int nsparsecutoff = getSparseCutoff();
+
+       //number of non-zero transition that need to be less than this at the looser cut-off
+       int nsparsecutofflooser = (int) (numstates * ChromHMM.SPARSECUTOFFLOOSERRATIO);
+
+       double dprevloglike;
+
+       //stores the maximum number of locations in any sequence and in each sequence
+       //int[] numtime = new int[chromfiles.length];//traindataObservedIndex.length];
+       int nmaxtime = 0;
+       for (int nseq = 0; nseq < numtime.length; nseq++) //traindataObservedIndex.length;
+       {
+	   //numtime[nseq] = traindataObservedIndex[nseq].length;
+          if (numtime[nseq] > nmaxtime)
+	  {
+      	     nmaxtime = numtime[nseq];
+	  }
+       }
+
+       if (ChromHMM.BVERBOSE)
+       {
+          System.out.println("Maximum number of locations\t"+nmaxtime);
+       }
+
+
+       int numprocessors;
+       //    for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
+
+       if (nmaxprocessors <= 0)
+       {
+	   numprocessors = Math.min(numtime.length,Runtime.getRuntime().availableProcessors()); //changed from  traindataObservedIndex.length;
+       }
+       else
+       {
+	   numprocessors = Math.min(numtime.length, //changed from  traindataObservedIndex.length;
+				    Math.min(nmaxprocessors,Runtime.getRuntime().availableProcessors()));
+       }
+
+       //if (ChromHMM.BVERBOSE)
+       {
+	   if (numprocessors == 1)
+              System.out.println("Using "+numprocessors+" thread for Baum-Welch training");
+	   else
+	       System.out.println("Using "+numprocessors+" threads for Baum-Welch training");
+       }
+
+       //the worker pool and its buffers are created once and reused for every iteration
+       TrainingPool theTrainingPool = new TrainingPool(numprocessors);
+       theTrainingPool.allocateBuffers(numstates, nmaxtime); //nmaxtime instead of traindataObservedValues.length
+       allocateAlphaStores(theTrainingPool, nmaxtime);
+       allocateCheckpointStores(theTrainingPool, nmaxtime);
+       theTrainingPool.allocateLoadBuffers(nmaxtime, numstates, numdatasets, bscaleemissions);
+       theTrainingPool.allocateStatistics(numstates, numdatasets, numbuckets);
+
+       //with -prefetch the sequences are read on I/O threads while the workers compute
+       SequencePrefetcher thePrefetcher = null;
+       if (nprefetchsequences > 0)
+       {
+	  thePrefetcher = new SequencePrefetcher(szinputdir, numdatasets, nmaxtime, nprefetchthreads, nprefetchsequences);
+       }
+
+       int ncurrnumincludeseq;
+       int[] samples= null;
+       if (numincludeseq >= 1)
+       {
+	   ncurrnumincludeseq = Math.min(numincludeseq, chromfiles.length);
+	   samples = new int[ncurrnumincludeseq];
+       }
+       else
+       {
+	   ncurrnumincludeseq = chromfiles.length;
+       }
+
+       //stores the transition probabilities for each column
+       double[][] coltransitionprobs = new double[numstates][numstates];
+
+       //stores the sufficient statistics summed over the sequences of each bin,
+       //after the reduction the first one holds the sum over all sequences
+       SufficientStatistics[] binstats = new SufficientStatistics[numprocessors];
+       for (int nbin = 0; nbin < binstats.length; nbin++)
+       {
+	   binstats[nbin] = new SufficientStatistics(numstates, numdatasets, numbuckets);
+       }
+
+       //the sequences of each bin for the current iteration
+       ArrayList[] albins = new ArrayList[numprocessors];
+       for (int nbin = 0; nbin < albins.length; nbin++)
+       {
+	   albins[nbin] = new ArrayList();
+       }
+
+       //the length of each sequence included in the current iteration
+       int[] nbinlengths = new int[ncurrnumincludeseq];
+
+
+       double[] dloglikeA = new double[ncurrnumincludeseq];//chromfiles.length];
+
+       int nelim = 0;
+       long ltimeitr= System.currentTimeMillis();
+       dprevloglike = Double.NEGATIVE_INFINITY;
+       if (theResumeCheckpoint != null)
+       {
+	   //continues after the last iteration of the checkpoint, with the time spent before counted towards the maximum
+	   niteration = theResumeCheckpoint.niteration+1;
+	   dprevloglike = theResumeCheckpoint.dloglike;
+	   nelim = theResumeCheckpoint.nelim;
+	   ltimeitr -= theResumeCheckpoint.lelapsedmillis;
+	   theResumeCheckpoint = null;
+       }
+       long llastcheckpoint = System.currentTimeMillis();
+
+       //the workers are timed for the telemetry records as well as for -printtiming
+       boolean btiming = ((bprinttiming)||(theTelemetry != null));
+
+
+
+
+
+       boolean[] bincludeseq = new boolean[chromfiles.length];
+       for (int nk = 0; nk < bincludeseq.length; nk++)
+       {
+	   bincludeseq[nk] = true;
+       }
+
+       do
+       {
+	   long lestepstart = System.nanoTime();
+
+	   if (numincludeseq >=1)
+	   {
+	       for (int ni = 0; ni < samples.length; ni++)
+	       {
+	          samples[ni] = ni;
+	       }
+
+	       //Random theRandom2 = new Random(412);//433
+
+	       //sampling without replacement data locations wanted
+	       for (int ni = ncurrnumincludeseq; ni < chromfiles.length; ni++)
+	       {
+	          if (theRandom.nextDouble() < ncurrnumincludeseq/((double) ni +1))
+		  {
+		     samples[theRandom.nextInt(ncurrnumincludeseq)] = ni;
+		  }
+	       }
+
+               for (int nk = 0; nk < bincludeseq.length; nk++)
+	       {
+	           bincludeseq[nk] = false;
+	       }
+
+	       for (int nk = 0; nk < samples.length; nk++)
+	       {
+		   bincludeseq[samples[nk]] = true;
+		   //System.out.println("including\t"+samples[nk]+"\t"+bincludeseq[samples[nk]]);
+	       }
 	   }
 
-	   for (int nt = nlastindex - 1; nt >= 0; nt--)
-	   {
-	      int ntp1 = (nt+1);
-		   
-	      double[] emissionproducts_combo_ntp1 = emissionproducts[traindataObservedIndex_nseq[ntp1]];
+	   //dloglike= 0;	  
+
+	   /*
+	   //for (int ni = 0; ni < emissionproducts.length; ni++)
+	  for (int ni = 0; ni < emissionproducts.length; ni++)
+          {
+             //going through each combination of marks
+	     //this signature of marks is observed on the current chromosome so
+	     //updating its emission probabilities
+             double[] emissionproducts_ni = emissionproducts[ni];
+	     boolean[] traindataObservedValues_ni = traindataObservedValues[ni];
+	     boolean[] traindataNotMissing_ni = traindataNotMissing[ni];		  
+
+	     boolean ballzero = true;
+
+             for (int ns = 0; ns < numstates; ns++)
+	     {
+                double dproduct = 1;
+	        double[][] emissionprobs_ns = emissionprobs[ns];
+
+		for (int nmod = 0; nmod < numdatasets; nmod++)
+	        {
+	     	   if (traindataNotMissing_ni[nmod])
+		   {
+		      //we are include this marks emission probability
+	              if (traindataObservedValues_ni[nmod])
+		      {
+		         //System.out.println("positive\t"+ns+"\t"+nmod+"\t1\t"+emissionprobs_ns[nmod][1]);
+		         dproduct *= emissionprobs_ns[nmod][1];
+		      }
+		      else 
+	              {
+		         ///System.out.println("negative\t"+ns+"\t"+nmod+"\t0\t"+emissionprobs_ns[nmod][0]);
+		         dproduct *= emissionprobs_ns[nmod][0];
+		      }
+		   }
+		   // otherwise treated as missing omitting from product
+		}
+	        //System.out.println(ns+"\t"+dproduct);
+	        emissionproducts_ni[ns] = dproduct;
+
+		if (dproduct >= EPSILONEMISSIONS)
+		{
+	      	   ballzero = false;
+	        }
+	     }
 
-	      for (int ns = 0; ns < numstates; ns++)
-	      {
-	         tempproductbetaemiss[ns] = beta_ntp1[ns]*emissionproducts_combo_ntp1[ns];
-	      }
+	     if (ballzero)
+	     {
+	        for (int ns = 0; ns < numstates; ns++)
+	        {
+	       	   emissionproducts_ni[ns] = EPSILONEMISSIONS;
+	        }
+	     }
+	  }
+	   */
 
-	      if (bscaleemissions)
-	      {
-		  //adding here to help numerical stability
-		  double dmaxval = 0;
-		  for (int ns = 0; ns < numstates; ns++)
-		  {
-		      if (tempproductbetaemiss[ns] > dmaxval)
-		      {
-			  dmaxval = tempproductbetaemiss[ns];
-		      }
-		  }
-                  for (int ns = 0; ns < numstates; ns++)
-		  {
-		      tempproductbetaemiss[ns] = tempproductbetaemiss[ns]/dmaxval;
-		  }
-	      }
+	  //stores in coltransitionprobs the transpose of transitionprobs
+          for (int ni = 0; ni < numstates; ni++)
+	  {
+             double[] coltransitionprobs_ni = coltransitionprobs[ni];
+	     for (int nj = 0; nj < numstates; nj++)
+	     {
+                coltransitionprobs_ni[nj] = transitionprobs[nj][ni];
+             }
+          }	     
+          updateCompressedTransitions();
 
-	      double dsumbeta = 0;
-	      //double dscaleinv = 1.0/scale[nt];
-	      double dscale_nt = scale[nt];
-              //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
-	      for (int ni = 0; ni < numstates; ni++)
-	      {
-	         double dtempsum = 0;
-	         int[] transitionprobsindex_ni =  transitionprobsindex[ni];
-	         double[] transitionprobs_ni = transitionprobs[ni];
-	         int transitionprobsnum_ni = transitionprobsnum[ni];
+          if (btiming)
+	  {
+	     theTrainingPool.resetTiming();
+	  }
 
-                 if (transitionprobsnum_ni < nsparsecutoff)
-	         {
-		    //sparse enought to pay the indirection penalty
-		    for (int nj = 0; nj < transitionprobsnum_ni; nj++)
-		    {
-		       //for each state summing over transition probability to state j, emission probablity in j at next step
-		       //and probability of observing the remaining sequence
-		       int nmappedindexouter = transitionprobsindex_ni[nj];
-		       dtempsum += transitionprobs_ni[nmappedindexouter]*tempproductbetaemiss[nmappedindexouter];
-		    }
-		 }
-		 else
-		 {
-		    //not trying to exploit sparsity here
-                    for (int nj = 0; nj < numstates; nj++)
-		    {
-		       //for each state summing over transition probability to state j, emission probablity in j at next step
-		       //and probability of observing the remaining sequence
-		       dtempsum += transitionprobs_ni[nj]*tempproductbetaemiss[nj];
-		    }
-		 }
+	  for (int nbin = 0; nbin < binstats.length; nbin++)
+	  {
+	     binstats[nbin].reset();
+	  }
 
-		 if (bscalebeta)
-		 {
-	            beta_nt[ni] = dtempsum;
-		    dsumbeta += dtempsum;
-		 }
-	         else
-		 {
-		    double dratio = dtempsum/dscale_nt;
+	  //the sequences are assigned to bins by their lengths alone so the sums do not depend on how the workers are scheduled
+	  int nincludeindex = 0;
+	  long numbins = 0;
+          for (int nseq = 0; nseq < chromfiles.length; nseq++)
+          {
+	     if (bincludeseq[nseq])
+	     {
+		numbins += numtime[nseq];
+		nbinlengths[nincludeindex] = numtime[nseq];
+		nincludeindex++;
+	     }
+	  }
+	  int[] nbinassignment = SufficientStatistics.assignBins(nbinlengths, albins.length);
 
-		    if (dratio > Double.MAX_VALUE)
-		    {
-		       beta_nt[ni] = Double.MAX_VALUE;// dtempsum/dscale_nt;
-		    }
-		    else
-		    {
-		       beta_nt[ni] = dratio;// dtempsum/dscale_nt;
-		    }
-		 }
-	      }
+          //for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
+	  nincludeindex = 0;
+          for (int nseq = 0; nseq < chromfiles.length; nseq++)
+          {
 
-	      if (bscalebeta)
-	      {
-                 for (int ni = 0; ni < numstates; ni++)
-	         {
-	            beta_nt[ni]/= dsumbeta;
+	     if (bincludeseq[nseq])
+	     {
+	        int numtime_nseq = numtime[nseq];
+	        String chromfiles_nseq = chromfiles[nseq];
+	       
+	        NewThreadWithLoad myNewThreadWithLoad = new NewThreadWithLoad(
+					 chromfiles_nseq,
+					 numtime_nseq,
+					 coltransitionprobs,
+					 nsparsecutoff,
+					 nsparsecutofflooser,
+					 dloglikeA,
+					 nincludeindex,
+					 thePrefetcher,
+					 nbinassignment[nincludeindex]);
+	           albins[nbinassignment[nincludeindex]].add(myNewThreadWithLoad);
+		   nincludeindex++;
+	     }	    
+	  }	
 
-		    if (beta_nt[ni] < EPSILONSTATE)//&&(!bdummy))// || (ni < numstates-1))) 
-		    {
-		       beta_nt[ni] = EPSILONSTATE;
-		    }
-		 }
-	      }		
-		
-	      ddenom = 0;
-		
-	      alpha_nt = alpha[nt];	    
+	  if (thePrefetcher != null)
+	  {
+	     //the sequences of each bin are read ahead in the order its worker goes through them
+	     String[][] binfiles = new String[albins.length][];
+	     for (int nbin = 0; nbin < albins.length; nbin++)
+	     {
+		binfiles[nbin] = new String[albins[nbin].size()];
+		for (int nindex = 0; nindex < binfiles[nbin].length; nindex++)
+		{
+		   binfiles[nbin][nindex] = ((NewThreadWithLoad) albins[nbin].get(nindex)).chromfiles_nseq;
+		}
+	     }
+	     thePrefetcher.setQueues(binfiles);
+	  }
 
-	      //gamma_nt - P(x=S| o_0,...,o_t)
-	      //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
+	  //queues each bin for the next available worker
+	  for (int nbin = 0; nbin < albins.length; nbin++)
+	  {
+	     if (albins[nbin].size() > 0)
+	     {
+	        theTrainingPool.submitBin(albins[nbin], binstats[nbin]);
+	     }
+	  }
+	   
+	  //waits for all the sequences of this iteration to be processed
+	  theTrainingPool.waitForAll();
 
-	      for (int ns = 0; ns < gamma_nt.length; ns++)
-	      {
-	         double dval = alpha_nt[ns]*beta_nt[ns];
-	         ddenom += dval;
-	         gamma_nt[ns] = dval;
-	      }
+	  for (int nbin = 0; nbin < albins.length; nbin++)
+	  {
+	     albins[nbin].clear();
+	  }
 
-	      if (ddenom > 0)
-	      {
-	         for (int ns = 0; ns < gamma_nt.length; ns++)
-	         {
-	            gamma_nt[ns] /= ddenom;
-		 }
-	      }
+	  SufficientStatistics.reduce(theTrainingPool, binstats);
+	  SufficientStatistics totalstats = binstats[0];
 
-              gammaObservedSum_combo_nt = gammaObservedSum[traindataObservedIndex_nseq[nt]];
+	  String szestepreport = null;
+	  if (bprinttiming)
+	  {
+	     szestepreport = theTrainingPool.getTimingSummary("E-step");
+	  }
 
-              for (int ns = 0; ns < numstates; ns++)
-	      {
-	         //first sum gamma over all common signatures
-		 //updates probability of observing the signature when in the state
-	         gammaObservedSum_combo_nt[ns] += gamma_nt[ns];
-	      }
+	  long[] lworkernanos = null;
+	  long lreadnanos = 0;
+	  if (theTelemetry != null)
+	  {
+	     lworkernanos = theTrainingPool.getComputeNanos();
+	     lreadnanos = theTrainingPool.getReadNanos();
+	  }
+	  long lmstepstart = System.nanoTime();
+	  int nelimstart = nelim;
 
-	      double dsum = 0;
-		  
-              //this compues the numerator portion
-	      for (int ni = 0; ni < numstates; ni++)
+	  String szrecomputereport = null;
+	  if (brecomputealpha)
+	  {
+	     szrecomputereport = getRecomputeSummary(theTrainingPool);
+	  }
+
+
+	  //normal EM
+	  //executes the M-step after any pass through a sequence after one pass has been made through all sequences
+          double dsum = 0;
+
+	  //updating the initial probabilities
+          for (int ni = 0; ni < numstates; ni++)
+	  {
+	     double dgammainitsum = totalstats.gammainit[ni];
+
+	     if ((bpseudo)&&(!bnopseudolast))
+	     {
+		dgammainitsum++;
+	     }
+	     probinit[ni] = dgammainitsum;
+             dsum += dgammainitsum;
+	  }
+ 
+	  for (int ni = 0; ni < numstates; ni++)
+          {
+             probinit[ni] /= dsum;		
+          }
+
+	  //this indicates if there is a change on the set of 0 probability transitions
+	  boolean bchange = false;
+	  for (int ni = 0; ni < transitionprobs.length; ni++)
+          {
+	      dsum = 0;
+	      //computes the denominator for the transition probabilities
+
+	      int[] transitionprobsindex_ni = transitionprobsindex[ni];
+	      double[] transitionprobs_ni =  transitionprobs[ni];
+	      int transitionprobsnum_ni = transitionprobsnum[ni];
+	      for (int nj = 0; nj < transitionprobsnum_ni; nj++)
+              {
+		  int ntransitionprobsindex_ni_nj = transitionprobsindex_ni[nj];
+		  double dsxistoreitr = totalstats.sxi[ni][ntransitionprobsindex_ni_nj];
+
+		  if (bpseudo)
+		  {
+		      //pseudo-count to avoid divide by zero
+		      dsxistoreitr++;
+		  }
+	          transitionprobs_ni[ntransitionprobsindex_ni_nj] = dsxistoreitr;
+
+	          dsum += dsxistoreitr;
+	      }
+	       
+              for (int nj = 0; nj < transitionprobsnum_ni; nj++)
 	      {
-	         double[] sumforsxi_ni = sumforsxi[ni]; //computing expected number of transition from state i
-	         int[] transitionprobsindex_ni = transitionprobsindex[ni]; //indicies of non-zero transitions from state i
-	         double[] transitionprobs_ni = transitionprobs[ni]; //probability of transitions from state i
-	         int ntransitionprobsnum_ni = transitionprobsnum[ni]; //number of non-zero transitions from state i
-	         double dalpha_nt_ni = alpha_nt[ni]; 
-	         //sxi is P(q_t = S_i, q_(t+1) = S_j | O)
+		  int ntransitionprobsindex_ni_nj = transitionprobsindex_ni[nj];
+		  //computes the updated transition probabilities
 
-                 if (ntransitionprobsnum_ni < nsparsecutofflooser)
-      	         {
-		    //enough 0 transitionto use sparsity here
-		    //looser cut off since the indirection is less of the total time
-	            for (int nj = 0; nj < ntransitionprobsnum_ni; nj++)
-		    {
-		       int nmappedindex = transitionprobsindex_ni[nj];
-		       //computes transition probability from state i to j
-		       double dtempval = transitionprobs_ni[nmappedindex] *dalpha_nt_ni*tempproductbetaemiss[nmappedindex];
-                       dsum += dtempval;
-	      	       sumforsxi_ni[nmappedindex] = dtempval;
-		    }
-		 }
-	         else
+	          transitionprobs_ni[ntransitionprobsindex_ni_nj] /= dsum;
+	    
+		  if ((transitionprobs_ni[ntransitionprobsindex_ni_nj] < dzerotransitioncutoff) && (ni != ntransitionprobsindex_ni_nj))
+	          {
+		      //if falls below threshold eliminate the transition probabilities
+		      elim[ni][ntransitionprobsindex_ni_nj] = true;
+	              bchange = true;
+	              nelim++;
+	              transitionprobs_ni[ntransitionprobsindex_ni_nj] = 0;
+	           }
+	      }
+	  }
+	       
+	      
+          if (bchange)
+	  {
+	     //a transition was eliminated we need to update the probabilities
+	     ntransitionstructureversion++;
+	     for (int ni = 0; ni < transitionprobs.length; ni++)
+             {
+		 int nindex = 0;		        
+		 double ddenom = 0;
+		 boolean[] elim_ni = elim[ni];
+		 double[] transitionprobs_ni = transitionprobs[ni];
+		 int[] transitionprobsindex_ni = transitionprobsindex[ni];
+		 for (int nj = 0; nj < transitionprobs_ni.length; nj++)
 	         {
-		    for (int nj = 0; nj < numstates; nj++)
+	            if (!elim_ni[nj])
 		    {
-		       //computes transition probability from state i to j
-		       double dtempval = transitionprobs_ni[nj]*dalpha_nt_ni*tempproductbetaemiss[nj];
-		       dsum += dtempval;
-		       sumforsxi_ni[nj] = dtempval;
+		       //we have not eliminated this transition
+		       //stores its index in order and add sum to denominator
+		       transitionprobsindex_ni[nindex] = nj;
+	               ddenom += transitionprobs_ni[nj];
+	               nindex++;
 		    }
 		 }
-	      }    	 
-		   
-	      if (dsum > 0)
-	      {
-	         //normalizing the numerator by the sum of the denominator and updating this iterations value for it
-	         for (int ni = 0; ni < numstates; ni++)
+
+		 //renormalize the transition probabilities by the sum of the non-eliminated transitions
+	         for (int nj = 0; nj < transitionprobs_ni.length; nj++)
 	         {
-		    int[] transitionprobsindex_ni = transitionprobsindex[ni];
-		    double[] sumforsxi_ni = sumforsxi[ni];
-		    double[] sxi_nseq_ni = sxi_nseq[ni];
-		    int ntransitionprobsnum_ni = transitionprobsnum[ni];
+	            transitionprobs_ni[nj] /= ddenom;
+	         }
+		 //update the number of valid transitions
+	         transitionprobsnum[ni] = nindex; 
+	     }
 
-                    if (ntransitionprobsnum_ni < nsparsecutoff)
-	            {
-		       //guessing sparse enough to avoid the indirections
-		       for (int nj = 0; nj < ntransitionprobsnum_ni; nj++)
-		       {
-	      	          int nmappedindex = transitionprobsindex_ni[nj];
-		          sxi_nseq_ni[nmappedindex] += sumforsxi_ni[nmappedindex]/dsum;
-		       }
-		    }
-	            else
+	     for (int ni = 0; ni < transitionprobs.length; ni++)
+             {
+		 int nindex =0;
+		 int[] transitionprobsindexCol_ni = transitionprobsindexCol[ni];
+		 for (int nj = 0; nj < transitionprobs[ni].length; nj++)
+	         {
+		    if (!elim[nj][ni])
 	            {
-                       for (int nj = 0; nj < numstates; nj++)
-	      	       {
-		          sxi_nseq_ni[nj] += sumforsxi_ni[nj]/dsum;
-		       }
+		       //copy into the column of i the index of all non-eliminated transitions of i
+	               transitionprobsindexCol_ni[nindex] = nj;
+	               nindex++;
 		    }
 		 }
-	      }   	 
-	      beta_ntp1 = beta_nt;  //updating beta_ntp1 
-	   }
+	         //updates the number of non-zero transitions from column i
+	         transitionprobsnumCol[ni] = nindex; 
+	     }
+	  }
+	    
+	  //updating the emission parameters
+	  for (int ns = 0; ns < numstates; ns++)
+          {
+	      double[][] emissionprobs_ns = emissionprobs[ns];
 
-	   //double[] gammainitstore_nseq = gammainitstore[nseq];
-	   for (int ns = 0; ns < numstates; ns++)
-	   {
-	      //storing the initial gamma from this iteration
-	      gammainitstore_nseq[ns] = gamma_nt[ns];
-	   }
 
-	  for (int nindex = 0; nindex < gammaObservedSum.length; nindex++)
-	  {
-	     //going through all the gamma sufficient statistic
-	     if (traindataObservedSeqFlags_nseq[nindex])
-	     {
-	        //only update for those combinations that were observed on this sequnce
-		//gets the observed combination and missing combination signatures
-	        boolean[] traindataObservedValues_nindex = traindataObservedValues[nindex];
-	        boolean[] traindataNotMissing_nindex = traindataNotMissing[nindex];
-	           
-		double[] gammaObservedSum_nindex = gammaObservedSum[nindex];
+	      for (int nmark = 0; nmark < emissionprobs_ns.length; nmark++)
+	      {
+		  double[] emissionprobs_ns_nmark = emissionprobs_ns[nmark];
+		  //can't used a general gamma sum because of missing emission vals
+		  double dgammadenom = 0;
 
-		for (int ns = 0; ns < numstates; ns++)
-	        {
-	           //going through each state
-		   double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
-	           double gammaObservedSum_nindex_ns = gammaObservedSum_nindex[ns];
-		   for (int nmark = 0; nmark < numdatasets; nmark++)
-	           {
-		      //going through each mark
-		      if (traindataNotMissing_nindex[nmark])
+	          //updates gamma sum
+                  for (int nbucket = 0; nbucket < numbuckets; nbucket++)
+		  {
+		      emissionprobs_ns_nmark[nbucket] = totalstats.gammaksum[ns][nmark][nbucket];
+
+		      if ((bpseudo) && ((!bnopseudolast)||(nmark<emissionprobs_ns.length-1)))
 		      {
-		         //only update non-missing
-		         if (traindataObservedValues_nindex[nmark])
-		         {
-		            //updates the gamma sum for each mark when in state and observed 1
-		            gammaksum_nseq_ns[nmark][1] += gammaObservedSum_nindex_ns;
-			 }
-		         else
-		         {
-		    	    //updates the gamma sum for each mark when in state and observed 0
-		            gammaksum_nseq_ns[nmark][0] += gammaObservedSum_nindex_ns;
-			 }
+			  emissionprobs_ns_nmark[nbucket]++;
 		      }
-		   }
-		}
-	     }
+		      dgammadenom += emissionprobs_ns_nmark[nbucket];
+		  }
+
+		  //added to avoid NA
+		  if (dgammadenom > 0)
+	          {
+	             for (int nbucket = 0; nbucket < numbuckets; nbucket++)
+	             {
+	                emissionprobs_ns_nmark[nbucket] /= dgammadenom;
+		     }
+		  }
+	      }
 	  }
-          dloglikeA[nseq] = dloglikeseq;	
-	}
-    }
+       
+
+          if (ChromHMM.BVERBOSE)
+          {
+             System.out.println("\t"+niteration+"\t"+dloglike);
+	  }	     
 
-    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
+	  dloglike = 0;
+	  for (int nindex = 0; nindex < dloglikeA.length; nindex++)
+	  {
+	      //if (bincludeseq[nindex])
+	      {
+	         dloglike += dloglikeA[nindex];
+	      }
+	  }
+    
+	  long lmstepend = System.nanoTime();
+	  double ddiff =(dloglike-dprevloglike);
 
 
+	  //dconvergediff is only enforced if greater thanor equal to 0
+          dprevloglike = dloglike;       
 
-    /////////////////////////////////////////////////////////////////////////////////////////////////////////
+	  if (borderrows)
+	  {
+	     makeStateOrdering();
+	  }
 
-    // Create a new thread.
-    class NewThreadWithLoad implements Runnable 
-    {
-       
-	//int[] traindataObservedIndex_nseq;
-	//boolean[] traindataObservedSeqFlags_nseq;
-	double[][][] gammaksum_nseq;
-	double[][] sxi_nseq;
-	int numtime_nseq;
-	String chromfiles_nseq;
-	double[] gammainitstore_nseq;
-	double[][][] gammaObservedSum_Pool;
-	double[][][] alpha_Pool;
-	//double[][] emissionproducts;
-	double[][] gamma_nt_Pool;
-	double[][] coltransitionprobs;
-	double[][] scale_Pool;
-	double[][] beta_nt_Pool;
-	double[][] beta_ntp1_Pool;
-	double[][] tempproductbetaemiss_Pool;
-	int nsparsecutoff;
-	int nsparsecutofflooser;
-	double[][][] sumforsxi_Pool;
-	double[] dloglikeA;
-	int nseq;
+	  if (bordercols)
+	  {
+	     makeColOrdering();
+	  }
+	  //updates after each iteration the current status of the search
+          printTransitionTable(niteration);
+          printEmissionTable(niteration);
 
-	int[][] traindataObservedIndex_Pool;
-        boolean[][][] traindataObservedValues_Pool;
-        boolean[][][] traindataNotMissing_Pool;
-	double[][][] emissionproducts_Pool;
-        double[][] emissionproducts_scale_Pool;
+	  if (bprintimage)
+	  {
+             printEmissionImage(niteration);
+             printTransitionImage(niteration);
+	  }
+	  printParametersToFile(niteration);
 
+	  //we just completed a full iteration
+          long ltimefinal =  System.currentTimeMillis();	  
+	  double dtimechange = (ltimefinal-ltimeitr)/(double) 1000;
+          bconverged = (((niteration >= nmaxiterations)||((ddiff< dconvergediff)&&(dconvergediff>=0)))||((dtimechange>nmaxseconds)&&(nmaxseconds>=0)));	  
+          if (ChromHMM.BVERBOSE)
+	  {
+	     System.out.println(niteration+"\tTime Iteration\t"+dtimechange+"\t"+"\tElim\t"+nelim);
+	     System.out.println("Full "+niteration+"\t"+dloglike+"\t"+dprevloglike+"\t"+ddiff);        
+	  }
 
-	NewThreadWithLoad(
-                          String chromfiles_nseq,
-                          int[][] traindataObservedIndex_Pool,
-			  boolean[][][] traindataObservedValues_Pool,
-			  boolean[][][] traindataNotMissing_Pool,
-			  //boolean[] traindataObservedSeqFlags_nseq,
-		  double[][][] gammaksum_nseq,
-		  double[][] sxi_nseq,
-		  int numtime_nseq,
-		  double[] gammainitstore_nseq,
-		  double[][][] gammaObservedSum_Pool,
-		  double[][][] alpha_Pool,
-		  double[][][] emissionproducts_Pool,
-		  double[][] gamma_nt_Pool,
-		  double[][] coltransitionprobs,
-		  double[][] scale_Pool,
-		  double[][] beta_nt_Pool,
-		  double[][] beta_ntp1_Pool,
-		  double[][] tempproductbetaemiss_Pool,
-		  double[][][] sumforsxi_Pool,
-		  int nsparsecutoff,
-		  int nsparsecutofflooser,
-		  double[] dloglikeA,
-		  int nseq,
-                  double[][] emissionproducts_scale_Pool)
-        {
-	    this.emissionproducts_Pool = emissionproducts_Pool;
-            this.emissionproducts_scale_Pool = emissionproducts_scale_Pool;
-	    this.chromfiles_nseq = chromfiles_nseq;
-	    this.traindataObservedIndex_Pool = traindataObservedIndex_Pool;
-	    this.traindataObservedValues_Pool = traindataObservedValues_Pool;
-	    this.traindataNotMissing_Pool = traindataNotMissing_Pool;
-	    //this.traindataObservedIndex_nseq = traindataObservedIndex_nseq;
-	    //this.traindataObservedSeqFlags_nseq = traindataObservedSeqFlags_nseq;
-	    this.gammaksum_nseq = gammaksum_nseq;
-	    this.sxi_nseq = sxi_nseq;
-	    this.numtime_nseq = numtime_nseq;
-	    this.gammainitstore_nseq = gammainitstore_nseq;
-	    this.gammaObservedSum_Pool = gammaObservedSum_Pool;
-	    this.alpha_Pool = alpha_Pool;
-	    //this.emissionproducts = emissionproducts;
-	    this.gamma_nt_Pool = gamma_nt_Pool;
-	    this.coltransitionprobs = coltransitionprobs;
-	    this.scale_Pool = scale_Pool;
-	    this.beta_nt_Pool = beta_nt_Pool;
-	    this.beta_ntp1_Pool = beta_ntp1_Pool;
-	    this.tempproductbetaemiss_Pool = tempproductbetaemiss_Pool;
-	    this.nsparsecutoff = nsparsecutoff;
-	    this.nsparsecutofflooser = nsparsecutofflooser;
-	    this.sumforsxi_Pool = sumforsxi_Pool;
-	    this.dloglikeA = dloglikeA;
-	    this.nseq = nseq;
-	}
 
-	private int slotavailable()
-	{
-	   for (int ni = 0; ni < threadslots.length; ni++)
-	   {
-	      if (!threadslots[ni])
-	      {
-	         threadslots[ni] = true;
-	         return ni;
-	      }
-	   }
-	   return -1;	    
-	}
+	  printIterationProgress(niteration, ddiff, dtimechange, nf3, nf1);
+	  numiterations = niteration;
 
-	// This is the entry point for the second thread.
-	public void run() 
-        {
-	    int nprocess;
+	  if (isCheckpointDue(niteration, llastcheckpoint, bconverged))
+	  {
+	     TrainingCheckpoint.write(getCheckpointFile(), this, niteration, dloglike, nelim, ltimefinal-ltimeitr);
+	     llastcheckpoint = System.currentTimeMillis();
+	  }
 
-	    synchronized (objlock)
-	    {
-	       while ((nprocess=slotavailable())==-1)
-	       {
-                  try
-                  {
-	             objlock.wait();
-	          }
-	          catch (InterruptedException ex) {}
-	       }
-	    }
+	  if (theTelemetry != null)
+	  {
+	     theTelemetry.writeIteration(this, niteration, dloglike, ddiff, dtimechange, (lmstepstart-lestepstart)/1e9, (lmstepend-lmstepstart)/1e9,
+					 (System.nanoTime()-lmstepend)/1e9, lreadnanos/1e9, lworkernanos, numbins, nelim-nelimstart, nelim);
+	  }
+
+	  if (bprinttiming)
+	  {
+	     System.out.println("    Iteration "+niteration+" "+szestepreport);
+	     if (brecomputealpha)
+	     {
+	        System.out.println("    Iteration "+niteration+" "+szrecomputereport);
+	     }
+	  }
+	  niteration++;
+       }
+       while (!bconverged);
+
+       theTrainingPool.shutdown();
+       if (thePrefetcher != null)
+       {
+          thePrefetcher.close();
+       }
 
-            try
-            {
+       if (brecomputealpha)
+       {
+	  System.out.println("Forward value checkpointing "+formatRecompute(ntotalforward, ntotalrecomputed, ltotalrecomputenanos));
+       }
+    }
 
-  	       estep(
-		  emissionproducts_Pool[nprocess],
-		  traindataObservedIndex_Pool[nprocess],
-		  traindataObservedValues_Pool[nprocess],
-		  traindataNotMissing_Pool[nprocess],
-                  gammaObservedSum_Pool[nprocess],
-		  alpha_Pool[nprocess],
-		  gamma_nt_Pool[nprocess],
-		  scale_Pool[nprocess],
-		  beta_nt_Pool[nprocess],
-		  beta_ntp1_Pool[nprocess],
-		  tempproductbetaemiss_Pool[nprocess],
-		  sumforsxi_Pool[nprocess],
-                  emissionproducts_scale_Pool[nprocess]);
-	    }
-	    catch (IOException ioex)
-	    {
-		ioex.printStackTrace(System.out);
-	    }
-	    
-	    synchronized(objlock)
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /**
+     * Recomputes in emissionproducts the product of the emission probabilities of each state for the combinations
+     * of marks from nstartcombo up to but not including nendcombo, along with their scale in emissionproducts_scale
+     * if bscaleemissions is set. Different ranges of combinations can be updated at the same time.
+     */
+    void updateEmissionProducts(double[][] emissionproducts, double[] emissionproducts_scale, int nstartcombo, int nendcombo)
+    {
+	for (int ni = nstartcombo; ni < nendcombo; ni++)
+	{
+	    double dscale = computeEmissionProduct(ni, emissionproducts[ni]);
+	    if (bscaleemissions)
 	    {
-		nlaunched--;
-		threadslots[nprocess] = false;
-		objlock.notifyAll();
+		emissionproducts_scale[ni] = dscale;
 	    }
 	}
+    }
 
-        public void estep(
-		  double[][] emissionproducts,
-		  int[] traindataObservedIndex,
-		  boolean[][] traindataObservedValues,
-		  boolean[][] traindataNotMissing,
-		  double[][] gammaObservedSum,
-		  double[][] alpha,
-		  double[] gamma_nt,
-		  double[] scale,
-		  double[] beta_nt,
-		  double[] beta_ntp1,
-		  double[] tempproductbetaemiss,
-		  double[][] sumforsxi,
-                  double[] emissionproducts_scale) throws IOException
-	{ 
-	      //going through each sequence
-
-	      ///////////////////////////////////////////////////////////
-	      //loading the data just for the current chromosome 
-
-	      HashMap hmObserved = new HashMap(); //maps an observation string to an index and set of flags
- 
-    	      int nobserved = 0;
+    /**
+     * Stores in emissionproducts_ni the product of the emission probabilities of each state for combination of marks ni.
+     * If bscaleemissions is set the products are rescaled as each mark is included and the log of the scale is returned,
+     * otherwise 0 is returned.
+     */
+    double computeEmissionProduct(int ni, double[] emissionproducts_ni)
+    {
+	boolean[] traindataObservedValues_ni = traindataObservedValues[ni];
+	boolean[] traindataNotMissing_ni = traindataNotMissing[ni];
 
-	      if (ChromHMM.BVERBOSE)
-	      {
-                 System.out.println("reading\t"+szinputdir+" "+chromfiles_nseq);
-	      }
+	if (bscaleemissions)
+	{
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		emissionproducts_ni[ns] = 1;
+	    }
+	    double dscale = 0;
 
-	      BufferedReader br = Util.getBufferedReader(szinputdir+"/"+chromfiles_nseq);
-              String szLine; 
-              br.readLine(); //first line tells cell type and chromosome
-	      br.readLine();//flush mark header
-	      ArrayList aldata = new ArrayList();
-	      while ((szLine = br.readLine())!=null)
-	      {
-	         StringTokenizer st = new StringTokenizer(szLine,"\t ");
-		 StringBuffer sb = new StringBuffer();
-		
-		 for (int ncol = 0; ncol < numdatasets; ncol++)
-		 {
-		    if (!st.hasMoreTokens())
+	    for (int nmod = 0; nmod < numdatasets; nmod++)
+	    {
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    if (traindataNotMissing_ni[nmod])
 		    {
-	      	       throw new IllegalArgumentException("Found line without "+numdatasets+" values in file "+chromfiles_nseq);
+			//we are include this marks emission probability
+			if (traindataObservedValues_ni[nmod])
+			{
+			    emissionproducts_ni[ns] *= emissionprobs[ns][nmod][1];
+			}
+			else
+			{
+			    emissionproducts_ni[ns] *= emissionprobs[ns][nmod][0];
+			}
 		    }
+		    // otherwise treated as missing omitting from product
+		}
 
-		    String sztoken = st.nextToken();//.trim();
-		    
-		    if (sztoken.equals("0"))
+		double dmaxval = 0;
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    if (emissionproducts_ni[ns] > dmaxval)
 		    {
-		       sb.append("0");
+			dmaxval = emissionproducts_ni[ns];
 		    }
-		    else if (sztoken.equals("1"))
+		}
+
+		if (dmaxval <= 0)
+		{
+		    for (int ns = 0; ns < numstates; ns++)
 		    {
-		       sb.append("1");
+			emissionproducts_ni[ns] = 1;
 		    }
-		    else if (sztoken.equals("2"))
+		    //approximating log-likelihood
+		    dscale += Math.log(EPSILONEMISSIONS);
+		}
+		else
+		{
+		    for (int ns = 0; ns < numstates; ns++)
 		    {
-		       //this means missing
-	               sb.append("2");
+			emissionproducts_ni[ns]/= dmaxval;
 		    }
-		    else
-	            {
-	               throw new IllegalArgumentException("Unrecognized value "+sztoken+" found in "+szinputdir+"/"+chromfiles_nseq);
-	            }
-		 }
-		 aldata.add(sb.toString());
-	      }
-	      br.close();
-	      
-	      int nsize = aldata.size();
-	      //traindataObservedIndex[nfile] = new int[nsize];
-	      //int[] traindataObservedIndex_nfile = traindataObservedIndex[nfile];
-
-	      for (int nrow = 0; nrow < nsize; nrow++)
-	      {
-	         BigInteger theBigInteger = new BigInteger((String) aldata.get(nrow),3);
-		 Integer theObservedInt  = (Integer) hmObserved.get(theBigInteger);
-	         //boolean[] flagA;
-
-	         if (theObservedInt == null)
-       	         {
-		    //System.out.println(szmappingbyte.length());
-		    //storing a mapping from observed byte string to an integer index in alFlags and alObserved
-		     hmObserved.put(theBigInteger, Integer.valueOf(nobserved));
-
-		    //saving this observed index
-		    traindataObservedIndex[nrow] = nobserved;
-
-		    //increments the number of observed combinations of marks
-		    nobserved++;
-		 }
-		 else
-		 {
-		    //storing the index of the flags associated with this row 
-		     traindataObservedIndex[nrow] = ((Integer) theObservedInt).intValue();
-		 }
-	      }	  	 
-	   
-
-
-	     Iterator hmObservedIterator = hmObserved.entrySet().iterator();
-	     while (hmObservedIterator.hasNext())
-	     {
-	        Map.Entry pairs = (Map.Entry) hmObservedIterator.next();
-	        BigInteger theBigInteger = (BigInteger) pairs.getKey();
-	        String szmapping = theBigInteger.toString(3);  //getting back the mapping string
-
-	        //ObservedRec theObservedRec = (ObservedRec) pairs.getValue();
-
-	        int ncurrindex = ((Integer) pairs.getValue()).intValue();// theObservedRec.nobserved;//this is an index on which obervation combination it is
-
-	        boolean[] traindataObservedValues_ncurrindex = traindataObservedValues[ncurrindex];
-	        boolean[] traindataNotMissing_ncurrindex = traindataNotMissing[ncurrindex]; 
-	    
-	        //if the mapping string is less than the number of data sets then 
-	        //there are leading 0's will set for leading 0's not missing and absent
-	        int numch = szmapping.length();
-	        int numleading0 = numdatasets - numch;
-	        for (int nj = 0; nj < numleading0; nj++)
-	        {
-		   traindataObservedValues_ncurrindex[nj] = false;
-		   traindataNotMissing_ncurrindex[nj] = true;
+		    dscale += Math.log(dmaxval);
 		}
+	    }
+	    return dscale;
+	}
+	else
+	{
+	    boolean ballzero = true;
 
-	        int nmappedindex = numleading0; //starting from the leading 0 position
-	        for (int nj = 0; nj < numch; nj++)
-	        {
-	           char ch = szmapping.charAt(nj);
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		double dproduct = 1;
+		double[][] emissionprobs_ns = emissionprobs[ns];
 
-	           if (ch == '0')
-	           {
-		      traindataObservedValues_ncurrindex[nmappedindex] = false;
-		      traindataNotMissing_ncurrindex[nmappedindex] = true;
-		   }
-	           else if (ch=='1')
-	           {
-		      traindataObservedValues_ncurrindex[nmappedindex] = true;
-		      traindataNotMissing_ncurrindex[nmappedindex] = true;
-		   }
-	           else
-	           {
-		      //missing data
-		      traindataObservedValues_ncurrindex[nmappedindex] = false;
-		      traindataNotMissing_ncurrindex[nmappedindex] = false;
-		   }
-	           nmappedindex++;
+		for (int nmod = 0; nmod < numdatasets; nmod++)
+		{
+		    if (traindataNotMissing_ni[nmod])
+		    {
+			//we are include this marks emission probability
+			if (traindataObservedValues_ni[nmod])
+			{
+			    dproduct *= emissionprobs_ns[nmod][1];
+			}
+			else
+			{
+			    dproduct *= emissionprobs_ns[nmod][0];
+			}
+		    }
+		    // otherwise treated as missing omitting from product
 		}
-	     }     
+		emissionproducts_ni[ns] = dproduct;
 
-	     if (bscaleemissions)
-	     {
-	        for (int ni = 0; ni < nobserved; ni++)
+		if (dproduct >= EPSILONEMISSIONS)
 		{
-		   //going through each combination of marks
-		   //if (traindataObservedSeqFlags_nseq[ni])
-		   //{
-		   //this signature of marks is observed on the current chromosome so
-		   //updating its emission probabilities
-		   double[] emissionproducts_ni = emissionproducts[ni];
-		   boolean[] traindataObservedValues_ni = traindataObservedValues[ni];
-		   boolean[] traindataNotMissing_ni = traindataNotMissing[ni];
-
-		   for (int ns = 0; ns < numstates; ns++)
-		   {
-		      emissionproducts_ni[ns] = 1;
-		   }
-		   emissionproducts_scale[ni] = 0;
-
-		   for (int nmod = 0; nmod < numdatasets; nmod++)
-		   {
-		      for (int ns = 0; ns < numstates; ns++)
-		      {
-		         if (traindataNotMissing_ni[nmod])
-			 {
-			    //we are include this marks emission probability
-			    if (traindataObservedValues_ni[nmod])
-			    {
-				emissionproducts_ni[ns] *= emissionprobs[ns][nmod][1];
-			    }
-			    else
-			    {
-				emissionproducts_ni[ns] *= emissionprobs[ns][nmod][0];
-			    }
-			 }
-					 // otherwise treated as missing omitting from product
-		      }
-
-		      
-		      double dmaxval = 0;
-		      for (int ns = 0; ns < numstates; ns++)
-		      {
-		         if (emissionproducts_ni[ns] > dmaxval)
-			 {
-			    dmaxval = emissionproducts_ni[ns];
-			 }
-		      }
-
-		      if (dmaxval <=0)///EPSILONEMISSIONS)
-		      {
-		         for (int ns = 0; ns < numstates; ns++)
-		         {
-		            emissionproducts_ni[ns] = 1;
-		         }
-			 //approximating log-likelihood
-	      	         emissionproducts_scale[ni] += Math.log(EPSILONEMISSIONS);
-		      }
-		      else
-		      {
-		         for (int ns = 0; ns < numstates; ns++)
-			 {
-		            emissionproducts_ni[ns]/= dmaxval;
-			 }
-			 emissionproducts_scale[ni] += Math.log(dmaxval);			  
-		      }		      	      
-		   }		
+		    ballzero = false;
 		}
-	     }
-	     else
-	     {
-	        for (int ni = 0; ni < nobserved; ni++)
-	        {
-	           //going through each combination of marks
-	           //if (traindataObservedSeqFlags_nseq[ni])
-		   //{
-	           //this signature of marks is observed on the current chromosome so
-       	           //updating its emission probabilities
-       	           double[] emissionproducts_ni = emissionproducts[ni];
-      	           boolean[] traindataObservedValues_ni = traindataObservedValues[ni];
-       	           boolean[] traindataNotMissing_ni = traindataNotMissing[ni];		  
-
-	           boolean ballzero = true;
-
-	           for (int ns = 0; ns < numstates; ns++)
-	           {
-	              double dproduct = 1;
-	              double[][] emissionprobs_ns = emissionprobs[ns];
-
-		      for (int nmod = 0; nmod < numdatasets; nmod++)
-	              {
-		         if (traindataNotMissing_ni[nmod])
-	      	         {
-		            //we are include this marks emission probability
-		            if (traindataObservedValues_ni[nmod])
-		            {
-		      	       //System.out.println("positive\t"+ns+"\t"+nmod+"\t1\t"+emissionprobs_ns[nmod][1]);
-		               dproduct *= emissionprobs_ns[nmod][1];
-		            }
-		            else 
-		            {
-		      	       ///System.out.println("negative\t"+ns+"\t"+nmod+"\t0\t"+emissionprobs_ns[nmod][0]);
-		               dproduct *= emissionprobs_ns[nmod][0];
-			    }
-			 }
-			   // otherwise treated as missing omitting from product
-		      }
-		      //System.out.println(ns+"\t"+dproduct);
-		      emissionproducts_ni[ns] = dproduct;
-
-		      if (dproduct >= EPSILONEMISSIONS)
-		      {
-	                 ballzero = false;
-		      }
-		   }
+	    }
 
-		   if (ballzero)
-	           {
-	              for (int ns = 0; ns < numstates; ns++)
-		      {
-		         emissionproducts_ni[ns] = EPSILONEMISSIONS;
-		      }
-		   }
+	    if (ballzero)
+	    {
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    emissionproducts_ni[ns] = EPSILONEMISSIONS;
 		}
-	     }
+	    }
+	    return 0;
+	}
+    }
+
+    /**
+     * Executes the M-step from the sufficient statistics summed over all the included sequences in totalstats.
+     * The transitions out of each state and the emissions of each state are updated on the workers of theTrainingPool.
+     * Returns the number of transitions that fell below dzerotransitioncutoff and were eliminated.
+     */
+    int maximizeParameters(TrainingPool theTrainingPool, SufficientStatistics totalstats, double dzerotransitioncutoff) throws IOException
+    {
+	double dsum = 0;
 
+	//updating the inital probabilities
+	double[] dgammainitsum = new double[numstates];
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    dgammainitsum[ni] = totalstats.gammainit[ni];
 
+	    if ((bpseudo)&&(!bnopseudolast))
+	    {
+		dgammainitsum[ni]++;
+	    }
 
-	   double dloglikeseq = 0;
+	    if ((deadstates != null)&&(deadstates[ni]))
+	    {
+		//a dropped state is not started in
+		dgammainitsum[ni] = 0;
+	    }
+	    dsum += dgammainitsum[ni];
+	}
 
-	   for (int ns = 0; ns < gammaksum_nseq.length; ns++)
-	   {
-	      //resetting the gamma sufficient statistics in the current sequence
-	      double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
-	      for (int nmark = 0; nmark < gammaksum_nseq_ns.length; nmark++)
-	      {
-	         for (int nbucket = 0; nbucket < numbuckets; nbucket++)
-	         {
-	            gammaksum_nseq_ns[nmark][nbucket] = 0;
-	         }
-	      }
-           }
+	//the initial probabilities are kept if no sequence start has been seen, as for a mini-batch of blocks within sequences
+	if (dsum > 0)
+	{
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		probinit[ni] = dgammainitsum[ni]/dsum;
+	    }
+	}
 
-	   for (int ni = 0; ni < sxi_nseq.length; ni++)
-	   {
-	      //reseeting the sxi sufficient statistics in the current sequence
-	      double[] sxi_nseq_ni = sxi_nseq[ni];
-	      for (int nj = 0; nj < sxi_nseq_ni.length; nj++)
-	      {
-                 sxi_nseq_ni[nj] = 0;
-	      }
-	   }
+	final double[][] fsxi = totalstats.sxi;
+	final double[][][] fgammaksum = totalstats.gammaksum;
+	final double fdzerotransitioncutoff = dzerotransitioncutoff;
+	final int[] nelimstate = new int[numstates];
+	theTrainingPool.runRanges(numstates, new TrainingPool.RangeTask()
+	    {
+		void run(int nstart, int nend)
+		{
+		    for (int ns = nstart; ns < nend; ns++)
+		    {
+			if ((deadstates != null)&&(deadstates[ns]))
+			{
+			    //a dropped state keeps its parameters from when it was dropped
+			    continue;
+			}
+			nelimstate[ns] = updateTransitionRow(ns, fsxi, fdzerotransitioncutoff);
+			updateEmissionState(ns, fgammaksum);
+		    }
+		}
+	    });
 
-	   //gammaObservedSum stores the weight for each combination of marks in each stat
-	   //for (int ncombo = 0; ncombo < gammaObservedSum.length; ncombo++)
-	   for (int ncombo = 0; ncombo < nobserved; ncombo++)
-	   {
-	      //resetting that to 0
-	      double[] gammaObservedSum_ncombo = gammaObservedSum[ncombo];
-	      for (int ns = 0; ns < gammaObservedSum_ncombo.length; ns++)
-	      {
-	         gammaObservedSum_ncombo[ns] = 0;
-	      }
-	   }
+	//the number of transitions that became 0, any of which changes the set of 0 probability transitions
+	int numelim = 0;
+	for (int ns = 0; ns < numstates; ns++)
+	{
+	    numelim += nelimstate[ns];
+	}
 
-	   //initial probability in state s is initial probability times emission probability at first position
-	   double[] alpha_nt = alpha[0];
-           double dscale = 0;
-	   double[] emissionproducts_nobserveindex =emissionproducts[traindataObservedIndex[0]];
- 	   for (int ns = 0; ns < numstates; ns++)
-           {
-	      alpha_nt[ns] = probinit[ns] * emissionproducts_nobserveindex[ns];
-	      //System.out.println(ns+"\t"+alpha_nt[ns]);
-	      dscale += alpha_nt[ns];
-	   }
-	   scale[0] = dscale;
+	if (ndeadstatepower > 0)
+	{
+	    numelim += dropDeadStates(totalstats.sxi, Math.pow(10,-ndeadstatepower));
+	}
 
-	   //alpha_t(s)=P(o_0,...,o_t,x_t=s|lambda)
-	   //converts the alpha terms to probabilities
-	   if (bscalebeta)
-           {
-	      if (dscale == 0)
-	      {
-	         for (int ns = 0; ns < numstates; ns++)
-		 {
-		    //added
-		    if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
+	if (numelim > 0)
+	{
+	    //a transition was eliminated we need to update the probabilities
+	    for (int ni = 0; ni < transitionprobs.length; ni++)
+	    {
+		double ddenom = 0;
+		boolean[] elim_ni = elim[ni];
+		double[] transitionprobs_ni = transitionprobs[ni];
+		for (int nj = 0; nj < transitionprobs_ni.length; nj++)
+		{
+		    if (!elim_ni[nj])
 		    {
-		       alpha_nt[ns] = EPSILONSTATE;
-	       	       dscale += EPSILONSTATE;
-	            }
-	         }
-	         scale[0] = dscale;
-	      }
+			//we have not eliminated this transition add sum to denominator
+			ddenom += transitionprobs_ni[nj];
+		    }
+		}
 
-	      for (int ns = 0; ns < numstates; ns++)
-	      {
-                 alpha_nt[ns] /= dscale;
+		//renormalize the transition probabilities by the sum of the non-eliminated transitions
+		for (int nj = 0; nj < transitionprobs_ni.length; nj++)
+		{
+		    transitionprobs_ni[nj] /= ddenom;
+		}
+	    }
+	    updateTransitionIndices();
+	}
 
-  		 if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
-	         {
-	            alpha_nt[ns] = EPSILONSTATE;
-		 }
-	      }
-	   }
-	   else
-	   {
-	      for (int ns = 0; ns < numstates; ns++)
-	      {
-                 alpha_nt[ns] /= dscale;
-	      }
-	   }
-	     
+	return numelim;
+    }
 
+    /**
+     * Drops from training the states whose initial probability, share of the expected transitions in sxi out of the state,
+     * and share of those into it from other states are all below dcutoff, keeping at least one state. The transitions into and out of a dropped state other than its self
+     * transition are eliminated and its initial probability set to 0, so it can no longer be reached, and the sparse forward-backward
+     * loops over the non-eliminated transitions only spend a single self transition on it. Only these transition terms are removed,
+     * the emission products, posteriors and their statistics, and the dense transition rows used above the sparse cutoff still
+     * cover all numstates states. Its emission probabilities are kept so the model is still written with all its states. Returns the number of transitions eliminated, in which case the caller
+     * must renormalize the transition probabilities and update the transition indices.
+     */
+    int dropDeadStates(double[][] sxi, double dcutoff)
+    {
+	if (deadstates == null)
+	{
+	    deadstates = new boolean[numstates];
+	}
 
-	   dloglikeseq += Math.log(dscale); 
+	//the expected transitions out of each state and into it from other states
+	double[] doccupancy = new double[numstates];
+	double[] dentries = new double[numstates];
+	double dtotal = 0;
+	int numactive = 0;
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    double[] sxi_ni = sxi[ni];
+	    for (int nj = 0; nj < numstates; nj++)
+	    {
+		doccupancy[ni] += sxi_ni[nj];
+		if (nj != ni)
+		{
+		    dentries[nj] += sxi_ni[nj];
+		}
+	    }
+	    dtotal += doccupancy[ni];
 
-           if (bscaleemissions)
-	   {
-	      dloglikeseq += emissionproducts_scale[traindataObservedIndex[0]];
-	   }
+	    if (!deadstates[ni])
+	    {
+		numactive++;
+	    }
+	}
 
-	   //forward step
-	   //int numtime_nseq = numtime[nseq];
-	   for (int nt = 1; nt < numtime_nseq; nt++)
-	   {
-	      //the actual observed combination at position t	        
-	      double[] alpha_ntm1 = alpha[nt-1];
-	      alpha_nt = alpha[nt];
-	      
-	      dscale = 0;
-	      emissionproducts_nobserveindex = emissionproducts[traindataObservedIndex[nt]];
+	int numelim = 0;
+	boolean bdropped = false;
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    if ((!deadstates[ni])&&(numactive > 1)&&(probinit[ni] < dcutoff)&&(doccupancy[ni] < dcutoff*dtotal)&&(dentries[ni] < dcutoff*dtotal))
+	    {
+		if (ChromHMM.BVERBOSE)
+		{
+		    System.out.println("Dropping state "+(ni+1)+" with initial probability "+probinit[ni]+" and expected transitions "+doccupancy[ni]+" of "+dtotal);
+		}
 
-	      for (int ns = 0; ns < numstates; ns++)
-	      {
-	         //stores the emission product for each location on the chromosome		   
+		deadstates[ni] = true;
+		numactive--;
+		bdropped = true;
 
-		 int transitionprobsnumCol_ns = transitionprobsnumCol[ns];
-	         int[] transitionprobsindexCol_ns = transitionprobsindexCol[ns];
-	         double[] coltransitionprobs_ns = coltransitionprobs[ns];
+		for (int nj = 0; nj < numstates; nj++)
+		{
+		    if (nj != ni)
+		    {
+			if (!elim[ni][nj])
+			{
+			    elim[ni][nj] = true;
+			    numelim++;
+			}
+			transitionprobs[ni][nj] = 0;
 
-	         double dtempsum = 0;
-                 if (transitionprobsnumCol_ns < nsparsecutoff)
-		 {
-	            //number of transitions is sparse enough worth going through the extra redirection
-	            for (int nj = 0; nj < transitionprobsnumCol_ns; nj++)
-	            {
-	               //for each next state computing inner sum of all previous alpha and the transition probability
-	               //for all non-zero transitions into the state
-	               int nmappedindex = transitionprobsindexCol_ns[nj];
-	               dtempsum += coltransitionprobs_ns[nmappedindex]*alpha_ntm1[nmappedindex];
-	            }
-		 }
-		 else
-	         {
-	            //avoid the redirect and multiply by 0
-                    for (int nj = 0; nj < numstates; nj++)
-	            {
-	               dtempsum += coltransitionprobs_ns[nj]*alpha_ntm1[nj];
-	            }
-		 }
-	         //multiply the transition sum by the emission probability
-	         double dalphaval = dtempsum*emissionproducts_nobserveindex[ns];
-	         alpha_nt[ns] = dalphaval;
-	         //System.out.println(ns+"\t"+alpha_nt[ns]+"\t"+dtempsum+"\t"+emissionproducts_nobserveindex[ns]);
-	         dscale += dalphaval;
-	      }
+			if (!elim[nj][ni])
+			{
+			    elim[nj][ni] = true;
+			    numelim++;
+			}
+			transitionprobs[nj][ni] = 0;
+		    }
+		}
+		transitionprobs[ni][ni] = 1;
+		probinit[ni] = 0;
+	    }
+	}
 
+	if (bdropped)
+	{
+	    double dsum = 0;
+	    for (int ni = 0; ni < numstates; ni++)
+	    {
+		dsum += probinit[ni];
+	    }
 
-	      //rescaling alpha
-	      scale[nt] = dscale;
-              //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
+	    if (dsum > 0)
+	    {
+		for (int ni = 0; ni < numstates; ni++)
+		{
+		    probinit[ni] /= dsum;
+		}
+	    }
+	}
 
-	      if (bscalebeta)
-	      {
-	         if (dscale == 0)
-	         {
-		    for (int ns = 0; ns < numstates; ns++)
-		    {
-		       //added
-		       if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
-		       {
-		          alpha_nt[ns] = EPSILONSTATE;
-			  dscale += EPSILONSTATE;
-		       }
-		    }
-		    scale[nt] = dscale;
-		 }
+	return numelim;
+    }
 
-		 //		 else
-		 //{
-	         for (int ns = 0; ns < numstates; ns++)
-	         {
-                    alpha_nt[ns] /= dscale;
+    /**
+     * Marks as dropped the states that cannot be reached, with an initial probability of 0 and no transitions in or out
+     * other than their self transition, as for parameters restored from a checkpoint of training with dropped states
+     */
+    void findDeadStates()
+    {
+	deadstates = new boolean[numstates];
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    deadstates[ni] = ((probinit[ni] == 0)&&(transitionprobsnum[ni] == 1)&&(transitionprobsnumCol[ni] == 1));
+	}
+    }
 
-		    if ((alpha_nt[ns] < EPSILONSTATE)&&(emissionproducts_nobserveindex[ns]>0))//(ns < numstates-1))) 
-		    {
-	               alpha_nt[ns] = EPSILONSTATE;
-		    }
-		 }		 
-		 //}
-	      }
-      	      else
-	      {
-	         for (int ns = 0; ns < numstates; ns++)
-	         {
-                    alpha_nt[ns] /= dscale;
-		 }
-	      }
-	      //for (int ns = 0; ns < numstates; ns++)
-	      //{
-              //   alpha_nt[ns] /= dscale;
-              //}
+    /**
+     * Updates the row and column indices of the transitions that have not been eliminated after a change to elim
+     */
+    void updateTransitionIndices()
+    {
+	ntransitionstructureversion++;
+	for (int ni = 0; ni < transitionprobs.length; ni++)
+	{
+	    int nindex = 0;
+	    boolean[] elim_ni = elim[ni];
+	    int[] transitionprobsindex_ni = transitionprobsindex[ni];
+	    for (int nj = 0; nj < elim_ni.length; nj++)
+	    {
+		if (!elim_ni[nj])
+		{
+		    //we have not eliminated this transition stores its index in order
+		    transitionprobsindex_ni[nindex] = nj;
+		    nindex++;
+		}
+	    }
+	    //update the number of valid transitions
+	    transitionprobsnum[ni] = nindex;
+	}
+
+	for (int ni = 0; ni < transitionprobs.length; ni++)
+	{
+	    int nindex =0;
+	    int[] transitionprobsindexCol_ni = transitionprobsindexCol[ni];
+	    for (int nj = 0; nj < transitionprobs[ni].length; nj++)
+	    {
+		if (!elim[nj][ni])
+		{
+		    //copy into the column of i the index of all non-eliminated transitions of i
+		    transitionprobsindexCol_ni[nindex] = nj;
+		    nindex++;
+		}
+	    }
+	    //updates the number of non-zero transitions from column i
+	    transitionprobsnumCol[ni] = nindex;
+	}
+    }
+
+    /**
+     * Sets the non-eliminated transition probabilities out of state ni from the expected transitions in sxi, marking in elim
+     * those other than the self transition that fall below dzerotransitioncutoff and setting them to 0.
+     * Returns the number of transitions eliminated, in which case the caller must update the transition indices.
+     * Different states can be updated at the same time.
+     */
+    int updateTransitionRow(int ni, double[][] sxi, double dzerotransitioncutoff)
+    {
+	int numelim = 0;
+	double dsum = 0;
+	//computes the denominator for the transition probabilities
 
-      	      dloglikeseq += Math.log(dscale);
+	int[] transitionprobsindex_ni = transitionprobsindex[ni];
+	double[] transitionprobs_ni =  transitionprobs[ni];
+	int transitionprobsnum_ni = transitionprobsnum[ni];
+	double[] sxi_ni = sxi[ni];
+	for (int nj = 0; nj < transitionprobsnum_ni; nj++)
+	{
+	    int ntransitionprobsindex_ni_nj = transitionprobsindex_ni[nj];
+	    double dsxistoreitr = sxi_ni[ntransitionprobsindex_ni_nj];
 
-              if (bscaleemissions)
-	      {
-	         dloglikeseq += emissionproducts_scale[traindataObservedIndex[nt]];
-	      }
-	   }
-	    
-	   //backward step
-	   //beta_t(s)=P(o_t+1,...,o_T|x_t=s,lambda)
-           int nlastindex = numtime_nseq-1;
-	   double dinitval;
-	   if (bscalebeta)
-	   {
-	      dinitval = 1.0/numstates;
-	   }
-	   else
-	   {
-              dinitval = 1.0/scale[nlastindex];
-	   }
+	    if (bpseudo)
+	    {
+		//pseudo-count to avoid divide by zero
+		dsxistoreitr++;
+	    }
+	    transitionprobs_ni[ntransitionprobsindex_ni_nj] = dsxistoreitr;
 
-           for (int ns = 0; ns < numstates; ns++)
-	   {
-	      beta_ntp1[ns] = dinitval;
-	   }
-	   //double dinitval = 1.0/scale[nlastindex];
-	   //for (int ns = 0; ns < numstates; ns++)
-	   //{
-	   // beta_ntp1[ns] = dinitval;
-	   //}
+	    dsum += dsxistoreitr;
+	}
 
-	   double ddenom = 0;	       
+	for (int nj = 0; nj < transitionprobsnum_ni; nj++)
+	{
+	    int ntransitionprobsindex_ni_nj = transitionprobsindex_ni[nj];
+	    //computes the updated transition probabilities
+	    transitionprobs_ni[ntransitionprobsindex_ni_nj] /= dsum;
 
-	   //gamma_nt - P(x=S| o_0,...,o_t)
-	   //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
-	   alpha_nt = alpha[nlastindex];
-	   for (int ns = 0; ns < gamma_nt.length; ns++)
-           {
-	       double dval = alpha_nt[ns]*beta_ntp1[ns];
-	       ddenom += dval;
-	       gamma_nt[ns] = dval;
-	   }
+	    if ((transitionprobs_ni[ntransitionprobsindex_ni_nj] < dzerotransitioncutoff) && (ni != ntransitionprobsindex_ni_nj))
+	    {
+		//if falls below threshold eliminate the transition probabilities
+		elim[ni][ntransitionprobsindex_ni_nj] = true;
+		numelim++;
+		transitionprobs_ni[ntransitionprobsindex_ni_nj] = 0;
+	    }
+	}
 
-	   if (ddenom > 0)
-	   {
-              for (int ns = 0; ns < gamma_nt.length; ns++)
-	      {
-	         gamma_nt[ns] /=ddenom;
-	      }
-	   }
+	return numelim;
+    }
 
-	   double[] gammaObservedSum_combo_nt = gammaObservedSum[traindataObservedIndex[nlastindex]];
-		
-	   for (int ns = 0; ns < numstates; ns++)
-	   { 
-              //first sum gamma over all common signatures		     
-	      //updates probability of observing the signature when in the state
-	      gammaObservedSum_combo_nt[ns] += gamma_nt[ns];
-	   }
+    /**
+     * Sets the emission probabilities of state ns from the expected number of positions with each mark in each bucket in gammaksum.
+     * Different states can be updated at the same time.
+     */
+    void updateEmissionState(int ns, double[][][] gammaksum)
+    {
+	double[][] emissionprobs_ns = emissionprobs[ns];
+	double[][] gammaksum_ns = gammaksum[ns];
 
-	   for (int nt = nlastindex - 1; nt >= 0; nt--)
-	   {
-	      int ntp1 = (nt+1);
-		   
-	      double[] emissionproducts_combo_ntp1 = emissionproducts[traindataObservedIndex[ntp1]];
+	for (int nmark = 0; nmark < emissionprobs_ns.length; nmark++)
+	{
+	    double[] emissionprobs_ns_nmark = emissionprobs_ns[nmark];
+	    //can't used a general gamma sum because of missing emission vals
+	    double dgammadenom = 0;
 
-	      for (int ns = 0; ns < numstates; ns++)
-	      {
-	         tempproductbetaemiss[ns] = beta_ntp1[ns]*emissionproducts_combo_ntp1[ns];
-	      }
+	    //updates gamma sum
+	    for (int nbucket = 0; nbucket < numbuckets; nbucket++)
+	    {
+		emissionprobs_ns_nmark[nbucket] = gammaksum_ns[nmark][nbucket];
 
-	      if (bscaleemissions)
-	      {
-		  //adding here to help numerical stability
-		  double dmaxval = 0;
-		  for (int ns = 0; ns < numstates; ns++)
-		  {
-		      if (tempproductbetaemiss[ns] > dmaxval)
-		      {
-			  dmaxval = tempproductbetaemiss[ns];
-		      }
-		  }
-                  for (int ns = 0; ns < numstates; ns++)
-		  {
-		      tempproductbetaemiss[ns] = tempproductbetaemiss[ns]/dmaxval;
-		  }
-	      }
+		if ((bpseudo) && ((!bnopseudolast)||(nmark<emissionprobs_ns.length-1)))
+		{
+		    emissionprobs_ns_nmark[nbucket]++;
+		}
+		dgammadenom += emissionprobs_ns_nmark[nbucket];
+	    }
 
-	      double dsumbeta = 0;
+	    //added to avoid NA
+	    if (dgammadenom > 0)
+	    {
+		for (int nbucket = 0; nbucket < numbuckets; nbucket++)
+		{
+		    emissionprobs_ns_nmark[nbucket] /= dgammadenom;
+		}
+	    }
+	}
+    }
 
-	      //double dscaleinv = 1.0/scale[nt];
-	      double dscale_nt = scale[nt];
-              //scale_t(s)=P(o_0,...,o_t|lambda) summed over all states
-	      for (int ni = 0; ni < numstates; ni++)
-	      {
-	         double dtempsum = 0;
-	         int[] transitionprobsindex_ni =  transitionprobsindex[ni];
-	         double[] transitionprobs_ni = transitionprobs[ni];
-	         int transitionprobsnum_ni = transitionprobsnum[ni];
+    /**
+     * Computes the emission products of the combinations of marks from lookup tables instead of going through the marks one at a time.
+     * The marks of each combination are packed eight to a byte, once for the marks observed present and once for the missing marks.
+     * For each state and group of eight marks one table gives, for every byte of present marks, the sum of the logs of the emission
+     * probabilities of the eight marks, and another gives, for every byte of missing marks, the sum of the logs of the probabilities of
+     * those marks being absent. Missing marks are counted as absent in the first table and removed with the second. Emission probabilities
+     * of 0 are kept out of the logs and counted instead, so a product is 0 exactly when it has a factor of 0.
+     * Each state then takes two lookups for every eight marks, and the products agree with those computed one mark at a time up to rounding.
+     */
+    class SignatureEmissionTables
+    {
+	/**
+	 * The number of groups of eight marks
+	 */
+	int numgroups;
+
+	/**
+	 * For each combination of marks and group the byte of marks that are present and the byte of marks that are missing
+	 */
+	byte[][] presentbytes;
+	byte[][] missingbytes;
+
+	/**
+	 * True for each combination of marks with at least one missing mark
+	 */
+	boolean[] bhasmissing;
+
+	/**
+	 * For each state, group and byte of marks the sum of the logs of the non-zero probabilities and the number of zero probabilities
+	 */
+	double[][][] logpresent;
+	int[][][] zeropresent;
+	double[][][] logmissing;
+	int[][][] zeromissing;
+
+	/**
+	 * Packs the combinations of marks in traindataObservedValues with missing marks in traindataNotMissing
+	 */
+	SignatureEmissionTables(boolean[][] traindataObservedValues, boolean[][] traindataNotMissing)
+	{
+	    numgroups = (numdatasets + 7)/8;
+	    int numcombos = traindataObservedValues.length;
+	    presentbytes = new byte[numcombos][numgroups];
+	    missingbytes = new byte[numcombos][numgroups];
+	    bhasmissing = new boolean[numcombos];
 
-                 if (transitionprobsnum_ni < nsparsecutoff)
-	         {
-		    //sparse enought to pay the indirection penalty
-		    for (int nj = 0; nj < transitionprobsnum_ni; nj++)
+	    for (int ncombo = 0; ncombo < numcombos; ncombo++)
+	    {
+		boolean[] traindataObservedValues_ncombo = traindataObservedValues[ncombo];
+		boolean[] traindataNotMissing_ncombo = traindataNotMissing[ncombo];
+		for (int nmark = 0; nmark < numdatasets; nmark++)
+		{
+		    int nbit = 1 << (nmark & 7);
+		    if (!traindataNotMissing_ncombo[nmark])
 		    {
-		       //for each state summing over transition probability to state j, emission probablity in j at next step
-		       //and probability of observing the remaining sequence
-		       int nmappedindexouter = transitionprobsindex_ni[nj];
-		       dtempsum += transitionprobs_ni[nmappedindexouter]*tempproductbetaemiss[nmappedindexouter];
+			missingbytes[ncombo][nmark >> 3] |= nbit;
+			bhasmissing[ncombo] = true;
 		    }
-		 }
-		 else
-		 {
-		    //not trying to exploit sparsity here
-                    for (int nj = 0; nj < numstates; nj++)
+		    else if (traindataObservedValues_ncombo[nmark])
 		    {
-		       //for each state summing over transition probability to state j, emission probablity in j at next step
-		       //and probability of observing the remaining sequence
-		       dtempsum += transitionprobs_ni[nj]*tempproductbetaemiss[nj];
+			presentbytes[ncombo][nmark >> 3] |= nbit;
 		    }
-		 }
+		}
+	    }
 
-		 if (bscalebeta)
-		 {
-		    beta_nt[ni] = dtempsum;
-		    dsumbeta += dtempsum;
-		 }
-	         else
-		 {
-	            double dratio = dtempsum/dscale_nt;
-		    if (dratio > Double.MAX_VALUE)
-		    {
-		       beta_nt[ni] = Double.MAX_VALUE;//dtempsum/dscale_nt;
-		    }
-		    else
+	    logpresent = new double[numstates][numgroups][256];
+	    zeropresent = new int[numstates][numgroups][256];
+	    logmissing = new double[numstates][numgroups][256];
+	    zeromissing = new int[numstates][numgroups][256];
+	}
+
+	/**
+	 * Rebuilds the tables from the current emission probabilities
+	 */
+	void update()
+	{
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		double[][] emissionprobs_ns = emissionprobs[ns];
+		for (int ngroup = 0; ngroup < numgroups; ngroup++)
+		{
+		    double[] logpresent_ns_ngroup = logpresent[ns][ngroup];
+		    int[] zeropresent_ns_ngroup = zeropresent[ns][ngroup];
+		    double[] logmissing_ns_ngroup = logmissing[ns][ngroup];
+		    int[] zeromissing_ns_ngroup = zeromissing[ns][ngroup];
+		    logpresent_ns_ngroup[0] = 0;
+		    zeropresent_ns_ngroup[0] = 0;
+		    logmissing_ns_ngroup[0] = 0;
+		    zeromissing_ns_ngroup[0] = 0;
+
+		    //the entries for bytes below nsize cover the marks of the group added so far
+		    int nsize = 1;
+		    for (int nbit = 0; nbit < 8; nbit++)
 		    {
-		       beta_nt[ni] = dratio;
-		    }
-		 }
-		 //double dratio = dtempsum/dscale_nt;
+			int nmark = ngroup*8 + nbit;
+			if (nmark < numdatasets)
+			{
+			    double dprob0 = emissionprobs_ns[nmark][0];
+			    double dprob1 = emissionprobs_ns[nmark][1];
+			    double dlog0 = (dprob0 > 0) ? Math.log(dprob0) : 0;
+			    double dlog1 = (dprob1 > 0) ? Math.log(dprob1) : 0;
+			    int nzero0 = (dprob0 > 0) ? 0 : 1;
+			    int nzero1 = (dprob1 > 0) ? 0 : 1;
+			    for (int nbyte = 0; nbyte < nsize; nbyte++)
+			    {
+				logpresent_ns_ngroup[nbyte+nsize] = logpresent_ns_ngroup[nbyte] + dlog1;
+				zeropresent_ns_ngroup[nbyte+nsize] = zeropresent_ns_ngroup[nbyte] + nzero1;
+				logpresent_ns_ngroup[nbyte] += dlog0;
+				zeropresent_ns_ngroup[nbyte] += nzero0;
 
-		 //if (dratio > Double.MAX_VALUE)
-		 //{
-		 //    beta_nt[ni] = Double.MAX_VALUE;// dtempsum/dscale_nt;
-		 //}
-		 //else
-		 //{
-		 //    beta_nt[ni] = dratio;//dtempsum/dscale_nt;
-		 //}
-	      }
+				logmissing_ns_ngroup[nbyte+nsize] = logmissing_ns_ngroup[nbyte] + dlog0;
+				zeromissing_ns_ngroup[nbyte+nsize] = zeromissing_ns_ngroup[nbyte] + nzero0;
+			    }
+			}
+			else
+			{
+			    //marks past the last one are never set and contribute nothing
+			    for (int nbyte = 0; nbyte < nsize; nbyte++)
+			    {
+				logpresent_ns_ngroup[nbyte+nsize] = logpresent_ns_ngroup[nbyte];
+				zeropresent_ns_ngroup[nbyte+nsize] = zeropresent_ns_ngroup[nbyte];
+				logmissing_ns_ngroup[nbyte+nsize] = logmissing_ns_ngroup[nbyte];
+				zeromissing_ns_ngroup[nbyte+nsize] = zeromissing_ns_ngroup[nbyte];
+			    }
+			}
+			nsize *= 2;
+		    }
+		}
+	    }
+	}
 
-	      if (bscalebeta)
-	      {
-                 for (int ni = 0; ni < numstates; ni++)
-	         {
-	            beta_nt[ni]/= dsumbeta;
+	/**
+	 * Stores in logproduct and numzero the log of the product of the non-zero emission probabilities of each state
+	 * for combination ncombo and the number of zero ones
+	 */
+	void computeLogProducts(int ncombo, double[] logproduct, int[] numzero)
+	{
+	    byte[] presentbytes_ncombo = presentbytes[ncombo];
+	    byte[] missingbytes_ncombo = missingbytes[ncombo];
+	    boolean bhasmissing_ncombo = bhasmissing[ncombo];
+	    for (int ns = 0; ns < numstates; ns++)
+	    {
+		double[][] logpresent_ns = logpresent[ns];
+		int[][] zeropresent_ns = zeropresent[ns];
+		double dlog = 0;
+		int nzero = 0;
+		for (int ngroup = 0; ngroup < numgroups; ngroup++)
+		{
+		    int nbyte = presentbytes_ncombo[ngroup] & 0xff;
+		    dlog += logpresent_ns[ngroup][nbyte];
+		    nzero += zeropresent_ns[ngroup][nbyte];
+		}
 
-		    if (beta_nt[ni] < EPSILONSTATE)//&&(!bdummy))// || (ni < numstates-1))) 
+		if (bhasmissing_ncombo)
+		{
+		    double[][] logmissing_ns = logmissing[ns];
+		    int[][] zeromissing_ns = zeromissing[ns];
+		    for (int ngroup = 0; ngroup < numgroups; ngroup++)
 		    {
-		       beta_nt[ni] = EPSILONSTATE;
+			int nbyte = missingbytes_ncombo[ngroup] & 0xff;
+			dlog -= logmissing_ns[ngroup][nbyte];
+			nzero -= zeromissing_ns[ngroup][nbyte];
 		    }
-		 }
-	      }		
-		
-	      ddenom = 0;
-		
-	      alpha_nt = alpha[nt];	    
-
-	      //gamma_nt - P(x=S| o_0,...,o_t)
-	      //P(o_t+1,...,o_T|x_t=s,lambda) * P(o_0,...,o_t,xt=s|lambda)
-
-	      for (int ns = 0; ns < gamma_nt.length; ns++)
-	      {
-	         double dval = alpha_nt[ns]*beta_nt[ns];
-	         ddenom += dval;
-	         gamma_nt[ns] = dval;
-	      }
+		}
+		logproduct[ns] = dlog;
+		numzero[ns] = nzero;
+	    }
+	}
 
-	      if (ddenom > 0)
-	      {
-	         for (int ns = 0; ns < gamma_nt.length; ns++)
-	         {
-	            gamma_nt[ns] /= ddenom;
-		 }
-	      }
+	/**
+	 * Recomputes emissionproducts, and emissionproducts_scale if bscaleemissions is set, for the combinations of marks from
+	 * nstartcombo up to but not including nendcombo in the same way as updateEmissionProducts.
+	 * Different ranges of combinations can be updated at the same time.
+	 */
+	void computeEmissionProducts(double[][] emissionproducts, double[] emissionproducts_scale, int nstartcombo, int nendcombo)
+	{
+	    double[] logproduct = new double[numstates];
+	    int[] numzero = new int[numstates];
+	    for (int ncombo = nstartcombo; ncombo < nendcombo; ncombo++)
+	    {
+		double dscale = computeEmissionProduct(ncombo, emissionproducts[ncombo], logproduct, numzero);
+		if (bscaleemissions)
+		{
+		    emissionproducts_scale[ncombo] = dscale;
+		}
+	    }
+	}
 
-              gammaObservedSum_combo_nt = gammaObservedSum[traindataObservedIndex[nt]];
+	/**
+	 * Stores in emissionproducts_ncombo the emission products of combination ncombo and returns the log of their scale
+	 * in the same way as ChromHMM.computeEmissionProduct, using logproduct and numzero as buffers.
+	 * Combinations for which every state has a zero factor are left to ChromHMM.computeEmissionProduct when scaling.
+	 */
+	double computeEmissionProduct(int ncombo, double[] emissionproducts_ncombo, double[] logproduct, int[] numzero)
+	{
+	    computeLogProducts(ncombo, logproduct, numzero);
 
-              for (int ns = 0; ns < numstates; ns++)
-	      {
-	         //first sum gamma over all common signatures
-		 //updates probability of observing the signature when in the state
-	         gammaObservedSum_combo_nt[ns] += gamma_nt[ns];
-	      }
+	    if (bscaleemissions)
+	    {
+		double dmaxlog = Double.NEGATIVE_INFINITY;
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    if ((numzero[ns] == 0)&&(logproduct[ns] > dmaxlog))
+		    {
+			dmaxlog = logproduct[ns];
+		    }
+		}
 
-	      double dsum = 0;
-		  
-              //this compues the numerator portion
-	      for (int ni = 0; ni < numstates; ni++)
-	      {
-	         double[] sumforsxi_ni = sumforsxi[ni]; //computing expected number of transition from state i
-	         int[] transitionprobsindex_ni = transitionprobsindex[ni]; //indicies of non-zero transitions from state i
-	         double[] transitionprobs_ni = transitionprobs[ni]; //probability of transitions from state i
-	         int ntransitionprobsnum_ni = transitionprobsnum[ni]; //number of non-zero transitions from state i
-	         double dalpha_nt_ni = alpha_nt[ni]; 
-	         //sxi is P(q_t = S_i, q_(t+1) = S_j | O)
+		if (dmaxlog == Double.NEGATIVE_INFINITY)
+		{
+		    return ChromHMM.this.computeEmissionProduct(ncombo, emissionproducts_ncombo);
+		}
 
-                 if (ntransitionprobsnum_ni < nsparsecutofflooser)
-      	         {
-		    //enough 0 transitionto use sparsity here
-		    //looser cut off since the indirection is less of the total time
-	            for (int nj = 0; nj < ntransitionprobsnum_ni; nj++)
+		//the products are divided by the largest one as when scaling one mark at a time
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    if (numzero[ns] == 0)
+		    {
+			emissionproducts_ncombo[ns] = Math.exp(logproduct[ns] - dmaxlog);
+		    }
+		    else
+		    {
+			emissionproducts_ncombo[ns] = 0;
+		    }
+		}
+		return dmaxlog;
+	    }
+	    else
+	    {
+		boolean ballzero = true;
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    double dproduct = 0;
+		    if (numzero[ns] == 0)
 		    {
-		       int nmappedindex = transitionprobsindex_ni[nj];
-		       //computes transition probability from state i to j
-		       double dtempval = transitionprobs_ni[nmappedindex] *dalpha_nt_ni*tempproductbetaemiss[nmappedindex];
-                       dsum += dtempval;
+			dproduct = Math.exp(logproduct[ns]);
+		    }
+		    emissionproducts_ncombo[ns] = dproduct;
 
-	      	       sumforsxi_ni[nmappedindex] = dtempval;
+		    if (dproduct >= EPSILONEMISSIONS)
+		    {
+			ballzero = false;
 		    }
-		 }
-	         else
-	         {
-		    for (int nj = 0; nj < numstates; nj++)
+		}
+
+		if (ballzero)
+		{
+		    for (int ns = 0; ns < numstates; ns++)
 		    {
-		       //computes transition probability from state i to j
-		       double dtempval = transitionprobs_ni[nj]*dalpha_nt_ni*tempproductbetaemiss[nj];
-		       dsum += dtempval;
-		       sumforsxi_ni[nj] = dtempval;
+			emissionproducts_ncombo[ns] = EPSILONEMISSIONS;
 		    }
-		 }
-	      }
+		}
+		return 0;
+	    }
+	}
+    }
 
-	      
-	      if (dsum > 0)
-	      {
-		 //added to avoid numerical errors
-	         //normalizing the numerator by the sum of the denominator and updating this iterations value for it
-	         for (int ni = 0; ni < numstates; ni++)
-	         {
-		    int[] transitionprobsindex_ni = transitionprobsindex[ni];
-		    double[] sumforsxi_ni = sumforsxi[ni];
-		    double[] sxi_nseq_ni = sxi_nseq[ni];
-		    int ntransitionprobsnum_ni = transitionprobsnum[ni];
+    /**
+     * A worker's cache of the emission products of the combinations of marks it has recently seen, used instead of the
+     * emission products of every combination when there are too many combinations to store them all. The products of a
+     * combination are computed when it is first requested and kept in one of a fixed number of slots found through an
+     * open addressing hash table on the combination. When all slots are full the slot to reuse is chosen with the CLOCK
+     * algorithm: a hand goes around the slots clearing their referenced flags and stops at the first slot not referenced
+     * since the hand last passed, so frequently seen combinations stay in the cache. All entries are dropped when the
+     * epoch changes, which happens once the emission probabilities are updated.
+     */
+    class EmissionCache
+    {
+	/**
+	 * For each slot the combination it holds or -1, its emission products, the log of their scale,
+	 * and whether it was requested since the hand last passed
+	 */
+	int[] slotcombo;
+	double[][] slotproducts;
+	double[] slotscale;
+	boolean[] breferenced;
+
+	/**
+	 * The number of slots filled and the slot the hand is at
+	 */
+	int numfilled;
+	int nhand;
+
+	/**
+	 * Hash table with linear probing from combination to slot, where a key of -1 is empty
+	 */
+	int[] hashkeys;
+	int[] hashslots;
+	int nhashmask;
+
+	/**
+	 * The epoch of the emission probabilities the entries were computed from
+	 */
+	int nepoch = -1;
+
+	/**
+	 * The log of the scale of the products returned by the last call to get
+	 */
+	double dlastscale;
+
+	//buffers when computing the products with tables
+	SignatureEmissionTables theEmissionTables;
+	double[] logproduct;
+	int[] numzero;
+
+	/**
+	 * Requests and requests that had to be computed since the counts were last reset
+	 */
+	long nrequests;
+	long nmisses;
+
+	/**
+	 * Creates a cache with nslots slots computing the products with theEmissionTables if it is not null
+	 */
+	EmissionCache(int nslots, SignatureEmissionTables theEmissionTables)
+	{
+	    slotcombo = new int[nslots];
+	    slotproducts = new double[nslots][numstates];
+	    slotscale = new double[nslots];
+	    breferenced = new boolean[nslots];
+
+	    int nhashsize = Integer.highestOneBit(Math.max(2, 2*nslots-1)) << 1;
+	    hashkeys = new int[nhashsize];
+	    hashslots = new int[nhashsize];
+	    nhashmask = nhashsize - 1;
+
+	    this.theEmissionTables = theEmissionTables;
+	    if (theEmissionTables != null)
+	    {
+		logproduct = new double[numstates];
+		numzero = new int[numstates];
+	    }
+	    clear();
+	}
 
-                    if (ntransitionprobsnum_ni < nsparsecutoff)
-	            {
-		       //guessing sparse enough to avoid the indirections
-		       for (int nj = 0; nj < ntransitionprobsnum_ni; nj++)
-		       {
-	      	          int nmappedindex = transitionprobsindex_ni[nj];
-		          sxi_nseq_ni[nmappedindex] += sumforsxi_ni[nmappedindex]/dsum;
-		       }
-		    }
-	            else
-	            {
-                       for (int nj = 0; nj < numstates; nj++)
-	      	       {
-		          sxi_nseq_ni[nj] += sumforsxi_ni[nj]/dsum;
-		       }
-		    }
-		 }
-	      }	 
-	      beta_ntp1 = beta_nt;  //updating beta_ntp1 
-	   }
+	/**
+	 * Drops all entries if they were computed from an earlier epoch of the emission probabilities
+	 */
+	void setEpoch(int nepoch)
+	{
+	    if (this.nepoch != nepoch)
+	    {
+		clear();
+		this.nepoch = nepoch;
+	    }
+	}
 
-	   //double[] gammainitstore_nseq = gammainitstore[nseq];
-	   for (int ns = 0; ns < numstates; ns++)
-	   {
-	      //storing the initial gamma from this iteration
-	      gammainitstore_nseq[ns] = gamma_nt[ns];
-	   }
+	/**
+	 * Drops all entries
+	 */
+	void clear()
+	{
+	    for (int nslot = 0; nslot < slotcombo.length; nslot++)
+	    {
+		slotcombo[nslot] = -1;
+		breferenced[nslot] = false;
+	    }
 
-	   //for (int nindex = 0; nindex < gammaObservedSum.length; nindex++)
-	  for (int nindex = 0; nindex < nobserved; nindex++)
-	  {
-	     //going through all the gamma sufficient statistic
-	     //if (traindataObservedSeqFlags_nseq[nindex])
-	     {
-	        //only update for those combinations that were observed on this sequence
-		//gets the observed combination and missing combination signatures
-	        boolean[] traindataObservedValues_nindex = traindataObservedValues[nindex];
-	        boolean[] traindataNotMissing_nindex = traindataNotMissing[nindex];
-	           
-		double[] gammaObservedSum_nindex = gammaObservedSum[nindex];
+	    for (int nindex = 0; nindex < hashkeys.length; nindex++)
+	    {
+		hashkeys[nindex] = -1;
+	    }
+	    numfilled = 0;
+	    nhand = 0;
+	}
 
-		for (int ns = 0; ns < numstates; ns++)
-	        {
-	           //going through each state
-		   double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
-	           double gammaObservedSum_nindex_ns = gammaObservedSum_nindex[ns];
-		   for (int nmark = 0; nmark < numdatasets; nmark++)
-	           {
-		      //going through each mark
-		      if (traindataNotMissing_nindex[nmark])
-		      {
-		         //only update non-missing
-		         if (traindataObservedValues_nindex[nmark])
-		         {
-		            //updates the gamma sum for each mark when in state and observed 1
-		            gammaksum_nseq_ns[nmark][1] += gammaObservedSum_nindex_ns;			    
-			 }
-		         else
-		         {
-		    	    //updates the gamma sum for each mark when in state and observed 0
-		            gammaksum_nseq_ns[nmark][0] += gammaObservedSum_nindex_ns;			    
-			 }
-		      }
-		   }
+	/**
+	 * Returns the emission products of combination ncombo, storing the log of their scale in dlastscale.
+	 * The returned row remains valid until the next call.
+	 */
+	double[] get(int ncombo)
+	{
+	    nrequests++;
+	    int nindex = hashIndex(ncombo);
+	    while (hashkeys[nindex] != -1)
+	    {
+		if (hashkeys[nindex] == ncombo)
+		{
+		    int nslot = hashslots[nindex];
+		    breferenced[nslot] = true;
+		    dlastscale = slotscale[nslot];
+		    return slotproducts[nslot];
 		}
-	     }
-	  }
-	  //System.out.println("==>"+nseq+"\t"+dloglikeseq);
-          dloglikeA[nseq] = dloglikeseq;	
-	}
-    }
+		nindex = (nindex + 1) & nhashmask;
+	    }
 
+	    nmisses++;
+	    int nslot;
+	    if (numfilled < slotcombo.length)
+	    {
+		nslot = numfilled;
+		numfilled++;
+	    }
+	    else
+	    {
+		while (breferenced[nhand])
+		{
+		    breferenced[nhand] = false;
+		    nhand = (nhand + 1) % slotcombo.length;
+		}
+		nslot = nhand;
+		nhand = (nhand + 1) % slotcombo.length;
+		removeKey(slotcombo[nslot]);
+		//the slot of the removed combination may have been where the new one goes
+		nindex = hashIndex(ncombo);
+		while (hashkeys[nindex] != -1)
+		{
+		    nindex = (nindex + 1) & nhashmask;
+		}
+	    }
 
-    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+	    hashkeys[nindex] = ncombo;
+	    hashslots[nindex] = nslot;
+	    slotcombo[nslot] = ncombo;
+	    breferenced[nslot] = false;
+	    if (theEmissionTables != null)
+	    {
+		slotscale[nslot] = theEmissionTables.computeEmissionProduct(ncombo, slotproducts[nslot], logproduct, numzero);
+	    }
+	    else
+	    {
+		slotscale[nslot] = computeEmissionProduct(ncombo, slotproducts[nslot]);
+	    }
+	    dlastscale = slotscale[nslot];
+	    return slotproducts[nslot];
+	}
+
+	/**
+	 * Returns the index in the hash table at which the search for ncombo starts
+	 */
+	int hashIndex(int ncombo)
+	{
+	    //multiplicative hashing spreads consecutive combination indices
+	    return (ncombo * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(hashkeys.length)) & nhashmask;
+	}
 
+	/**
+	 * Removes ncombo from the hash table, moving back the entries after it that would no longer be found
+	 */
+	void removeKey(int ncombo)
+	{
+	    int nindex = hashIndex(ncombo);
+	    while (hashkeys[nindex] != ncombo)
+	    {
+		nindex = (nindex + 1) & nhashmask;
+	    }
 
+	    int nnext = (nindex + 1) & nhashmask;
+	    while (hashkeys[nnext] != -1)
+	    {
+		int nhome = hashIndex(hashkeys[nnext]);
+		//the entry at nnext can fill the hole if its search starts at or before the hole
+		if (((nnext - nhome) & nhashmask) >= ((nnext - nindex) & nhashmask))
+		{
+		    hashkeys[nindex] = hashkeys[nnext];
+		    hashslots[nindex] = hashslots[nnext];
+		    nindex = nnext;
+		}
+		nnext = (nnext + 1) & nhashmask;
+	    }
+	    hashkeys[nindex] = -1;
+	}
+    }
 
+    /**
+     * A worker's sums of the posteriors of the combinations of marks of the sequence it is processing, used with the emission
+     * cache instead of a sum for every combination, whose size would grow with the number of combinations. The sums are kept
+     * in a fixed number of slots found through an open addressing hash table on the combination as in EmissionCache. When a
+     * combination is not held and all slots are full, the sums of every slot are added to the posteriors of the marks of the
+     * sequence and the slots emptied, so each position costs at most the same as adding its posteriors to the marks directly.
+     */
+    class ObservedSumCache
+    {
+	/**
+	 * For each slot the combination it holds and the sum of its posteriors in each state
+	 */
+	int[] slotcombo;
+	double[][] slotsums;
+
+	/**
+	 * The number of slots filled
+	 */
+	int numfilled;
+
+	/**
+	 * Hash table with linear probing from combination to slot, where a key of -1 is empty
+	 */
+	int[] hashkeys;
+	int[] hashslots;
+	int nhashmask;
+
+	/**
+	 * Creates the sums with nslots slots
+	 */
+	ObservedSumCache(int nslots)
+	{
+	    slotcombo = new int[nslots];
+	    slotsums = new double[nslots][numstates];
+
+	    int nhashsize = Integer.highestOneBit(Math.max(2, 2*nslots-1)) << 1;
+	    hashkeys = new int[nhashsize];
+	    hashslots = new int[nhashsize];
+	    nhashmask = nhashsize - 1;
+	    for (int nindex = 0; nindex < hashkeys.length; nindex++)
+	    {
+		hashkeys[nindex] = -1;
+	    }
+	}
 
+	/**
+	 * Returns the row the posteriors of combination ncombo are to be added to, first adding the sums of all slots
+	 * to gammaksum_nseq if ncombo is not held and there is no free slot. The row remains valid until the next call.
+	 */
+	double[] get(int ncombo, double[][][] gammaksum_nseq)
+	{
+	    int nindex = hashIndex(ncombo);
+	    while (hashkeys[nindex] != -1)
+	    {
+		if (hashkeys[nindex] == ncombo)
+		{
+		    return slotsums[hashslots[nindex]];
+		}
+		nindex = (nindex + 1) & nhashmask;
+	    }
 
+	    if (numfilled == slotcombo.length)
+	    {
+		fold(gammaksum_nseq);
+		nindex = hashIndex(ncombo);
+	    }
 
+	    int nslot = numfilled;
+	    numfilled++;
+	    hashkeys[nindex] = ncombo;
+	    hashslots[nindex] = nslot;
+	    slotcombo[nslot] = ncombo;
+	    return slotsums[nslot];
+	}
 
+	/**
+	 * Adds the sums of the filled slots to the posteriors of the marks in gammaksum_nseq and empties the slots
+	 */
+	void fold(double[][][] gammaksum_nseq)
+	{
+	    for (int nslot = 0; nslot < numfilled; nslot++)
+	    {
+		int ncombo = slotcombo[nslot];
+		boolean[] traindataObservedValues_ncombo = traindataObservedValues[ncombo];
+		boolean[] traindataNotMissing_ncombo = traindataNotMissing[ncombo];
+		double[] slotsums_nslot = slotsums[nslot];
 
+		for (int ns = 0; ns < numstates; ns++)
+		{
+		    double[][] gammaksum_nseq_ns = gammaksum_nseq[ns];
+		    double dsum = slotsums_nslot[ns];
+		    for (int nmark = 0; nmark < numdatasets; nmark++)
+		    {
+			if (traindataNotMissing_ncombo[nmark])
+			{
+			    if (traindataObservedValues_ncombo[nmark])
+			    {
+				gammaksum_nseq_ns[nmark][1] += dsum;
+			    }
+			    else
+			    {
+				gammaksum_nseq_ns[nmark][0] += dsum;
+			    }
+			}
+		    }
+		    slotsums_nslot[ns] = 0;
+		}
+	    }
+	    numfilled = 0;
 
+	    for (int nindex = 0; nindex < hashkeys.length; nindex++)
+	    {
+		hashkeys[nindex] = -1;
+	    }
+	}
 
+	/**
+	 * Returns the index in the hash table at which the search for ncombo starts
+	 */
+	int hashIndex(int ncombo)
+	{
+	    return (ncombo * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(hashkeys.length)) & nhashmask;
+	}
+    }
 
+    /**
+     * Returns a one line summary of how often the emission caches of the workers had the requested products
+     * since the last call and resets the counts
+     */
+    String getEmissionCacheSummary(TrainingPool theTrainingPool)
+    {
+	long nrequests = 0;
+	long nmisses = 0;
+	for (int nworker = 0; nworker < workeremissioncaches.length; nworker++)
+	{
+	    EmissionCache theEmissionCache = workeremissioncaches[nworker];
+	    nrequests += theEmissionCache.nrequests;
+	    nmisses += theEmissionCache.nmisses;
+	    theEmissionCache.nrequests = 0;
+	    theEmissionCache.nmisses = 0;
+	}
 
+	double dhitrate = 0;
+	if (nrequests > 0)
+	{
+	    dhitrate = 100.0*(nrequests - nmisses)/nrequests;
+	}
+	return String.format(Locale.ENGLISH, "Emission cache %d requests, %d computed, %.1f%% hits", nrequests, nmisses, dhitrate);
+    }
 
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////
+    /**
+     * This is the core procedure for learning the parameters of the model
+     */
+    public void trainParametersParallel() throws IOException
+    {
+       TrainingPool theTrainingPool = createTrainingPool();
+       trainParametersParallel(theTrainingPool);
+       theTrainingPool.shutdown();
+    }
 
+    /**
+     * Creates the pool of workers for in-memory parallel training and allocates the buffers of the workers that do not
+     * depend on the parameters of the model, so the pool can be used by several models with the same data and number of states
+     */
+    TrainingPool createTrainingPool() throws IOException
+    {
+       //stores the maximum number of locations in any sequence run whole by a worker
+       int nmaxtime = maxWorkerSequenceLength();
 
+       //    for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
 
+       //sequences split into blocks can keep more workers busy than there are sequences
+       int nmaxtasks = traindataObservedIndex.length;
+       if (nblockfbsize > 0)
+       {
+	   nmaxtasks = 0;
+	   for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
+	   {
+	       nmaxtasks += (traindataObservedIndex[nseq].length + nblockfbsize - 1)/nblockfbsize;
+	   }
+       }
 
+       return createTrainingPool(nmaxtime, nmaxtasks);
+    }
 
+    /**
+     * Returns the number of locations in the longest sequence that in-memory parallel training runs whole on a worker,
+     * leaving out those long enough to be split into blocks of nblockfbsize locations
+     */
+    int maxWorkerSequenceLength()
+    {
+       int nmaxtime = 0;
+       for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
+       {
+	   int numtime_nseq = traindataObservedIndex[nseq].length;
+	   if ((nblockfbsize <= 0)||(numtime_nseq < 2*nblockfbsize))
+	   {
+	       nmaxtime = Math.max(nmaxtime, numtime_nseq);
+	   }
+       }
+       return nmaxtime;
+    }
 
+    /**
+     * Creates the pool of workers with no more workers than nmaxtasks tasks can keep busy at a time and buffers
+     * for sequences of up to nmaxtime locations
+     */
+    TrainingPool createTrainingPool(int nmaxtime, int nmaxtasks) throws IOException
+    {
+       int numprocessors;
 
-    boolean[] threadslots;
+       if (nmaxprocessors <= 0)
+       {
+	   numprocessors = Math.min(nmaxtasks,Runtime.getRuntime().availableProcessors());
+       }
+       else
+       {
+	   numprocessors = Math.min(nmaxtasks,
+				    Math.min(nmaxprocessors,Runtime.getRuntime().availableProcessors()));
+       }
 
-    Object objlock = new Object();
-    int nlaunched;
+       //if (ChromHMM.BVERBOSE)
+       {
+	   if (numprocessors == 1)
+              System.out.println("Using "+numprocessors+" thread for Baum-Welch training");
+	   else
+	       System.out.println("Using "+numprocessors+" threads for Baum-Welch training");
+       }
 
+       //the worker pool and its buffers are created once and reused for every iteration
+       TrainingPool theTrainingPool = new TrainingPool(numprocessors);
+       if (nemissioncachesize > 0)
+       {
+	   //the posteriors of the combinations are held in the bounded ObservedSumCache of each worker instead
+	   theTrainingPool.allocateBuffers(numstates, 0);
+       }
+       else
+       {
+	   theTrainingPool.allocateBuffers(numstates, traindataObservedValues.length);
+       }
+       theTrainingPool.allocateStatistics(numstates, numdatasets, numbuckets);
+       allocateAlphaStores(theTrainingPool, nmaxtime);
+       return theTrainingPool;
+    }
 
-    ///////////////////////////////////////////////////////////////////////////////////////////////////////
     /**
-     * This is the core procedure for learning the parameters of the model loading from data
+     * Learns the parameters of the model with the workers of theTrainingPool, which was created by createTrainingPool
+     * and may be training other models at the same time
      */
-    public void trainParametersParallelWithLoad() throws IOException
+    void trainParametersParallel(TrainingPool theTrainingPool) throws IOException
     {
         NumberFormat nf3 = NumberFormat.getInstance();
         nf3.setMaximumFractionDigits(3);
@@ -11536,7 +15964,7 @@ public class ChromHMM
        double dzerotransitioncutoff = Math.pow(10,-nzerotransitionpower);
 
        //number of non-zero transition for the 
-       int nsparsecutoff = (int) (numstates * ChromHMM.SPARSECUTOFFRATIO);
+       int nsparsecutoff = getSparseCutoff();
 
        //number of non-zero transition that need to be less than this at the looser cut-off
        int nsparsecutofflooser = (int) (numstates * ChromHMM.SPARSECUTOFFLOOSERRATIO);
@@ -11544,11 +15972,11 @@ public class ChromHMM
        double dprevloglike;
 
        //stores the maximum number of locations in any sequence and in each sequence
-       //int[] numtime = new int[chromfiles.length];//traindataObservedIndex.length];
+       int[] numtime = new int[traindataObservedIndex.length];
        int nmaxtime = 0;
-       for (int nseq = 0; nseq < numtime.length; nseq++) //traindataObservedIndex.length;
+       for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
        {
-	   //numtime[nseq] = traindataObservedIndex[nseq].length;
+          numtime[nseq] = traindataObservedIndex[nseq].length;
           if (numtime[nseq] > nmaxtime)
 	  {
       	     nmaxtime = numtime[nseq];
@@ -11560,28 +15988,36 @@ public class ChromHMM
           System.out.println("Maximum number of locations\t"+nmaxtime);
        }
 
+       //the sequences of each bin are run on one worker at a time
+       int numprocessors = theTrainingPool.numworkers;
+       allocateCheckpointStores(theTrainingPool, maxWorkerSequenceLength());
 
-       int numprocessors;
-       //    for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
-
-       if (nmaxprocessors <= 0)
+       //sequences long enough to be split into blocks are coordinated from this thread
+       BlockForwardBackward theBlockForwardBackward = null;
+       if (nblockfbsize > 0)
        {
-	   numprocessors = Math.min(numtime.length,Runtime.getRuntime().availableProcessors()); //changed from  traindataObservedIndex.length;
+	   theBlockForwardBackward = new BlockForwardBackward(theTrainingPool, nblockfbsize, nmaxtime, traindataObservedValues.length);
        }
-       else
+
+       //runs of positions with the same combination of marks are compressed unless beta values are clamped
+       RunLengthPowers theRunLengthPowers = null;
+       if ((bcompressruns)&&(!bscalebeta))
        {
-	   numprocessors = Math.min(numtime.length, //changed from  traindataObservedIndex.length;
-				    Math.min(nmaxprocessors,Runtime.getRuntime().availableProcessors()));
+	   theRunLengthPowers = new RunLengthPowers(traindataObservedIndex, traindataObservedValues.length);
+	   System.out.println(theRunLengthPowers.getSummary());
+	   workerrunlengthfbs = new RunLengthForwardBackward[theTrainingPool.numworkers];
+	   for (int nworker = 0; nworker < workerrunlengthfbs.length; nworker++)
+	   {
+	       workerrunlengthfbs[nworker] = new RunLengthForwardBackward(theRunLengthPowers.nmaxnodes);
+	   }
        }
 
-       //if (ChromHMM.BVERBOSE)
+       //the emission products are computed from tables over bytes of marks
+       SignatureEmissionTables theEmissionTables = null;
+       if (bemissiontables)
        {
-	   if (numprocessors == 1)
-              System.out.println("Using "+numprocessors+" thread for Baum-Welch training");
-	   else
-	       System.out.println("Using "+numprocessors+" threads for Baum-Welch training");
+	   theEmissionTables = new SignatureEmissionTables(traindataObservedValues, traindataNotMissing);
        }
-       threadslots = new boolean[numprocessors];
 
        int ncurrnumincludeseq;
        int[] samples= null;
@@ -11596,81 +16032,85 @@ public class ChromHMM
        }
 
        //stores the emission probability for the i^th combination of marks in the j^th state
-       double[][][] emissionproducts_Pool = new double[numprocessors][nmaxtime][numstates]; //traindataObservedValues.length
+       double[][] emissionproducts = null;
 
        //stores the scale for the emission probability for the i^th combination of marks
-       double[][] emissionproducts_scale_Pool;
+       double[] emissionproducts_scale = null;
 
-       if (bscaleemissions)
+       if (nemissioncachesize > 0)
        {
-          emissionproducts_scale_Pool = new double[numprocessors][nmaxtime];
+	   //each worker computes the emission products of the combinations it sees and keeps the most recent ones
+	   workeremissioncaches = new EmissionCache[theTrainingPool.numworkers];
+	   workerobservedsums = new ObservedSumCache[theTrainingPool.numworkers];
+	   for (int nworker = 0; nworker < workeremissioncaches.length; nworker++)
+	   {
+	       workeremissioncaches[nworker] = new EmissionCache(nemissioncachesize, theEmissionTables);
+	       workerobservedsums[nworker] = new ObservedSumCache(nemissioncachesize);
+	   }
        }
        else
        {
-          emissionproducts_scale_Pool = new double[numprocessors][];
-       }
-
-
-       //stores temporary product terms
-       double[][] tempproductbetaemiss_Pool = new double[numprocessors][numstates];
-
-       //This stores the alpha values at each time point and number of states
-       double[][][] alpha_Pool = new double[numprocessors][nmaxtime][numstates];
-
-       //Temporary storage of the gamma's for each state
-       double[][] gamma_nt_Pool = new double[numprocessors][numstates];
-
-       //Temporary storage of the beta values for each state
-       double[][] beta_nt_Pool = new double[numprocessors][numstates];
-
-       //Temporary storage of the beta values for each state at the next time point
-       double[][] beta_ntp1_Pool = new double[numprocessors][numstates];
+	   emissionproducts = new double[traindataObservedValues.length][numstates];
 
-       //stores the scaling value for each time point
-       double[][] scale_Pool = new double[numprocessors][nmaxtime];
+	   if (bscaleemissions)
+	   {
+	       emissionproducts_scale = new double[traindataObservedValues.length];
+	   }
+       }
 
        //stores the transition probabilities for each column
        double[][] coltransitionprobs = new double[numstates][numstates];
 
-       //stores the sufficient statistic for the initital probability in each state for the last visit
-       //double[][] gammainitstore = new double[chromfiles.length][numstates];
-       double[][] gammainitstore = new double[ncurrnumincludeseq][numstates];
-
-       //stores the sufficient statistics for computing the transition probabilities cumulated for each iteration
-       double[][][] sxistore = new double[ncurrnumincludeseq][numstates][numstates];
-       //double[][][] sxistore = new double[chromfiles.length][numstates][numstates];
-
-       //stores the sufficient statistic for computing the emission probabilities
-       double[][][][] gammaksumstore = 
-	   //new double[chromfiles.length][numstates][numdatasets][numbuckets];
-                 new double[ncurrnumincludeseq][numstates][numdatasets][numbuckets];
-
-       //temporary storage in computation of sxi
-       double[][][] sumforsxi_Pool = new double[numprocessors][numstates][numstates];
-
-       //stores the sum of the gamma values associated with each combination in each state
-       double[][][] gammaObservedSum_Pool = new double[numprocessors][nmaxtime][numstates]; //nmaxtime instead of traindataObservedValues.length
-
-       //stores the indicies of the data
-       int[][] traindataObservedIndex_Pool = new int[numprocessors][nmaxtime];
+       //stores the sufficient statistics summed over the sequences of each bin, with the last one for the sequences split into blocks,
+       //after the reduction the first one holds the sum over all sequences
+       SufficientStatistics[] binstats = new SufficientStatistics[numprocessors+1];
+       for (int nbin = 0; nbin < binstats.length; nbin++)
+       {
+	   binstats[nbin] = new SufficientStatistics(numstates, numdatasets, numbuckets);
+       }
 
-       //saving the mapping of signatures and chromsome observed on
-       //stores whether there is a present call at each location
-       boolean[][][] traindataObservedValues_Pool = new boolean[numprocessors][nmaxtime][numdatasets];
+       //stores the sufficient statistics of a sequence split into blocks
+       SufficientStatistics longseqstats = null;
+       if (theBlockForwardBackward != null)
+       {
+	   longseqstats = new SufficientStatistics(numstates, numdatasets, numbuckets);
+       }
 
-       //stores whether the mark is not considered missing
-       boolean[][][] traindataNotMissing_Pool = new boolean[numprocessors][nmaxtime][numdatasets]; //usually nobserved
+       //the sequences of each bin for the current iteration
+       ArrayList[] albins = new ArrayList[numprocessors];
+       for (int nbin = 0; nbin < albins.length; nbin++)
+       {
+	   albins[nbin] = new ArrayList();
+       }
 
 
-       double[] dloglikeA = new double[ncurrnumincludeseq];//chromfiles.length];
+       double[] dloglikeA = new double[ncurrnumincludeseq]; 
+	   //new double[traindataObservedIndex.length];
 
        int nelim = 0;
        long ltimeitr= System.currentTimeMillis();
        dprevloglike = Double.NEGATIVE_INFINITY;
+       if (theResumeCheckpoint != null)
+       {
+	   //continues after the last iteration of the checkpoint, with the time spent before counted towards the maximum
+	   niteration = theResumeCheckpoint.niteration+1;
+	   dprevloglike = theResumeCheckpoint.dloglike;
+	   nelim = theResumeCheckpoint.nelim;
+	   ltimeitr -= theResumeCheckpoint.lelapsedmillis;
+	   theResumeCheckpoint = null;
+       }
+       long llastcheckpoint = System.currentTimeMillis();
 
+       //the workers are timed for the telemetry records as well as for -printtiming
+       boolean btiming = ((bprinttiming)||(theTelemetry != null));
 
 
+       //sequences of the current iteration whose blocks are computed in parallel and their index in the stored log-likelihoods
+       ArrayList allongseq = new ArrayList();
+       ArrayList allongindex = new ArrayList();
 
+       //the length of each sequence handed to the workers whole for the current iteration
+       int[] nbinlengths = new int[ncurrnumincludeseq];
 
        boolean[] bincludeseq = new boolean[chromfiles.length];
        for (int nk = 0; nk < bincludeseq.length; nk++)
@@ -11678,8 +16118,10 @@ public class ChromHMM
 	   bincludeseq[nk] = true;
        }
 
+
        do
        {
+	   //dloglike= 0;	  
 
 	   if (numincludeseq >=1)
 	   {
@@ -11711,62 +16153,50 @@ public class ChromHMM
 	       }
 	   }
 
-	   //dloglike= 0;	  
-
-	   /*
-	   //for (int ni = 0; ni < emissionproducts.length; ni++)
-	  for (int ni = 0; ni < emissionproducts.length; ni++)
-          {
-             //going through each combination of marks
-	     //this signature of marks is observed on the current chromosome so
-	     //updating its emission probabilities
-             double[] emissionproducts_ni = emissionproducts[ni];
-	     boolean[] traindataObservedValues_ni = traindataObservedValues[ni];
-	     boolean[] traindataNotMissing_ni = traindataNotMissing[ni];		  
-
-	     boolean ballzero = true;
 
-             for (int ns = 0; ns < numstates; ns++)
-	     {
-                double dproduct = 1;
-	        double[][] emissionprobs_ns = emissionprobs[ns];
+	   long lestepstart = System.nanoTime();
+	   if (btiming)
+	   {
+	      theTrainingPool.resetTiming();
+	   }
 
-		for (int nmod = 0; nmod < numdatasets; nmod++)
-	        {
-	     	   if (traindataNotMissing_ni[nmod])
-		   {
-		      //we are include this marks emission probability
-	              if (traindataObservedValues_ni[nmod])
-		      {
-		         //System.out.println("positive\t"+ns+"\t"+nmod+"\t1\t"+emissionprobs_ns[nmod][1]);
-		         dproduct *= emissionprobs_ns[nmod][1];
-		      }
-		      else 
-	              {
-		         ///System.out.println("negative\t"+ns+"\t"+nmod+"\t0\t"+emissionprobs_ns[nmod][0]);
-		         dproduct *= emissionprobs_ns[nmod][0];
-		      }
-		   }
-		   // otherwise treated as missing omitting from product
-		}
-	        //System.out.println(ns+"\t"+dproduct);
-	        emissionproducts_ni[ns] = dproduct;
+	   if (theEmissionTables != null)
+	   {
+	      theEmissionTables.update();
+	   }
 
-		if (dproduct >= EPSILONEMISSIONS)
-		{
-	      	   ballzero = false;
-	        }
-	     }
+	   String szemissionreport = null;
+	   if (emissionproducts != null)
+	   {
+	      //the combinations of marks are split among the workers
+	      final double[][] femissionproducts = emissionproducts;
+	      final double[] femissionproducts_scale = emissionproducts_scale;
+	      final SignatureEmissionTables ftheEmissionTables = theEmissionTables;
+	      theTrainingPool.runRanges(emissionproducts.length, new TrainingPool.RangeTask()
+		 {
+		     void run(int nstart, int nend)
+		     {
+			 if (ftheEmissionTables != null)
+			 {
+			     ftheEmissionTables.computeEmissionProducts(femissionproducts, femissionproducts_scale, nstart, nend);
+			 }
+			 else
+			 {
+			     updateEmissionProducts(femissionproducts, femissionproducts_scale, nstart, nend);
+			 }
+		     }
+		 });
 
-	     if (ballzero)
-	     {
-	        for (int ns = 0; ns < numstates; ns++)
-	        {
-	       	   emissionproducts_ni[ns] = EPSILONEMISSIONS;
-	        }
-	     }
-	  }
-	   */
+	      if (bprinttiming)
+	      {
+		 szemissionreport = theTrainingPool.getTimingSummary("Emission products");
+	      }
+	   }
+	   else
+	   {
+	      //the products computed by the caches in the last iteration are from the previous emission probabilities
+	      nemissionepoch++;
+	   }
 
 	  //stores in coltransitionprobs the transpose of transitionprobs
           for (int ni = 0; ni < numstates; ni++)
@@ -11777,247 +16207,164 @@ public class ChromHMM
                 coltransitionprobs_ni[nj] = transitionprobs[nj][ni];
              }
           }	     
+          updateCompressedTransitions();
 
-          synchronized (objlock)
+	  if (theRunLengthPowers != null)
 	  {
-	      nlaunched = ncurrnumincludeseq;// chromfiles.length;// traindataObservedIndex.length;
+	     theRunLengthPowers.update(emissionproducts, coltransitionprobs);
 	  }
 
-          //for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
+          if (btiming)
+	  {
+	     theTrainingPool.resetTiming();
+	  }
+
+	  for (int nbin = 0; nbin < binstats.length; nbin++)
+	  {
+	     binstats[nbin].reset();
+	  }
+
+	  //the sequences are assigned to bins by their lengths alone so the sums do not depend on how the workers are scheduled
 	  int nincludeindex = 0;
-          for (int nseq = 0; nseq < chromfiles.length; nseq++)
+	  long numbins = 0;
+          for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
           {
+	     if (bincludeseq[nseq])
+	     {
+		numbins += numtime[nseq];
+		if ((theBlockForwardBackward != null)&&(theBlockForwardBackward.isLong(numtime[nseq])))
+		{
+		   nbinlengths[nincludeindex] = 0;
+		}
+		else
+		{
+		   nbinlengths[nincludeindex] = numtime[nseq];
+		}
+		nincludeindex++;
+	     }
+	  }
+	  int[] nbinassignment = SufficientStatistics.assignBins(nbinlengths, albins.length);
 
+	  nincludeindex = 0;
+          for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
+          {
+	      //System.out.println(nseq+"\t"+bincludeseq[nseq]);
 	     if (bincludeseq[nseq])
 	     {
-		double[][] sxi_nseq = sxistore[nincludeindex];//nseq];
 	        int numtime_nseq = numtime[nseq];
-	        String chromfiles_nseq = chromfiles[nseq];
-	        //int[] traindataObservedIndex_nseq = traindataObservedIndex[nseq];
-	        //boolean[] traindataObservedSeqFlags_nseq = traindataObservedSeqFlags[nseq];
-	        double[][][] gammaksum_nseq = gammaksumstore[nincludeindex];//nseq];
-	        double[] gammainitstore_nseq = gammainitstore[nincludeindex];//nseq];
-	       
-	        NewThreadWithLoad myNewThreadWithLoad = new NewThreadWithLoad(
-					 chromfiles_nseq,
-					 traindataObservedIndex_Pool,
-				      	 traindataObservedValues_Pool,
-					 traindataNotMissing_Pool,
-					 //traindataObservedIndex_nseq,
-					 //traindataObservedSeqFlags_nseq,
-					 gammaksum_nseq,
-					 sxi_nseq,
+	        int[] traindataObservedIndex_nseq = traindataObservedIndex[nseq];
+	        boolean[] traindataObservedSeqFlags_nseq = traindataObservedSeqFlags[nseq];
+
+		if ((theBlockForwardBackward != null)&&(theBlockForwardBackward.isLong(numtime_nseq)))
+		{
+		   //split into blocks once the other sequences are queued
+		   allongseq.add(Integer.valueOf(nseq));
+		   allongindex.add(Integer.valueOf(nincludeindex));
+		   nincludeindex++;
+		   continue;
+		}
+
+	        NewThread myNewThread = new NewThread(traindataObservedIndex_nseq,
+					 traindataObservedSeqFlags_nseq,
 					 numtime_nseq,
-					 gammainitstore_nseq,
-					 gammaObservedSum_Pool,
-					 alpha_Pool,
-					 emissionproducts_Pool,
-					 gamma_nt_Pool,
+					 emissionproducts,
 					 coltransitionprobs,
-					 scale_Pool,
-					 beta_nt_Pool,
-					 beta_ntp1_Pool,
-					 tempproductbetaemiss_Pool,
-					 sumforsxi_Pool,
 					 nsparsecutoff,
 					 nsparsecutofflooser,
 					 dloglikeA,
-					 nincludeindex,
-                                         emissionproducts_scale_Pool);
-		   nincludeindex++;
-
-	           new Thread(myNewThreadWithLoad).start();
-	     }	    
+				   	 nincludeindex,
+                                         emissionproducts_scale,
+					 theRunLengthPowers);
+						      //nseq);
+	        albins[nbinassignment[nincludeindex]].add(myNewThread);
+		nincludeindex++;
+	     } 
 	  }	
-	   
-
-	  synchronized(objlock)
-	  {
-	     while (nlaunched > 0)
-	     {
-                try
-                {
-	           objlock.wait();
-		}
-	        catch (InterruptedException ex) {}
-	     }
-	  }
-
-
-	  //normal EM
-	  //executes the M-step after any pass through a sequence after one pass has been made through all sequences
-          double dsum = 0;
 
-	  //updating the initial probabilities
-          for (int ni = 0; ni < numstates; ni++)
+	  //queues each bin for the next available worker
+	  for (int nbin = 0; nbin < albins.length; nbin++)
 	  {
-	     double dgammainitsum = 0;
-             //for (int nitr = 0; nitr < traindataObservedIndex.length; nitr++)
-             //for (int nitr = 0; nitr < chromfiles.length; nitr++)
-             for (int nitr = 0; nitr < ncurrnumincludeseq; nitr++)
+	     if (albins[nbin].size() > 0)
 	     {
-                dgammainitsum += gammainitstore[nitr][ni];
+	        theTrainingPool.submitBin(albins[nbin], binstats[nbin]);
 	     }
-
-	     if ((bpseudo)&&(!bnopseudolast))
-	     {
-		dgammainitsum++;
-	     }
-	     probinit[ni] = dgammainitsum;
-             dsum += dgammainitsum;
 	  }
- 
-	  for (int ni = 0; ni < numstates; ni++)
-          {
-             probinit[ni] /= dsum;		
-          }
-
-	  //this indicates if there is a change on the set of 0 probability transitions
-	  boolean bchange = false;
-	  for (int ni = 0; ni < transitionprobs.length; ni++)
-          {
-	      dsum = 0;
-	      //computes the denominator for the transition probabilities
-
-	      int[] transitionprobsindex_ni = transitionprobsindex[ni];
-	      double[] transitionprobs_ni =  transitionprobs[ni];
-	      int transitionprobsnum_ni = transitionprobsnum[ni];
-	      for (int nj = 0; nj < transitionprobsnum_ni; nj++)
-              {
-		  int ntransitionprobsindex_ni_nj = transitionprobsindex_ni[nj];
-		  double dsxistoreitr = 0;
-	          //for (int nitr = 0; nitr < chromfiles.length; nitr++) //traindataObservedIndex.length
-	          for (int nitr = 0; nitr < ncurrnumincludeseq; nitr++) //traindataObservedIndex.length
-	          {
-		      //if (bincludeseq[nitr])
-		     {
-	                dsxistoreitr += sxistore[nitr][ni][ntransitionprobsindex_ni_nj];
-		     }
-	          }
-
-		  if (bpseudo)
-		  {
-		      //pseudo-count to avoid divide by zero
-		      dsxistoreitr++;
-		  }
-	          transitionprobs_ni[ntransitionprobsindex_ni_nj] = dsxistoreitr;
-
-	          dsum += dsxistoreitr;
-	      }
-	       
-              for (int nj = 0; nj < transitionprobsnum_ni; nj++)
-	      {
-		  int ntransitionprobsindex_ni_nj = transitionprobsindex_ni[nj];
-		  //computes the updated transition probabilities
 
-	          transitionprobs_ni[ntransitionprobsindex_ni_nj] /= dsum;
-	    
-		  if ((transitionprobs_ni[ntransitionprobsindex_ni_nj] < dzerotransitioncutoff) && (ni != ntransitionprobsindex_ni_nj))
-	          {
-		      //if falls below threshold eliminate the transition probabilities
-		      elim[ni][ntransitionprobsindex_ni_nj] = true;
-	              bchange = true;
-	              nelim++;
-	              transitionprobs_ni[ntransitionprobsindex_ni_nj] = 0;
-	           }
-	      }
+	  //the blocks of the long sequences are queued behind the other sequences
+	  for (int nlong = 0; nlong < allongseq.size(); nlong++)
+	  {
+	     int nseq = ((Integer) allongseq.get(nlong)).intValue();
+	     int nlongindex = ((Integer) allongindex.get(nlong)).intValue();
+	     dloglikeA[nlongindex] = theBlockForwardBackward.estep(traindataObservedIndex[nseq], traindataObservedSeqFlags[nseq], numtime[nseq],
+								     emissionproducts, emissionproducts_scale, coltransitionprobs,
+								     nsparsecutoff, nsparsecutofflooser,
+								     longseqstats.gammaksum, longseqstats.sxi, longseqstats.gammainit);
+	     binstats[binstats.length-1].add(longseqstats);
 	  }
-	       
-	      
-          if (bchange)
+	  allongseq.clear();
+	  allongindex.clear();
+	   
+	  //waits for all the sequences of this iteration to be processed
+	  theTrainingPool.waitForAll();
+
+	  for (int nbin = 0; nbin < albins.length; nbin++)
 	  {
-	     //a transition was eliminated we need to update the probabilities
-	     for (int ni = 0; ni < transitionprobs.length; ni++)
-             {
-		 int nindex = 0;		        
-		 double ddenom = 0;
-		 boolean[] elim_ni = elim[ni];
-		 double[] transitionprobs_ni = transitionprobs[ni];
-		 int[] transitionprobsindex_ni = transitionprobsindex[ni];
-		 for (int nj = 0; nj < transitionprobs_ni.length; nj++)
-	         {
-	            if (!elim_ni[nj])
-		    {
-		       //we have not eliminated this transition
-		       //stores its index in order and add sum to denominator
-		       transitionprobsindex_ni[nindex] = nj;
-	               ddenom += transitionprobs_ni[nj];
-	               nindex++;
-		    }
-		 }
+	     albins[nbin].clear();
+	  }
 
-		 //renormalize the transition probabilities by the sum of the non-eliminated transitions
-	         for (int nj = 0; nj < transitionprobs_ni.length; nj++)
-	         {
-	            transitionprobs_ni[nj] /= ddenom;
-	         }
-		 //update the number of valid transitions
-	         transitionprobsnum[ni] = nindex; 
-	     }
+	  SufficientStatistics.reduce(theTrainingPool, binstats);
+	  SufficientStatistics totalstats = binstats[0];
 
-	     for (int ni = 0; ni < transitionprobs.length; ni++)
-             {
-		 int nindex =0;
-		 int[] transitionprobsindexCol_ni = transitionprobsindexCol[ni];
-		 for (int nj = 0; nj < transitionprobs[ni].length; nj++)
-	         {
-		    if (!elim[nj][ni])
-	            {
-		       //copy into the column of i the index of all non-eliminated transitions of i
-	               transitionprobsindexCol_ni[nindex] = nj;
-	               nindex++;
-		    }
-		 }
-	         //updates the number of non-zero transitions from column i
-	         transitionprobsnumCol[ni] = nindex; 
-	     }
+	  String szestepreport = null;
+	  if (bprinttiming)
+	  {
+	     szestepreport = theTrainingPool.getTimingSummary("E-step");
 	  }
-	    
-	  //updating the emission parameters
-	  for (int ns = 0; ns < numstates; ns++)
-          {
-	      double[][] emissionprobs_ns = emissionprobs[ns];
 
+	  long[] lworkernanos = null;
+	  if (theTelemetry != null)
+	  {
+	     lworkernanos = theTrainingPool.getComputeNanos();
+	  }
+	  long lmstepstart = System.nanoTime();
 
-	      for (int nmark = 0; nmark < emissionprobs_ns.length; nmark++)
-	      {
-		  double[] emissionprobs_ns_nmark = emissionprobs_ns[nmark];
-		  //can't used a general gamma sum because of missing emission vals
-		  double dgammadenom = 0;
+	  String szcachereport = null;
+	  if ((bprinttiming)&&(nemissioncachesize > 0))
+	  {
+	     szcachereport = getEmissionCacheSummary(theTrainingPool);
+	  }
 
-	          //updates gamma sum
-                  for (int nbucket = 0; nbucket < numbuckets; nbucket++)
-		  {
-		      emissionprobs_ns_nmark[nbucket] = 0;
-		      //ncurrnumincludeseq
-	              //for (int nitr = 0; nitr < chromfiles.length; nitr++) //was traindataobserved length
-		      //double dtempsum = 0;
-	              for (int nitr = 0; nitr < ncurrnumincludeseq; nitr++) //was traindataobserved length
-	              {
-			  //if (bincludeseq[nitr])
-			  //{
-	                 emissionprobs_ns_nmark[nbucket] += gammaksumstore[nitr][ns][nmark][nbucket];
-		          //}
-	              }
+	  String szrecomputereport = null;
+	  if (brecomputealpha)
+	  {
+	     szrecomputereport = getRecomputeSummary(theTrainingPool);
+	  }
 
-		      if ((bpseudo) && ((!bnopseudolast)||(nmark<emissionprobs_ns.length-1)))
-		      {
-			  emissionprobs_ns_nmark[nbucket]++;
-		      }
-		      dgammadenom += emissionprobs_ns_nmark[nbucket];
-		  }
+	  if (btiming)
+	  {
+	     theTrainingPool.resetTiming();
+	  }
 
-		  //added to avoid NA
-		  if (dgammadenom > 0)
-	          {
-	             for (int nbucket = 0; nbucket < numbuckets; nbucket++)
-	             {
-	                emissionprobs_ns_nmark[nbucket] /= dgammadenom;
-		     }
-		  }
-	      }
+	  //normal EM
+	  //executes the M-step after any pass through a sequence after one pass has been made through all sequences
+	  int nelimiteration;
+	  if (theDistributedWorker != null)
+	  {
+	     //the coordinator adds the statistics of all the workers, runs the M-step and sends back the parameters
+	     nelimiteration = theDistributedWorker.exchangeStatistics(this, totalstats, dloglikeA);
+	  }
+	  else
+	  {
+	     nelimiteration = maximizeParameters(theTrainingPool, totalstats, dzerotransitioncutoff);
+	  }
+	  nelim += nelimiteration;
+	  long lmstepend = System.nanoTime();
+	    
+	  String szmstepreport = null;
+	  if (bprinttiming)
+	  {
+	     szmstepreport = theTrainingPool.getTimingSummary("M-step");
 	  }
-       
 
           if (ChromHMM.BVERBOSE)
           {
@@ -12033,6 +16380,12 @@ public class ChromHMM
 	         dloglike += dloglikeA[nindex];
 	      }
 	  }
+
+	  if (theDistributedWorker != null)
+	  {
+	     //the log-likelihood is that of the sequences of all the workers
+	     dloglike = theDistributedWorker.dloglike;
+	  }
     
 	  double ddiff =(dloglike-dprevloglike);
 
@@ -12050,20 +16403,27 @@ public class ChromHMM
 	     makeColOrdering();
 	  }
 	  //updates after each iteration the current status of the search
-          printTransitionTable(niteration);
-          printEmissionTable(niteration);
-
-	  if (bprintimage)
+	  if (!bdeferoutput)
 	  {
-             printEmissionImage(niteration);
-             printTransitionImage(niteration);
+             printTransitionTable(niteration);
+             printEmissionTable(niteration);
+	     if (bprintimage)
+	     {
+                printEmissionImage(niteration);
+                printTransitionImage(niteration);
+	     }
+	     printParametersToFile(niteration);
 	  }
-	  printParametersToFile(niteration);
 
 	  //we just completed a full iteration
           long ltimefinal =  System.currentTimeMillis();	  
 	  double dtimechange = (ltimefinal-ltimeitr)/(double) 1000;
           bconverged = (((niteration >= nmaxiterations)||((ddiff< dconvergediff)&&(dconvergediff>=0)))||((dtimechange>nmaxseconds)&&(nmaxseconds>=0)));	  
+	  if (theDistributedWorker != null)
+	  {
+	     //the coordinator decides when training stops
+	     bconverged = theDistributedWorker.bconverged;
+	  }
           if (ChromHMM.BVERBOSE)
 	  {
 	     System.out.println(niteration+"\tTime Iteration\t"+dtimechange+"\t"+"\tElim\t"+nelim);
@@ -12071,26 +16431,85 @@ public class ChromHMM
 	  }
 
 
-	  if (niteration == 1)
+	  printIterationProgress(niteration, ddiff, dtimechange, nf3, nf1);
+	  numiterations = niteration;
+
+	  if (isCheckpointDue(niteration, llastcheckpoint, bconverged))
 	  {
-	      System.out.format("%10s %25s %10s %20s%n","Iteration","Estimated Log Likelihood", "Change","Total Time (secs)");
-	      System.out.format("%10s %25s %10s %20s%n",""+niteration,""+nf3.format(dloglike),"-",""+nf1.format(dtimechange));
+	     TrainingCheckpoint.write(getCheckpointFile(), this, niteration, dloglike, nelim, ltimefinal-ltimeitr);
+	     llastcheckpoint = System.currentTimeMillis();
 	  }
-	  else
+
+	  if (theTelemetry != null)
 	  {
-	      //System.out.format(niteration+"            "+nf3.format(dloglike)+"           "+nf3.format(ddiff)+"       "+nf1.format(dtimechange));
-	      System.out.format("%10s %25s %10s %20s%n",""+niteration,""+nf3.format(dloglike),""+nf3.format(ddiff),""+nf1.format(dtimechange));
+	     theTelemetry.writeIteration(this, niteration, dloglike, ddiff, dtimechange, (lmstepstart-lestepstart)/1e9, (lmstepend-lmstepstart)/1e9,
+					 (System.nanoTime()-lmstepend)/1e9, 0, lworkernanos, numbins, nelimiteration, nelim);
+	  }
+
+	  if (bprinttiming)
+	  {
+	     String szprefix = "    Iteration "+niteration+" ";
+	     if (szprogresslabel != null)
+	     {
+		szprefix = "    "+szprogresslabel+" Iteration "+niteration+" ";
+	     }
+
+	     if (szemissionreport != null)
+	     {
+	        System.out.println(szprefix+szemissionreport);
+	     }
+	     System.out.println(szprefix+szestepreport);
+	     if (szcachereport != null)
+	     {
+	        System.out.println(szprefix+szcachereport);
+	     }
+	     System.out.println(szprefix+szmstepreport);
+	     if (brecomputealpha)
+	     {
+	        System.out.println(szprefix+szrecomputereport);
+	     }
 	  }
 	  niteration++;
        }
        while (!bconverged);
+
+       if (brecomputealpha)
+       {
+	  System.out.println("Forward value checkpointing "+formatRecompute(ntotalforward, ntotalrecomputed, ltotalrecomputenanos));
+       }
     }
 
-    ////////////////////////////////////////////////////////////////////////////////////////////////////////
     /**
-     * This is the core procedure for learning the parameters of the model
+     * Learns the parameters of the model by stochastic EM with a pool of workers of in-memory parallel training
      */
-    public void trainParametersParallel() throws IOException
+    public void trainParametersStochastic() throws IOException
+    {
+       //the workers only keep the forward values of a block
+       int nmaxtime = 0;
+       int numblocks = 0;
+       for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
+       {
+          nmaxtime = Math.max(nmaxtime, Math.min(traindataObservedIndex[nseq].length, nstochasticblocksize));
+	  numblocks += (traindataObservedIndex[nseq].length + nstochasticblocksize - 1)/nstochasticblocksize;
+       }
+
+       TrainingPool theTrainingPool = createTrainingPool(nmaxtime, Math.min(numblocks, nstochasticblocks));
+       trainParametersStochastic(theTrainingPool);
+       theTrainingPool.shutdown();
+    }
+
+    /**
+     * Learns the parameters of the model by stochastic EM over blocks of nstochasticblocksize locations of the sequences.
+     * Each iteration makes nstochasticupdates updates, each running the E-step on a mini-batch of nstochasticblocks blocks
+     * taken in turn from a random ordering of the training blocks that is redrawn after every pass. The u^th update moves running
+     * sufficient statistics towards those of the mini-batch scaled to the size of the training blocks with step size
+     * (u+1)^-dstochasticstep, and the M-step is run on the running statistics. A block that does not start a sequence
+     * is started from the initial probabilities but does not contribute to their statistics. The log-likelihood reported
+     * and used for convergence is that of nheldoutblocks randomly chosen blocks that are never trained on. Since it is noisy
+     * training only converges after a full pass through the training blocks once STOCHASTICPATIENCE consecutive iterations
+     * have not improved on the best held out log-likelihood by more than dconvergediff.
+     */
+    void trainParametersStochastic(TrainingPool theTrainingPool) throws IOException
     {
         NumberFormat nf3 = NumberFormat.getInstance();
         nf3.setMaximumFractionDigits(3);
@@ -12103,557 +16522,756 @@ public class ChromHMM
 	nf1.setGroupingUsed(false);
 
        int niteration = 1;
-
        boolean bconverged = false;
-
        double dzerotransitioncutoff = Math.pow(10,-nzerotransitionpower);
+       int nsparsecutoff = getSparseCutoff();
+       int nsparsecutofflooser = (int) (numstates * ChromHMM.SPARSECUTOFFLOOSERRATIO);
 
-       //number of non-zero transition for the 
-       int nsparsecutoff = (int) (numstates * ChromHMM.SPARSECUTOFFRATIO);
+       //each block is stored as the sequence and its first and last+1 locations
+       ArrayList alblocks = new ArrayList();
+       for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
+       {
+	   int numtime_nseq = traindataObservedIndex[nseq].length;
+	   for (int nstart = 0; nstart < numtime_nseq; nstart += nstochasticblocksize)
+	   {
+	       alblocks.add(new int[] {nseq, nstart, Math.min(nstart+nstochasticblocksize, numtime_nseq)});
+	   }
+       }
 
-       //number of non-zero transition that need to be less than this at the looser cut-off
-       int nsparsecutofflooser = (int) (numstates * ChromHMM.SPARSECUTOFFLOOSERRATIO);
+       int numblocks = alblocks.size();
+       int[] blockorder = new int[numblocks];
+       for (int nblock = 0; nblock < numblocks; nblock++)
+       {
+	   blockorder[nblock] = nblock;
+       }
+       for (int nblock = numblocks-1; nblock > 0; nblock--)
+       {
+	   int nswap = theRandom.nextInt(nblock+1);
+	   int ntemp = blockorder[nblock];
+	   blockorder[nblock] = blockorder[nswap];
+	   blockorder[nswap] = ntemp;
+       }
+
+       int numheldout = Math.min(nheldoutblocks, numblocks-1);
+       if (numheldout < 1)
+       {
+	   throw new IllegalArgumentException("There must be at least two blocks of "+nstochasticblocksize+" locations, one to train on and one to hold out");
+       }
+
+       int[][] heldoutblocks = new int[numheldout][];
+       for (int nblock = 0; nblock < numheldout; nblock++)
+       {
+	   heldoutblocks[nblock] = (int[]) alblocks.get(blockorder[nblock]);
+       }
+
+       int numtrainingblocks = numblocks-numheldout;
+       int[][] trainingblocks = new int[numtrainingblocks][];
+       long ntrainingpositions = 0;
+       for (int nblock = 0; nblock < numtrainingblocks; nblock++)
+       {
+	   trainingblocks[nblock] = (int[]) alblocks.get(blockorder[numheldout+nblock]);
+	   ntrainingpositions += trainingblocks[nblock][2]-trainingblocks[nblock][1];
+       }
+
+       int nbatchsize = Math.min(nstochasticblocks, numtrainingblocks);
+       System.out.println("Stochastic EM with mini-batches of "+nbatchsize+" of "+numtrainingblocks+" blocks of "+nstochasticblocksize+
+			  " locations and "+numheldout+" held out blocks, converging after a full pass once the held out log-likelihood "+
+			  "has not improved on its best for "+ChromHMM.STOCHASTICPATIENCE+" iterations");
+
+       //the checkpoint stores and emission products are set up as for training on whole sequences
+       int nmaxtime = 0;
+       for (int nblock = 0; nblock < numblocks; nblock++)
+       {
+	   int[] block = (int[]) alblocks.get(nblock);
+	   nmaxtime = Math.max(nmaxtime, block[2]-block[1]);
+       }
+       allocateCheckpointStores(theTrainingPool, nmaxtime);
+
+       SignatureEmissionTables theEmissionTables = null;
+       if (bemissiontables)
+       {
+	   theEmissionTables = new SignatureEmissionTables(traindataObservedValues, traindataNotMissing);
+       }
+
+       double[][] emissionproducts = null;
+       double[] emissionproducts_scale = null;
+       if (nemissioncachesize > 0)
+       {
+	   workeremissioncaches = new EmissionCache[theTrainingPool.numworkers];
+	   workerobservedsums = new ObservedSumCache[theTrainingPool.numworkers];
+	   for (int nworker = 0; nworker < workeremissioncaches.length; nworker++)
+	   {
+	       workeremissioncaches[nworker] = new EmissionCache(nemissioncachesize, theEmissionTables);
+	       workerobservedsums[nworker] = new ObservedSumCache(nemissioncachesize);
+	   }
+       }
+       else
+       {
+	   emissionproducts = new double[traindataObservedValues.length][numstates];
+
+	   if (bscaleemissions)
+	   {
+	       emissionproducts_scale = new double[traindataObservedValues.length];
+	   }
+       }
+
+       double[][] coltransitionprobs = new double[numstates][numstates];
+
+       SufficientStatistics[] binstats = new SufficientStatistics[theTrainingPool.numworkers];
+       for (int nbin = 0; nbin < binstats.length; nbin++)
+       {
+	   binstats[nbin] = new SufficientStatistics(numstates, numdatasets, numbuckets);
+       }
+
+       //the running statistics start from the first mini-batch, which gets a step size of 1
+       SufficientStatistics runningstats = new SufficientStatistics(numstates, numdatasets, numbuckets);
+
+       double[] dloglikeA = new double[Math.max(nbatchsize, numheldout)];
+       int[][] batchblocks = new int[nbatchsize][];
+
+       int nelim = 0;
+       int nupdate = 0;
+       int nnextblock = 0;
+       long ltimeitr= System.currentTimeMillis();
+       double dprevloglike = Double.NEGATIVE_INFINITY;
+
+       //the held out log-likelihood is noisy so convergence waits for a full pass and several iterations without a new best
+       long numblockstrained = 0;
+       double dbestloglike = Double.NEGATIVE_INFINITY;
+       int numnotimproved = 0;
+
+       do
+       {
+	  //the time of the E-steps and M-steps of the updates and the held out blocks of the iteration for the telemetry records
+	  long lestepnanos = 0;
+	  long lmstepnanos = 0;
+	  long numbins = 0;
+	  long[] lworkernanos = new long[theTrainingPool.numworkers];
+	  int nelimstart = nelim;
+
+	  for (int nbatch = 0; nbatch < nstochasticupdates; nbatch++)
+	  {
+	     long nbatchpositions = 0;
+	     for (int nblock = 0; nblock < nbatchsize; nblock++)
+	     {
+		if (nnextblock == numtrainingblocks)
+		{
+		   //starts another pass through the training blocks in a new order
+		   for (int nswapblock = numtrainingblocks-1; nswapblock > 0; nswapblock--)
+		   {
+		      int nswap = theRandom.nextInt(nswapblock+1);
+		      int[] temp = trainingblocks[nswapblock];
+		      trainingblocks[nswapblock] = trainingblocks[nswap];
+		      trainingblocks[nswap] = temp;
+		   }
+		   nnextblock = 0;
+		}
+		batchblocks[nblock] = trainingblocks[nnextblock];
+		nbatchpositions += batchblocks[nblock][2]-batchblocks[nblock][1];
+		nnextblock++;
+	     }
+	     numblockstrained += nbatchsize;
+
+	     long lestepstart = System.nanoTime();
+	     if (theTelemetry != null)
+	     {
+		theTrainingPool.resetTiming();
+	     }
+	     SufficientStatistics batchstats = estepBlocks(theTrainingPool, batchblocks, binstats, theEmissionTables, emissionproducts,
+							   emissionproducts_scale, coltransitionprobs, nsparsecutoff, nsparsecutofflooser, dloglikeA);
+	     if (theTelemetry != null)
+	     {
+		addWorkerNanos(theTrainingPool, lworkernanos);
+	     }
+	     numbins += nbatchpositions;
+	     long lmstepstart = System.nanoTime();
+	     lestepnanos += lmstepstart-lestepstart;
+
+	     double dstep = Math.pow(nupdate+1, -dstochasticstep);
+	     runningstats.interpolate(batchstats, dstep, ntrainingpositions/(double) nbatchpositions);
+	     nupdate++;
+
+	     nelim += maximizeParameters(theTrainingPool, runningstats, dzerotransitioncutoff);
+	     lmstepnanos += System.nanoTime()-lmstepstart;
+	  }
+
+	  //the held out blocks are scored with the parameters after the last update
+	  dloglike = 0;
+	  long lestepstart = System.nanoTime();
+	  if (theTelemetry != null)
+	  {
+	     theTrainingPool.resetTiming();
+	  }
+	  estepBlocks(theTrainingPool, heldoutblocks, binstats, theEmissionTables, emissionproducts,
+		      emissionproducts_scale, coltransitionprobs, nsparsecutoff, nsparsecutofflooser, dloglikeA);
+	  if (theTelemetry != null)
+	  {
+	     addWorkerNanos(theTrainingPool, lworkernanos);
+	  }
+	  lestepnanos += System.nanoTime()-lestepstart;
+	  for (int nblock = 0; nblock < numheldout; nblock++)
+	  {
+	     dloglike += dloglikeA[nblock];
+	     numbins += heldoutblocks[nblock][2]-heldoutblocks[nblock][1];
+	  }
+
+	  long loutputstart = System.nanoTime();
+	  double ddiff =(dloglike-dprevloglike);
+          dprevloglike = dloglike;       
+
+	  if (dloglike-dbestloglike > dconvergediff)
+	  {
+	     numnotimproved = 0;
+	  }
+	  else
+	  {
+	     numnotimproved++;
+	  }
+
+	  if (dloglike > dbestloglike)
+	  {
+	     dbestloglike = dloglike;
+	  }
+
+	  if (borderrows)
+	  {
+	     makeStateOrdering();
+	  }
+
+	  if (bordercols)
+	  {
+	     makeColOrdering();
+	  }
+
+	  //updates after each iteration the current status of the search
+	  if (!bdeferoutput)
+	  {
+             printTransitionTable(niteration);
+             printEmissionTable(niteration);
+	     if (bprintimage)
+	     {
+                printEmissionImage(niteration);
+                printTransitionImage(niteration);
+	     }
+	     printParametersToFile(niteration);
+	  }
+
+          long ltimefinal =  System.currentTimeMillis();	  
+	  double dtimechange = (ltimefinal-ltimeitr)/(double) 1000;
+	  boolean bstalled = ((dconvergediff>=0)&&(numblockstrained >= numtrainingblocks)&&(numnotimproved >= ChromHMM.STOCHASTICPATIENCE));
+          bconverged = (((niteration >= nmaxiterations)||bstalled)||((dtimechange>nmaxseconds)&&(nmaxseconds>=0)));	  
+          if (ChromHMM.BVERBOSE)
+	  {
+	     System.out.println(niteration+"\tTime Iteration\t"+dtimechange+"\t"+"\tElim\t"+nelim+"\tUpdates\t"+nupdate+"\tNot improved\t"+numnotimproved);
+	     System.out.println("Held out "+niteration+"\t"+dloglike+"\t"+ddiff);        
+	  }
 
-       double dprevloglike;
+	  printIterationProgress(niteration, ddiff, dtimechange, nf3, nf1);
+	  numiterations = niteration;
 
-       //stores the maximum number of locations in any sequence and in each sequence
-       int[] numtime = new int[traindataObservedIndex.length];
-       int nmaxtime = 0;
-       for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
-       {
-          numtime[nseq] = traindataObservedIndex[nseq].length;
-          if (numtime[nseq] > nmaxtime)
+	  if (theTelemetry != null)
 	  {
-      	     nmaxtime = numtime[nseq];
+	     theTelemetry.writeIteration(this, niteration, dloglike, ddiff, dtimechange, lestepnanos/1e9, lmstepnanos/1e9,
+					 (System.nanoTime()-loutputstart)/1e9, 0, lworkernanos, numbins, nelim-nelimstart, nelim);
 	  }
+	  niteration++;
        }
+       while (!bconverged);
+    }
 
-       if (ChromHMM.BVERBOSE)
+    /**
+     * Runs the E-step with the current parameters on each of the blocks in blocks, given as the sequence and its first and last+1
+     * locations, and returns the sum of their sufficient statistics held in binstats[0]. The log-likelihood of the i^th block is
+     * stored in dloglikeA[i].
+     */
+    SufficientStatistics estepBlocks(TrainingPool theTrainingPool, int[][] blocks, SufficientStatistics[] binstats,
+				     SignatureEmissionTables theEmissionTables, double[][] emissionproducts, double[] emissionproducts_scale,
+				     double[][] coltransitionprobs, int nsparsecutoff, int nsparsecutofflooser, double[] dloglikeA) throws IOException
+    {
+       if (theEmissionTables != null)
        {
-          System.out.println("Maximum number of locations\t"+nmaxtime);
+	  theEmissionTables.update();
        }
 
-
-       int numprocessors;
-       //    for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
-
-       if (nmaxprocessors <= 0)
+       if (emissionproducts != null)
        {
-	   numprocessors = Math.min(traindataObservedIndex.length,Runtime.getRuntime().availableProcessors());
+	  final double[][] femissionproducts = emissionproducts;
+	  final double[] femissionproducts_scale = emissionproducts_scale;
+	  final SignatureEmissionTables ftheEmissionTables = theEmissionTables;
+	  theTrainingPool.runRanges(emissionproducts.length, new TrainingPool.RangeTask()
+	     {
+		 void run(int nstart, int nend)
+		 {
+		     if (ftheEmissionTables != null)
+		     {
+			 ftheEmissionTables.computeEmissionProducts(femissionproducts, femissionproducts_scale, nstart, nend);
+		     }
+		     else
+		     {
+			 updateEmissionProducts(femissionproducts, femissionproducts_scale, nstart, nend);
+		     }
+		 }
+	     });
        }
        else
        {
-	   numprocessors = Math.min(traindataObservedIndex.length,
-				    Math.min(nmaxprocessors,Runtime.getRuntime().availableProcessors()));
+	  //the products computed by the caches for the last mini-batch are from the previous emission probabilities
+	  nemissionepoch++;
        }
 
-       //if (ChromHMM.BVERBOSE)
+       for (int ni = 0; ni < numstates; ni++)
        {
-	   if (numprocessors == 1)
-              System.out.println("Using "+numprocessors+" thread for Baum-Welch training");
-	   else
-	       System.out.println("Using "+numprocessors+" threads for Baum-Welch training");
-       }
-       threadslots = new boolean[numprocessors];
+	  double[] coltransitionprobs_ni = coltransitionprobs[ni];
+	  for (int nj = 0; nj < numstates; nj++)
+	  {
+	     coltransitionprobs_ni[nj] = transitionprobs[nj][ni];
+	  }
+       }	     
+       updateCompressedTransitions();
 
-       int ncurrnumincludeseq;
-       int[] samples= null;
-       if (numincludeseq >= 1)
+       for (int nbin = 0; nbin < binstats.length; nbin++)
        {
-	   ncurrnumincludeseq = Math.min(numincludeseq, chromfiles.length);
-	   samples = new int[ncurrnumincludeseq];
+	  binstats[nbin].reset();
        }
-       else
+
+       int[] nblocklengths = new int[blocks.length];
+       for (int nblock = 0; nblock < blocks.length; nblock++)
        {
-	   ncurrnumincludeseq = chromfiles.length;
+	  nblocklengths[nblock] = blocks[nblock][2]-blocks[nblock][1];
        }
+       int[] nbinassignment = SufficientStatistics.assignBins(nblocklengths, binstats.length);
 
-       //stores the emission probability for the i^th combination of marks in the j^th state
-       double[][] emissionproducts = new double[traindataObservedValues.length][numstates];
-
-
-       //stores the scale for the emission probability for the i^th combination of marks
-       double[] emissionproducts_scale = null;
-
-       if (bscaleemissions)
+       ArrayList[] albins = new ArrayList[binstats.length];
+       for (int nbin = 0; nbin < albins.length; nbin++)
        {
-          emissionproducts_scale = new double[traindataObservedValues.length];
+	  albins[nbin] = new ArrayList();
        }
 
-       //stores temporary product terms
-       double[][] tempproductbetaemiss_Pool = new double[numprocessors][numstates];
-
-       //This stores the alpha values at each time point and number of states
-       double[][][] alpha_Pool = new double[numprocessors][nmaxtime][numstates];
-
-       //Temporary storage of the gamma's for each state
-       double[][] gamma_nt_Pool = new double[numprocessors][numstates];
-
-       //Temporary storage of the beta values for each state
-       double[][] beta_nt_Pool = new double[numprocessors][numstates];
-
-       //Temporary storage of the beta values for each state at the next time point
-       double[][] beta_ntp1_Pool = new double[numprocessors][numstates];
-
-       //stores the scaling value for each time point
-       double[][] scale_Pool = new double[numprocessors][nmaxtime];
-
-       //stores the transition probabilities for each column
-       double[][] coltransitionprobs = new double[numstates][numstates];
-
-       //stores the sufficient statistic for the initital probability in each state for the last visit
-       double[][] gammainitstore = //new double[traindataObservedIndex.length][numstates];
- 	              new double[ncurrnumincludeseq][numstates];
-
-       //stores the sufficient statistics for computing the transition probabilities cumulated for each iteration
-       double[][][] sxistore = //new double[traindataObservedIndex.length][numstates][numstates];
- 	             new double[ncurrnumincludeseq][numstates][numstates];
+       for (int nblock = 0; nblock < blocks.length; nblock++)
+       {
+	  int nseq = blocks[nblock][0];
+	  int nstart = blocks[nblock][1];
+	  final NewThread myNewThread = new NewThread(traindataObservedIndex[nseq],
+						      nstart,
+						      traindataObservedSeqFlags[nseq],
+						      nblocklengths[nblock],
+						      emissionproducts,
+						      coltransitionprobs,
+						      nsparsecutoff,
+						      nsparsecutofflooser,
+						      dloglikeA,
+						      nblock,
+						      emissionproducts_scale,
+						      null);
+	  if (nstart == 0)
+	  {
+	     albins[nbinassignment[nblock]].add(myNewThread);
+	  }
+	  else
+	  {
+	     //only the first location of a sequence is counted for the initial probabilities
+	     albins[nbinassignment[nblock]].add(new Runnable()
+		{
+		   public void run()
+		   {
+		      myNewThread.run();
+		      Arrays.fill(TrainingPool.currentWorker().seqstats.gammainit, 0);
+		   }
+		});
+	  }
+       }
 
-       //stores the sufficient statistic for computing the emission probabilities
-       double[][][][] gammaksumstore = 
-	         new double[ncurrnumincludeseq][numstates][numdatasets][numbuckets];
-                  //new double[traindataObservedIndex.length][numstates][numdatasets][numbuckets];
+       for (int nbin = 0; nbin < albins.length; nbin++)
+       {
+	  if (albins[nbin].size() > 0)
+	  {
+	     theTrainingPool.submitBin(albins[nbin], binstats[nbin]);
+	  }
+       }
+       theTrainingPool.waitForAll();
 
-       //temporary storage in computation of sxi
-       double[][][] sumforsxi_Pool = new double[numprocessors][numstates][numstates];
+       SufficientStatistics.reduce(theTrainingPool, binstats);
+       return binstats[0];
+    }
 
-       //stores the sum of the gamma values associated with each combination in each state
-       double[][][] gammaObservedSum_Pool = new double[numprocessors][traindataObservedValues.length][numstates];
+    /**
+     * Adds to lworkernanos the nanoseconds each worker of theTrainingPool spent running tasks since its timing was last reset
+     */
+    static void addWorkerNanos(TrainingPool theTrainingPool, long[] lworkernanos)
+    {
+       long[] lcomputenanos = theTrainingPool.getComputeNanos();
+       for (int nworker = 0; nworker < lworkernanos.length; nworker++)
+       {
+	  lworkernanos[nworker] += lcomputenanos[nworker];
+       }
+    }
 
+    /**
+     * Learns the parameters of the model by incremental EM with a pool of workers of in-memory parallel training
+     */
+    public void trainParametersIncremental() throws IOException
+    {
+       TrainingPool theTrainingPool = createTrainingPool();
+       trainParametersIncremental(theTrainingPool);
+       theTrainingPool.shutdown();
+    }
 
-       double[] dloglikeA = new double[ncurrnumincludeseq]; 
-	   //new double[traindataObservedIndex.length];
+    /**
+     * Learns the parameters of the model by incremental EM with the sequences processed concurrently by the workers of theTrainingPool.
+     * As in trainParameters the sufficient statistics of each sequence from its last pass are kept, and after the first pass the M-step
+     * is run on their sum whenever sequences complete. Each worker runs the E-step on a sequence against a snapshot of the parameters
+     * taken when the sequence was handed out, so other sequences may complete and change the parameters in the meantime. When sequences
+     * complete the difference of their statistics from those of their previous pass is added into the sum, the M-step is run, and the next
+     * sequences are handed out with a new snapshot. The parameters thus depend on the order in which the workers complete sequences.
+     */
+    void trainParametersIncremental(TrainingPool theTrainingPool) throws IOException
+    {
+        NumberFormat nf3 = NumberFormat.getInstance();
+        nf3.setMaximumFractionDigits(3);
+	nf3.setGroupingUsed(false);
+	nf3.setMinimumFractionDigits(3);
 
-       int nelim = 0;
-       long ltimeitr= System.currentTimeMillis();
-       dprevloglike = Double.NEGATIVE_INFINITY;
+        NumberFormat nf1 = NumberFormat.getInstance();
+	nf1.setMaximumFractionDigits(1);
+	nf1.setMinimumFractionDigits(1);
+	nf1.setGroupingUsed(false);
 
+       int niteration = 1;
+       boolean bconverged = false;
+       double dzerotransitioncutoff = Math.pow(10,-nzerotransitionpower);
+       int nsparsecutoff = getSparseCutoff();
+       int nsparsecutofflooser = (int) (numstates * ChromHMM.SPARSECUTOFFLOOSERRATIO);
 
-       boolean[] bincludeseq = new boolean[chromfiles.length];
-       for (int nk = 0; nk < bincludeseq.length; nk++)
+       int numseq = traindataObservedIndex.length;
+       int nmaxtime = 0;
+       for (int nseq = 0; nseq < numseq; nseq++)
        {
-	   bincludeseq[nk] = true;
+	   nmaxtime = Math.max(nmaxtime, traindataObservedIndex[nseq].length);
        }
-
-
-       do
+       allocateCheckpointStores(theTrainingPool, nmaxtime);
+
+       //each worker has a slot with the snapshot of the parameters its sequence is run against and where its statistics are returned
+       int numslots = theTrainingPool.numworkers;
+       ChromHMM[] slotsnapshots = new ChromHMM[numslots];
+       double[][][] slotcoltransitionprobs = new double[numslots][numstates][numstates];
+       final SufficientStatistics[] slotstats = new SufficientStatistics[numslots];
+       Future[] slotfutures = new Future[numslots];
+       int[] slotseq = new int[numslots];
+       int[] slotversion = new int[numslots];
+       for (int nslot = 0; nslot < numslots; nslot++)
        {
-	   //dloglike= 0;	  
+	   slotsnapshots[nslot] = newParameterSnapshot();
+	   slotstats[nslot] = new SufficientStatistics(numstates, numdatasets, numbuckets);
+       }
 
-	   if (numincludeseq >=1)
+       //each task computes the emission products of its snapshot into its worker's buffers for only the combinations of marks on its sequence
+       theTrainingPool.allocateEmissionBuffers(traindataObservedValues.length, numstates, bscaleemissions);
+       final int[][] seqcombos = new int[numseq][];
+       for (int nseq = 0; nseq < numseq; nseq++)
+       {
+	   boolean[] traindataObservedSeqFlags_nseq = traindataObservedSeqFlags[nseq];
+	   int numcombos_nseq = 0;
+	   for (int ncombo = 0; ncombo < traindataObservedSeqFlags_nseq.length; ncombo++)
 	   {
-	       for (int ni = 0; ni < samples.length; ni++)
-	       {
-	          samples[ni] = ni;
-	       }
-
-	       //Random theRandom2 = new Random(412);//433
-
-	       //sampling without replacement data locations wanted
-	       for (int ni = ncurrnumincludeseq; ni < chromfiles.length; ni++)
-	       {
-	          if (theRandom.nextDouble() < ncurrnumincludeseq/((double) ni +1))
-		  {
-		     samples[theRandom.nextInt(ncurrnumincludeseq)] = ni;
-		  }
-	       }
-
-               for (int nk = 0; nk < bincludeseq.length; nk++)
-	       {
-	           bincludeseq[nk] = false;
-	       }
-
-	       for (int nk = 0; nk < samples.length; nk++)
+	       if (traindataObservedSeqFlags_nseq[ncombo])
 	       {
-		   bincludeseq[samples[nk]] = true;
-		   //System.out.println("including\t"+samples[nk]+"\t"+bincludeseq[samples[nk]]);
+		   numcombos_nseq++;
 	       }
 	   }
 
-
-           if (bscaleemissions)
-	   {
-	      for (int ni = 0; ni < emissionproducts.length; ni++)
-	      {
-	         //going through each combination of marks
-		 //this signature of marks is observed on the current chromosome so
-	         //updating its emission probabilities
-		 double[] emissionproducts_ni = emissionproducts[ni];
-	         boolean[] traindataObservedValues_ni = traindataObservedValues[ni];
-		 boolean[] traindataNotMissing_ni = traindataNotMissing[ni];
-
-		 for (int ns = 0; ns < numstates; ns++)
-		 {
-	            emissionproducts_ni[ns] = 1;
-		 }
-		 emissionproducts_scale[ni] = 0;
-
-		 for (int nmod = 0; nmod < numdatasets; nmod++)
-		 {
-		    for (int ns = 0; ns < numstates; ns++)
-		    {
-		       if (traindataNotMissing_ni[nmod])
-		       {
-		          //we are include this marks emission probability
-			  if (traindataObservedValues_ni[nmod])
-			  {
-			     emissionproducts_ni[ns] *= emissionprobs[ns][nmod][1];
-			  }
-			  else
-			  {
-			     emissionproducts_ni[ns] *= emissionprobs[ns][nmod][0];
-			  }
-		       }
-		       // otherwise treated as missing omitting from product
-		    }
-
-		    double dmaxval = 0;
-		    for (int ns = 0; ns < numstates; ns++)
-		    {
-		       if (emissionproducts_ni[ns] > dmaxval)
-		       {
-			   dmaxval = emissionproducts_ni[ns];
-		       }
-		    }
-
-		    if (dmaxval <= 0)//EPSILONEMISSIONS)
-		    {
-		       for (int ns = 0; ns < numstates; ns++)
-		       {
-		          emissionproducts_ni[ns] = 1;
-		       }
-		       //approximating log-likelihood
-		       emissionproducts_scale[ni] += Math.log(EPSILONEMISSIONS);
-		    }
-		    else
-		    {
-		       for (int ns = 0; ns < numstates; ns++)
-		       {
-			  emissionproducts_ni[ns]/= dmaxval;
-		       }
-		       emissionproducts_scale[ni] += Math.log(dmaxval);
-		    }
-		 }
-	      }
-	   }
-	   else
+	   seqcombos[nseq] = new int[numcombos_nseq];
+	   numcombos_nseq = 0;
+	   for (int ncombo = 0; ncombo < traindataObservedSeqFlags_nseq.length; ncombo++)
 	   {
-	      for (int ni = 0; ni < emissionproducts.length; ni++)
-              {
-                 //going through each combination of marks
-	         //this signature of marks is observed on the current chromosome so
-	         //updating its emission probabilities
-                 double[] emissionproducts_ni = emissionproducts[ni];
-	         boolean[] traindataObservedValues_ni = traindataObservedValues[ni];
-	         boolean[] traindataNotMissing_ni = traindataNotMissing[ni];		  
-
-	         boolean ballzero = true;
-
-                 for (int ns = 0; ns < numstates; ns++)
-	         {
-                    double dproduct = 1;
-	            double[][] emissionprobs_ns = emissionprobs[ns];
-
-		    for (int nmod = 0; nmod < numdatasets; nmod++)
-	            {
-	     	       if (traindataNotMissing_ni[nmod])
-		       {
-		          //we are include this marks emission probability
-	                  if (traindataObservedValues_ni[nmod])
-		          {
-		             //System.out.println("positive\t"+ns+"\t"+nmod+"\t1\t"+emissionprobs_ns[nmod][1]);
-		             dproduct *= emissionprobs_ns[nmod][1];
-		          }
-		          else 
-	                  {
-		             ///System.out.println("negative\t"+ns+"\t"+nmod+"\t0\t"+emissionprobs_ns[nmod][0]);
-		             dproduct *= emissionprobs_ns[nmod][0];
-			  }
-		       }
-		       // otherwise treated as missing omitting from product
-		    }
-	            //System.out.println(ns+"\t"+dproduct);
-	            emissionproducts_ni[ns] = dproduct;
-
-		    if (dproduct >= EPSILONEMISSIONS)
-		    {
-	      	       ballzero = false;
-		    }
-		 }
-
-	         if (ballzero)
-	         {
-	            for (int ns = 0; ns < numstates; ns++)
-	            {
-	       	       emissionproducts_ni[ns] = EPSILONEMISSIONS;
-		    }
-		 }
-	      }
+	       if (traindataObservedSeqFlags_nseq[ncombo])
+	       {
+		   seqcombos[nseq][numcombos_nseq] = ncombo;
+		   numcombos_nseq++;
+	       }
 	   }
+       }
 
+       //the slots whose sequences have completed, in the order they completed
+       final LinkedBlockingQueue completedslots = new LinkedBlockingQueue();
 
-	  //stores in coltransitionprobs the transpose of transitionprobs
-          for (int ni = 0; ni < numstates; ni++)
-	  {
-             double[] coltransitionprobs_ni = coltransitionprobs[ni];
-	     for (int nj = 0; nj < numstates; nj++)
-	     {
-                coltransitionprobs_ni[nj] = transitionprobs[nj][ni];
-             }
-          }	     
-
-          synchronized (objlock)
-	  {
-	      nlaunched = ncurrnumincludeseq;//traindataObservedIndex.length;
-	  }
+       //the statistics of each sequence from its last pass and their sum
+       SufficientStatistics[] seqstatsstore = new SufficientStatistics[numseq];
+       for (int nseq = 0; nseq < numseq; nseq++)
+       {
+	   seqstatsstore[nseq] = new SufficientStatistics(numstates, numdatasets, numbuckets);
+       }
+       SufficientStatistics totalstats = new SufficientStatistics(numstates, numdatasets, numbuckets);
 
+       //the M-step is run on its own worker so it does not wait behind the sequences queued on the pool
+       TrainingPool theMStepPool = new TrainingPool(1);
 
-	  int nincludeindex = 0;
-          for (int nseq = 0; nseq < traindataObservedIndex.length; nseq++)
-          {
-	      //System.out.println(nseq+"\t"+bincludeseq[nseq]);
-	     if (bincludeseq[nseq])
-	     {
-		double[][] sxi_nseq = sxistore[nincludeindex];//[nseq]; //bug fixed here in v1.15 when using -n option with lowmem
-	        int numtime_nseq = numtime[nseq];
-	        int[] traindataObservedIndex_nseq = traindataObservedIndex[nseq];
-	        boolean[] traindataObservedSeqFlags_nseq = traindataObservedSeqFlags[nseq];
-	        double[][][] gammaksum_nseq = gammaksumstore[nincludeindex];// gammaksumstore[nseq];
-	        double[] gammainitstore_nseq = gammainitstore[nincludeindex];// gammainitstore[nseq];
+       double[] dloglikeA = new double[numseq];
+       int nversion = 0;
+       int nelim = 0;
+       long ltimeitr= System.currentTimeMillis();
+       double dprevloglike = Double.NEGATIVE_INFINITY;
 
-	        NewThread myNewThread = new NewThread(traindataObservedIndex_nseq,
-					 traindataObservedSeqFlags_nseq,
-					 gammaksum_nseq,
-					 sxi_nseq,
-					 numtime_nseq,
-					 gammainitstore_nseq,
-					 gammaObservedSum_Pool,
-					 alpha_Pool,
-					 emissionproducts,
-					 gamma_nt_Pool,
-					 coltransitionprobs,
-					 scale_Pool,
-					 beta_nt_Pool,
-					 beta_ntp1_Pool,
-					 tempproductbetaemiss_Pool,
-					 sumforsxi_Pool,
-					 nsparsecutoff,
-					 nsparsecutofflooser,
-					 dloglikeA,
-				   	 nincludeindex,
-                                         emissionproducts_scale);
-						      //nseq);
-		nincludeindex++;
-	        new Thread(myNewThread).start();
-	     } 
-	  }	
-	   
+       //the slots that are free to be handed a sequence
+       ArrayList alfreeslots = new ArrayList();
 
-	  synchronized(objlock)
+       try
+       {
+	  do
 	  {
-	     while (nlaunched > 0)
+	     int nnextseq = 0;
+	     int numcompleted = 0;
+	     long nstaleness = 0;
+
+	     //the M-steps overlap the E-steps of the sequences that are still being processed
+	     long lpassstart = System.nanoTime();
+	     long lmstepnanos = 0;
+	     int nelimstart = nelim;
+	     if (theTelemetry != null)
 	     {
-                try
-                {
-	           objlock.wait();
-		}
-	        catch (InterruptedException ex) {}
+		theTrainingPool.resetTiming();
 	     }
-	  }
 
-	  //normal EM
-	  //executes the M-step after any pass through a sequence after one pass has been made through all sequences
-          double dsum = 0;
+	     alfreeslots.clear();
+	     for (int nslot = 0; nslot < numslots; nslot++)
+	     {
+		alfreeslots.add(Integer.valueOf(nslot));
+	     }
 
-	  //updating the inital probabilities
-          for (int ni = 0; ni < numstates; ni++)
-	  {
-	     double dgammainitsum = 0;
-             //for (int nitr = 0; nitr < traindataObservedIndex.length; nitr++)
-             for (int nitr = 0; nitr < ncurrnumincludeseq; nitr++)
+	     while (numcompleted < numseq)
 	     {
-		 //if (bincludeseq[nitr])
+		//hands the next sequences to the free slots with a snapshot of the current parameters
+		while ((alfreeslots.size() > 0)&&(nnextseq < numseq))
+		{
+		   final int nslot = ((Integer) alfreeslots.remove(alfreeslots.size()-1)).intValue();
+		   final ChromHMM theSnapshot = slotsnapshots[nslot];
+		   copyParametersTo(theSnapshot);
+
+		   final double[][] coltransitionprobs = slotcoltransitionprobs[nslot];
+		   for (int ni = 0; ni < numstates; ni++)
+		   {
+		      double[] coltransitionprobs_ni = coltransitionprobs[ni];
+		      for (int nj = 0; nj < numstates; nj++)
+		      {
+			 coltransitionprobs_ni[nj] = transitionprobs[nj][ni];
+		      }
+		   }
+
+		   final int nseq = nnextseq;
+		   slotseq[nslot] = nseq;
+		   slotversion[nslot] = nversion;
+		   final long lsubmittime = System.nanoTime();
+		   slotfutures[nslot] = theTrainingPool.submitTask(new Runnable()
+		      {
+			 public void run()
+			 {
+			    try
+			    {
+			       long lstarttime = System.nanoTime();
+			       TrainingPool.Worker theWorker = TrainingPool.currentWorker();
+			       double[][] emissionproducts = theWorker.emissionproducts;
+			       double[] emissionproducts_scale = theWorker.emissionproducts_scale;
+			       int[] seqcombos_nseq = seqcombos[nseq];
+			       for (int nindex = 0; nindex < seqcombos_nseq.length; nindex++)
+			       {
+				  int ncombo = seqcombos_nseq[nindex];
+				  theSnapshot.updateEmissionProducts(emissionproducts, emissionproducts_scale, ncombo, ncombo+1);
+			       }
+
+			       NewThread myNewThread = theSnapshot.new NewThread(traindataObservedIndex[nseq],
+										 traindataObservedSeqFlags[nseq],
+										 traindataObservedIndex[nseq].length,
+										 emissionproducts,
+										 coltransitionprobs,
+										 nsparsecutoff,
+										 nsparsecutofflooser,
+										 dloglikeA,
+										 nseq,
+										 emissionproducts_scale,
+										 null);
+			       myNewThread.run();
+			       slotstats[nslot].reset();
+			       slotstats[nslot].add(theWorker.seqstats);
+			       theWorker.recordTask(lstarttime-lsubmittime, System.nanoTime()-lstarttime);
+			    }
+			    finally
+			    {
+			       completedslots.add(Integer.valueOf(nslot));
+			    }
+			 }
+		      });
+		   nnextseq++;
+		}
+
+		//waits for a sequence to complete and takes any others that completed in the meantime
+		ArrayList alcompleted = new ArrayList();
+		while (alcompleted.size() == 0)
+		{
+		   try
+		   {
+		      alcompleted.add(completedslots.take());
+		   }
+		   catch (InterruptedException ex) {}
+		}
+		completedslots.drainTo(alcompleted);
+
+		for (int nindex = 0; nindex < alcompleted.size(); nindex++)
+		{
+		   int nslot = ((Integer) alcompleted.get(nindex)).intValue();
+
+		   //rethrows any exception of the task
+		   ArrayList alfuture = new ArrayList();
+		   alfuture.add(slotfutures[nslot]);
+		   TrainingPool.waitFor(alfuture);
+
+		   int nseq = slotseq[nslot];
+		   totalstats.addDifference(slotstats[nslot], seqstatsstore[nseq]);
+		   seqstatsstore[nseq].reset();
+		   seqstatsstore[nseq].add(slotstats[nslot]);
+		   nstaleness += nversion-slotversion[nslot];
+		   alfreeslots.add(Integer.valueOf(nslot));
+		}
+		numcompleted += alcompleted.size();
+
+		//executes the M-step after any sequences complete once one pass has been made through all sequences
+		if ((niteration > 1)||(numcompleted == numseq))
 		{
-                   dgammainitsum += gammainitstore[nitr][ni];
+		   long lmstepstart = System.nanoTime();
+		   nelim += maximizeParameters(theMStepPool, totalstats, dzerotransitioncutoff);
+		   lmstepnanos += System.nanoTime()-lmstepstart;
+		   nversion++;
 		}
 	     }
 
-	     if ((bpseudo)&&(!bnopseudolast))
+	     long loutputstart = System.nanoTime();
+	     long[] lworkernanos = theTrainingPool.getComputeNanos();
+
+	     //the sum is recomputed after each pass so rounding in the differences does not build up
+	     totalstats.reset();
+	     for (int nseq = 0; nseq < numseq; nseq++)
 	     {
-		 dgammainitsum++;
+		totalstats.add(seqstatsstore[nseq]);
 	     }
-	     probinit[ni] = dgammainitsum;
-             dsum += dgammainitsum;
-	  }
- 
-	  for (int ni = 0; ni < numstates; ni++)
-          {
-             probinit[ni] /= dsum;		
-          }
 
-	  //this indicates if there is a change on the set of 0 probability transitions
-	  boolean bchange = false;
-	  for (int ni = 0; ni < transitionprobs.length; ni++)
-          {
-	      dsum = 0;
-	      //computes the denominator for the transition probabilities
+	     dloglike = 0;
+	     for (int nseq = 0; nseq < numseq; nseq++)
+	     {
+		dloglike += dloglikeA[nseq];
+	     }
 
-	      int[] transitionprobsindex_ni = transitionprobsindex[ni];
-	      double[] transitionprobs_ni =  transitionprobs[ni];
-	      int transitionprobsnum_ni = transitionprobsnum[ni];
-	      for (int nj = 0; nj < transitionprobsnum_ni; nj++)
-              {
-		  int ntransitionprobsindex_ni_nj = transitionprobsindex_ni[nj];
-		  double dsxistoreitr = 0;
-	          //for (int nitr = 0; nitr < traindataObservedIndex.length; nitr++)
-	          for (int nitr = 0; nitr < ncurrnumincludeseq; nitr++)
-	          {
-		      //if (bincludeseq[nitr])
-		     {
-	                dsxistoreitr += sxistore[nitr][ni][ntransitionprobsindex_ni_nj];
-		     }
-	          }
+	     double ddiff =(dloglike-dprevloglike);
+	     dprevloglike = dloglike;       
 
-		  if (bpseudo)
-		  {
-		      //pseudo-count to avoid divide by zero
-		      dsxistoreitr++;
-		  }
-	          transitionprobs_ni[ntransitionprobsindex_ni_nj] = dsxistoreitr;
+	     if (borderrows)
+	     {
+		makeStateOrdering();
+	     }
 
-	          dsum += dsxistoreitr;
-	      }
-	       
-              for (int nj = 0; nj < transitionprobsnum_ni; nj++)
-	      {
-		  int ntransitionprobsindex_ni_nj = transitionprobsindex_ni[nj];
-		  //computes the updated transition probabilities
-	          transitionprobs_ni[ntransitionprobsindex_ni_nj] /= dsum;
-	    
-		  if ((transitionprobs_ni[ntransitionprobsindex_ni_nj] < dzerotransitioncutoff) && (ni != ntransitionprobsindex_ni_nj))
-	          {
-		      //if falls below threshold eliminate the transition probabilities
-		      elim[ni][ntransitionprobsindex_ni_nj] = true;
-	              bchange = true;
-	              nelim++;
-	              transitionprobs_ni[ntransitionprobsindex_ni_nj] = 0;
-	           }
-	      }
-	  }
-	       
-	      
-          if (bchange)
-	  {
-	     //a transition was eliminated we need to update the probabilities
-	     for (int ni = 0; ni < transitionprobs.length; ni++)
-             {
-		 int nindex = 0;		        
-		 double ddenom = 0;
-		 boolean[] elim_ni = elim[ni];
-		 double[] transitionprobs_ni = transitionprobs[ni];
-		 int[] transitionprobsindex_ni = transitionprobsindex[ni];
-		 for (int nj = 0; nj < transitionprobs_ni.length; nj++)
-	         {
-	            if (!elim_ni[nj])
-		    {
-		       //we have not eliminated this transition
-		       //stores its index in order and add sum to denominator
-		       transitionprobsindex_ni[nindex] = nj;
-	               ddenom += transitionprobs_ni[nj];
-	               nindex++;
-		    }
-		 }
+	     if (bordercols)
+	     {
+		makeColOrdering();
+	     }
 
-		 //renormalize the transition probabilities by the sum of the non-eliminated transitions
-	         for (int nj = 0; nj < transitionprobs_ni.length; nj++)
-	         {
-	            transitionprobs_ni[nj] /= ddenom;
-	         }
-		 //update the number of valid transitions
-	         transitionprobsnum[ni] = nindex; 
+	     //updates after each iteration the current status of the search
+	     if (!bdeferoutput)
+	     {
+		printTransitionTable(niteration);
+		printEmissionTable(niteration);
+		if (bprintimage)
+		{
+		   printEmissionImage(niteration);
+		   printTransitionImage(niteration);
+		}
+		printParametersToFile(niteration);
 	     }
 
-	     for (int ni = 0; ni < transitionprobs.length; ni++)
-             {
-		 int nindex =0;
-		 int[] transitionprobsindexCol_ni = transitionprobsindexCol[ni];
-		 for (int nj = 0; nj < transitionprobs[ni].length; nj++)
-	         {
-		    if (!elim[nj][ni])
-	            {
-		       //copy into the column of i the index of all non-eliminated transitions of i
-	               transitionprobsindexCol_ni[nindex] = nj;
-	               nindex++;
-		    }
-		 }
-	         //updates the number of non-zero transitions from column i
-	         transitionprobsnumCol[ni] = nindex; 
+	     long ltimefinal =  System.currentTimeMillis();	  
+	     double dtimechange = (ltimefinal-ltimeitr)/(double) 1000;
+	     bconverged = (((niteration >= nmaxiterations)||((ddiff< dconvergediff)&&(dconvergediff>=0)))||((dtimechange>nmaxseconds)&&(nmaxseconds>=0)));	  
+	     if (ChromHMM.BVERBOSE)
+	     {
+		System.out.println(niteration+"\tTime Iteration\t"+dtimechange+"\t"+"\tElim\t"+nelim+"\tVersion\t"+nversion+
+				   "\tMean staleness\t"+nstaleness/(double) numseq);
+		System.out.println("Full "+niteration+"\t"+dloglike+"\t"+dprevloglike+"\t"+ddiff);        
 	     }
-	  }
-	    
-	  //updating the emission parameters
-	  for (int ns = 0; ns < numstates; ns++)
-          {
-	      double[][] emissionprobs_ns = emissionprobs[ns];
 
-	      for (int nmark = 0; nmark < emissionprobs_ns.length; nmark++)
-	      {
-		  double[] emissionprobs_ns_nmark = emissionprobs_ns[nmark];
-		  //can't used a general gamma sum because of missing emission vals
-		  double dgammadenom = 0;
+	     printIterationProgress(niteration, ddiff, dtimechange, nf3, nf1);
+	     numiterations = niteration;
 
-	          //updates gamma sum
-                  for (int nbucket = 0; nbucket < numbuckets; nbucket++)
-		  {
-		      emissionprobs_ns_nmark[nbucket] = 0;
-	                
-	              //for (int nitr = 0; nitr < traindataObservedIndex.length; nitr++)
-	              for (int nitr = 0; nitr < ncurrnumincludeseq; nitr++)
-	              {
-			  //if (bincludeseq[nitr])
-			 {
-	                    emissionprobs_ns_nmark[nbucket] += gammaksumstore[nitr][ns][nmark][nbucket];
-			 }
-	              }
+	     if (theTelemetry != null)
+	     {
+		long numbins = 0;
+		for (int nseq = 0; nseq < numseq; nseq++)
+		{
+		   numbins += traindataObservedIndex[nseq].length;
+		}
+		theTelemetry.writeIteration(this, niteration, dloglike, ddiff, dtimechange, (loutputstart-lpassstart-lmstepnanos)/1e9, lmstepnanos/1e9,
+					    (System.nanoTime()-loutputstart)/1e9, 0, lworkernanos, numbins, nelim-nelimstart, nelim);
+	     }
+	     niteration++;
+	  }
+	  while (!bconverged);
+       }
+       finally
+       {
+	  theMStepPool.shutdown();
+       }
+    }
 
-		      if ((bpseudo) && ((!bnopseudolast)||(nmark<emissionprobs_ns.length-1)))
-		      {
-			  emissionprobs_ns_nmark[nbucket]++;
-		      }
-		      dgammadenom += emissionprobs_ns_nmark[nbucket];
-		  }
+    /**
+     * Learns the parameters of the model as the coordinator of distributed training. The workers connected to theCoordinator
+     * run the E-step on their own sequences and the M-step is run here on the sum of their sufficient statistics.
+     */
+    void trainParametersCoordinated(DistributedTraining.Coordinator theCoordinator) throws IOException
+    {
+        NumberFormat nf3 = NumberFormat.getInstance();
+        nf3.setMaximumFractionDigits(3);
+	nf3.setGroupingUsed(false);
+	nf3.setMinimumFractionDigits(3);
 
-		  //added to avoid NA
-		  if (dgammadenom > 0)
-		  {
-	             for (int nbucket = 0; nbucket < numbuckets; nbucket++)
-	             {
-	                emissionprobs_ns_nmark[nbucket] /= dgammadenom;
-	             }
-		  }
-	      }
-	  }
-       
+        NumberFormat nf1 = NumberFormat.getInstance();
+	nf1.setMaximumFractionDigits(1);
+	nf1.setMinimumFractionDigits(1);
+	nf1.setGroupingUsed(false);
 
-          if (ChromHMM.BVERBOSE)
-          {
-             System.out.println("\t"+niteration+"\t"+dloglike);
-	  }	     
+       int niteration = 1;
+       boolean bconverged = false;
+       double dzerotransitioncutoff = Math.pow(10,-nzerotransitionpower);
+       int nelim = 0;
+       long ltimeitr= System.currentTimeMillis();
+       double dprevloglike = Double.NEGATIVE_INFINITY;
+       if (theResumeCheckpoint != null)
+       {
+	   //continues after the last iteration of the checkpoint, with the time spent before counted towards the maximum
+	   niteration = theResumeCheckpoint.niteration+1;
+	   dprevloglike = theResumeCheckpoint.dloglike;
+	   nelim = theResumeCheckpoint.nelim;
+	   ltimeitr -= theResumeCheckpoint.lelapsedmillis;
+	   theResumeCheckpoint = null;
+       }
+       long llastcheckpoint = System.currentTimeMillis();
 
+       //no sequences are loaded here so the pool only runs the M-step
+       int numprocessors = Runtime.getRuntime().availableProcessors();
+       if (nmaxprocessors > 0)
+       {
+	  numprocessors = Math.min(nmaxprocessors, numprocessors);
+       }
+       TrainingPool theTrainingPool = new TrainingPool(numprocessors);
 
-	  dloglike = 0;
-	  for (int nindex = 0; nindex < dloglikeA.length; nindex++)
-	  {
-	      //if (bincludeseq[nindex])
-	      {
-	         dloglike += dloglikeA[nindex];
-	      }
-	  }
-    
-	  double ddiff =(dloglike-dprevloglike);
+       SufficientStatistics totalstats = new SufficientStatistics(numstates, numdatasets, numbuckets);
 
+       theCoordinator.sendParameters(this, Double.NaN, false);
+       do
+       {
+	  //the workers run the E-step with the parameters last sent
+	  long lestepstart = System.nanoTime();
+	  dloglike = theCoordinator.receiveStatistics(totalstats);
+	  long lmstepstart = System.nanoTime();
+	  int nelimiteration = maximizeParameters(theTrainingPool, totalstats, dzerotransitioncutoff);
+	  nelim += nelimiteration;
+	  long lmstepend = System.nanoTime();
 
-	  //dconvergediff is only enforced if greater thanor equal to 0
+	  double ddiff =(dloglike-dprevloglike);
           dprevloglike = dloglike;       
 
 	  if (borderrows)
@@ -12665,6 +17283,7 @@ public class ChromHMM
 	  {
 	     makeColOrdering();
 	  }
+
 	  //updates after each iteration the current status of the search
           printTransitionTable(niteration);
           printEmissionTable(niteration);
@@ -12685,20 +17304,29 @@ public class ChromHMM
 	     System.out.println("Full "+niteration+"\t"+dloglike+"\t"+dprevloglike+"\t"+ddiff);        
 	  }
 
+	  printIterationProgress(niteration, ddiff, dtimechange, nf3, nf1);
+	  numiterations = niteration;
 
-	  if (niteration == 1)
+	  if (isCheckpointDue(niteration, llastcheckpoint, bconverged))
 	  {
-	      System.out.format("%10s %25s %10s %20s%n","Iteration","Estimated Log Likelihood", "Change","Total Time (secs)");
-	      System.out.format("%10s %25s %10s %20s%n",""+niteration,""+nf3.format(dloglike),"-",""+nf1.format(dtimechange));
+	     TrainingCheckpoint.write(getCheckpointFile(), this, niteration, dloglike, nelim, ltimefinal-ltimeitr);
+	     llastcheckpoint = System.currentTimeMillis();
 	  }
-	  else
+
+	  //the workers make the same state and column orderings from these parameters
+	  theCoordinator.sendParameters(this, dloglike, bconverged);
+
+	  if (theTelemetry != null)
 	  {
-	      //System.out.format(niteration+"            "+nf3.format(dloglike)+"           "+nf3.format(ddiff)+"       "+nf1.format(dtimechange));
-	      System.out.format("%10s %25s %10s %20s%n",""+niteration,""+nf3.format(dloglike),""+nf3.format(ddiff),""+nf1.format(dtimechange));
+	     //the E-step is timed while waiting for the statistics of the workers, which time their own steps
+	     theTelemetry.writeIteration(this, niteration, dloglike, ddiff, dtimechange, (lmstepstart-lestepstart)/1e9, (lmstepend-lmstepstart)/1e9,
+					 (System.nanoTime()-lmstepend)/1e9, 0, new long[0], -1, nelimiteration, nelim);
 	  }
 	  niteration++;
        }
        while (!bconverged);
+
+       theTrainingPool.shutdown();
     }
 
 
@@ -12813,8 +17441,8 @@ public class ChromHMM
 	    {
 	       System.out.println("reading\t"+szinputdir+" "+chromfiles[nfile]);
 	    }
-	    BufferedReader br = Util.getBufferedReader(szinputdir+"/"+chromfiles[nfile]);
-	    String szLine = br.readLine(); //first line tells cell type and chromosome
+	    BinaryFileParser theParser = new BinaryFileParser(szinputdir, chromfiles[nfile]);
+	    String szLine = theParser.readLine(); //first line tells cell type and chromosome
 	    if (szLine == null)
 	    {
 		throw new IllegalArgumentException(szinputdir+"/"+chromfiles[nfile]+" is empty!");
@@ -12836,7 +17464,7 @@ public class ChromHMM
 	    {
 		throw new IllegalArgumentException("First line should only contain cell type and chromosome");
 	    }
-	    szLine = br.readLine(); //reading header
+	    szLine = theParser.readLine(); //reading header
             //to output binary
 	    if (szLine == null)
 	    {
@@ -12886,14 +17514,10 @@ public class ChromHMM
 
 
 	    
-	    int nlinecount  = 0;
-	    while ((szLine = br.readLine())!=null)
-            {
-	    	nlinecount++;
-	    }
+	    int nlinecount  = theParser.countLines();
 	    
 	    //System.out.println("num lines is\t"+nlinecount+"\t"+nfile);
-	    br.close();
+	    theParser.close();
 	    //lnr.close();
 	    numtime[nfile] = nlinecount;
 
@@ -13049,6 +17673,121 @@ public class ChromHMM
 
 
 
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Parses one file of the input data for loadData into the indices of its signatures in the order they are first found in the file.
+     * An exception is kept to be rethrown by loadData, so the errors of the files are reported in the order the files would have
+     * been read one after another.
+     */
+    class LoadDataFile implements Runnable
+    {
+	String szfile;
+
+	//the cell type and chromosome on the first line and the marks on the second
+	String szcell;
+	String szchrom;
+	String[] header;
+
+	//the index of the signature of each row into alsignatures
+	int[] traindataObservedIndex;
+
+	//the distinct signatures of the file
+	SignatureTable theSignatures;
+
+	//the exception reading the file threw, if any
+	Exception ex;
+
+	LoadDataFile(String szfile)
+	{
+	    this.szfile = szfile;
+	}
+
+	public void run()
+	{
+	    try
+	    {
+		load();
+	    }
+	    catch (IOException|RuntimeException ex)
+	    {
+		this.ex = ex;
+	    }
+	}
+
+	void load() throws IOException
+	{
+	    if (ChromHMM.BVERBOSE)
+	    {
+	       System.out.println("reading\t"+szinputdir+" "+szfile);
+	    }
+	    BinaryFileParser theParser = new BinaryFileParser(szinputdir, szfile);
+	    try
+	    {
+	       String szLine = theParser.readLine(); //first line tells cell type and chromosome
+	       if (szLine == null)
+	       {
+		  throw new IllegalArgumentException(szinputdir+"/"+szfile+" is empty!");
+	       }
+	       StringTokenizer st = new StringTokenizer(szLine,"\t");
+	       if (!st.hasMoreTokens())
+	       {
+		  throw new IllegalArgumentException("First line must contain cell type and chromosome. No entries found.");
+	       }
+
+	       String szcellread = st.nextToken().trim(); //added trim in version 1.23
+	       if (!st.hasMoreTokens())
+	       {
+		  throw new IllegalArgumentException("First line must contain cell type and chromosome. Only one entry found.");
+	       }
+	       String szchromread = st.nextToken().trim(); //added trim in version 1.23
+
+	       if (st.hasMoreTokens())
+	       {
+		  throw new IllegalArgumentException("First line should only contain cell type and chromosome");
+	       }
+	       szLine = theParser.readLine(); //reading header
+	       //to output binary
+	       if (szLine == null)
+	       {
+		  throw new IllegalArgumentException(szinputdir+"/"+szfile+" only has one line!");
+	       }
+	       st = new StringTokenizer(szLine,"\t");
+	       String[] headerread = new String[st.countTokens()];
+	       int ntoken = 0;
+	       while (st.hasMoreTokens())
+	       {
+		  headerread[ntoken] = st.nextToken().trim();
+		  ntoken++;
+	       }
+	       szcell = szcellread;
+	       szchrom = szchromread;
+	       header = headerread;
+
+	       //the rows are checked against the number of marks of this file, which loadData then checks against the other files
+	       SignatureTable theSignaturesread = new SignatureTable(header.length);
+	       traindataObservedIndex = theParser.readIndices(theSignaturesread);
+	       theSignatures = theSignaturesread;
+	    }
+	    finally
+	    {
+	       theParser.close();
+	    }
+	}
+    }
+
+    /**
+     * Rethrows the exception a LoadDataFile kept
+     */
+    static void throwLoadException(Exception ex) throws IOException
+    {
+	if (ex instanceof IOException)
+	{
+	    throw (IOException) ex;
+	}
+	throw (RuntimeException) ex;
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////////////////////////
 
     /**
@@ -13148,160 +17887,110 @@ public class ChromHMM
 	
 	traindataObservedIndex = new int[chromfiles.length][]; //number of columns depends on number of lines in file
 
-	HashMap hmObserved = new HashMap(); //maps an observation string to an index and set of flags
- 
-	int nobserved = 0;
+	SignatureTable theSignatures = null; //gives each signature its index over all files
+	ArrayList alflags = new ArrayList(); //the files each signature is observed on by its index
         //PrintWriter pw = null;
 
+	//the files are parsed in parallel, each into its own dictionary of signatures
+	int numprocessors = Runtime.getRuntime().availableProcessors();
+	if (nmaxprocessors > 0)
+	{
+	    numprocessors = Math.min(nmaxprocessors, numprocessors);
+	}
+	numprocessors = Math.min(numprocessors, chromfiles.length);
+
+	LoadDataFile[] loadedfiles = new LoadDataFile[chromfiles.length];
+	TrainingPool theLoadPool = new TrainingPool(numprocessors);
+	for (int nfile = 0; nfile < chromfiles.length; nfile++)
+	{
+	    loadedfiles[nfile] = new LoadDataFile(chromfiles[nfile]);
+	    theLoadPool.submit(loadedfiles[nfile]);
+	}
+	theLoadPool.waitForAll();
+	theLoadPool.shutdown();
+
+	//the dictionaries are merged in the order of the files, and each in the order its signatures were first found,
+	//so the signatures get the same indices as when the files are read one after another
 	for (int nfile = 0; nfile < chromfiles.length; nfile++)
         {
-	    if (ChromHMM.BVERBOSE)
-	    {
-	       System.out.println("reading\t"+szinputdir+" "+chromfiles[nfile]);
-	    }
-	    BufferedReader br = Util.getBufferedReader(szinputdir+"/"+chromfiles[nfile]);
-	    String szLine = br.readLine(); //first line tells cell type and chromosome
-	    if (szLine == null)
-	    {
-		throw new IllegalArgumentException(szinputdir+"/"+chromfiles[nfile]+" is empty!");
-	    }
-	    StringTokenizer st = new StringTokenizer(szLine,"\t");
-            if (!st.hasMoreTokens())
-	    {
-	       throw new IllegalArgumentException("First line must contain cell type and chromosome. No entries found.");
-	    }
+	    LoadDataFile theLoadDataFile = loadedfiles[nfile];
+	    loadedfiles[nfile] = null;
 
-	    cellSeq[nfile] = st.nextToken().trim(); //added trim in version 1.23
-	    if (!st.hasMoreTokens())
+	    if (theLoadDataFile.header == null)
 	    {
-		throw new IllegalArgumentException("First line must contain cell type and chromosome. Only one entry found.");
+		//the file could not be read up to its header
+		throwLoadException(theLoadDataFile.ex);
 	    }
-	    chromSeq[nfile] = st.nextToken().trim(); //added trim in version 1.23
 
-	    if (st.hasMoreTokens())
-	    {
-		throw new IllegalArgumentException("First line should only contain cell type and chromosome");
-	    }
-	    szLine = br.readLine(); //reading header
-            //to output binary
-	    if (szLine == null)
-	    {
-		throw new IllegalArgumentException(szinputdir+"/"+chromfiles[nfile]+" only has one line!");
-	    }
-	    st = new StringTokenizer(szLine,"\t");
-	    int numtokens = st.countTokens();
+	    cellSeq[nfile] = theLoadDataFile.szcell;
+	    chromSeq[nfile] = theLoadDataFile.szchrom;
+
+	    String[] header = theLoadDataFile.header;
 	    if (nfile == 0)
 	    {
 		//first time reading header taking tokens
-	       datasets = new String[numtokens];
-	       int ntoken = 0;
-	       while (st.hasMoreTokens())
-	       {
-		  datasets[ntoken] = st.nextToken().trim();
-		  ntoken++;
-	       }
+	       datasets = header;
 	    }
 	    else
 	    {
 		//Requires number of tokens to match
-		if (numtokens != datasets.length)
+		if (header.length != datasets.length)
 		{
-		    throw new IllegalArgumentException(" found a file with header with "+numtokens+" entries, which does not match another with "+datasets.length); //updated in v1.20 to be more informative
+		    throw new IllegalArgumentException(" found a file with header with "+header.length+" entries, which does not match another with "+datasets.length); //updated in v1.20 to be more informative
 		}
 
-		int ntoken = 0;
 		//Gives warning if a header column does not match
-	        while (st.hasMoreTokens())
+		for (int ntoken = 0; ntoken < header.length; ntoken++)
 	        {
-		   String sztoken = st.nextToken().trim();
-	           if (!datasets[ntoken].equals(sztoken))
+	           if (!datasets[ntoken].equals(header[ntoken]))
 		   {
 		       System.out.println("WARNING headers do not match between "+chromfiles[nfile]+" and "+chromfiles[0]);
 		   }
-		   ntoken++;
 	        }
 	    }
 
 	    //numdatasets is the number of marks we are integrating
       	    numdatasets = datasets.length; 
-
-	    ArrayList aldata = new ArrayList();
-	    while ((szLine = br.readLine())!=null)
+	    if (theSignatures == null)
 	    {
-		st = new StringTokenizer(szLine,"\t ");
-		StringBuffer sb = new StringBuffer();
-		
-		for (int ncol = 0; ncol < numdatasets; ncol++)
-		{
-
-		    if (!st.hasMoreTokens())
-		    {
-			throw new IllegalArgumentException("Found line without "+numdatasets+" values in file "+chromfiles[nfile]);
-		    }
-
-		    String sztoken = st.nextToken();//.trim();
-		    
-		    if (sztoken.equals("0"))
-		    {
-			sb.append("0");
-		    }
-		    else if (sztoken.equals("1"))
-		    {
-			sb.append("1");
-		    }
-		    else if (sztoken.equals("2"))
-		    {
-			//this means missing
-			sb.append("2");
-		    }
-		    else
-		    {
-			throw new IllegalArgumentException("Unrecognized value "+sztoken+" found in "+szinputdir+"/"+chromfiles[nfile]);
-		    }
-		}
-
-		aldata.add(sb.toString());
+		theSignatures = new SignatureTable(numdatasets);
 	    }
-	    br.close();
 
-	    int nsize = aldata.size();
-	    traindataObservedIndex[nfile] = new int[nsize];
-	    int[] traindataObservedIndex_nfile = traindataObservedIndex[nfile];
+	    if (theLoadDataFile.ex != null)
+	    {
+		throwLoadException(theLoadDataFile.ex);
+	    }
 
-	    for (int nrow = 0; nrow < nsize; nrow++)
+	    //maps the index of each signature in the file to its index over all files
+	    SignatureTable theLocalSignatures = theLoadDataFile.theSignatures;
+	    int[] nglobalindex = new int[theLocalSignatures.size()];
+	    long[] key = theSignatures.newKey();
+	    for (int nlocal = 0; nlocal < nglobalindex.length; nlocal++)
 	    {
-		BigInteger theBigInteger = new BigInteger((String) aldata.get(nrow),3);
-		ObservedRec theObservedRec  = (ObservedRec) hmObserved.get(theBigInteger);
-		boolean[] flagA;
+		theLocalSignatures.getKey(nlocal, key);
+		int nglobal = theSignatures.intern(key);
 
-		if (theObservedRec == null)
+		if (nglobal == alflags.size())
 		{
 		    //this is the first time we encountered this combination of marks
-		    flagA = new boolean[chromfiles.length];
-		    //recording which chromsomes this mark combination was observed
-		    flagA[nfile] =true;
-
-		    //System.out.println(szmappingbyte.length());
-		    //storing a mapping from observed byte string to an integer index in alFlags and alObserved
-		    hmObserved.put(theBigInteger, new ObservedRec(nobserved,flagA));
-
-		    //saving this observed index
-		    traindataObservedIndex_nfile[nrow] = nobserved; //change in 1.20 for efficiency to be_nfile
-
-		    //increments the number of observed combinations of marks
-		    nobserved++;
-		}
-		else
-		{
-		    //updating that this signature was observed on this chromosome
-		    theObservedRec.flagA[nfile] = true;
-		    //storing the index of the flags associated with this row 
-		    traindataObservedIndex_nfile[nrow] = theObservedRec.nobserved;
+		    alflags.add(new boolean[chromfiles.length]);
 		}
+		//recording which chromsomes this mark combination was observed
+		((boolean[]) alflags.get(nglobal))[nfile] = true;
+		nglobalindex[nlocal] = nglobal;
+	    }
+
+	    //the indices of the file are replaced in place by those over all files
+	    int[] traindataObservedIndex_nfile = theLoadDataFile.traindataObservedIndex;
+	    for (int nrow = 0; nrow < traindataObservedIndex_nfile.length; nrow++)
+	    {
+		traindataObservedIndex_nfile[nrow] = nglobalindex[traindataObservedIndex_nfile[nrow]];
 	    }
+	    traindataObservedIndex[nfile] = traindataObservedIndex_nfile;
 	}
 	    
 	//saving the mapping of signatures and chromsome observed on
+	int nobserved = alflags.size();
 
 	//stores whether there is a present call at each location
 	traindataObservedValues = new boolean[nobserved][numdatasets];
@@ -13312,65 +18001,76 @@ public class ChromHMM
 	//stores whether this sequence combination appears on the chromosome
 	traindataObservedSeqFlags = new boolean[chromfiles.length][traindataObservedValues.length];
 
-	Iterator hmObservedIterator = hmObserved.entrySet().iterator();
-	while (hmObservedIterator.hasNext())
+	theSignatures.storeCalls(traindataObservedValues, traindataNotMissing);
+
+	for (int ncurrindex = 0; ncurrindex < nobserved; ncurrindex++)
 	{
-	    Map.Entry pairs = (Map.Entry) hmObservedIterator.next();
-	    BigInteger theBigInteger = (BigInteger) pairs.getKey();
-	    String szmapping = theBigInteger.toString(3);  //getting back the mapping string
+	    boolean[] currFlags = (boolean[]) alflags.get(ncurrindex);
+	    for (int nj = 0; nj < chromfiles.length; nj++)
+            {
+		//storing at this observation whether it is found for each chromosome
+		traindataObservedSeqFlags[nj][ncurrindex] = currFlags[nj];
+	    }
+	}	
+    }
 
-	    ObservedRec theObservedRec = (ObservedRec) pairs.getValue();
-	    int ncurrindex = theObservedRec.nobserved;//this is an index on which obervation combination it is
 
-	    boolean[] traindataObservedValues_ncurrindex = traindataObservedValues[ncurrindex];
-	    boolean[] traindataNotMissing_ncurrindex = traindataNotMissing[ncurrindex]; 
-	    
-	    //if the mapping string is less than the number of data sets then 
-	    //there are leading 0's will set for leading 0's not missing and absent
-	    int numch = szmapping.length();
-	    int numleading0 = numdatasets - numch;
-	    for (int nj = 0; nj < numleading0; nj++)
+    //////////////////////////////////////////////////////////////////////////////////////////////
+  
+    /**
+     * Parses the numbers of states given to LearnModel as a comma separated list of numbers or ranges min-max with an optional
+     * step min-max:step, and returns them in increasing order without repeats
+     */
+    static int[] parseNumStates(String sznumstates)
+    {
+	TreeSet tsnumstates = new TreeSet();
+	StringTokenizer st = new StringTokenizer(sznumstates,",");
+	while (st.hasMoreTokens())
+	{
+	    String sztoken = st.nextToken().trim();
+	    int ndashindex = sztoken.indexOf("-");
+	    if (ndashindex == -1)
 	    {
-		traindataObservedValues_ncurrindex[nj] = false;
-		traindataNotMissing_ncurrindex[nj] = true;
+		tsnumstates.add(Integer.valueOf(Integer.parseInt(sztoken)));
 	    }
-
-	    int nmappedindex = numleading0; //starting from the leading 0 position
-	    for (int nj = 0; nj < numch; nj++)
+	    else
 	    {
-	       char ch = szmapping.charAt(nj);
+		int nstep = 1;
+		String szrange = sztoken;
+		int ncolonindex = sztoken.indexOf(":");
+		if (ncolonindex != -1)
+		{
+		    nstep = Integer.parseInt(sztoken.substring(ncolonindex+1));
+		    szrange = sztoken.substring(0,ncolonindex);
+		}
+		int nmin = Integer.parseInt(szrange.substring(0,ndashindex));
+		int nmax = Integer.parseInt(szrange.substring(ndashindex+1));
+		if ((nstep <= 0)||(nmin > nmax))
+		{
+		    throw new NumberFormatException("Invalid range of states "+sztoken);
+		}
 
-	       if (ch == '0')
-	       {
-		   traindataObservedValues_ncurrindex[nmappedindex] = false;
-		   traindataNotMissing_ncurrindex[nmappedindex] = true;
-	       }
-	       else if (ch=='1')
-	       {
-		   traindataObservedValues_ncurrindex[nmappedindex] = true;
-		   traindataNotMissing_ncurrindex[nmappedindex] = true;
-	       }
-	       else
-	       {
-		   //missing data
-		   traindataObservedValues_ncurrindex[nmappedindex] = false;
-		   traindataNotMissing_ncurrindex[nmappedindex] = false;
-	       }
-	       nmappedindex++;
+		for (int numstates = nmin; numstates <= nmax; numstates += nstep)
+		{
+		    tsnumstates.add(Integer.valueOf(numstates));
+		}
 	    }
+	}
 
-	    boolean[] currFlags = theObservedRec.flagA;
-	    for (int nj = 0; nj < chromfiles.length; nj++)
-            {
-		//storing at this observation whether it is found for each chromosome
-		traindataObservedSeqFlags[nj][ncurrindex] = currFlags[nj];
-	    }
-	}	
-    }
+	if (tsnumstates.size() == 0)
+	{
+	    throw new NumberFormatException("No number of states in "+sznumstates);
+	}
 
+	int[] numstatesA = new int[tsnumstates.size()];
+	Iterator itr = tsnumstates.iterator();
+	for (int nindex = 0; nindex < numstatesA.length; nindex++)
+	{
+	    numstatesA[nindex] = ((Integer) itr.next()).intValue();
+	}
+	return numstatesA;
+    }
 
-    //////////////////////////////////////////////////////////////////////////////////////////////
-  
     public static void main(String[] args) throws IOException
     {
 
@@ -13393,6 +18093,7 @@ public class ChromHMM
 	{
 	    boolean bstacked = false;
 	    boolean bgzip = false;
+	    boolean bpacked = false;
 	    boolean bpairend = false;
 	    boolean bmixed = false;
 	    boolean bsplit = false;
@@ -13504,6 +18205,10 @@ public class ChromHMM
 		     {
 		        dpoissonthresh = Double.parseDouble(args[++nargindex]);
 		     }
+		     else if (args[nargindex].equals("-packed"))
+		     {
+		        bpacked = true;
+		     }
 		     else if (args[nargindex].equals("-s"))
 		     {
 		        noffsetleft = Integer.parseInt(args[++nargindex]);
@@ -13589,6 +18294,11 @@ public class ChromHMM
 		bok = false;
 	    }
 
+	    if ((bok)&&(bgzip)&&(bpacked))
+	    {
+	       System.out.println("Note: binarized files written with -packed are not gzipped");
+	    }
+
 
 
 	    if ((bok)&&(nargindex == args.length-4))
@@ -13672,7 +18382,7 @@ public class ChromHMM
 			    }
 
 			    Preprocessing.makeBinaryDataFromPeaksSplit(szchromlengthfile, szmarkdir, szoutputbinarydir, szcellmarkfiletable,
-					                         nbinsize, bgzip, numsplitbins, nsplitindex, noffsetleft,noffsetright,
+					                         nbinsize, bgzip, bpacked, numsplitbins, nsplitindex, noffsetleft,noffsetright,
 								       bsplitcols,nnummarksplit,nmarksplitindex,bstacked);
 			}
 		     }
@@ -13696,7 +18406,7 @@ public class ChromHMM
 			}
 		     
 		        Preprocessing.makeBinaryDataFromPeaksSplit(szchromlengthfile, szmarkdir, szoutputbinarydir, szcellmarkfiletable,
-					                         nbinsize, bgzip, numsplitbins, nsplitindex, noffsetleft,noffsetright,
+					                         nbinsize, bgzip, bpacked, numsplitbins, nsplitindex, noffsetleft,noffsetright,
 								   bsplitcols,nnummarksplit,nmarksplitindex, bstacked);
 		     }
 		  }
@@ -13758,7 +18468,7 @@ public class ChromHMM
 						szoutputbinarydirsub,szoutputcontroldir,
 					        dpoissonthresh,dfoldthresh,bcontainsthresh,
 					        npseudocountcontrol,nbinsize,szcolfields,bpeaks, dcountthresh,szcommand.equalsIgnoreCase("BinarizeBam"),
-							     bpairend, bgzip, bsplit, numsplitbins, bsplitcols,nnummarksplit,nmarksplitindex, bstacked, bmixed);	   	        
+							     bpairend, bgzip, bpacked, bsplit, numsplitbins, bsplitcols,nnummarksplit,nmarksplitindex, bstacked, bmixed);	   	        
 		      }
 		  }
 		  else
@@ -13811,7 +18521,7 @@ public class ChromHMM
 						szoutputbinarydir,szoutputcontroldir,
 					        dpoissonthresh,dfoldthresh,bcontainsthresh,
 					        npseudocountcontrol,nbinsize,szcolfields,bpeaks, dcountthresh,szcommand.equalsIgnoreCase("BinarizeBam"),
-							 bpairend, bgzip, bsplit, numsplitbins, bsplitcols,nnummarksplit,nmarksplitindex,bstacked,bmixed);	   	          
+							 bpairend, bgzip, bpacked, bsplit, numsplitbins, bsplitcols,nnummarksplit,nmarksplitindex,bstacked,bmixed);	   	          
 		   
 		  }
 	       }
@@ -13828,14 +18538,14 @@ public class ChromHMM
 	       {
 		   //v1.18 update
                   System.out.println("usage BinarizeBed [-b binsize][-c controldir][-center][-colfields chromosome,start,end[,strand]][-e offsetend][-f foldthresh]"+
-                                  "[-g signalthresh][-gzip][-n shift][-o outputcontroldir][-p poissonthresh][-peaks [-i splitrowindex]][-s offsetstart][-splitcols [-k splitcolindex][-m numsplitcols]][-splitrows [-j numsplitbins]][-stacked][-strictthresh][-t outputsignaldir]"+
+                                  "[-g signalthresh][-gzip][-n shift][-o outputcontroldir][-p poissonthresh][-packed][-peaks [-i splitrowindex]][-s offsetstart][-splitcols [-k splitcolindex][-m numsplitcols]][-splitrows [-j numsplitbins]][-stacked][-strictthresh][-t outputsignaldir]"+
                                   "[-u pseudocountcontrol][-w flankwidthcontrol] "+
                                   "chromosomelengthfile inputbeddir cellmarkfiletable outputbinarydir");
 	       }
 	       else
 	       {
 		   System.out.println("usage BinarizeBam [-b binsize][-c controldir][-e offsetend][-f foldthresh]"+
-                                  "[-g signalthresh][-gzip][[-o outputcontroldir][-p poissonthresh][-paired|[-mixed][-center][-n shift][-peaks [-i splitindex]]"+
+                                  "[-g signalthresh][-gzip][[-o outputcontroldir][-p poissonthresh][-packed][-paired|[-mixed][-center][-n shift][-peaks [-i splitindex]]"+
                                   "[-s offsetstart][-splitcols [-k splitcolindex][-m numsplitcols]][-splitrows [-j numsplitbins]][-stacked][-strictthresh][-t outputsignaldir]"+
                                   "[-u pseudocountcontrol][-w flankwidthcontrol] "+
 				      "chromosomelengthfile inputbamdir cellmarkfiletable outputbinarydir");
@@ -13846,6 +18556,7 @@ public class ChromHMM
 	{
 	    boolean bcontainsthresh = true;
 	    boolean bgzip = false;
+	    boolean bpacked = false;
 	    boolean bsplit = false;
 	    double dfoldthresh = 0;
 	    double dcountthresh = 0;
@@ -13895,6 +18606,10 @@ public class ChromHMM
 		     {
 		        dpoissonthresh = Double.parseDouble(args[++nargindex]);
 		     }
+		     else if (args[nargindex].equals("-packed"))
+		     {
+		        bpacked = true;
+		     }
 		     else if (args[nargindex].equals("-splitrows"))
 		     {
 			 bsplit = true;
@@ -13928,6 +18643,11 @@ public class ChromHMM
 	       {
 	          bok = false;
 	       }
+
+	       if ((bok)&&(bgzip)&&(bpacked))
+	       {
+	          System.out.println("Note: binarized files written with -packed are not gzipped");
+	       }
 	    
 	       if ((bok)&&(nargindex == args.length-2))
 	       {
@@ -13947,12 +18667,12 @@ public class ChromHMM
 	          {
                      Preprocessing.makeBinaryDataFromSignalAgainstControl(szsignaldir,szcontroldir, szoutputdir,
 								   dpoissonthresh, dfoldthresh,bcontainsthresh, 
-									  nflankwidthcontrol,npseudocountcontrol, dcountthresh,bgzip, bsplit, numsplitbins);
+									  nflankwidthcontrol,npseudocountcontrol, dcountthresh,bgzip, bpacked, bsplit, numsplitbins);
 	          }
 	          else
 	          {
 		     Preprocessing.makeBinaryDataFromSignalUniform(szsignaldir, szoutputdir, dpoissonthresh, 
-								   dfoldthresh, bcontainsthresh,dcountthresh,bgzip, bsplit, numsplitbins);
+								   dfoldthresh, bcontainsthresh,dcountthresh,bgzip, bpacked, bsplit, numsplitbins);
 	          }
 	       }
 	       else
@@ -13963,7 +18683,7 @@ public class ChromHMM
 
 	    if (!bok)
             {
-               System.out.println("usage BinarizeSignal [-c controldir][-f foldthresh][-g signalthresh][-gzip][-p poissonthresh][-splitrows [-j numsplitbins]][-strictthresh][-u pseudocountcontrol][-w flankwidth] signaldir outputdir");
+               System.out.println("usage BinarizeSignal [-c controldir][-f foldthresh][-g signalthresh][-gzip][-p poissonthresh][-packed][-splitrows [-j numsplitbins]][-strictthresh][-u pseudocountcontrol][-w flankwidth] signaldir outputdir");
             }	       
 	    
 	}
@@ -13971,6 +18691,7 @@ public class ChromHMM
 	{
 
 	    boolean bgzip = false;
+	    boolean bpacked = false;
 	    int numsplitbins = ChromHMM.DEFAULT_NUMSPLITBINS;
 	    boolean bsplit = false;
 	    String szdirlistfile = null;
@@ -14004,6 +18725,10 @@ public class ChromHMM
 			bflagsplitbins = true;
 		        //bsplit = true;
 		     }
+		     else if (args[nargindex].equals("-packed"))
+		     {
+			bpacked = true;
+		     }
 		     else if (args[nargindex].equals("-splitrows"))
 		     {
 			bsplit = true;
@@ -14029,6 +18754,16 @@ public class ChromHMM
 	       {
 	          bok = false;
 	       }
+
+	       if ((bpacked)&&(!sztype.equals("binary")))
+	       {
+		  throw new IllegalArgumentException("-packed can only be used for binary files, but the type is "+sztype);
+	       }
+
+	       if ((bok)&&(bgzip)&&(bpacked))
+	       {
+	          System.out.println("Note: binarized files written with -packed are not gzipped");
+	       }
 	    
 	       if ((bok)&&(nargindex == args.length-2))
 	       {
@@ -14043,7 +18778,7 @@ public class ChromHMM
 		        throw new IllegalArgumentException(szoutputdir+" does not exist and could not be created!");
 		     }
 		  }		  
-		  Preprocessing.mergeBinarizedFiles(szinputdir, szoutputdir, szdirlistfile, bsplit, numsplitbins, bgzip, sztype);
+		  Preprocessing.mergeBinarizedFiles(szinputdir, szoutputdir, szdirlistfile, bsplit, numsplitbins, bgzip, bpacked, sztype);
 	       }
 	       else
 	       {
@@ -14053,9 +18788,36 @@ public class ChromHMM
 
 	    if (!bok)
             {
-               System.out.println("usage MergeBinary [-f dirlistfile][-gzip][-splitrows [-j numsplitbins]][-t type] inputdir outputdir");
+               System.out.println("usage MergeBinary [-f dirlistfile][-gzip][-packed][-splitrows [-j numsplitbins]][-t type] inputdir outputdir");
             }	       
 	}
+	else if (szcommand.equalsIgnoreCase("PackBinary"))
+	{
+	    if (args.length != 3)
+	    {
+		bok = false;
+	    }
+	    else
+	    {
+	       String szinputdir = args[1];
+	       String szoutputdir = args[2];
+
+	       File f = new File(szoutputdir);
+	       if (!f.exists())
+	       {
+	          if (!f.mkdirs())
+	          {
+		     throw new IllegalArgumentException(szoutputdir+" does not exist and could not be created!");
+		  }
+	       }
+	       Preprocessing.packBinarizedFiles(szinputdir, szoutputdir);
+	    }
+
+	    if (!bok)
+	    {
+	       System.out.println("usage PackBinary inputdir outputdir");
+	    }
+	}
 	else if (szcommand.equalsIgnoreCase("CompareModels"))
 	{
 	    String szmainmodel;
@@ -14186,6 +18948,8 @@ public class ChromHMM
 	    boolean bprintimage = true;
             boolean bscaleemissions = false;
 	    boolean bscalebeta = false;
+	    boolean bfloat = false;
+	    String szkernel = "scalar";
 	    String szchromlengthfile = null;
 	    int nbinsize = ChromHMM.DEFAULT_BINSIZEBASEPAIRS;
 	    String szoutfileID = "";
@@ -14220,6 +18984,19 @@ public class ChromHMM
 		  {
 		     szinputfilelist = args[++nargindex];
 		  }
+		  else if (args[nargindex].equals("-float"))
+		  {
+		     bfloat = true;
+		  }
+		  else if (args[nargindex].equals("-kernel"))
+		  {
+		     szkernel = args[++nargindex];
+		     if (!DotKernel.isValidKernel(szkernel))
+		     {
+			bok = false;
+			break;
+		     }
+		  }
 		  else if (args[nargindex].equals("-i"))
 		  {
 		     szoutfileID = args[++nargindex];
@@ -14283,7 +19060,7 @@ public class ChromHMM
 		   ChromHMM theHMM = new ChromHMM(szinputdir, szsegmentdir,szinputfilelist,szconfusionfileprefix, 
                                                   szmodelfile, szoutfileID, nbinsize, breadposterior,
 						  breadsegments,breadstatebyline,szinclude,bappend, theColor,bprintimage,blowmem, 
-                                                  bscaleemissions,bscalebeta);
+                                                  bscaleemissions,bscalebeta,bfloat,DotKernel.getKernel(szkernel));
 
 		  if (blowmem)
 		  {
@@ -14303,7 +19080,7 @@ public class ChromHMM
 
 	    if (!bok)
 	    {
-		System.out.println("usage: EvalSubset [-append][-b binsize][-f inputfilelist][-i outfileID]"+
+		System.out.println("usage: EvalSubset [-append][-b binsize][-f inputfilelist][-float][-i outfileID][-kernel scalar|vector|auto]"+
                                    "[-lowmem][-many][-noimage][-readposterior|-readstatesbyline][-scalebeta]"+
                                    "  inputmodel inputdir segmentdir outconfusionfileprefix includemarks");
 	    }
@@ -14316,6 +19093,8 @@ public class ChromHMM
 	    boolean bprintstatebyline = false;
 	    boolean bnoprintsegment = false;
 	    boolean bscalebeta = false;
+	    boolean bfloat = false;
+	    String szkernel = "scalar";
 	    String szchromlengthfile = null;
 	    int nbinsize = ChromHMM.DEFAULT_BINSIZEBASEPAIRS;
 	    //int numsplitbins = ChromHMM.DEFAULT_NUMSPLITBINS;
@@ -14337,6 +19116,19 @@ public class ChromHMM
 		  {
 		     szinputfilelist = args[++nargindex];
 		  }
+		  else if (args[nargindex].equals("-float"))
+		  {
+		     bfloat = true;
+		  }
+		  else if (args[nargindex].equals("-kernel"))
+		  {
+		     szkernel = args[++nargindex];
+		     if (!DotKernel.isValidKernel(szkernel))
+		     {
+			bok = false;
+			break;
+		     }
+		  }
                   else if (args[nargindex].equals("-gzip"))
 		  {
 		      bgzip = true;
@@ -14438,7 +19230,8 @@ public class ChromHMM
 	       {
 
 		   ChromHMM theHMM = new ChromHMM(szinputdir, szinputfilelist,szchromlengthfile, szoutputdir, szmodelfile, szoutfileID, nbinsize, bprintposterior,
-						  bprintsegments,bprintstatebyline, blowmem,bscaleemissions, bgzip, bsplit, bscalebeta);
+						  bprintsegments,bprintstatebyline, blowmem,bscaleemissions, bgzip, bsplit, bscalebeta, bfloat,
+						  DotKernel.getKernel(szkernel));
 
 		  if (blowmem)
 		  {
@@ -14461,7 +19254,7 @@ public class ChromHMM
 
 	    if (!bok)
 	    {
-		System.out.println("usage: MakeSegmentation [-b binsize][-f inputfilelist][-gzip][-i outfileID][-l chromosomelengthfile][-lowmem][-many][-nobed]"+
+		System.out.println("usage: MakeSegmentation [-b binsize][-f inputfilelist][-float][-gzip][-i outfileID][-kernel scalar|vector|auto][-l chromosomelengthfile][-lowmem][-many][-nobed]"+
                                    "[-printposterior][-printstatebyline][-scalebeta][-splitrows]"+
                                    "  modelfile inputdir outputdir");
 	    }
@@ -14955,6 +19748,33 @@ public class ChromHMM
 	    int numincludeseq = 0;
 	    boolean bnormalEM = false;
 	    boolean bscalebeta = false;
+	    boolean bfloat = false;
+	    String szkernel = "scalar";
+	    boolean bprinttiming = false;
+	    int nblockfbsize = 0;
+	    boolean brecomputealpha = false;
+	    boolean bcompressruns = false;
+	    boolean bcalibratesparse = false;
+	    boolean bemissiontables = false;
+	    int nemissioncachesize = 0;
+	    int numrestarts = 1;
+	    int ncoordinatorport = -1;
+	    int numdistributedworkers = 0;
+	    String szcoordinator = null;
+	    int ndistributedtimeout = -1;
+	    int ncheckpointiterations = 0;
+	    int ncheckpointminutes = 0;
+	    boolean bresume = false;
+	    int nstochasticblocks = 0;
+	    int nstochasticblocksize = ChromHMM.DEFAULT_STOCHASTICBLOCKSIZE;
+	    int nstochasticupdates = ChromHMM.DEFAULT_STOCHASTICUPDATES;
+	    double dstochasticstep = ChromHMM.DEFAULT_STOCHASTICSTEP;
+	    int nheldoutblocks = -1;
+	    boolean bincremental = false;
+	    int ndeadstatepower = 0;
+	    String sztelemetryfile = null;
+	    int nprefetchsequences = 0;
+	    int nprefetchthreads = ChromHMM.DEFAULT_PREFETCHTHREADS;
 
 	    int nr=ChromHMM.DEFAULTCOLOR_R;
 	    int ng=ChromHMM.DEFAULTCOLOR_G;
@@ -14968,6 +19788,52 @@ public class ChromHMM
 		  {
 		     nbinsize = Integer.parseInt(args[++nargindex]);
 		  }
+		  else if (args[nargindex].equals("-blockfb"))
+		  {
+		     nblockfbsize = Integer.parseInt(args[++nargindex]);
+		     if (nblockfbsize <= 0)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-coordinator"))
+		  {
+		     ncoordinatorport = Integer.parseInt(args[++nargindex]);
+		     numdistributedworkers = Integer.parseInt(args[++nargindex]);
+		     if (numdistributedworkers < 1)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-distributedtimeout"))
+		  {
+		     ndistributedtimeout = Integer.parseInt(args[++nargindex]);
+		     if (ndistributedtimeout < 0)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-checkpoint"))
+		  {
+		     ncheckpointiterations = Integer.parseInt(args[++nargindex]);
+		     if (ncheckpointiterations < 1)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-checkpointminutes"))
+		  {
+		     ncheckpointminutes = Integer.parseInt(args[++nargindex]);
+		     if (ncheckpointminutes < 1)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
 		  else if (args[nargindex].equals("-color"))
 		  {
 		     String szcolor = args[++nargindex];
@@ -14995,6 +19861,19 @@ public class ChromHMM
 		  {
 		     szinputfilelist = args[++nargindex];
 		  }
+		  else if (args[nargindex].equals("-float"))
+		  {
+		     bfloat = true;
+		  }
+		  else if (args[nargindex].equals("-kernel"))
+		  {
+		     szkernel = args[++nargindex];
+		     if (!DotKernel.isValidKernel(szkernel))
+		     {
+			bok = false;
+			break;
+		     }
+		  }
                   else if (args[nargindex].equals("-gzip"))
 		  {
 	       	     bgzip = true;
@@ -15141,6 +20020,129 @@ public class ChromHMM
 		  {
 		      bprintstatebyline = true;
 		  }
+		  else if (args[nargindex].equals("-printtiming"))
+		  {
+		      bprinttiming = true;
+		  }
+		  else if (args[nargindex].equals("-recomputealpha"))
+		  {
+		      brecomputealpha = true;
+		  }
+		  else if (args[nargindex].equals("-resume"))
+		  {
+		      bresume = true;
+		  }
+		  else if (args[nargindex].equals("-restarts"))
+		  {
+		     numrestarts = Integer.parseInt(args[++nargindex]);
+		     if (numrestarts < 1)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-compressruns"))
+		  {
+		      bcompressruns = true;
+		  }
+		  else if (args[nargindex].equals("-calibratesparse"))
+		  {
+		      bcalibratesparse = true;
+		  }
+		  else if (args[nargindex].equals("-emissiontables"))
+		  {
+		      bemissiontables = true;
+		  }
+		  else if (args[nargindex].equals("-emissioncache"))
+		  {
+		     nemissioncachesize = Integer.parseInt(args[++nargindex]);
+		     if (nemissioncachesize < 2)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-stochastic"))
+		  {
+		     nstochasticblocks = Integer.parseInt(args[++nargindex]);
+		     if (nstochasticblocks < 1)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-stochasticblocksize"))
+		  {
+		     nstochasticblocksize = Integer.parseInt(args[++nargindex]);
+		     if (nstochasticblocksize < 1)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-stochasticupdates"))
+		  {
+		     nstochasticupdates = Integer.parseInt(args[++nargindex]);
+		     if (nstochasticupdates < 1)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-stochasticstep"))
+		  {
+		     //the step sizes need to sum to infinity while their squares do not
+		     dstochasticstep = Double.parseDouble(args[++nargindex]);
+		     if ((dstochasticstep <= 0.5)||(dstochasticstep > 1))
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-deadstates"))
+		  {
+		     ndeadstatepower = Integer.parseInt(args[++nargindex]);
+		     if (ndeadstatepower < 1)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-telemetry"))
+		  {
+		     sztelemetryfile = args[++nargindex];
+		  }
+		  else if (args[nargindex].equals("-prefetch"))
+		  {
+		     nprefetchsequences = Integer.parseInt(args[++nargindex]);
+		     if (nprefetchsequences < 1)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-prefetchthreads"))
+		  {
+		     nprefetchthreads = Integer.parseInt(args[++nargindex]);
+		     if (nprefetchthreads < 1)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
+		  else if (args[nargindex].equals("-incremental"))
+		  {
+		     bincremental = true;
+		  }
+		  else if (args[nargindex].equals("-heldout"))
+		  {
+		     nheldoutblocks = Integer.parseInt(args[++nargindex]);
+		     if (nheldoutblocks < 0)
+		     {
+			 bok = false;
+			 break;
+		     }
+		  }
                   else if (args[nargindex].equals("-splitrows"))
 	          {
 		      bsplit = true;
@@ -15157,6 +20159,10 @@ public class ChromHMM
 		  {
 	       	     szfullprefixpathanchorfiledir = args[++nargindex];
 		  }
+		  else if (args[nargindex].equals("-worker"))
+		  {
+		     szcoordinator = args[++nargindex];
+		  }
 		  else if (args[nargindex].equals("-x"))
 		  {
 		      nmaxseconds = Integer.parseInt(args[++nargindex]);
@@ -15216,10 +20222,10 @@ public class ChromHMM
 		   }		  
 	       }
 
-	       int numstates = 0;
+	       int[] numstatesA = null;
                try
 	       {
-	          numstates = Integer.parseInt(args[nargindex++]);
+	          numstatesA = parseNumStates(args[nargindex++]);
 	       }
 	       catch (NumberFormatException ex)
 	       {
@@ -15228,12 +20234,104 @@ public class ChromHMM
 
 	       if (bok)
 	       {
+		  int numstates = numstatesA[0];
 		  String szassembly= args[nargindex++];
 
 	          boolean bprintsegments = !bnoprintsegment; 
 	          boolean bordercols = !bnoordercols;
 		  boolean borderrows = !bnoorderrows;
-		  if ((szoutfileID.equals(""))&&(ninitmethod == ChromHMM.INITMETHOD_RANDOM))
+		  if ((numstatesA.length > 1)&&(ninitmethod == ChromHMM.INITMETHOD_LOAD))
+		  {
+		      throw new IllegalArgumentException("More than one number of states cannot be given with -init load");
+		  }
+
+		  boolean bdistributed = ((ncoordinatorport != -1)||(szcoordinator != null));
+		  if ((ncoordinatorport != -1)&&(szcoordinator != null))
+		  {
+		      throw new IllegalArgumentException("-coordinator and -worker cannot both be given");
+		  }
+
+		  if (bdistributed)
+		  {
+		      if (numstatesA.length > 1)
+		      {
+		         throw new IllegalArgumentException("More than one number of states cannot be given with -coordinator or -worker");
+		      }
+
+		      if (numrestarts > 1)
+		      {
+		         System.out.println("Note: -restarts cannot be combined with -coordinator or -worker, ignoring it");
+		         numrestarts = 1;
+		      }
+
+		      if (numincludeseq > 0)
+		      {
+		         System.out.println("Note: -n cannot be combined with -coordinator or -worker, ignoring it");
+		         numincludeseq = 0;
+		      }
+
+		      if (blowmem)
+		      {
+		         System.out.println("Note: -lowmem cannot be combined with -coordinator or -worker, ignoring it");
+		         blowmem = false;
+		      }
+
+		      //the workers train with the parallel procedure which the coordinator follows
+		      bnormalEM = true;
+
+		      if (ndistributedtimeout == -1)
+		      {
+			 ndistributedtimeout = DistributedTraining.DEFAULTTIMEOUTMINUTES;
+		      }
+		  }
+		  else if (ndistributedtimeout != -1)
+		  {
+		      System.out.println("Note: -distributedtimeout is only used with -coordinator or -worker, ignoring it");
+		  }
+
+		  if ((numrestarts > 1)&&(numstatesA.length > 1))
+		  {
+		      System.out.println("Note: -restarts cannot be combined with more than one number of states, ignoring it");
+		      numrestarts = 1;
+		  }
+		  else if ((numrestarts > 1)&&((ninitmethod != ChromHMM.INITMETHOD_RANDOM)||(!bnormalEM)||(blowmem)))
+		  {
+		      System.out.println("Note: -restarts is only used with -init random for parallel training with -p without -lowmem, ignoring it");
+		      numrestarts = 1;
+		  }
+
+		  if ((nstochasticblocks > 0)&&((numrestarts > 1)||(numstatesA.length > 1)||(bdistributed)))
+		  {
+		      System.out.println("Note: -stochastic is only used to train one model without -restarts, -coordinator or -worker, ignoring it");
+		      nstochasticblocks = 0;
+		  }
+
+		  if ((bincremental)&&((numrestarts > 1)||(numstatesA.length > 1)||(bdistributed)))
+		  {
+		      System.out.println("Note: -incremental is only used to train one model without -restarts, -coordinator or -worker, ignoring it");
+		      bincremental = false;
+		  }
+
+		  if (((ncheckpointiterations > 0)||(ncheckpointminutes > 0)||(bresume))&&((nstochasticblocks > 0)||(bincremental)))
+		  {
+		      System.out.println("Note: -checkpoint, -checkpointminutes and -resume cannot be combined with -stochastic or -incremental, ignoring them");
+		      ncheckpointiterations = 0;
+		      ncheckpointminutes = 0;
+		      bresume = false;
+		  }
+
+		  if (((ncheckpointiterations > 0)||(ncheckpointminutes > 0)||(bresume))&&
+		      ((!bnormalEM)||(numrestarts > 1)||(numstatesA.length > 1)||(szcoordinator != null)))
+		  {
+		      System.out.println("Note: -checkpoint, -checkpointminutes and -resume are only used for parallel training of one model with -p "+
+					 "and not by workers of -coordinator, ignoring them");
+		      ncheckpointiterations = 0;
+		      ncheckpointminutes = 0;
+		      bresume = false;
+		  }
+
+		  //with several restarts the ID of each defaults to its own seed
+		  if ((szoutfileID.equals(""))&&(ninitmethod == ChromHMM.INITMETHOD_RANDOM)&&(numrestarts == 1))
 		  {
 		      szoutfileID = ""+nseed;
 		  }
@@ -15249,12 +20347,82 @@ public class ChromHMM
 			  szchromlengthfile = szprefixpath+"/"+CHROMSIZESDIR+"/"+szassembly+".txt";
 		      }
 		  }
+		  if (ncoordinatorport != -1)
+		  {
+		      //the coordinator does not load the data, which is split among the workers
+		      szinputdir = null;
+		  }
+
  	          ChromHMM theHMM = new ChromHMM(szinputdir, szoutputdir, szinputfilelist,szchromlengthfile,numstates, nseed,ninitmethod,
 						 szInitFile,dloadsmoothemission,dloadsmoothtransition,dinformationsmooth,
 					         nmaxiterations,dconvergediff,nmaxseconds, bprintposterior,bprintsegments,bprintstatebyline,
 						 nbinsize,szoutfileID,nstateorder,bordercols,nzerotransitionpower,theColor,bnormalEM, nmaxprocessors, 
-                                                 blowmem,numincludeseq,bprintimage,bscaleemissions, bpseudo,bnopseudolast, bgzip, bsplit, borderrows, bscalebeta);
-	          theHMM.buildModel();
+                                                 blowmem,numincludeseq,bprintimage,bscaleemissions, bpseudo,bnopseudolast, bgzip, bsplit, borderrows, bscalebeta,
+						 bprinttiming, nblockfbsize, brecomputealpha, bfloat, bcompressruns,
+						 bemissiontables, nemissioncachesize, DotKernel.getKernel(szkernel));
+		  theHMM.bcalibratesparse = bcalibratesparse;
+		  theHMM.ncheckpointiterations = ncheckpointiterations;
+		  theHMM.ncheckpointminutes = ncheckpointminutes;
+		  theHMM.bresume = bresume;
+		  theHMM.nstochasticblocks = nstochasticblocks;
+		  theHMM.nstochasticblocksize = nstochasticblocksize;
+		  theHMM.nstochasticupdates = nstochasticupdates;
+		  theHMM.dstochasticstep = dstochasticstep;
+		  if (nheldoutblocks == -1)
+		  {
+		      //by default as many blocks are held out as are in a mini-batch
+		      nheldoutblocks = nstochasticblocks;
+		  }
+		  theHMM.nheldoutblocks = nheldoutblocks;
+		  theHMM.bincremental = bincremental;
+		  theHMM.ndeadstatepower = ndeadstatepower;
+		  theHMM.nprefetchsequences = nprefetchsequences;
+		  theHMM.nprefetchthreads = nprefetchthreads;
+
+		  //the records of the models trained go to one file, which is closed however training ends
+		  TrainingTelemetry theTelemetry = null;
+		  if (sztelemetryfile != null)
+		  {
+		     theTelemetry = new TrainingTelemetry(sztelemetryfile);
+		     theHMM.theTelemetry = theTelemetry;
+		  }
+
+		  try
+		  {
+		     if (ncoordinatorport != -1)
+		     {
+			//the coordinator only writes the model, the segmentations are made by the workers for their own sequences
+			theHMM.buildModelCoordinated(new DistributedTraining.Coordinator(ncoordinatorport, numdistributedworkers, theHMM, ndistributedtimeout));
+			return;
+		     }
+		     else if (szcoordinator != null)
+		     {
+			theHMM.theDistributedWorker = new DistributedTraining.Worker(szcoordinator, theHMM, ndistributedtimeout);
+			theHMM.buildModel();
+		     }
+		     else if (numstatesA.length > 1)
+		     {
+			//the models are compared by the summary table, the segmentations are made for the number of states chosen
+			theHMM.buildModelSweep(numstatesA, nseed);
+			return;
+		     }
+		     else if (numrestarts > 1)
+		     {
+			theHMM = theHMM.buildModelRestarts(numrestarts, nseed);
+			szoutfileID = theHMM.szoutfileID;
+		     }
+		     else
+		     {
+			theHMM.buildModel();
+		     }
+		  }
+		  finally
+		  {
+		     if (theTelemetry != null)
+		     {
+			theTelemetry.close();
+		     }
+		  }
 
 
 		  String szunderscoreoutfileID;
@@ -15537,11 +20705,11 @@ public class ChromHMM
 
 	    if (!bok)
 	    {
-		System.out.println("usage: LearnModel [-b binsize][-color r,g,b][-d convergedelta][-e loadsmoothemission][-f inputfilelist][-gzip][-h informationsmooth]"+
-                                     "[-holdcolumnorder][-holdroworder][-i outfileID][-init information|random|load][-l chromosomelengthfile][-lowmem][-m modelinitialfile][-many]"+
-                                    "[-n numseq][-noautoopen][-nobed][-nobrowser][-nobrowserheader][-noenrich][-noimage][-nopseudolast][-p maxprocessors][-pseudo][-printposterior][-printstatebyline][-r maxiterations][-s seed][-scalebeta]"+
-                                    "[-splitrows][-stateordering emission|transition]"+
-                                   "[-t loadsmoothtransition][-u coorddir][-v anchorfiledir][-x maxseconds][-z zerotransitionpower] inputdir outputdir numstates assembly");
+		System.out.println("usage: LearnModel [-b binsize][-blockfb blocksize][-calibratesparse][-checkpoint numiterations][-checkpointminutes minutes][-color r,g,b][-compressruns][-coordinator port numworkers][-d convergedelta][-deadstates deadstatepower][-distributedtimeout minutes][-e loadsmoothemission][-emissioncache numcombinations][-emissiontables][-f inputfilelist][-float][-gzip][-h informationsmooth]"+
+                                     "[-heldout numblocks][-holdcolumnorder][-holdroworder][-i outfileID][-incremental][-init information|random|load][-kernel scalar|vector|auto][-l chromosomelengthfile][-lowmem][-m modelinitialfile][-many]"+
+                                    "[-n numseq][-noautoopen][-nobed][-nobrowser][-nobrowserheader][-noenrich][-noimage][-nopseudolast][-p maxprocessors][-prefetch numsequences][-prefetchthreads numthreads][-pseudo][-printposterior][-printstatebyline][-printtiming][-r maxiterations][-recomputealpha][-restarts numrestarts][-resume][-s seed][-scalebeta]"+
+                                    "[-splitrows][-stateordering emission|transition][-stochastic numblocks][-stochasticblocksize numlocations][-stochasticstep exponent][-stochasticupdates numupdates]"+
+                                   "[-t loadsmoothtransition][-telemetry telemetryfile][-u coorddir][-v anchorfiledir][-worker host:port][-x maxseconds][-z zerotransitionpower] inputdir outputdir numstates|minstates-maxstates[:step][,...] assembly");
 	    }
 	} 
 	else if (szcommand.equalsIgnoreCase("Reorder"))
@@ -15840,7 +21008,7 @@ public class ChromHMM
 	else
 	{
 	    System.out.println("Need to specify the mode BinarizeBam|BinarizeBed|BinarizeSignal|CompareModels|ConvertGeneTable|EvalSubset|LearnModel|MakeBrowserFiles"+
-                               "|MakeSegmentation|MergeBinary|NeighborhoodEnrichment|StatePruning|OverlapEnrichment|Reorder|Version");
+                               "|MakeSegmentation|MergeBinary|NeighborhoodEnrichment|PackBinary|StatePruning|OverlapEnrichment|Reorder|Version");
 
 	}
     }
@@ -0,0 +1,679 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+
+/**
+ * Training of a model by several processes, which can be on different machines, connected over TCP sockets.
+ * Each worker process loads its own shard of the sequences and runs the E-step on them with its own training pool.
+ * The coordinator process loads no sequences. After each E-step every worker sends the coordinator only its sufficient
+ * statistics summed over its sequences and its log-likelihood, the coordinator adds them, runs the M-step and sends the new
+ * parameters back to every worker. The information based initialization is computed the same way from the combinations
+ * of marks and the tallies of each worker. The statistics of the workers are added in the order of the names of their first
+ * sequence files, so the sums do not depend on the order in which the workers connect, and the parameters agree with those
+ * of a single process training on all the sequences up to rounding.
+ */
+class DistributedTraining
+{
+    /**
+     * Starts the greeting of a worker so connections from other programs are rejected
+     */
+    static final int MAGIC = 0x43484d4d;
+
+    /**
+     * The version of the messages, which must be the same for the coordinator and the workers
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The messages from the coordinator to the workers
+     */
+    static final int MSG_INFORMATION = 1;
+    static final int MSG_PARAMETERS = 2;
+
+    /**
+     * How many times and how many milliseconds apart a worker tries to connect to a coordinator that is not yet listening
+     */
+    static int CONNECTATTEMPTS = 600;
+    static int CONNECTRETRYMILLIS = 1000;
+
+    /**
+     * The default number of minutes a process waits for a message from another before giving up on it
+     */
+    static int DEFAULTTIMEOUTMINUTES = 60;
+
+
+    /**
+     * The input from the socket of another process, which reports a read that times out as a SocketTimeoutException naming that process
+     */
+    static class PeerInputStream extends FilterInputStream
+    {
+	String szpeer;
+	int ntimeoutminutes;
+
+	PeerInputStream(Socket theSocket, String szpeer, int ntimeoutminutes) throws IOException
+	{
+	    super(theSocket.getInputStream());
+	    this.szpeer = szpeer;
+	    this.ntimeoutminutes = ntimeoutminutes;
+	}
+
+	public int read() throws IOException
+	{
+	    try
+	    {
+		return super.read();
+	    }
+	    catch (SocketTimeoutException ex)
+	    {
+		throw timeout();
+	    }
+	}
+
+	public int read(byte[] b, int noff, int nlen) throws IOException
+	{
+	    try
+	    {
+		return super.read(b, noff, nlen);
+	    }
+	    catch (SocketTimeoutException ex)
+	    {
+		throw timeout();
+	    }
+	}
+
+	SocketTimeoutException timeout()
+	{
+	    return new SocketTimeoutException(szpeer+" has not responded in distributed training for "+ntimeoutminutes+" minutes, "+
+					      "it may have failed or -distributedtimeout may need to be increased");
+	}
+    }
+
+    /**
+     * Sets how long reads from theSocket wait for the other process, with 0 minutes waiting without limit, and returns the input
+     * from theSocket that names szpeer when a read times out
+     */
+    static DataInputStream openInput(Socket theSocket, String szpeer, int ntimeoutminutes) throws IOException
+    {
+	theSocket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, 60000L*ntimeoutminutes));
+	return new DataInputStream(new BufferedInputStream(new PeerInputStream(theSocket, szpeer, ntimeoutminutes)));
+    }
+
+
+    /**
+     * Writes the parameters of theHMM to out preceded by the log-likelihood dloglike of the E-step from which they were
+     * computed and whether training has converged
+     */
+    static void writeParameters(DataOutputStream out, ChromHMM theHMM, double dloglike, boolean bconverged) throws IOException
+    {
+	out.writeInt(MSG_PARAMETERS);
+	out.writeDouble(dloglike);
+	out.writeBoolean(bconverged);
+	for (int ni = 0; ni < theHMM.numstates; ni++)
+	{
+	    out.writeDouble(theHMM.probinit[ni]);
+	}
+
+	for (int ni = 0; ni < theHMM.numstates; ni++)
+	{
+	    for (int nj = 0; nj < theHMM.numstates; nj++)
+	    {
+		out.writeDouble(theHMM.transitionprobs[ni][nj]);
+		out.writeBoolean(theHMM.elim[ni][nj]);
+	    }
+	}
+
+	for (int ni = 0; ni < theHMM.numstates; ni++)
+	{
+	    double[][] emissionprobs_ni = theHMM.emissionprobs[ni];
+	    for (int nmark = 0; nmark < emissionprobs_ni.length; nmark++)
+	    {
+		double[] emissionprobs_ni_nmark = emissionprobs_ni[nmark];
+		for (int nbucket = 0; nbucket < emissionprobs_ni_nmark.length; nbucket++)
+		{
+		    out.writeDouble(emissionprobs_ni_nmark[nbucket]);
+		}
+	    }
+	}
+	out.flush();
+    }
+
+    /**
+     * Reads the type of the next message from in and throws an IOException if it is not nexpected
+     */
+    static void readMessage(DataInputStream in, int nexpected) throws IOException
+    {
+	int nmessage = in.readInt();
+	if (nmessage != nexpected)
+	{
+	    throw new IOException("Expecting message "+nexpected+" in distributed training, but received "+nmessage);
+	}
+    }
+
+
+    /**
+     * The connection of a worker process to the coordinator
+     */
+    static class Worker
+    {
+	Socket theSocket;
+	DataInputStream in;
+	DataOutputStream out;
+
+	/**
+	 * The log-likelihood of the last E-step over the sequences of all the workers
+	 */
+	double dloglike;
+
+	/**
+	 * True once the coordinator has sent the final parameters
+	 */
+	boolean bconverged;
+
+	/**
+	 * Connects to the coordinator at szhostport, given as host:port, retrying while it is not yet listening,
+	 * and sends it the marks and sequence files of theHMM. Gives up if the coordinator does not send a message
+	 * for ntimeoutminutes minutes, or never if it is 0.
+	 */
+	Worker(String szhostport, ChromHMM theHMM, int ntimeoutminutes) throws IOException
+	{
+	    int ncolonindex = szhostport.lastIndexOf(":");
+	    if (ncolonindex == -1)
+	    {
+		throw new IllegalArgumentException("The coordinator "+szhostport+" is not given as host:port");
+	    }
+	    String szhost = szhostport.substring(0, ncolonindex);
+	    int nport = Integer.parseInt(szhostport.substring(ncolonindex+1));
+
+	    int nattempt = 1;
+	    while (theSocket == null)
+	    {
+		try
+		{
+		    theSocket = new Socket(szhost, nport);
+		}
+		catch (ConnectException ex)
+		{
+		    if (nattempt >= CONNECTATTEMPTS)
+		    {
+			throw ex;
+		    }
+		    nattempt++;
+		    try
+		    {
+			Thread.sleep(CONNECTRETRYMILLIS);
+		    }
+		    catch (InterruptedException iex)
+		    {
+			throw new InterruptedIOException("Interrupted while connecting to the coordinator "+szhostport);
+		    }
+		}
+	    }
+	    theSocket.setTcpNoDelay(true);
+	    in = openInput(theSocket, "The coordinator "+szhostport, ntimeoutminutes);
+	    out = new DataOutputStream(new BufferedOutputStream(theSocket.getOutputStream()));
+	    System.out.println("Connected to the coordinator "+szhostport);
+
+	    out.writeInt(MAGIC);
+	    out.writeInt(VERSION);
+	    out.writeInt(theHMM.numstates);
+	    out.writeInt(theHMM.numdatasets);
+	    for (int nmark = 0; nmark < theHMM.numdatasets; nmark++)
+	    {
+		out.writeUTF(theHMM.datasets[nmark]);
+	    }
+
+	    //the files are sent in sorted order so the coordinator can order the workers by their first file
+	    String[] sortedfiles = (String[]) theHMM.chromfiles.clone();
+	    Arrays.sort(sortedfiles);
+	    out.writeInt(sortedfiles.length);
+	    for (int nfile = 0; nfile < sortedfiles.length; nfile++)
+	    {
+		out.writeUTF(sortedfiles[nfile]);
+	    }
+	    out.flush();
+	}
+
+	/**
+	 * Sets the initial parameters of theHMM to those sent by the coordinator, first sending the coordinator the combinations
+	 * of marks and the tallies of the pairs of consecutive positions if it asks for them for the information based initialization
+	 */
+	void receiveInitialParameters(ChromHMM theHMM) throws IOException
+	{
+	    int nmessage = in.readInt();
+	    if (nmessage == MSG_INFORMATION)
+	    {
+		ChromHMM.InformationPairs thePairs = theHMM.computeInformationPairs();
+		int numels = thePairs.alobservedpairflags.size();
+		out.writeInt(numels);
+		for (int nel = 0; nel < numels; nel++)
+		{
+		    boolean[] pairflags = (boolean[]) thePairs.alobservedpairflags.get(nel);
+		    for (int nmark = 0; nmark < pairflags.length; nmark++)
+		    {
+			out.writeBoolean(pairflags[nmark]);
+		    }
+		    out.writeLong(thePairs.tallys[nel]);
+		}
+		out.flush();
+
+		//the coordinator splits the combinations of all the workers and sends back the partition of each of ours
+		int[] initStateAssign = new int[numels];
+		for (int nel = 0; nel < numels; nel++)
+		{
+		    initStateAssign[nel] = in.readInt();
+		}
+
+		long[] numstarts = new long[theHMM.numstates];
+		long[][] transitiontally = new long[theHMM.numstates][theHMM.numstates];
+		long nvalidseq = theHMM.tallyInformationStates(thePairs, initStateAssign, numstarts, transitiontally);
+		out.writeLong(nvalidseq);
+		for (int ni = 0; ni < theHMM.numstates; ni++)
+		{
+		    out.writeLong(numstarts[ni]);
+		    for (int nj = 0; nj < theHMM.numstates; nj++)
+		    {
+			out.writeLong(transitiontally[ni][nj]);
+		    }
+		}
+		out.flush();
+		nmessage = in.readInt();
+	    }
+
+	    if (nmessage != MSG_PARAMETERS)
+	    {
+		throw new IOException("Expecting message "+MSG_PARAMETERS+" in distributed training, but received "+nmessage);
+	    }
+	    theHMM.allocateParameters();
+	    readParameters(theHMM);
+	    theHMM.updateTransitionIndices();
+	}
+
+	/**
+	 * Sends the coordinator the sufficient statistics totalstats and the log-likelihoods in dloglikeA of the sequences of this worker,
+	 * then sets the parameters of theHMM to those computed by the coordinator from the statistics of all the workers.
+	 * Returns the number of transitions eliminated by the coordinator.
+	 */
+	int exchangeStatistics(ChromHMM theHMM, SufficientStatistics totalstats, double[] dloglikeA) throws IOException
+	{
+	    double dlocalloglike = 0;
+	    for (int nindex = 0; nindex < dloglikeA.length; nindex++)
+	    {
+		dlocalloglike += dloglikeA[nindex];
+	    }
+	    out.writeDouble(dlocalloglike);
+	    totalstats.write(out);
+	    out.flush();
+
+	    readMessage(in, MSG_PARAMETERS);
+	    int numelim = readParameters(theHMM);
+	    if (numelim > 0)
+	    {
+		theHMM.updateTransitionIndices();
+	    }
+
+	    if (bconverged)
+	    {
+		theSocket.close();
+	    }
+	    return numelim;
+	}
+
+	/**
+	 * Reads into theHMM the parameters written by writeParameters after the type of the message.
+	 * Returns the number of transitions that were not eliminated before and are now.
+	 */
+	int readParameters(ChromHMM theHMM) throws IOException
+	{
+	    dloglike = in.readDouble();
+	    bconverged = in.readBoolean();
+	    for (int ni = 0; ni < theHMM.numstates; ni++)
+	    {
+		theHMM.probinit[ni] = in.readDouble();
+	    }
+
+	    int numelim = 0;
+	    for (int ni = 0; ni < theHMM.numstates; ni++)
+	    {
+		for (int nj = 0; nj < theHMM.numstates; nj++)
+		{
+		    theHMM.transitionprobs[ni][nj] = in.readDouble();
+		    boolean belim = in.readBoolean();
+		    if (belim != theHMM.elim[ni][nj])
+		    {
+			theHMM.elim[ni][nj] = belim;
+			numelim++;
+		    }
+		}
+	    }
+
+	    for (int ni = 0; ni < theHMM.numstates; ni++)
+	    {
+		double[][] emissionprobs_ni = theHMM.emissionprobs[ni];
+		for (int nmark = 0; nmark < emissionprobs_ni.length; nmark++)
+		{
+		    double[] emissionprobs_ni_nmark = emissionprobs_ni[nmark];
+		    for (int nbucket = 0; nbucket < emissionprobs_ni_nmark.length; nbucket++)
+		    {
+			emissionprobs_ni_nmark[nbucket] = in.readDouble();
+		    }
+		}
+	    }
+	    return numelim;
+	}
+    }
+
+
+    /**
+     * The connection of a worker to the coordinator as seen by the coordinator
+     */
+    static class WorkerConnection
+    {
+	Socket theSocket;
+	DataInputStream in;
+	DataOutputStream out;
+
+	/**
+	 * The sequence files of the worker in sorted order
+	 */
+	String[] chromfiles;
+
+	/**
+	 * For the information based initialization the index among the combinations of all the workers of each combination of this worker
+	 */
+	int[] nmergedindex;
+    }
+
+    /**
+     * The coordinator of distributed training, which adds the sufficient statistics of its workers and runs the M-step
+     */
+    static class Coordinator
+    {
+	/**
+	 * The connected workers in the order in which their statistics are added
+	 */
+	WorkerConnection[] connections;
+
+	/**
+	 * The number of sequences over all the workers
+	 */
+	int numsequences;
+
+	/**
+	 * The statistics of one worker before being added to the others
+	 */
+	SufficientStatistics workerstats;
+
+	/**
+	 * Waits on nport until numworkers workers have connected and checks that they all have the marks and number of states of theHMM,
+	 * setting the marks of theHMM to those of the first worker if theHMM has none, and that no sequence file is on two workers.
+	 * Gives up if no worker connects or a worker does not send a message for ntimeoutminutes minutes, or never if it is 0.
+	 */
+	Coordinator(int nport, int numworkers, ChromHMM theHMM, int ntimeoutminutes) throws IOException
+	{
+	    connections = new WorkerConnection[numworkers];
+	    ServerSocket theServerSocket = new ServerSocket(nport);
+	    theServerSocket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, 60000L*ntimeoutminutes));
+	    System.out.println("Waiting for "+numworkers+" workers on port "+nport);
+
+	    HashSet hsfiles = new HashSet();
+	    for (int nworker = 0; nworker < numworkers; nworker++)
+	    {
+		WorkerConnection theConnection = new WorkerConnection();
+		try
+		{
+		    theConnection.theSocket = theServerSocket.accept();
+		}
+		catch (SocketTimeoutException ex)
+		{
+		    theServerSocket.close();
+		    throw new SocketTimeoutException("Only "+nworker+" of "+numworkers+" workers connected to the coordinator on port "+nport+
+						     " in "+ntimeoutminutes+" minutes");
+		}
+		String szworker = theConnection.theSocket.getInetAddress().getHostName()+":"+theConnection.theSocket.getPort();
+		theConnection.theSocket.setTcpNoDelay(true);
+		theConnection.in = openInput(theConnection.theSocket, "The worker "+szworker, ntimeoutminutes);
+		theConnection.out = new DataOutputStream(new BufferedOutputStream(theConnection.theSocket.getOutputStream()));
+		DataInputStream in = theConnection.in;
+
+		if ((in.readInt() != MAGIC)||(in.readInt() != VERSION))
+		{
+		    throw new IOException("The connection from "+szworker+" is not from a worker of this version of ChromHMM");
+		}
+
+		int nworkerstates = in.readInt();
+		if (nworkerstates != theHMM.numstates)
+		{
+		    throw new IllegalArgumentException("The worker "+szworker+" is training "+nworkerstates+" states, but expecting "+theHMM.numstates);
+		}
+
+		int nworkerdatasets = in.readInt();
+		String[] workerdatasets = new String[nworkerdatasets];
+		for (int nmark = 0; nmark < nworkerdatasets; nmark++)
+		{
+		    workerdatasets[nmark] = in.readUTF();
+		}
+
+		if (theHMM.datasets == null)
+		{
+		    theHMM.datasets = workerdatasets;
+		    theHMM.numdatasets = nworkerdatasets;
+		    theHMM.colordering = new int[nworkerdatasets];
+		    for (int nmark = 0; nmark < nworkerdatasets; nmark++)
+		    {
+			theHMM.colordering[nmark] = nmark;
+		    }
+		}
+		else if (!Arrays.equals(workerdatasets, theHMM.datasets))
+		{
+		    throw new IllegalArgumentException("The marks of the worker "+szworker+" do not match those of the other workers");
+		}
+
+		theConnection.chromfiles = new String[in.readInt()];
+		if (theConnection.chromfiles.length == 0)
+		{
+		    throw new IllegalArgumentException("The worker "+szworker+" has no sequences");
+		}
+
+		for (int nfile = 0; nfile < theConnection.chromfiles.length; nfile++)
+		{
+		    theConnection.chromfiles[nfile] = in.readUTF();
+		    if (!hsfiles.add(theConnection.chromfiles[nfile]))
+		    {
+			throw new IllegalArgumentException("The file "+theConnection.chromfiles[nfile]+" is on more than one worker");
+		    }
+		}
+		numsequences += theConnection.chromfiles.length;
+		connections[nworker] = theConnection;
+		System.out.println("Worker "+szworker+" connected with "+theConnection.chromfiles.length+" sequences");
+	    }
+	    theServerSocket.close();
+
+	    Arrays.sort(connections, new Comparator()
+		{
+		    public int compare(Object o1, Object o2)
+		    {
+			return ((WorkerConnection) o1).chromfiles[0].compareTo(((WorkerConnection) o2).chromfiles[0]);
+		    }
+		});
+	}
+
+	/**
+	 * Returns the sequence files of all the workers in the order in which their statistics are added
+	 */
+	String[] getChromFiles()
+	{
+	    String[] chromfiles = new String[numsequences];
+	    int nfile = 0;
+	    for (int nworker = 0; nworker < connections.length; nworker++)
+	    {
+		System.arraycopy(connections[nworker].chromfiles, 0, chromfiles, nfile, connections[nworker].chromfiles.length);
+		nfile += connections[nworker].chromfiles.length;
+	    }
+	    return chromfiles;
+	}
+
+	/**
+	 * Initializes the parameters of theHMM by greedily splitting the combinations of marks at pairs of consecutive positions of all the workers,
+	 * which are the same as if all the sequences were on one worker
+	 */
+	void informationInitialize(ChromHMM theHMM) throws IOException
+	{
+	    for (int nworker = 0; nworker < connections.length; nworker++)
+	    {
+		connections[nworker].out.writeInt(MSG_INFORMATION);
+		connections[nworker].out.flush();
+	    }
+
+	    //merges the combinations of the workers by their marks adding their tallies
+	    ArrayList alobservedpairflags = new ArrayList();
+	    ArrayList altallys = new ArrayList();
+	    HashMap hmObserved = new HashMap();
+	    long ntotaltally = 0;
+	    for (int nworker = 0; nworker < connections.length; nworker++)
+	    {
+		WorkerConnection theConnection = connections[nworker];
+		int numels = theConnection.in.readInt();
+		theConnection.nmergedindex = new int[numels];
+		for (int nel = 0; nel < numels; nel++)
+		{
+		    boolean[] pairflags = new boolean[theHMM.numdatasets];
+		    StringBuffer sb = new StringBuffer();
+		    for (int nmark = 0; nmark < pairflags.length; nmark++)
+		    {
+			pairflags[nmark] = theConnection.in.readBoolean();
+			if (pairflags[nmark])
+			{
+			    sb.append("1");
+			}
+			else
+			{
+			    sb.append("0");
+			}
+		    }
+		    long ltally = theConnection.in.readLong();
+		    ntotaltally += ltally;
+
+		    String szkey = sb.toString();
+		    Integer objIndex = (Integer) hmObserved.get(szkey);
+		    if (objIndex == null)
+		    {
+			objIndex = Integer.valueOf(alobservedpairflags.size());
+			hmObserved.put(szkey, objIndex);
+			alobservedpairflags.add(pairflags);
+			altallys.add(new long[1]);
+		    }
+		    theConnection.nmergedindex[nel] = objIndex.intValue();
+		    ((long[]) altallys.get(objIndex.intValue()))[0] += ltally;
+		}
+	    }
+
+	    long[] tallys = new long[altallys.size()];
+	    for (int nel = 0; nel < tallys.length; nel++)
+	    {
+		tallys[nel] = ((long[]) altallys.get(nel))[0];
+	    }
+
+	    theHMM.allocateParameters();
+	    int[] initStateAssign = theHMM.splitInformationPairs(alobservedpairflags, tallys, ntotaltally);
+
+	    for (int nworker = 0; nworker < connections.length; nworker++)
+	    {
+		WorkerConnection theConnection = connections[nworker];
+		for (int nel = 0; nel < theConnection.nmergedindex.length; nel++)
+		{
+		    theConnection.out.writeInt(initStateAssign[theConnection.nmergedindex[nel]]);
+		}
+		theConnection.out.flush();
+	    }
+
+	    //the starts and transitions between the partitions are counted by the workers on their sequences
+	    long[] numstarts = new long[theHMM.numstates];
+	    long[][] transitiontally = new long[theHMM.numstates][theHMM.numstates];
+	    long nvalidseq = 0;
+	    for (int nworker = 0; nworker < connections.length; nworker++)
+	    {
+		DataInputStream in = connections[nworker].in;
+		nvalidseq += in.readLong();
+		for (int ni = 0; ni < theHMM.numstates; ni++)
+		{
+		    numstarts[ni] += in.readLong();
+		    for (int nj = 0; nj < theHMM.numstates; nj++)
+		    {
+			transitiontally[ni][nj] += in.readLong();
+		    }
+		}
+	    }
+	    theHMM.setInformationStartsTransitions(numstarts, nvalidseq, transitiontally);
+	}
+
+	/**
+	 * Sends the parameters of theHMM to all the workers with the log-likelihood dloglike from which they were computed and
+	 * whether training has converged, after which the connections are closed
+	 */
+	void sendParameters(ChromHMM theHMM, double dloglike, boolean bconverged) throws IOException
+	{
+	    for (int nworker = 0; nworker < connections.length; nworker++)
+	    {
+		writeParameters(connections[nworker].out, theHMM, dloglike, bconverged);
+	    }
+
+	    if (bconverged)
+	    {
+		for (int nworker = 0; nworker < connections.length; nworker++)
+		{
+		    connections[nworker].theSocket.close();
+		}
+	    }
+	}
+
+	/**
+	 * Sets totalstats to the sum of the sufficient statistics of the last E-step of all the workers.
+	 * Returns the sum of their log-likelihoods.
+	 */
+	double receiveStatistics(SufficientStatistics totalstats) throws IOException
+	{
+	    if (workerstats == null)
+	    {
+		workerstats = new SufficientStatistics(totalstats.gammainit.length, totalstats.gammaksum[0].length, totalstats.gammaksum[0][0].length);
+	    }
+
+	    double dloglike = 0;
+	    for (int nworker = 0; nworker < connections.length; nworker++)
+	    {
+		DataInputStream in = connections[nworker].in;
+		dloglike += in.readDouble();
+		if (nworker == 0)
+		{
+		    totalstats.read(in);
+		}
+		else
+		{
+		    workerstats.read(in);
+		    totalstats.add(workerstats);
+		}
+	    }
+	    return dloglike;
+	}
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+
+/**
+ * Computes the dot products in the dense transition loops of the forward and backward passes.
+ * The scalar kernel sums the products in index order exactly as the loops did before, so its results do not change.
+ * The vector kernel in VectorDotKernel uses the jdk.incubator.vector module. Its source is kept in the separate optional
+ * source root vector and it is loaded by name, so the rest of ChromHMM neither needs the module to compile nor to run.
+ * Since it sums the products in a different order its results can differ from those of the scalar kernel by rounding,
+ * which is why the scalar kernel is the default.
+ */
+public abstract class DotKernel
+{
+    /**
+     * The kernel that sums the products one at a time
+     */
+    static final DotKernel SCALARKERNEL = new ScalarDotKernel();
+
+    /**
+     * Returns the sum of da[ni]*db[ni] for ni from 0 to n-1
+     */
+    abstract double dot(double[] da, double[] db, int n);
+
+    /**
+     * Returns the name of the kernel as given to the -kernel option
+     */
+    abstract String getName();
+
+
+    /**
+     * The kernel that sums the products one at a time in index order
+     */
+    static class ScalarDotKernel extends DotKernel
+    {
+	double dot(double[] da, double[] db, int n)
+	{
+	    double dsum = 0;
+	    for (int ni = 0; ni < n; ni++)
+	    {
+		dsum += da[ni]*db[ni];
+	    }
+	    return dsum;
+	}
+
+	String getName()
+	{
+	    return "scalar";
+	}
+    }
+
+
+    /**
+     * Returns the kernel for szkernel, which is scalar, the default, vector, or auto to use the vector kernel
+     * if it and the jdk.incubator.vector module are available and the scalar kernel otherwise
+     */
+    static DotKernel getKernel(String szkernel)
+    {
+	if (szkernel.equals("scalar"))
+	{
+	    return SCALARKERNEL;
+	}
+	else if (szkernel.equals("vector"))
+	{
+	    DotKernel theVectorKernel = loadVectorKernel();
+	    if (theVectorKernel == null)
+	    {
+		throw new IllegalArgumentException("The vector kernel requires the jdk.incubator.vector module, which is available in Java 16 or later "+
+						   "with the option --add-modules jdk.incubator.vector");
+	    }
+	    return theVectorKernel;
+	}
+	else if (szkernel.equals("auto"))
+	{
+	    DotKernel theVectorKernel = loadVectorKernel();
+	    if (theVectorKernel == null)
+	    {
+		return SCALARKERNEL;
+	    }
+	    return theVectorKernel;
+	}
+	else
+	{
+	    throw new IllegalArgumentException(szkernel+" is not a valid kernel, must be scalar, vector, or auto");
+	}
+    }
+
+    /**
+     * Returns true if szkernel is a valid value for the -kernel option
+     */
+    static boolean isValidKernel(String szkernel)
+    {
+	return szkernel.equals("scalar")||szkernel.equals("vector")||szkernel.equals("auto");
+    }
+
+    /**
+     * Returns the vector kernel, or null if it or the jdk.incubator.vector module is not available
+     */
+    static DotKernel loadVectorKernel()
+    {
+	try
+	{
+	    DotKernel theVectorKernel = (DotKernel) Class.forName("edu.mit.compbio.ChromHMM.VectorDotKernel").getDeclaredConstructor().newInstance();
+	    System.out.println("Using the vector kernel for the dense transition loops");
+	    return theVectorKernel;
+	}
+	catch (Exception ex)
+	{
+	    return null;
+	}
+	catch (LinkageError ex)
+	{
+	    //the class was compiled but the module was not added to the running virtual machine
+	    return null;
+	}
+    }
+}
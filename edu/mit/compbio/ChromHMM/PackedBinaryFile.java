@@ -0,0 +1,531 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+
+/**
+ * A packed file of the binarized data of a cell type and chromosome, which is memory-mapped when read so that loading the same
+ * data again on later runs costs little more than the page cache. The file has the extension EXTENSION and holds, with all
+ * numbers big-endian,
+ * <pre>
+ *   int      MAGIC
+ *   int      VERSION
+ *   int      the number of bytes of the first header line of the text format, the cell type and chromosome separated by a tab
+ *   byte[]   the UTF-8 encoding of that line
+ *   int      the number of bytes of the second header line, the names of the marks separated by tabs
+ *   byte[]   the UTF-8 encoding of that line
+ *   int      numdatasets, the number of marks
+ *   int      numrows, the number of bins
+ *   int      nrowsperblock, the number of rows in each block but the last, which holds the rest
+ *   int      numblocks
+ *   long[]   the offset from the start of the file of each of the numblocks blocks
+ *   byte[]   the rows of the blocks, nbytesperrow = (2*numdatasets+7)/8 bytes to a row
+ * </pre>
+ * A row packs the call of each mark into two bits, 0 absent, 1 present and 2 missing, with mark nmark in the bits starting
+ * at 2*(nmark%4) of byte nmark/4 of the row and the bits after the last mark 0. Read as little-endian longs a row is the key of
+ * its signature in SignatureTable. Each block is mapped on its own, so only a block and not the whole file must fit in a mapping.
+ */
+class PackedBinaryFile
+{
+    /**
+     * The extension of packed files, which follows the _binary of the name of the text file
+     */
+    static String EXTENSION = ".cbin";
+
+    /**
+     * The first four bytes of a packed file, "CHMB"
+     */
+    static int MAGIC = 0x43484D42;
+
+    static int VERSION = 1;
+
+    /**
+     * The number of rows the writer puts in a block
+     */
+    static int ROWSPERBLOCK = 65536;
+
+    String szpath;
+
+    /**
+     * The first and second header lines of the text format
+     */
+    String szheader;
+    String szmarkheader;
+
+    int numdatasets;
+    int numrows;
+    int nrowsperblock;
+    int nbytesperrow;
+
+    /**
+     * The offset from the start of the file of each block
+     */
+    long[] offsets;
+
+    /**
+     * The mapping of each block, read little-endian for the rows
+     */
+    private ByteBuffer[] blocks;
+
+    /**
+     * Reads the header of the packed file szpath and maps its blocks
+     */
+    PackedBinaryFile(String szpath) throws IOException
+    {
+	this.szpath = szpath;
+
+	FileInputStream fis = new FileInputStream(szpath);
+	try
+	{
+	    FileChannel channel = fis.getChannel();
+	    long lsize = channel.size();
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(fis, BinaryFileParser.BUFFERSIZE));
+	    long lheadersize;
+	    try
+	    {
+		if (in.readInt() != MAGIC)
+		{
+		    throw new IllegalArgumentException(szpath+" is not a packed binary file");
+		}
+
+		int nversion = in.readInt();
+		if (nversion != VERSION)
+		{
+		    throw new IllegalArgumentException("Version "+nversion+" of the packed binary format found in "+szpath+" is not supported");
+		}
+
+		szheader = readString(in, lsize);
+		szmarkheader = readString(in, lsize);
+		numdatasets = in.readInt();
+		numrows = in.readInt();
+		nrowsperblock = in.readInt();
+		int numblocks = in.readInt();
+		if ((numdatasets < 0)||(numrows < 0)||(nrowsperblock < 1)||(numblocks != (numrows+nrowsperblock-1)/nrowsperblock))
+		{
+		    throw new IllegalArgumentException("Invalid header found in "+szpath);
+		}
+
+		nbytesperrow = (2*numdatasets+7)/8;
+		if ((long) nrowsperblock*nbytesperrow > Integer.MAX_VALUE)
+		{
+		    throw new IllegalArgumentException("The blocks of "+szpath+" of "+nrowsperblock+" rows of "+nbytesperrow+
+						       " bytes are larger than the packed binary format allows");
+		}
+
+		lheadersize = 4*4+szheader.getBytes("UTF-8").length+szmarkheader.getBytes("UTF-8").length+4*4+8L*numblocks;
+		offsets = new long[numblocks];
+		for (int nblock = 0; nblock < numblocks; nblock++)
+		{
+		    offsets[nblock] = in.readLong();
+		}
+	    }
+	    catch (EOFException eofex)
+	    {
+		throw new IllegalArgumentException(szpath+" ends before the end of its header");
+	    }
+
+	    //the mappings stay valid once the channel is closed
+	    blocks = new ByteBuffer[offsets.length];
+	    for (int nblock = 0; nblock < offsets.length; nblock++)
+	    {
+		long lblockbytes = Math.min(nrowsperblock, numrows-(long) nblock*nrowsperblock)*nbytesperrow;
+		if ((offsets[nblock] < lheadersize)||(offsets[nblock]+lblockbytes > lsize))
+		{
+		    throw new IllegalArgumentException(szpath+" is truncated or its block "+nblock+" is out of bounds");
+		}
+		blocks[nblock] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[nblock], lblockbytes);
+		blocks[nblock].order(ByteOrder.LITTLE_ENDIAN);
+	    }
+	}
+	finally
+	{
+	    fis.close();
+	}
+    }
+
+    /**
+     * Returns the next string of the header in in, stored as its number of bytes and its UTF-8 encoding,
+     * where the file has lsize bytes
+     */
+    private String readString(DataInputStream in, long lsize) throws IOException
+    {
+	int nlength = in.readInt();
+	if ((nlength < 0)||(nlength > lsize))
+	{
+	    throw new IllegalArgumentException(szpath+" ends before the end of its header");
+	}
+	byte[] bytes = new byte[nlength];
+	in.readFully(bytes);
+	return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Packs the calls of the first numdatasets marks of row nrow into key, which must hold at least that many marks.
+     * Throws an IllegalArgumentException if one of the calls is not 0, 1 or 2.
+     */
+    void getRow(int nrow, long[] key, int numdatasets)
+    {
+	int nblock = nrow/nrowsperblock;
+	ByteBuffer buffer = blocks[nblock];
+	int npos = (nrow-nblock*nrowsperblock)*nbytesperrow;
+	int numbytes = (2*numdatasets+7)/8;
+
+	Arrays.fill(key, 0);
+	int nbyte = 0;
+	for (; nbyte+8 <= numbytes; nbyte += 8)
+	{
+	    key[nbyte >> 3] = buffer.getLong(npos+nbyte);
+	}
+
+	for (; nbyte < numbytes; nbyte++)
+	{
+	    key[nbyte >> 3] |= ((long) (buffer.get(npos+nbyte) & 0xff)) << ((nbyte & 7) << 3);
+	}
+
+	if ((numdatasets & 31) != 0)
+	{
+	    //drops any marks of the row after the first numdatasets
+	    key[numdatasets >> 5] &= (1L << ((numdatasets & 31) << 1))-1;
+	}
+
+	for (int nword = 0; nword < key.length; nword++)
+	{
+	    //a call of 3 has both of its bits set
+	    long linvalid = key[nword] & (key[nword] >>> 1) & 0x5555555555555555L;
+	    if (linvalid != 0)
+	    {
+		throw new IllegalArgumentException("Unrecognized value 3 found in "+szpath+" for mark "
+						   +(32*nword+Long.numberOfTrailingZeros(linvalid)/2+1)+" of row "+(nrow+1));
+	    }
+	}
+    }
+
+    /**
+     * Returns line nline of the text format of the file, the two header lines followed by the calls of each row separated by tabs
+     */
+    String getLine(int nline)
+    {
+	if (nline == 0)
+	{
+	    return szheader;
+	}
+	else if (nline == 1)
+	{
+	    return szmarkheader;
+	}
+
+	int nrow = nline-2;
+	int nblock = nrow/nrowsperblock;
+	ByteBuffer buffer = blocks[nblock];
+	int npos = (nrow-nblock*nrowsperblock)*nbytesperrow;
+	StringBuffer sbline = new StringBuffer(2*numdatasets);
+	for (int nmark = 0; nmark < numdatasets; nmark++)
+	{
+	    if (nmark > 0)
+	    {
+		sbline.append('\t');
+	    }
+	    sbline.append((char) ('0'+((buffer.get(npos+(nmark >> 2)) >> ((nmark & 3) << 1)) & 3)));
+	}
+	return sbline.toString();
+    }
+
+    /**
+     * Returns a stream of the text format of the packed file szpath
+     */
+    static InputStream openText(String szpath) throws IOException
+    {
+	final PackedBinaryFile thePacked = new PackedBinaryFile(szpath);
+	return new InputStream()
+	{
+	    int nline = 0;
+	    byte[] linebytes = new byte[0];
+	    int nlinepos = 0;
+
+	    public int read() throws IOException
+	    {
+		if (nlinepos == linebytes.length)
+		{
+		    if (nline == thePacked.numrows+2)
+		    {
+			return -1;
+		    }
+		    linebytes = (thePacked.getLine(nline)+"\n").getBytes("UTF-8");
+		    nlinepos = 0;
+		    nline++;
+		}
+		return linebytes[nlinepos++] & 0xff;
+	    }
+	};
+    }
+
+    /**
+     * A stream taking the text format of a binarized file, as written by the binarization commands, which is packed
+     * and written to a packed file when the stream is closed. Rows are parsed as for BinaryFileParser. The packed rows
+     * go to a temporary file next to the packed file as they are written, since the size of the header before them
+     * is only known once all rows are in, and are copied after the header when the stream is closed.
+     */
+    static class Writer extends OutputStream
+    {
+	String szfile;
+
+	private String szheader;
+	private String szmarkheader;
+	private int numdatasets;
+	private int numrows = 0;
+
+	/**
+	 * The number of lines completed
+	 */
+	private int nline = 0;
+
+	/**
+	 * The bytes of the current header line
+	 */
+	private ByteArrayOutputStream baosline = new ByteArrayOutputStream();
+
+	/**
+	 * The temporary file of the packed rows and the stream writing them, opened once the header lines are in
+	 */
+	private File rowsfile;
+	private OutputStream rowsout;
+
+	/**
+	 * The current row as it is packed, the number of values in it so far, and the bytes of the current value
+	 */
+	private byte[] row;
+	private int ncol = 0;
+	private byte[] tokenbytes = new byte[16];
+	private int ntokenlength = 0;
+
+	/**
+	 * Set if the current line has any bytes
+	 */
+	private boolean blinestarted = false;
+
+	/**
+	 * Set if the last byte was a '\r', so a '\n' after it does not end another line
+	 */
+	private boolean bcarriagereturn = false;
+
+	private boolean bclosed = false;
+
+	/**
+	 * Creates a stream writing to the packed file szfile when closed
+	 */
+	Writer(String szfile)
+	{
+	    this.szfile = szfile;
+	}
+
+	public void write(int nbyte) throws IOException
+	{
+	    nbyte &= 0xff;
+	    if (bcarriagereturn)
+	    {
+		bcarriagereturn = false;
+		if (nbyte == '\n')
+		{
+		    return;
+		}
+	    }
+
+	    if ((nbyte == '\n')||(nbyte == '\r'))
+	    {
+		endLine();
+		bcarriagereturn = (nbyte == '\r');
+	    }
+	    else if (nline < 2)
+	    {
+		baosline.write(nbyte);
+		blinestarted = true;
+	    }
+	    else if ((nbyte == '\t')||(nbyte == ' '))
+	    {
+		endToken();
+		blinestarted = true;
+	    }
+	    else
+	    {
+		if (ntokenlength == tokenbytes.length)
+		{
+		    tokenbytes = Arrays.copyOf(tokenbytes, 2*ntokenlength);
+		}
+		tokenbytes[ntokenlength++] = (byte) nbyte;
+		blinestarted = true;
+	    }
+	}
+
+	public void write(byte[] bytes, int noffset, int nlength) throws IOException
+	{
+	    for (int nindex = noffset; nindex < noffset+nlength; nindex++)
+	    {
+		write(bytes[nindex]);
+	    }
+	}
+
+	/**
+	 * Packs the call in the current value into the row unless the row already has a value for every mark
+	 */
+	private void endToken()
+	{
+	    if (ntokenlength == 0)
+	    {
+		return;
+	    }
+
+	    if (ncol < numdatasets)
+	    {
+		int ncall = tokenbytes[0]-'0';
+		if ((ntokenlength != 1)||(ncall < 0)||(ncall > 2))
+		{
+		    throw new IllegalArgumentException("Unrecognized value "+new String(tokenbytes, 0, ntokenlength)+" found for "+szfile);
+		}
+		row[ncol >> 2] |= (byte) (ncall << ((ncol & 3) << 1));
+	    }
+	    ncol++;
+	    ntokenlength = 0;
+	}
+
+	/**
+	 * Ends the current line, a header line or a row
+	 */
+	private void endLine() throws IOException
+	{
+	    if (nline == 0)
+	    {
+		szheader = baosline.toString("UTF-8");
+		baosline.reset();
+	    }
+	    else if (nline == 1)
+	    {
+		szmarkheader = baosline.toString("UTF-8");
+		numdatasets = new StringTokenizer(szmarkheader, "\t").countTokens();
+		row = new byte[(2*numdatasets+7)/8];
+
+		rowsfile = File.createTempFile(new File(szfile).getName(), ".rows", new File(szfile).getAbsoluteFile().getParentFile());
+		rowsfile.deleteOnExit();
+		rowsout = new BufferedOutputStream(new FileOutputStream(rowsfile), BinaryFileParser.BUFFERSIZE);
+	    }
+	    else
+	    {
+		endToken();
+		if (ncol < numdatasets)
+		{
+		    throw new IllegalArgumentException("Found line without "+numdatasets+" values for file "+szfile);
+		}
+		rowsout.write(row);
+		Arrays.fill(row, (byte) 0);
+		ncol = 0;
+		numrows++;
+	    }
+	    nline++;
+	    blinestarted = false;
+	}
+
+	/**
+	 * Writes the packed file and deletes the temporary file of its rows
+	 */
+	public void close() throws IOException
+	{
+	    if (bclosed)
+	    {
+		return;
+	    }
+	    bclosed = true;
+
+	    try
+	    {
+		if (blinestarted)
+		{
+		    endLine();
+		}
+
+		if (nline < 2)
+		{
+		    throw new IllegalArgumentException("No header lines were written for "+szfile);
+		}
+
+		rowsout.close();
+		rowsout = null;
+
+		byte[] headerbytes = szheader.getBytes("UTF-8");
+		byte[] markheaderbytes = szmarkheader.getBytes("UTF-8");
+		int nbytesperrow = row.length;
+		int numblocks = (numrows+ROWSPERBLOCK-1)/ROWSPERBLOCK;
+		long lrowsstart = 4*4+headerbytes.length+markheaderbytes.length+4*4+8L*numblocks;
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(szfile), BinaryFileParser.BUFFERSIZE));
+		try
+		{
+		    out.writeInt(MAGIC);
+		    out.writeInt(VERSION);
+		    out.writeInt(headerbytes.length);
+		    out.write(headerbytes);
+		    out.writeInt(markheaderbytes.length);
+		    out.write(markheaderbytes);
+		    out.writeInt(numdatasets);
+		    out.writeInt(numrows);
+		    out.writeInt(ROWSPERBLOCK);
+		    out.writeInt(numblocks);
+		    for (int nblock = 0; nblock < numblocks; nblock++)
+		    {
+			out.writeLong(lrowsstart+(long) nblock*ROWSPERBLOCK*nbytesperrow);
+		    }
+
+		    InputStream rowsin = new FileInputStream(rowsfile);
+		    try
+		    {
+			byte[] buffer = new byte[BinaryFileParser.BUFFERSIZE];
+			int nread;
+			while ((nread = rowsin.read(buffer)) != -1)
+			{
+			    out.write(buffer, 0, nread);
+			}
+		    }
+		    finally
+		    {
+			rowsin.close();
+		    }
+		}
+		finally
+		{
+		    out.close();
+		}
+	    }
+	    finally
+	    {
+		if (rowsout != null)
+		{
+		    rowsout.close();
+		}
+
+		if (rowsfile != null)
+		{
+		    rowsfile.delete();
+		}
+	    }
+	}
+    }
+}
@@ -21,6 +21,7 @@ package edu.mit.compbio.ChromHMM;
 import htsjdk.samtools.*;
 import java.io.*;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -650,7 +651,7 @@ public class Preprocessing
 
     //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     public static void makeBinaryDataFromPeaksSplit(String szchromlengthfile, String szmarkdir, String szoutputbinarydir, String szcellmarkfiletable, 
-						    int nbinsize, boolean bgzip, int numsplitbins, int nsplit, int noffsetleft, int noffsetright,
+						    int nbinsize, boolean bgzip, boolean bpacked, int numsplitbins, int nsplit, int noffsetleft, int noffsetright,
 						    boolean bsplitcols,int nnummarksplit,int nmarksplitindex, boolean bstacked) throws IOException
     {
 	//reads in the chromosome length information file
@@ -845,7 +846,7 @@ public class Preprocessing
 	         ncurrnumlines = nremainder;
 	      }
 
-	      if (bgzip)
+	      if ((bgzip)&&(!bpacked))
 	      {	      
 	         GZIPOutputStream pwzip = new GZIPOutputStream(new FileOutputStream(szoutputbinarydir+"/"+szcell+"_"+szcurrchrom
 											  +"."+nsplit+"_binary.txt.gz"));
@@ -902,8 +903,8 @@ public class Preprocessing
 	      }
 	      else
 	      {
-	         PrintWriter pwout = new PrintWriter(new FileWriter(szoutputbinarydir+"/"+szcell+"_"+szcurrchrom
-											  +"."+nsplit+"_binary.txt"));
+	         PrintWriter pwout = openBinaryWriter(szoutputbinarydir+"/"+szcell+"_"+szcurrchrom
+											  +"."+nsplit+"_binary"+binaryExtension(bpacked), bpacked);
 	         pwout.println(szcell+"\t"+szcurrchrom+"."+nsplit);
 
 	         for (int nmark = 0; nmark < nummarks; nmark++)
@@ -978,13 +979,14 @@ public class Preprocessing
      * if null use 0,1,2 for chromosome, start, and end with strand the sixth column or last if fewer
      * dcountthresh - absolute signal threshold for a present call 
      * bbinarizebam - if true reads files as if bam files otherwise as bed files
+     * bpacked - if true the binarized data is written in the packed format of PackedBinaryFile instead of as text
      */
     public static void makeBinaryDataFromBed(String szchromlengthfile, String szmarkdir, String szcontroldir, int nflankwidthcontrol,String szcellmarkfiletable,
 					     int nshift,  boolean bcenterinterval,int noffsetleft, int noffsetright,
                                              String szoutputsignaldir,String szoutputbinarydir, String szoutputcontroldir, 
 					     double dpoissonthresh, double dfoldthresh,boolean bcontainsthresh, int npseudocountcontrol,int nbinsize,
 					     String szcolfields, boolean bpeaks, double dcountthresh, boolean bbinarizebam, boolean bpairend,
-					     boolean bgzip, boolean bsplit, int numsplitbins,
+					     boolean bgzip, boolean bpacked, boolean bsplit, int numsplitbins,
 					     boolean bsplitcols,int nnummarksplit,int nmarksplitindex, boolean bstacked, boolean bmixed
                                             ) throws IOException
     {
@@ -1740,7 +1742,7 @@ public class Preprocessing
        	          if ((bpresent[nchrom])&&(bpresentcontrol[nchrom]))
 	          {
 
-		     if (bgzip)
+		     if ((bgzip)&&(!bpacked))
 		     {
 			if (bsplit)
 			{
@@ -1958,9 +1960,9 @@ public class Preprocessing
                            {  
 			      if (nbin % numsplitbins == 0)
 			      {
-		                 String szfile = szoutputbinarydir+"/"+szcell+"_"+chroms[nchrom]+"."+nsplit+"_binary.txt";
+		                 String szfile = szoutputbinarydir+"/"+szcell+"_"+chroms[nchrom]+"."+nsplit+"_binary"+binaryExtension(bpacked);
 		                 System.out.println("Writing to file "+szfile);
-		                 pw = new PrintWriter(szfile);
+		                 pw = openBinaryWriter(szfile, bpacked);
 	       	                 //we have both primary and control data for the mark
 		                 pw.println(szcell+"\t"+chroms[nchrom]+"."+nsplit);
 
@@ -2034,9 +2036,9 @@ public class Preprocessing
 			}
 			else
 			{
-		           String szfile = szoutputbinarydir+"/"+szcell+"_"+chroms[nchrom]+"_binary.txt";
+		           String szfile = szoutputbinarydir+"/"+szcell+"_"+chroms[nchrom]+"_binary"+binaryExtension(bpacked);
 		           System.out.println("Writing to file "+szfile);
-		           PrintWriter pw = new PrintWriter(szfile);
+		           PrintWriter pw = openBinaryWriter(szfile, bpacked);
 	       	           //we have both primary and control data for the mark
 		           pw.println(szcell+"\t"+chroms[nchrom]);
 
@@ -2135,7 +2137,7 @@ public class Preprocessing
 	      {
 	         if (bpresent[nchrom])
 	         {
-		    if (bgzip)
+		    if ((bgzip)&&(!bpacked))
 		    {
 		       if (bsplit)
 		       {		
@@ -2302,9 +2304,9 @@ public class Preprocessing
                           {  
 			      if (nbin % numsplitbins == 0)
 			      {
-		                 String szfile = szoutputbinarydir+"/"+szcell+"_"+chroms[nchrom]+"."+nsplit+"_binary.txt";
+		                 String szfile = szoutputbinarydir+"/"+szcell+"_"+chroms[nchrom]+"."+nsplit+"_binary"+binaryExtension(bpacked);
 		                 System.out.println("Writing to file "+szfile);
-	                         pw = new PrintWriter(szfile);
+	                         pw = openBinaryWriter(szfile, bpacked);
 		                 pw.println(szcell+"\t"+chroms[nchrom]+"."+nsplit);
                                  for (int nmark = 0; nmark < marks.length-1; nmark++)
                                  {
@@ -2353,9 +2355,9 @@ public class Preprocessing
 		       }
 		       else
 		       {
-		          String szfile = szoutputbinarydir+"/"+szcell+"_"+chroms[nchrom]+"_binary.txt";
+		          String szfile = szoutputbinarydir+"/"+szcell+"_"+chroms[nchrom]+"_binary"+binaryExtension(bpacked);
 		          System.out.println("Writing to file "+szfile);
-	                  PrintWriter pw = new PrintWriter(szfile);
+	                  PrintWriter pw = openBinaryWriter(szfile, bpacked);
 		          pw.println(szcell+"\t"+chroms[nchrom]);
                           for (int nmark = 0; nmark < marks.length-1; nmark++)
                           {
@@ -2636,10 +2638,11 @@ public class Preprocessing
      * nflankwidthcontrol -  Specifies the number of bins used in both directions to estimate the background; only relevant if control is being used
      * npseudocountcontrol - an integer pseudocount that is uniformay added to every interval to smooth the control data
      * dcountthesh - absolute signal threshold for a present call
+     * bpacked - if true the binarized data is written in the packed format of PackedBinaryFile with '_binary.cbin' appended instead
      */
     public static void makeBinaryDataFromSignalAgainstControl(String szbinneddataDIR, String szcontrolDIR, String szoutputDIR,
 							      double dpoissonthresh, double dfoldthresh, boolean bcontainsthresh, int nflankwidthcontrol, 
-                                                              int npseudocountcontrol, double dcountthresh, boolean bgzip, 
+                                                              int npseudocountcontrol, double dcountthresh, boolean bgzip, boolean bpacked,
                                                               boolean bsplit, int numsplitbins) throws IOException
     {
        int nummarks=-1;
@@ -2901,7 +2904,7 @@ public class Preprocessing
            {
 	      String szchrom = chroms[nchrom];
 
-	      if (bgzip)
+	      if ((bgzip)&&(!bpacked))
 	      {
 		 if (bsplit)
 		 {
@@ -3105,9 +3108,9 @@ public class Preprocessing
                     {  
 		       if (nbin % numsplitbins == 0)
 		       {
-	                  String szfile = szoutputDIR+"/"+szcell+"_"+szchrom+"."+nsplit+"_binary.txt";
+	                  String szfile = szoutputDIR+"/"+szcell+"_"+szchrom+"."+nsplit+"_binary"+binaryExtension(bpacked);
 	                  System.out.println("Writing to file "+szfile);
-                          pw = new PrintWriter(new FileWriter(szfile));	 
+                          pw = openBinaryWriter(szfile, bpacked);	 
 	      
 	                  pw.println(szcell+"\t"+szchrom+"."+nsplit);
 	                  pw.println(szHeaderLine2);
@@ -3177,9 +3180,9 @@ public class Preprocessing
 		 }
 		 else
 		 {
-	            String szfile = szoutputDIR+"/"+szcell+"_"+szchrom+"_binary.txt";
+	            String szfile = szoutputDIR+"/"+szcell+"_"+szchrom+"_binary"+binaryExtension(bpacked);
 	            System.out.println("Writing to file "+szfile);
-                    PrintWriter pw = new PrintWriter(new FileWriter(szfile));	 
+                    PrintWriter pw = openBinaryWriter(szfile, bpacked);	 
 	      
 	            int nummarks_m1 = nummarks - 1;
 	            pw.println(szcell+"\t"+szchrom);
@@ -3262,11 +3265,12 @@ public class Preprocessing
      * bcontainsthresh - if true poisson cut off should be highest that still contains dpoissonthresh probability
      * and if false requires strictly greater     
      * dcountthresh - absolute signal threshold for a present call
+     * bpacked - if true the binarized data is written in the packed format of PackedBinaryFile with '_binary.cbin' added instead
      **/
     public static void makeBinaryDataFromSignalUniform(String szbinneddataDIR, String szoutputDIR,
                                                        double dpoissonthresh, double dfoldthresh, 
                                                        boolean bcontainsthresh, double dcountthresh, 
-                                                       boolean bgzip, boolean bsplit, int numsplitbins) throws IOException
+                                                       boolean bgzip, boolean bpacked, boolean bsplit, int numsplitbins) throws IOException
     {
 	//this computes the binarization without storing in main memory all the data
 
@@ -3442,7 +3446,7 @@ public class Preprocessing
 						      szChromCellLine);
 	       }
 
-	       if (bgzip)
+	       if ((bgzip)&&(!bpacked))
 	       {
 		  if (bsplit)
 		  {
@@ -3616,9 +3620,9 @@ public class Preprocessing
 		        if (nbin % numsplitbins == 0)
 		        {
 			     //String szfile = szoutputDIR+"/"+st.nextToken()+"_"+st.nextToken()+"_binary.txt";
-	                    String szfile = szoutputDIR+"/"+szcurrcell+"_"+szchrom+"."+nsplit+"_binary.txt";
+	                    String szfile = szoutputDIR+"/"+szcurrcell+"_"+szchrom+"."+nsplit+"_binary"+binaryExtension(bpacked);
 			    System.out.println("Writing to file "+szfile);
-			    pw = new PrintWriter(new FileWriter(szfile));
+			    pw = openBinaryWriter(szfile, bpacked);
 			    pw.println(szcurrcell+"\t"+szchrom+"."+nsplit);//szChromCellLine);
 			    pw.println(szMarkLine);
 			    nsplit++;
@@ -3674,9 +3678,9 @@ public class Preprocessing
 		  }
 		  else
 		  {
-		     String szfile = szoutputDIR+"/"+st.nextToken().trim()+"_"+st.nextToken().trim()+"_binary.txt";
+		     String szfile = szoutputDIR+"/"+st.nextToken().trim()+"_"+st.nextToken().trim()+"_binary"+binaryExtension(bpacked);
 	             System.out.println("Writing to file "+szfile);
-	             PrintWriter pw = new PrintWriter(new FileWriter(szfile));
+	             PrintWriter pw = openBinaryWriter(szfile, bpacked);
 	             pw.println(szChromCellLine);
 	             pw.println(szMarkLine);
 	             String szLine;
@@ -3722,14 +3726,121 @@ public class Preprocessing
        }
     }
 
+    /**
+     * Returns the extension of the binarized files written, that of packed binary files if bpacked is true and .txt otherwise
+     */
+    static String binaryExtension(boolean bpacked)
+    {
+       if (bpacked)
+       {
+          return PackedBinaryFile.EXTENSION;
+       }
+       else
+       {
+          return ".txt";
+       }
+    }
+
+    /**
+     * Opens szfile to write the text format of binarized data to, which is packed as it is written if bpacked is true
+     */
+    static PrintWriter openBinaryWriter(String szfile, boolean bpacked) throws IOException
+    {
+       if (bpacked)
+       {
+          return new PrintWriter(new BufferedWriter(new OutputStreamWriter(new PackedBinaryFile.Writer(szfile), "UTF-8")));
+       }
+       else
+       {
+          return new PrintWriter(new BufferedWriter(new FileWriter(szfile)));
+       }
+    }
+
+    /**
+     * Converts each file in szinputdir containing '_binary', as text and optionally gzipped, into a file in szoutputdir in the
+     * packed format of PackedBinaryFile with the .txt and .gz extensions replaced by that of packed files. Files already packed are skipped.
+     */
+    public static void packBinarizedFiles(String szinputdir, String szoutputdir) throws IOException
+    {
+       File dir = new File(szinputdir);
+       String[] chromfilesall = dir.list();
+       if (chromfilesall == null)
+       {
+          throw new IllegalArgumentException(szinputdir+" is not a valid directory!");
+       }
+       Arrays.sort(chromfilesall);
+
+       int numpacked = 0;
+       byte[] buffer = new byte[BinaryFileParser.BUFFERSIZE];
+       for (int nfile = 0; nfile < chromfilesall.length; nfile++)
+       {
+          String szfile = chromfilesall[nfile];
+	  String szpathfile = szinputdir+"/"+szfile;
+	  if ((!szfile.contains("_binary"))||((new File(szpathfile)).isHidden()))
+	  {
+	     continue;
+	  }
+
+	  if (szfile.endsWith(PackedBinaryFile.EXTENSION))
+	  {
+	     System.out.println("Note: "+szpathfile+" is already packed, skipping it");
+	     continue;
+	  }
+
+	  String szoutfile = szfile;
+	  if (szoutfile.endsWith(".gz"))
+	  {
+	     szoutfile = szoutfile.substring(0, szoutfile.length()-3);
+	  }
+	  if (szoutfile.endsWith(".txt"))
+	  {
+	     szoutfile = szoutfile.substring(0, szoutfile.length()-4);
+	  }
+	  szoutfile = szoutputdir+"/"+szoutfile+PackedBinaryFile.EXTENSION;
+	  System.out.println("Writing to file "+szoutfile);
+
+	  InputStream in;
+	  if (szfile.endsWith(".gz"))
+	  {
+	     in = new GZIPInputStream(new FileInputStream(szpathfile), BinaryFileParser.BUFFERSIZE);
+	  }
+	  else
+	  {
+	     in = new FileInputStream(szpathfile);
+	  }
+
+	  try
+	  {
+	     PackedBinaryFile.Writer theWriter = new PackedBinaryFile.Writer(szoutfile);
+	     int nread;
+	     while ((nread = in.read(buffer)) != -1)
+	     {
+	        theWriter.write(buffer, 0, nread);
+	     }
+	     theWriter.close();
+	  }
+	  finally
+	  {
+	     in.close();
+	  }
+	  numpacked++;
+       }
+
+       if (numpacked == 0)
+       {
+          throw new IllegalArgumentException("No files found in "+szinputdir+" containing '_binary' that are not Hidden or packed");
+       }
+    }
+
     /**
      * This procedure can do a columnwise merge of binarized data for different mark subsets split across files in multiple subdirectories. 
      * Files that are for the same cell type and chromosome are merged. If a chromosome for a cell type is found in one subdirectory, 
      * but not another, then a warning message is printed and not present values are used for that chromosome. This command can also be 
      * used to do a row split on the input files, including if only one subdirectory is provided and no merging is done.
+     * If bpacked is true the merged files are written in the packed format of PackedBinaryFile.
      */
     public static void mergeBinarizedFiles(String szinputdir, String szoutputdir, String szdirlistfile,
-                                           boolean bsplit, int numsplitbins, boolean bgzip,String szfiletype) throws IOException
+                                           boolean bsplit, int numsplitbins, boolean bgzip, boolean bpacked, String szfiletype) throws IOException
     {
        ArrayList aldirs = new ArrayList();
 
@@ -3945,7 +4056,7 @@ public class Preprocessing
 	      boolean bnull = false;
 	      while (!bnull)
 	      {
-	         if (bgzip)
+	         if ((bgzip)&&(!bpacked))
 	         {
 		     //System.out.println(szcell+"_"+szchrom+"."+nsplit);
 		     //GZIPOutputStream pwzip = new GZIPOutputStream(new FileOutputStream(szoutputdir+"/"+szcell+"_"+szchrom+"."+nsplit+"_binary.txt.gz"));
@@ -4019,7 +4130,7 @@ public class Preprocessing
 		    //String szmark = st.nextToken();
 		     //System.out.println(szcell+"_"+szchrom+"."+nsplit);
 		     //PrintWriter pw = new PrintWriter(new FileWriter(szoutputdir+"/"+szcell+"_"+szchrom+"."+nsplit+"_binary.txt"));
-	            PrintWriter pw = new PrintWriter(new FileWriter(szoutputdir+"/"+szcell+"_"+szchrom+"."+nsplit+"_"+szfiletype+".txt"));
+	            PrintWriter pw = openBinaryWriter(szoutputdir+"/"+szcell+"_"+szchrom+"."+nsplit+"_"+szfiletype+binaryExtension(bpacked), bpacked);
 	            //need to read here
 	            pw.println(szcell+"\t"+szchrom+"."+nsplit);
 	            pw.println(szmergedheader);
@@ -4077,7 +4188,7 @@ public class Preprocessing
 	   }
 	   else
 	   {
-	      if (bgzip)
+	      if ((bgzip)&&(!bpacked))
 	      {
 		  //GZIPOutputStream pwzip = new GZIPOutputStream(new FileOutputStream(szoutputdir+"/"+szcell+"_"+szchrom+"_binary.txt.gz"));
 		 GZIPOutputStream pwzip = new GZIPOutputStream(new FileOutputStream(szoutputdir+"/"+szcell+"_"+szchrom+"_"+szfiletype+".txt.gz"));
@@ -4147,7 +4258,7 @@ public class Preprocessing
 		  //String szcell = st.nextToken();
 		  //String szmark = st.nextToken();
 		  //PrintWriter pw = new PrintWriter(new FileWriter(szoutputdir+"/"+szcell+"_"+szchrom+"_binary.txt"));
-	         PrintWriter pw = new PrintWriter(new FileWriter(szoutputdir+"/"+szcell+"_"+szchrom+"_"+szfiletype+".txt"));
+	         PrintWriter pw = openBinaryWriter(szoutputdir+"/"+szcell+"_"+szchrom+"_"+szfiletype+binaryExtension(bpacked), bpacked);
 	         //need to read here
 	         pw.println(szcell+"\t"+szchrom);
 	         pw.println(szmergedheader);
@@ -0,0 +1,325 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Reads the _binary files of sequences ahead of their use on dedicated I/O threads when the data is not kept in memory with -lowmem.
+ * The sequences to read are given as queues, each of which is consumed in order by a single thread such as the worker running a bin.
+ * The I/O threads parse the upcoming sequences of the queues into a fixed set of buffers, so at most as many sequences as there
+ * are buffers are in memory at once, counting those being read, those read but not yet taken and those taken but not yet released.
+ * A queue is only read ahead once its first sequence has been asked for, so a queue waiting behind another on the same thread
+ * cannot hold buffers the other needs.
+ */
+class SequencePrefetcher
+{
+    /**
+     * A reusable buffer holding a parsed sequence
+     */
+    static class Sequence
+    {
+	/**
+	 * The index in theSignatures of the signature of each row
+	 */
+	int[] indices;
+
+	/**
+	 * The distinct signatures of the sequence
+	 */
+	SignatureTable theSignatures;
+
+	/**
+	 * The number of rows of the sequence
+	 */
+	int numrows;
+
+	/**
+	 * The file the sequence was read from
+	 */
+	String szfile;
+
+	/**
+	 * Set once the sequence has been read
+	 */
+	boolean bread;
+
+	/**
+	 * The exception reading the sequence threw, if any
+	 */
+	Exception ex;
+    }
+
+    /**
+     * The sequences of one consumer in the order they are taken
+     */
+    static class Queue
+    {
+	String[] files;
+
+	/**
+	 * The entries being read or read and not yet taken, in order
+	 */
+	ArrayList alpending = new ArrayList();
+
+	/**
+	 * The index of the next file to start reading and of the next to be taken
+	 */
+	int nnextread = 0;
+	int nnexttake = 0;
+
+	/**
+	 * Set once the consumer has asked for a sequence
+	 */
+	boolean bactive = false;
+
+	/**
+	 * Set while the consumer is waiting for a sequence that has not been read
+	 */
+	boolean bwaiting = false;
+    }
+
+    String szinputdir;
+
+    /**
+     * The buffers not holding a sequence
+     */
+    private ArrayList alfree = new ArrayList();
+
+    /**
+     * The current queues
+     */
+    private Queue[] queues = new Queue[0];
+
+    /**
+     * Set when the I/O threads should stop
+     */
+    private boolean bclosed = false;
+
+    /**
+     * Creates numthreads I/O threads reading the files in szinputdir with numdatasets marks into nmaxinflight buffers
+     * with room for nmaxtime rows
+     */
+    SequencePrefetcher(String szinputdir, int numdatasets, int nmaxtime, int numthreads, int nmaxinflight)
+    {
+	if (nmaxinflight < 1)
+	{
+	    throw new IllegalArgumentException("The number of sequences to read ahead must be at least 1, found "+nmaxinflight);
+	}
+
+	if (numthreads < 1)
+	{
+	    throw new IllegalArgumentException("The number of I/O threads must be at least 1, found "+numthreads);
+	}
+
+	this.szinputdir = szinputdir;
+
+	for (int nbuffer = 0; nbuffer < nmaxinflight; nbuffer++)
+	{
+	    Sequence theSequence = new Sequence();
+	    theSequence.indices = new int[nmaxtime];
+	    theSequence.theSignatures = new SignatureTable(numdatasets);
+	    alfree.add(theSequence);
+	}
+
+	for (int nthread = 0; nthread < numthreads; nthread++)
+	{
+	    Thread theThread = new Thread(new Runnable()
+	    {
+		public void run()
+		{
+		    readSequences();
+		}
+	    }, "ChromHMM-prefetch-"+nthread);
+	    theThread.setDaemon(true);
+	    theThread.start();
+	}
+    }
+
+    /**
+     * Replaces the queues by one for each array of files in queuefiles. All sequences of the previous queues must have been taken.
+     */
+    synchronized void setQueues(String[][] queuefiles)
+    {
+	queues = new Queue[queuefiles.length];
+	for (int nqueue = 0; nqueue < queues.length; nqueue++)
+	{
+	    queues[nqueue] = new Queue();
+	    queues[nqueue].files = queuefiles[nqueue];
+	}
+    }
+
+    /**
+     * Returns the next sequence of queue nqueue, waiting for it to be read. The sequence must be given back with release.
+     */
+    Sequence take(int nqueue) throws IOException
+    {
+	Sequence theSequence;
+	synchronized (this)
+	{
+	    Queue theQueue = queues[nqueue];
+	    if (theQueue.nnexttake >= theQueue.files.length)
+	    {
+		throw new IllegalStateException("All sequences of queue "+nqueue+" have been taken");
+	    }
+
+	    theQueue.bactive = true;
+	    theQueue.bwaiting = true;
+	    notifyAll();
+
+	    while ((theQueue.alpending.size() == 0)||(!((Sequence) theQueue.alpending.get(0)).bread))
+	    {
+		try
+		{
+		    wait();
+		}
+		catch (InterruptedException iex)
+		{
+		    throw new InterruptedIOException("Interrupted waiting for "+theQueue.files[theQueue.nnexttake]);
+		}
+	    }
+
+	    theSequence = (Sequence) theQueue.alpending.remove(0);
+	    theQueue.nnexttake++;
+	    theQueue.bwaiting = false;
+
+	    if (theSequence.ex != null)
+	    {
+		//the consumer gets the exception instead of the sequence
+		alfree.add(theSequence);
+		notifyAll();
+	    }
+	}
+
+	if (theSequence.ex instanceof IOException)
+	{
+	    throw (IOException) theSequence.ex;
+	}
+	else if (theSequence.ex != null)
+	{
+	    throw (RuntimeException) theSequence.ex;
+	}
+	return theSequence;
+    }
+
+    /**
+     * Gives back the buffer of theSequence for reading another sequence
+     */
+    synchronized void release(Sequence theSequence)
+    {
+	alfree.add(theSequence);
+	notifyAll();
+    }
+
+    /**
+     * Stops the I/O threads once they finish the sequences they are reading
+     */
+    synchronized void close()
+    {
+	bclosed = true;
+	notifyAll();
+    }
+
+    /**
+     * Returns the active queue whose next sequence should be read next, or null if there is none or no free buffer.
+     * A queue whose consumer is waiting comes first, otherwise the one with the fewest sequences read ahead.
+     */
+    private Queue nextQueue()
+    {
+	if (alfree.size() == 0)
+	{
+	    return null;
+	}
+
+	Queue theBestQueue = null;
+	for (int nqueue = 0; nqueue < queues.length; nqueue++)
+	{
+	    Queue theQueue = queues[nqueue];
+	    if ((theQueue.bactive)&&(theQueue.nnextread < theQueue.files.length))
+	    {
+		if ((theQueue.bwaiting)&&(theQueue.alpending.size() == 0))
+		{
+		    return theQueue;
+		}
+
+		if ((theBestQueue == null)||(theQueue.alpending.size() < theBestQueue.alpending.size()))
+		{
+		    theBestQueue = theQueue;
+		}
+	    }
+	}
+	return theBestQueue;
+    }
+
+    /**
+     * The loop of an I/O thread, which reads the next sequence of a queue whenever a buffer is free
+     */
+    private void readSequences()
+    {
+	while (true)
+	{
+	    Sequence theSequence;
+	    synchronized (this)
+	    {
+		Queue theQueue;
+		while (((theQueue = nextQueue()) == null)&&(!bclosed))
+		{
+		    try
+		    {
+			wait();
+		    }
+		    catch (InterruptedException iex)
+		    {
+			return;
+		    }
+		}
+
+		if (bclosed)
+		{
+		    return;
+		}
+
+		theSequence = (Sequence) alfree.remove(alfree.size()-1);
+		theSequence.szfile = theQueue.files[theQueue.nnextread];
+		theSequence.bread = false;
+		theSequence.ex = null;
+		theQueue.nnextread++;
+		theQueue.alpending.add(theSequence);
+	    }
+
+	    try
+	    {
+		theSequence.theSignatures.clear();
+		theSequence.numrows = BinaryFileParser.readSequence(szinputdir, theSequence.szfile, theSequence.theSignatures, theSequence.indices);
+	    }
+	    catch (IOException|RuntimeException ex)
+	    {
+		theSequence.ex = ex;
+	    }
+
+	    synchronized (this)
+	    {
+		theSequence.bread = true;
+		notifyAll();
+	    }
+	}
+    }
+}
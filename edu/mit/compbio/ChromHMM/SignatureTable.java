@@ -0,0 +1,223 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+import java.util.*;
+
+
+/**
+ * Assigns an index to each distinct signature of calls of the marks, in the order the signatures are first added.
+ * A signature is packed two bits to a mark into longs, with 0 absent, 1 present and 2 missing, and the table is an
+ * open-addressing hash table over primitive arrays, so looking up a signature allocates nothing.
+ */
+class SignatureTable
+{
+    /**
+     * The number of marks of the signatures
+     */
+    int numdatasets;
+
+    /**
+     * The number of longs a signature is packed into
+     */
+    int numwords;
+
+    /**
+     * The packed signatures by index, numwords to a signature
+     */
+    private long[] keys;
+
+    /**
+     * One more than the index of the signature hashed to each slot, or 0 if the slot is empty
+     */
+    private int[] slots;
+
+    /**
+     * The number of signatures in the table
+     */
+    private int nsize = 0;
+
+    /**
+     * Creates an empty table for signatures of numdatasets marks
+     */
+    SignatureTable(int numdatasets)
+    {
+	this.numdatasets = numdatasets;
+	numwords = Math.max(1, (numdatasets+31)/32);
+	keys = new long[16*numwords];
+	slots = new int[32];
+    }
+
+    /**
+     * Returns a buffer to pack a signature into
+     */
+    long[] newKey()
+    {
+	return new long[numwords];
+    }
+
+    /**
+     * Sets in key the call ncall of mark nmark, which must have been 0 before
+     */
+    static void setCall(long[] key, int nmark, int ncall)
+    {
+	key[nmark >> 5] |= ((long) ncall) << ((nmark & 31) << 1);
+    }
+
+    /**
+     * Returns the number of signatures in the table
+     */
+    int size()
+    {
+	return nsize;
+    }
+
+    /**
+     * Removes all signatures so the table can be reused
+     */
+    void clear()
+    {
+	Arrays.fill(slots, 0);
+	nsize = 0;
+    }
+
+    /**
+     * Stores for each signature by its index whether each mark is present in traindataObservedValues
+     * and whether it is not missing in traindataNotMissing
+     */
+    void storeCalls(boolean[][] traindataObservedValues, boolean[][] traindataNotMissing)
+    {
+	for (int nindex = 0; nindex < nsize; nindex++)
+	{
+	    boolean[] traindataObservedValues_nindex = traindataObservedValues[nindex];
+	    boolean[] traindataNotMissing_nindex = traindataNotMissing[nindex];
+	    for (int nmark = 0; nmark < numdatasets; nmark++)
+	    {
+		int ncall = getCall(nindex, nmark);
+
+		//a call of 2 is missing data
+		traindataObservedValues_nindex[nmark] = (ncall == 1);
+		traindataNotMissing_nindex[nmark] = (ncall != 2);
+	    }
+	}
+    }
+
+    /**
+     * Returns the call of mark nmark in the signature with index nindex
+     */
+    int getCall(int nindex, int nmark)
+    {
+	return (int) (keys[nindex*numwords+(nmark >> 5)] >>> ((nmark & 31) << 1)) & 3;
+    }
+
+    /**
+     * Copies the signature with index nindex into key
+     */
+    void getKey(int nindex, long[] key)
+    {
+	System.arraycopy(keys, nindex*numwords, key, 0, numwords);
+    }
+
+    /**
+     * Returns the index of the signature packed in key, adding it with the next index if it is not in the table yet
+     */
+    int intern(long[] key)
+    {
+	int nmask = slots.length-1;
+	int nslot = hash(key) & nmask;
+	while (true)
+	{
+	    int nentry = slots[nslot];
+	    if (nentry == 0)
+	    {
+		break;
+	    }
+	    if (matches(nentry-1, key))
+	    {
+		return nentry-1;
+	    }
+	    nslot = (nslot+1) & nmask;
+	}
+
+	int nindex = nsize;
+	if ((nindex+1)*numwords > keys.length)
+	{
+	    keys = Arrays.copyOf(keys, 2*keys.length);
+	}
+	System.arraycopy(key, 0, keys, nindex*numwords, numwords);
+	slots[nslot] = nindex+1;
+	nsize++;
+
+	//keeps the table at most half full so probe sequences stay short
+	if (2*nsize > slots.length)
+	{
+	    rehash();
+	}
+	return nindex;
+    }
+
+    /**
+     * Returns true if the signature with index nindex equals key
+     */
+    private boolean matches(int nindex, long[] key)
+    {
+	int noffset = nindex*numwords;
+	for (int nword = 0; nword < numwords; nword++)
+	{
+	    if (keys[noffset+nword] != key[nword])
+	    {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Returns the hash of the signature packed in key
+     */
+    private static int hash(long[] key)
+    {
+	long lhash = 0;
+	for (int nword = 0; nword < key.length; nword++)
+	{
+	    lhash = (lhash+key[nword])*0x9E3779B97F4A7C15L;
+	}
+	return (int) (lhash ^ (lhash >>> 32));
+    }
+
+    /**
+     * Doubles the number of slots and places the signatures again
+     */
+    private void rehash()
+    {
+	slots = new int[2*slots.length];
+	int nmask = slots.length-1;
+	long[] key = newKey();
+	for (int nindex = 0; nindex < nsize; nindex++)
+	{
+	    getKey(nindex, key);
+	    int nslot = hash(key) & nmask;
+	    while (slots[nslot] != 0)
+	    {
+		nslot = (nslot+1) & nmask;
+	    }
+	    slots[nslot] = nindex+1;
+	}
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * The sufficient statistics of the M-step for one sequence or summed over several sequences.
+ * During parallel training each worker computes the statistics of a sequence in its own instance and adds them
+ * to the instance of the bin of sequences it is going through. The bins are then combined by a tree reduction
+ * on the worker pool, so memory grows with the number of threads rather than the number of sequences.
+ * Which sequences go into a bin and the order in which they and the bins are added only depend on the
+ * sequence lengths and the number of bins, so the sums are the same however the workers are scheduled.
+ */
+class SufficientStatistics
+{
+    /**
+     * The posterior of each state at the first position
+     */
+    double[] gammainit;
+
+    /**
+     * The expected number of transitions from the first state index to the second
+     */
+    double[][] sxi;
+
+    /**
+     * The expected number of positions in each state with each mark in each bucket
+     */
+    double[][][] gammaksum;
+
+    SufficientStatistics(int numstates, int numdatasets, int numbuckets)
+    {
+	gammainit = new double[numstates];
+	sxi = new double[numstates][numstates];
+	gammaksum = new double[numstates][numdatasets][numbuckets];
+    }
+
+    /**
+     * Sets all the statistics to zero
+     */
+    void reset()
+    {
+	for (int ni = 0; ni < gammainit.length; ni++)
+	{
+	    gammainit[ni] = 0;
+	    double[] sxi_ni = sxi[ni];
+	    for (int nj = 0; nj < sxi_ni.length; nj++)
+	    {
+		sxi_ni[nj] = 0;
+	    }
+
+	    double[][] gammaksum_ni = gammaksum[ni];
+	    for (int nmark = 0; nmark < gammaksum_ni.length; nmark++)
+	    {
+		double[] gammaksum_ni_nmark = gammaksum_ni[nmark];
+		for (int nbucket = 0; nbucket < gammaksum_ni_nmark.length; nbucket++)
+		{
+		    gammaksum_ni_nmark[nbucket] = 0;
+		}
+	    }
+	}
+    }
+
+    /**
+     * Adds the statistics in other to these
+     */
+    void add(SufficientStatistics other)
+    {
+	for (int ni = 0; ni < gammainit.length; ni++)
+	{
+	    gammainit[ni] += other.gammainit[ni];
+	    double[] sxi_ni = sxi[ni];
+	    double[] othersxi_ni = other.sxi[ni];
+	    for (int nj = 0; nj < sxi_ni.length; nj++)
+	    {
+		sxi_ni[nj] += othersxi_ni[nj];
+	    }
+
+	    double[][] gammaksum_ni = gammaksum[ni];
+	    double[][] othergammaksum_ni = other.gammaksum[ni];
+	    for (int nmark = 0; nmark < gammaksum_ni.length; nmark++)
+	    {
+		double[] gammaksum_ni_nmark = gammaksum_ni[nmark];
+		double[] othergammaksum_ni_nmark = othergammaksum_ni[nmark];
+		for (int nbucket = 0; nbucket < gammaksum_ni_nmark.length; nbucket++)
+		{
+		    gammaksum_ni_nmark[nbucket] += othergammaksum_ni_nmark[nbucket];
+		}
+	    }
+	}
+    }
+
+    /**
+     * Adds to these statistics the change from oldstats to newstats, as when the statistics of a sequence
+     * that were part of a sum are replaced by those of another pass through it
+     */
+    void addDifference(SufficientStatistics newstats, SufficientStatistics oldstats)
+    {
+	for (int ni = 0; ni < gammainit.length; ni++)
+	{
+	    gammainit[ni] += newstats.gammainit[ni] - oldstats.gammainit[ni];
+	    double[] sxi_ni = sxi[ni];
+	    double[] newsxi_ni = newstats.sxi[ni];
+	    double[] oldsxi_ni = oldstats.sxi[ni];
+	    for (int nj = 0; nj < sxi_ni.length; nj++)
+	    {
+		sxi_ni[nj] += newsxi_ni[nj] - oldsxi_ni[nj];
+	    }
+
+	    double[][] gammaksum_ni = gammaksum[ni];
+	    double[][] newgammaksum_ni = newstats.gammaksum[ni];
+	    double[][] oldgammaksum_ni = oldstats.gammaksum[ni];
+	    for (int nmark = 0; nmark < gammaksum_ni.length; nmark++)
+	    {
+		double[] gammaksum_ni_nmark = gammaksum_ni[nmark];
+		double[] newgammaksum_ni_nmark = newgammaksum_ni[nmark];
+		double[] oldgammaksum_ni_nmark = oldgammaksum_ni[nmark];
+		for (int nbucket = 0; nbucket < gammaksum_ni_nmark.length; nbucket++)
+		{
+		    gammaksum_ni_nmark[nbucket] += newgammaksum_ni_nmark[nbucket] - oldgammaksum_ni_nmark[nbucket];
+		}
+	    }
+	}
+    }
+
+    /**
+     * Sets these statistics to 1-dweight times themselves plus dweight*dscale times those in other, which moves running
+     * statistics of stochastic training towards those of a mini-batch scaled by dscale to the size of all the data
+     */
+    void interpolate(SufficientStatistics other, double dweight, double dscale)
+    {
+	double dkeep = 1-dweight;
+	double dadd = dweight*dscale;
+	for (int ni = 0; ni < gammainit.length; ni++)
+	{
+	    gammainit[ni] = dkeep*gammainit[ni] + dadd*other.gammainit[ni];
+	    double[] sxi_ni = sxi[ni];
+	    double[] othersxi_ni = other.sxi[ni];
+	    for (int nj = 0; nj < sxi_ni.length; nj++)
+	    {
+		sxi_ni[nj] = dkeep*sxi_ni[nj] + dadd*othersxi_ni[nj];
+	    }
+
+	    double[][] gammaksum_ni = gammaksum[ni];
+	    double[][] othergammaksum_ni = other.gammaksum[ni];
+	    for (int nmark = 0; nmark < gammaksum_ni.length; nmark++)
+	    {
+		double[] gammaksum_ni_nmark = gammaksum_ni[nmark];
+		double[] othergammaksum_ni_nmark = othergammaksum_ni[nmark];
+		for (int nbucket = 0; nbucket < gammaksum_ni_nmark.length; nbucket++)
+		{
+		    gammaksum_ni_nmark[nbucket] = dkeep*gammaksum_ni_nmark[nbucket] + dadd*othergammaksum_ni_nmark[nbucket];
+		}
+	    }
+	}
+    }
+
+    /**
+     * Writes the statistics to out, as sent by a worker of distributed training
+     */
+    void write(DataOutputStream out) throws IOException
+    {
+	for (int ni = 0; ni < gammainit.length; ni++)
+	{
+	    out.writeDouble(gammainit[ni]);
+	    double[] sxi_ni = sxi[ni];
+	    for (int nj = 0; nj < sxi_ni.length; nj++)
+	    {
+		out.writeDouble(sxi_ni[nj]);
+	    }
+
+	    double[][] gammaksum_ni = gammaksum[ni];
+	    for (int nmark = 0; nmark < gammaksum_ni.length; nmark++)
+	    {
+		double[] gammaksum_ni_nmark = gammaksum_ni[nmark];
+		for (int nbucket = 0; nbucket < gammaksum_ni_nmark.length; nbucket++)
+		{
+		    out.writeDouble(gammaksum_ni_nmark[nbucket]);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Sets the statistics to those written by write to in
+     */
+    void read(DataInputStream in) throws IOException
+    {
+	for (int ni = 0; ni < gammainit.length; ni++)
+	{
+	    gammainit[ni] = in.readDouble();
+	    double[] sxi_ni = sxi[ni];
+	    for (int nj = 0; nj < sxi_ni.length; nj++)
+	    {
+		sxi_ni[nj] = in.readDouble();
+	    }
+
+	    double[][] gammaksum_ni = gammaksum[ni];
+	    for (int nmark = 0; nmark < gammaksum_ni.length; nmark++)
+	    {
+		double[] gammaksum_ni_nmark = gammaksum_ni[nmark];
+		for (int nbucket = 0; nbucket < gammaksum_ni_nmark.length; nbucket++)
+		{
+		    gammaksum_ni_nmark[nbucket] = in.readDouble();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Sums the statistics of all the bins into bins[0] on the worker pool. At each level of the tree the bin at index
+     * ni receives the bin at index ni+nstride for ni a multiple of 2*nstride, so the order of the additions is fixed.
+     */
+    static void reduce(TrainingPool theTrainingPool, SufficientStatistics[] bins) throws IOException
+    {
+	for (int nstride = 1; nstride < bins.length; nstride *= 2)
+	{
+	    for (int ni = 0; ni + nstride < bins.length; ni += 2*nstride)
+	    {
+		final SufficientStatistics target = bins[ni];
+		final SufficientStatistics source = bins[ni+nstride];
+		theTrainingPool.submit(new Runnable()
+		    {
+			public void run()
+			{
+			    target.add(source);
+			}
+		    });
+	    }
+	    theTrainingPool.waitForAll();
+	}
+    }
+
+    /**
+     * Assigns sequences with the given lengths to numbins bins of about equal total length. Going from the longest
+     * sequence to the shortest, with ties broken by the lower index, each is put in the bin with the least total length
+     * so far, with ties broken by the lower bin. Returns the bin of each sequence.
+     */
+    static int[] assignBins(int[] nlengths, int numbins)
+    {
+	//sorting on these keys orders the sequences by decreasing length and then by increasing index
+	long[] lkeys = new long[nlengths.length];
+	for (int nseq = 0; nseq < nlengths.length; nseq++)
+	{
+	    lkeys[nseq] = (((long) (Integer.MAX_VALUE - nlengths[nseq])) << 32) | nseq;
+	}
+	Arrays.sort(lkeys);
+
+	long[] lbintotal = new long[numbins];
+	int[] nbin = new int[nlengths.length];
+	for (int nindex = 0; nindex < lkeys.length; nindex++)
+	{
+	    int nseq = (int) (lkeys[nindex] & 0xffffffffL);
+	    int nminbin = 0;
+	    for (int nb = 1; nb < numbins; nb++)
+	    {
+		if (lbintotal[nb] < lbintotal[nminbin])
+		{
+		    nminbin = nb;
+		}
+	    }
+	    nbin[nseq] = nminbin;
+	    lbintotal[nminbin] += nlengths[nseq];
+	}
+	return nbin;
+    }
+}
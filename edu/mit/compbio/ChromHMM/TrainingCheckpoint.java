@@ -0,0 +1,254 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * The state of parallel training after an iteration, written to a binary file from which training can be resumed.
+ * Besides the parameters and the eliminated transitions, a checkpoint holds the iteration, the log-likelihood the next
+ * iteration is compared against, the number of eliminated transitions, the training time so far and the state of the
+ * random number generator used to sample sequences with -n. The E-step only depends on these and the data, so a resumed
+ * run goes through exactly the same parameters as one that was not interrupted. The sequence files are recorded in the order
+ * they are trained on, since the sums of the E-step depend on it, and a checkpoint is only resumed on the same files in the same order.
+ */
+class TrainingCheckpoint
+{
+    /**
+     * Starts every checkpoint file, followed by the version of the format
+     */
+    static final int MAGIC = 0x43484b50;
+    static final int VERSION = 2;
+
+    /**
+     * The last iteration completed
+     */
+    int niteration;
+
+    /**
+     * The log-likelihood of the last iteration
+     */
+    double dloglike;
+
+    /**
+     * The number of transitions eliminated so far
+     */
+    int nelim;
+
+    /**
+     * The milliseconds spent training so far
+     */
+    long lelapsedmillis;
+
+    /**
+     * Writes to szfile the parameters and random number generator of theHMM after iteration niteration with log-likelihood dloglike,
+     * nelim transitions eliminated and lelapsedmillis spent training. The checkpoint is first written to a temporary file which then
+     * replaces szfile, so a run killed while writing leaves the previous checkpoint. The temporary file is synced to the disk before
+     * it replaces szfile, so a crash cannot leave a checkpoint that was renamed into place before its contents were written.
+     */
+    static void write(String szfile, ChromHMM theHMM, int niteration, double dloglike, int nelim, long lelapsedmillis) throws IOException
+    {
+	File ftemp = new File(szfile+".tmp");
+	FileOutputStream fos = new FileOutputStream(ftemp);
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+	out.writeInt(MAGIC);
+	out.writeInt(VERSION);
+	out.writeInt(theHMM.numstates);
+	out.writeInt(theHMM.numdatasets);
+	for (int nmark = 0; nmark < theHMM.numdatasets; nmark++)
+	{
+	    out.writeUTF(theHMM.datasets[nmark]);
+	}
+
+	out.writeInt(theHMM.chromfiles.length);
+	for (int nfile = 0; nfile < theHMM.chromfiles.length; nfile++)
+	{
+	    out.writeUTF(theHMM.chromfiles[nfile]);
+	}
+
+	out.writeInt(niteration);
+	out.writeDouble(dloglike);
+	out.writeInt(nelim);
+	out.writeLong(lelapsedmillis);
+
+	//Random is serializable, which keeps its seed exactly
+	ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	ObjectOutputStream oos = new ObjectOutputStream(baos);
+	oos.writeObject(theHMM.theRandom);
+	oos.close();
+	byte[] randombytes = baos.toByteArray();
+	out.writeInt(randombytes.length);
+	out.write(randombytes);
+
+	int numstates = theHMM.numstates;
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    out.writeDouble(theHMM.probinit[ni]);
+	}
+
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    for (int nj = 0; nj < numstates; nj++)
+	    {
+		out.writeDouble(theHMM.transitionprobs[ni][nj]);
+		out.writeBoolean(theHMM.elim[ni][nj]);
+	    }
+	}
+
+	out.writeInt(theHMM.emissionprobs[0][0].length);
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    double[][] emissionprobs_ni = theHMM.emissionprobs[ni];
+	    for (int nmark = 0; nmark < emissionprobs_ni.length; nmark++)
+	    {
+		double[] emissionprobs_ni_nmark = emissionprobs_ni[nmark];
+		for (int nbucket = 0; nbucket < emissionprobs_ni_nmark.length; nbucket++)
+		{
+		    out.writeDouble(emissionprobs_ni_nmark[nbucket]);
+		}
+	    }
+	}
+	out.flush();
+	fos.getFD().sync();
+	out.close();
+
+	File f = new File(szfile);
+	if ((!ftemp.renameTo(f))&&((!f.delete())||(!ftemp.renameTo(f))))
+	{
+	    throw new IOException("Could not replace "+szfile+" by "+ftemp);
+	}
+    }
+
+    /**
+     * Reads the checkpoint in szfile into the parameters and random number generator of theHMM, which must have the same number of states,
+     * marks, and sequence files in the same order as the model of the checkpoint. Returns the iteration, log-likelihood, eliminated transitions and time of the checkpoint.
+     */
+    static TrainingCheckpoint read(String szfile, ChromHMM theHMM) throws IOException
+    {
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(szfile)));
+	if ((in.readInt() != MAGIC)||(in.readInt() != VERSION))
+	{
+	    in.close();
+	    throw new IllegalArgumentException(szfile+" is not a checkpoint of this version of ChromHMM");
+	}
+
+	int numstates = in.readInt();
+	if (numstates != theHMM.numstates)
+	{
+	    in.close();
+	    throw new IllegalArgumentException("The checkpoint "+szfile+" has "+numstates+" states, but expecting "+theHMM.numstates);
+	}
+
+	int numdatasets = in.readInt();
+	String[] datasets = new String[numdatasets];
+	for (int nmark = 0; nmark < numdatasets; nmark++)
+	{
+	    datasets[nmark] = in.readUTF();
+	}
+
+	if (!Arrays.equals(datasets, theHMM.datasets))
+	{
+	    in.close();
+	    throw new IllegalArgumentException("The marks of the checkpoint "+szfile+" do not match those of the data");
+	}
+
+	int numfiles = in.readInt();
+	String[] chromfiles = new String[numfiles];
+	for (int nfile = 0; nfile < numfiles; nfile++)
+	{
+	    chromfiles[nfile] = in.readUTF();
+	}
+
+	if (numfiles != theHMM.chromfiles.length)
+	{
+	    in.close();
+	    throw new IllegalArgumentException("The checkpoint "+szfile+" was trained on "+numfiles+" sequence files, but there are "+theHMM.chromfiles.length);
+	}
+
+	for (int nfile = 0; nfile < numfiles; nfile++)
+	{
+	    if (!chromfiles[nfile].equals(theHMM.chromfiles[nfile]))
+	    {
+		in.close();
+		throw new IllegalArgumentException("The checkpoint "+szfile+" was trained on "+chromfiles[nfile]+" as sequence file "+(nfile+1)+
+						   ", but it is now "+theHMM.chromfiles[nfile]+", the files and their order must be the same to resume");
+	    }
+	}
+
+	TrainingCheckpoint theCheckpoint = new TrainingCheckpoint();
+	theCheckpoint.niteration = in.readInt();
+	theCheckpoint.dloglike = in.readDouble();
+	theCheckpoint.nelim = in.readInt();
+	theCheckpoint.lelapsedmillis = in.readLong();
+
+	byte[] randombytes = new byte[in.readInt()];
+	in.readFully(randombytes);
+	ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(randombytes));
+	try
+	{
+	    theHMM.theRandom = (Random) ois.readObject();
+	}
+	catch (ClassNotFoundException ex)
+	{
+	    throw new IOException(ex);
+	}
+	ois.close();
+
+	theHMM.allocateParameters();
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    theHMM.probinit[ni] = in.readDouble();
+	}
+
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    for (int nj = 0; nj < numstates; nj++)
+	    {
+		theHMM.transitionprobs[ni][nj] = in.readDouble();
+		theHMM.elim[ni][nj] = in.readBoolean();
+	    }
+	}
+	theHMM.updateTransitionIndices();
+
+	int numbuckets = in.readInt();
+	if (numbuckets != theHMM.emissionprobs[0][0].length)
+	{
+	    in.close();
+	    throw new IllegalArgumentException("The checkpoint "+szfile+" has "+numbuckets+" emission buckets, but expecting "+theHMM.emissionprobs[0][0].length);
+	}
+
+	for (int ni = 0; ni < numstates; ni++)
+	{
+	    double[][] emissionprobs_ni = theHMM.emissionprobs[ni];
+	    for (int nmark = 0; nmark < emissionprobs_ni.length; nmark++)
+	    {
+		double[] emissionprobs_ni_nmark = emissionprobs_ni[nmark];
+		for (int nbucket = 0; nbucket < emissionprobs_ni_nmark.length; nbucket++)
+		{
+		    emissionprobs_ni_nmark[nbucket] = in.readDouble();
+		}
+	    }
+	}
+	in.close();
+
+	return theCheckpoint;
+    }
+}
@@ -0,0 +1,570 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * A bounded pool of worker threads used for the E-step of parallel Baum-Welch training.
+ * The pool is created once per training run. Each worker thread keeps its own set of
+ * forward-backward buffers for the whole run and sequences are handed to the workers as
+ * tasks on a queue, instead of launching a new thread for every sequence on every iteration.
+ * The pool also records how long tasks waited in the queue and how long the workers computed,
+ * so the time spent waiting versus computing can be reported after each iteration.
+ * Sequences are handed out in bins, each of which adds the sufficient statistics of its sequences
+ * into its own SufficientStatistics.
+ */
+public class TrainingPool
+{
+    /**
+     * The number of ranges per worker into which runRanges splits its items
+     */
+    static int RANGESPERWORKER = 4;
+
+    /**
+     * The executor that queues the tasks and runs them on the worker threads
+     */
+    ThreadPoolExecutor executor;
+
+    /**
+     * The worker threads, indexed by the order in which they were created
+     */
+    Worker[] workers;
+
+    /**
+     * The number of worker threads
+     */
+    int numworkers;
+
+    /**
+     * The number of worker threads created so far
+     */
+    private int ncreated = 0;
+
+    /**
+     * The time in nanoseconds when the current timing period started
+     */
+    private long lperiodstart;
+
+    /**
+     * Nanoseconds each worker spent running tasks submitted through this pool in the current timing period
+     */
+    private long[] lcomputenanos;
+
+    /**
+     * Nanoseconds the tasks submitted through this pool waited in the queue before starting on each worker in the current timing period
+     */
+    private long[] lqueuenanos;
+
+    /**
+     * Number of tasks submitted through this pool that each worker ran in the current timing period
+     */
+    private int[] ntasks;
+
+    /**
+     * Nanoseconds the tasks submitted through this pool spent reading their sequences from disk on each worker in the current timing period
+     */
+    private long[] lreadnanos;
+
+    /**
+     * The outstanding tasks submitted since the last call to waitForAll
+     */
+    private ArrayList alfutures = new ArrayList();
+
+
+    /**
+     * A worker thread of the pool. Holds the forward-backward buffers used by the tasks run on it
+     * and records the time it spent on them with the pool through which the task was submitted.
+     */
+    static class Worker extends Thread
+    {
+	/**
+	 * The index of the worker in the pool
+	 */
+	int nworker;
+
+	/**
+	 * Stores the forward values of the sequence being processed unless they are checkpointed
+	 */
+	ChromHMM.AlphaStore alphastore;
+
+	//buffers for the forward-backward computations on a sequence
+	double[] gamma_nt;
+	double[] beta_nt;
+	double[] beta_ntp1;
+	double[] tempproductbetaemiss;
+	double[][] sumforsxi;
+	double[][] gammaObservedSum;
+
+	/**
+	 * The sufficient statistics of the sequence being processed before they are added to those of its bin
+	 */
+	SufficientStatistics seqstats;
+
+	//additional buffers used when each task loads its own sequence from disk
+	int[] traindataObservedIndex;
+	boolean[][] traindataObservedValues;
+	boolean[][] traindataNotMissing;
+	SignatureTable signatures;
+
+	/**
+	 * The emission products of the combinations of marks of the sequence being processed, when each task computes its own
+	 * either for the sequence it loads or for the parameters it was handed
+	 */
+	double[][] emissionproducts;
+	double[] emissionproducts_scale;
+
+	/**
+	 * The pool through which the task running on this worker was submitted, which records its time
+	 */
+	TrainingPool theTaskPool;
+
+	Worker(Runnable r, int nworker)
+	{
+	    super(r, "ChromHMM-worker-"+nworker);
+	    this.nworker = nworker;
+	    setDaemon(true);
+	}
+
+	/**
+	 * Allocates the buffers other than the forward value store needed for the forward-backward computations
+	 * with numstates states and numcombos distinct combinations of marks
+	 */
+	void allocateBuffers(int numstates, int numcombos)
+	{
+	    gamma_nt = new double[numstates];
+	    beta_nt = new double[numstates];
+	    beta_ntp1 = new double[numstates];
+	    tempproductbetaemiss = new double[numstates];
+	    sumforsxi = new double[numstates][numstates];
+	    gammaObservedSum = new double[numcombos][numstates];
+	}
+
+	/**
+	 * Allocates the sufficient statistics for a sequence with numstates states, numdatasets marks and numbuckets buckets
+	 */
+	void allocateStatistics(int numstates, int numdatasets, int numbuckets)
+	{
+	    seqstats = new SufficientStatistics(numstates, numdatasets, numbuckets);
+	}
+
+	/**
+	 * Allocates the additional buffers needed when a task loads its sequence of up to nmaxtime positions
+	 * with numdatasets marks itself
+	 */
+	void allocateLoadBuffers(int nmaxtime, int numstates, int numdatasets, boolean bscaleemissions)
+	{
+	    traindataObservedIndex = new int[nmaxtime];
+	    signatures = new SignatureTable(numdatasets);
+	    traindataObservedValues = new boolean[nmaxtime][numdatasets];
+	    traindataNotMissing = new boolean[nmaxtime][numdatasets];
+	    emissionproducts = new double[nmaxtime][numstates];
+	    if (bscaleemissions)
+	    {
+		emissionproducts_scale = new double[nmaxtime];
+	    }
+	}
+
+	/**
+	 * Allocates the emission products for numcombos combinations of marks needed when each task computes its own
+	 */
+	void allocateEmissionBuffers(int numcombos, int numstates, boolean bscaleemissions)
+	{
+	    emissionproducts = new double[numcombos][numstates];
+	    if (bscaleemissions)
+	    {
+		emissionproducts_scale = new double[numcombos];
+	    }
+	}
+
+	/**
+	 * Records that a task waited lqueue nanoseconds in the queue and then ran for lcompute nanoseconds
+	 */
+	void recordTask(long lqueue, long lcompute)
+	{
+	    theTaskPool.lqueuenanos[nworker] += lqueue;
+	    theTaskPool.lcomputenanos[nworker] += lcompute;
+	    theTaskPool.ntasks[nworker]++;
+	}
+
+	/**
+	 * Records that the running task spent lread nanoseconds reading its sequence from disk
+	 */
+	void recordRead(long lread)
+	{
+	    theTaskPool.lreadnanos[nworker] += lread;
+	}
+    }
+
+
+    /**
+     * Creates a pool with numworkers worker threads
+     */
+    public TrainingPool(int numworkers)
+    {
+	this.numworkers = numworkers;
+	workers = new Worker[numworkers];
+	executor = new ThreadPoolExecutor(numworkers, numworkers, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+	    {
+		public Thread newThread(Runnable r)
+		{
+		    synchronized (TrainingPool.this)
+		    {
+			//workers are never replaced since tasks are run through submit which catches their exceptions
+			Worker theWorker = new Worker(r, ncreated);
+			workers[ncreated] = theWorker;
+			ncreated++;
+			return theWorker;
+		    }
+		}
+	    });
+
+	//starts all the worker threads now so their buffers can be allocated before the first iteration
+	executor.prestartAllCoreThreads();
+	allocateTiming();
+    }
+
+    /**
+     * Creates a pool that runs its tasks on the worker threads of theSharedPool but waits only for the tasks submitted
+     * through it, so several models can be trained on the same workers at the same time. Each pool records the time of
+     * the tasks submitted through it, so timing summaries include only the tasks of its model, and the workers' wait
+     * includes the time they spent on the tasks of the other models. Only theSharedPool should be shut down.
+     */
+    TrainingPool(TrainingPool theSharedPool)
+    {
+	this.numworkers = theSharedPool.numworkers;
+	this.workers = theSharedPool.workers;
+	this.executor = theSharedPool.executor;
+	allocateTiming();
+    }
+
+    /**
+     * Allocates the time recorded for each worker and starts the first timing period
+     */
+    private void allocateTiming()
+    {
+	lcomputenanos = new long[numworkers];
+	lqueuenanos = new long[numworkers];
+	ntasks = new int[numworkers];
+	lreadnanos = new long[numworkers];
+	lperiodstart = System.nanoTime();
+    }
+
+    /**
+     * Runs a task on a worker after recording on the worker the pool through which it was submitted
+     */
+    private class PoolTask implements Runnable
+    {
+	Runnable task;
+
+	PoolTask(Runnable task)
+	{
+	    this.task = task;
+	}
+
+	public void run()
+	{
+	    currentWorker().theTaskPool = TrainingPool.this;
+	    task.run();
+	}
+    }
+
+    /**
+     * Returns the worker thread on which the calling task is running
+     */
+    static Worker currentWorker()
+    {
+	return (Worker) Thread.currentThread();
+    }
+
+    /**
+     * Allocates on each worker the buffers other than the forward value store needed for the forward-backward computations
+     */
+    void allocateBuffers(int numstates, int numcombos)
+    {
+	for (int nworker = 0; nworker < numworkers; nworker++)
+	{
+	    workers[nworker].allocateBuffers(numstates, numcombos);
+	}
+    }
+
+    /**
+     * Allocates on each worker the additional buffers needed when tasks load their own sequences
+     */
+    void allocateLoadBuffers(int nmaxtime, int numstates, int numdatasets, boolean bscaleemissions)
+    {
+	for (int nworker = 0; nworker < numworkers; nworker++)
+	{
+	    workers[nworker].allocateLoadBuffers(nmaxtime, numstates, numdatasets, bscaleemissions);
+	}
+    }
+
+    /**
+     * A task that runs the tasks of a bin of sequences one after another in order on the same worker. Each task computes
+     * the sufficient statistics of its sequence in the worker's seqstats, which are then added to those of the bin.
+     */
+    static class BinTask implements Runnable
+    {
+	ArrayList altasks;
+	SufficientStatistics binstats;
+	long lsubmittime;
+
+	BinTask(ArrayList altasks, SufficientStatistics binstats)
+	{
+	    this.altasks = altasks;
+	    this.binstats = binstats;
+	    this.lsubmittime = System.nanoTime();
+	}
+
+	public void run()
+	{
+	    Worker theWorker = currentWorker();
+	    long lstarttime = System.nanoTime();
+	    for (int ntask = 0; ntask < altasks.size(); ntask++)
+	    {
+		((Runnable) altasks.get(ntask)).run();
+		binstats.add(theWorker.seqstats);
+	    }
+	    theWorker.recordTask(lstarttime-lsubmittime, System.nanoTime()-lstarttime);
+	}
+    }
+
+    /**
+     * Allocates on each worker the sufficient statistics for a single sequence
+     */
+    void allocateStatistics(int numstates, int numdatasets, int numbuckets)
+    {
+	for (int nworker = 0; nworker < numworkers; nworker++)
+	{
+	    workers[nworker].allocateStatistics(numstates, numdatasets, numbuckets);
+	}
+    }
+
+    /**
+     * Queues the tasks of a bin of sequences to be run in order on one of the worker threads adding their sufficient statistics into binstats
+     */
+    void submitBin(ArrayList altasks, SufficientStatistics binstats)
+    {
+	submit(new BinTask(altasks, binstats));
+    }
+
+    /**
+     * Allocates on each worker the emission products for numcombos combinations of marks needed when each task computes its own
+     */
+    void allocateEmissionBuffers(int numcombos, int numstates, boolean bscaleemissions)
+    {
+	for (int nworker = 0; nworker < numworkers; nworker++)
+	{
+	    workers[nworker].allocateEmissionBuffers(numcombos, numstates, bscaleemissions);
+	}
+    }
+
+    /**
+     * Work on a range of items, such as states or combinations of marks, that is split among the workers by runRanges
+     */
+    abstract static class RangeTask
+    {
+	/**
+	 * Does the work for the items from nstart up to but not including nend
+	 */
+	abstract void run(int nstart, int nend);
+    }
+
+    /**
+     * Splits the items from 0 up to numitems into contiguous ranges, a few for each worker so uneven ranges
+     * even out, runs theRangeTask on each range on the workers and waits for all of them to complete
+     */
+    void runRanges(int numitems, final RangeTask theRangeTask) throws IOException
+    {
+	int numranges = Math.min(numitems, RANGESPERWORKER*numworkers);
+	for (int nrange = 0; nrange < numranges; nrange++)
+	{
+	    final int nstart = (int) ((long) numitems*nrange/numranges);
+	    final int nend = (int) ((long) numitems*(nrange+1)/numranges);
+	    final long lsubmittime = System.nanoTime();
+	    submit(new Runnable()
+		{
+		    public void run()
+		    {
+			long lstarttime = System.nanoTime();
+			theRangeTask.run(nstart, nend);
+			currentWorker().recordTask(lstarttime-lsubmittime, System.nanoTime()-lstarttime);
+		    }
+		});
+	}
+	waitForAll();
+    }
+
+    /**
+     * Queues a task to be run on one of the worker threads
+     */
+    void submit(Runnable task)
+    {
+	alfutures.add(executor.submit(new PoolTask(task)));
+    }
+
+    /**
+     * Queues a task to be run on one of the worker threads and returns its future without tracking it
+     */
+    Future submitTask(Runnable task)
+    {
+	return executor.submit(new PoolTask(task));
+    }
+
+    /**
+     * Waits until all tasks submitted since the last call have completed.
+     * If a task threw an exception it is rethrown here.
+     */
+    void waitForAll() throws IOException
+    {
+	waitFor(alfutures);
+    }
+
+    /**
+     * Waits until the tasks with the futures in alfutures have completed and then clears the list.
+     * If a task threw an exception it is rethrown here.
+     */
+    static void waitFor(ArrayList alfutures) throws IOException
+    {
+	try
+	{
+	    for (int nindex = 0; nindex < alfutures.size(); nindex++)
+	    {
+		boolean bdone = false;
+		while (!bdone)
+		{
+		    try
+		    {
+			((Future) alfutures.get(nindex)).get();
+			bdone = true;
+		    }
+		    catch (InterruptedException ex) {}
+		}
+	    }
+	}
+	catch (ExecutionException ex)
+	{
+	    Throwable cause = ex.getCause();
+	    if (cause instanceof IOException)
+	    {
+		throw (IOException) cause;
+	    }
+	    else if (cause instanceof RuntimeException)
+	    {
+		throw (RuntimeException) cause;
+	    }
+	    else if (cause instanceof Error)
+	    {
+		throw (Error) cause;
+	    }
+	    throw new RuntimeException(cause);
+	}
+	finally
+	{
+	    alfutures.clear();
+	}
+    }
+
+    /**
+     * Starts a new timing period resetting the time recorded for the tasks submitted through this pool.
+     * Pools sharing the same workers keep their own time.
+     */
+    void resetTiming()
+    {
+	for (int nworker = 0; nworker < numworkers; nworker++)
+	{
+	    lcomputenanos[nworker] = 0;
+	    lqueuenanos[nworker] = 0;
+	    ntasks[nworker] = 0;
+	    lreadnanos[nworker] = 0;
+	}
+	lperiodstart = System.nanoTime();
+    }
+
+    /**
+     * Returns a one line summary of the time workers spent computing and waiting since the last call to resetTiming
+     */
+    String getTimingSummary(String szlabel)
+    {
+	double dwall = (System.nanoTime()-lperiodstart)/1e9;
+	double dcompute = 0;
+	double dqueue = 0;
+	int ntotaltasks = 0;
+	for (int nworker = 0; nworker < numworkers; nworker++)
+	{
+	    dcompute += lcomputenanos[nworker]/1e9;
+	    dqueue += lqueuenanos[nworker]/1e9;
+	    ntotaltasks += ntasks[nworker];
+	}
+
+	//time the workers were available but had nothing to run
+	double dwait = Math.max(0, numworkers*dwall - dcompute);
+	double dbusy = 0;
+	if (dwall > 0)
+	{
+	    dbusy = 100*dcompute/(numworkers*dwall);
+	}
+
+	double dmeanqueue = 0;
+	if (ntotaltasks > 0)
+	{
+	    dmeanqueue = dqueue/ntotaltasks;
+	}
+
+	return String.format(Locale.ENGLISH, "%s wall %.3f secs, worker compute %.3f secs, worker wait %.3f secs (%.1f%% busy), %d tasks, mean queue wait %.3f secs",
+			     szlabel, dwall, dcompute, dwait, dbusy, ntotaltasks, dmeanqueue);
+    }
+
+    /**
+     * Returns the nanoseconds each worker spent running tasks since the last call to resetTiming
+     */
+    long[] getComputeNanos()
+    {
+	long[] lworkernanos = new long[numworkers];
+	for (int nworker = 0; nworker < numworkers; nworker++)
+	{
+	    lworkernanos[nworker] = lcomputenanos[nworker];
+	}
+	return lworkernanos;
+    }
+
+    /**
+     * Returns the nanoseconds all the workers spent reading sequences from disk since the last call to resetTiming
+     */
+    long getReadNanos()
+    {
+	long ltotalreadnanos = 0;
+	for (int nworker = 0; nworker < numworkers; nworker++)
+	{
+	    ltotalreadnanos += lreadnanos[nworker];
+	}
+	return ltotalreadnanos;
+    }
+
+    /**
+     * Stops the worker threads
+     */
+    void shutdown()
+    {
+	executor.shutdownNow();
+    }
+}
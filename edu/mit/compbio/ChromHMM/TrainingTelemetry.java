@@ -0,0 +1,151 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * Writes a record of each training iteration as one line of JSON to a file, so the time spent in each step, the load of each
+ * worker and the memory in use can be compared across runs. Each line is flushed when written so the records of a run that is
+ * stopped are kept. Models trained at the same time, as with -restarts or a range of numbers of states, write to the same file
+ * and are told apart by their number of states and label.
+ */
+class TrainingTelemetry
+{
+    /**
+     * The file the records are written to
+     */
+    private PrintWriter pw;
+
+    /**
+     * Opens szfile for the records, replacing any previous contents
+     */
+    TrainingTelemetry(String szfile) throws IOException
+    {
+	pw = new PrintWriter(new FileWriter(szfile), true);
+    }
+
+    /**
+     * Writes the record of iteration niteration of the model theHMM. The log-likelihood was dloglike, a change of ddiff from the previous
+     * iteration, and dtotalsecs seconds have been spent training. The E-step, M-step and writing the parameter files took destepsecs,
+     * dmstepsecs and doutputsecs seconds of wall time, and the workers spent dreadsecs seconds in total reading sequences from disk.
+     * lworkernanos holds the nanoseconds each worker spent computing in the E-step, numbins is the number of bins the E-step went through,
+     * or -1 if not known, and numelimiteration of the nelim transitions eliminated so far were eliminated in this iteration.
+     */
+    synchronized void writeIteration(ChromHMM theHMM, int niteration, double dloglike, double ddiff, double dtotalsecs,
+				     double destepsecs, double dmstepsecs, double doutputsecs, double dreadsecs,
+				     long[] lworkernanos, long numbins, int numelimiteration, int nelim)
+    {
+	Runtime theRuntime = Runtime.getRuntime();
+	double dheapmb = (theRuntime.totalMemory()-theRuntime.freeMemory())/(1024.0*1024.0);
+
+	StringBuffer sb = new StringBuffer();
+	sb.append("{\"time\":").append(System.currentTimeMillis());
+	sb.append(",\"states\":").append(theHMM.numstates);
+	if (theHMM.szprogresslabel != null)
+	{
+	    sb.append(",\"label\":\"").append(escape(theHMM.szprogresslabel)).append("\"");
+	}
+	if (!theHMM.szoutfileID.equals(""))
+	{
+	    sb.append(",\"id\":\"").append(escape(theHMM.szoutfileID)).append("\"");
+	}
+	sb.append(",\"iteration\":").append(niteration);
+	sb.append(",\"loglikelihood\":").append(format(dloglike));
+	sb.append(",\"change\":").append(format(ddiff));
+	sb.append(",\"total_secs\":").append(format(dtotalsecs));
+	sb.append(",\"estep_secs\":").append(format(destepsecs));
+	sb.append(",\"mstep_secs\":").append(format(dmstepsecs));
+	sb.append(",\"output_secs\":").append(format(doutputsecs));
+	sb.append(",\"read_secs\":").append(format(dreadsecs));
+
+	sb.append(",\"worker_busy_secs\":[");
+	for (int nworker = 0; nworker < lworkernanos.length; nworker++)
+	{
+	    if (nworker > 0)
+	    {
+		sb.append(",");
+	    }
+	    sb.append(format(lworkernanos[nworker]/1e9));
+	}
+	sb.append("]");
+
+	if (numbins >= 0)
+	{
+	    sb.append(",\"bins\":").append(numbins);
+	    sb.append(",\"bins_per_sec\":").append(format(numbins/destepsecs));
+	}
+	else
+	{
+	    sb.append(",\"bins\":null,\"bins_per_sec\":null");
+	}
+	sb.append(",\"heap_used_mb\":").append(format(dheapmb));
+	sb.append(",\"eliminated_transitions\":").append(nelim);
+	sb.append(",\"eliminated_this_iteration\":").append(numelimiteration);
+	sb.append("}");
+	pw.println(sb.toString());
+    }
+
+    /**
+     * Returns dval as a JSON number, or null if it is not finite as for the change of the first iteration
+     */
+    private static String format(double dval)
+    {
+	if (Double.isNaN(dval)||Double.isInfinite(dval))
+	{
+	    return "null";
+	}
+	return Double.toString(dval);
+    }
+
+    /**
+     * Returns sz with the characters that cannot appear in a JSON string escaped
+     */
+    private static String escape(String sz)
+    {
+	StringBuffer sb = new StringBuffer();
+	for (int nindex = 0; nindex < sz.length(); nindex++)
+	{
+	    char ch = sz.charAt(nindex);
+	    if ((ch == '"')||(ch == '\\'))
+	    {
+		sb.append('\\').append(ch);
+	    }
+	    else if (ch < ' ')
+	    {
+		sb.append(String.format(Locale.ENGLISH, "\\u%04x", (int) ch));
+	    }
+	    else
+	    {
+		sb.append(ch);
+	    }
+	}
+	return sb.toString();
+    }
+
+    /**
+     * Closes the file of the records
+     */
+    synchronized void close()
+    {
+	pw.close();
+    }
+}
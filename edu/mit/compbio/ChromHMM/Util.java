@@ -43,13 +43,18 @@ import org.w3c.dom.DOMImplementation;
 public class Util
 {
     /**
-     * Returns a buffered reader. If szFile ends in a ".gz" tries to open it as a gzip file
+     * Returns a buffered reader. If szFile ends in a ".gz" tries to open it as a gzip file,
+     * if it ends in the extension of packed binary files reads it as the text it was packed from,
      * otherwise tries to open it as a normal file.
      */
     static BufferedReader getBufferedReader(String szFile) throws IOException
     {
 	BufferedReader br;
-       if (szFile.endsWith(".gz"))
+       if (szFile.endsWith(PackedBinaryFile.EXTENSION))
+       {
+          br = new BufferedReader(new InputStreamReader(PackedBinaryFile.openText(szFile), "UTF-8"));
+       }
+       else if (szFile.endsWith(".gz"))
        {
           try
 	  {
@@ -0,0 +1,67 @@
+/**
+ * ChromHMM - automating chromatin state discovery and characterization
+ * Copyright (C) 2008-2012 Massachusetts Institute of Technology
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package edu.mit.compbio.ChromHMM;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * Dot product kernel using the SIMD instructions of the machine through the jdk.incubator.vector module.
+ * Unlike the other classes this one requires Java 16 or later, so it is kept in its own source root outside the
+ * main source directory and is optional. It is compiled against the main classes with
+ *   javac --add-modules jdk.incubator.vector -cp ChromHMM.jar -d classes vector/edu/mit/compbio/ChromHMM/VectorDotKernel.java
+ * and is only used with -kernel vector or -kernel auto when ChromHMM is run with --add-modules jdk.incubator.vector
+ * and the compiled class is on the class path. DotKernel loads it by name, so ChromHMM builds and runs without it.
+ */
+class VectorDotKernel extends DotKernel
+{
+    /**
+     * The widest vector shape supported by the machine
+     */
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    double dot(double[] da, double[] db, int n)
+    {
+	DoubleVector vsum = DoubleVector.zero(SPECIES);
+	int nlength = SPECIES.length();
+	int nupper = SPECIES.loopBound(n);
+	int ni = 0;
+	for (; ni < nupper; ni += nlength)
+	{
+	    DoubleVector va = DoubleVector.fromArray(SPECIES, da, ni);
+	    DoubleVector vb = DoubleVector.fromArray(SPECIES, db, ni);
+	    vsum = va.fma(vb, vsum);
+	}
+
+	double dsum = vsum.reduceLanes(VectorOperators.ADD);
+	//the remaining entries that do not fill a vector
+	for (; ni < n; ni++)
+	{
+	    dsum += da[ni]*db[ni];
+	}
+	return dsum;
+    }
+
+    String getName()
+    {
+	return "vector";
+    }
+}